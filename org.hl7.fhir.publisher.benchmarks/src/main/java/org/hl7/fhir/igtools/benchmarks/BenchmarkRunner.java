@@ -0,0 +1,66 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, so that runs on different commits can be
+ * compared (e.g. with jmh.morethan.io, or by diffing the scores).
+ *
+ *   java -cp target/benchmarks.jar org.hl7.fhir.igtools.benchmarks.BenchmarkRunner [-o file] [regex...]
+ *
+ * With no regex, every benchmark is run. The default output file is
+ * benchmark-results/[git commit or date].json
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    String output = null;
+    ChainedOptionsBuilder options = new OptionsBuilder();
+    boolean any = false;
+    for (int i = 0; i < args.length; i++) {
+      if ("-o".equals(args[i]) && i < args.length - 1) {
+        output = args[++i];
+      } else {
+        options.include(args[i]);
+        any = true;
+      }
+    }
+    if (!any) {
+      options.include(BenchmarkRunner.class.getPackage().getName()+"\\..*Benchmark");
+    }
+    if (output == null) {
+      output = new File("benchmark-results", label()+".json").getPath();
+    }
+    File f = new File(output);
+    if (f.getParentFile() != null) {
+      f.getParentFile().mkdirs();
+    }
+    options.resultFormat(ResultFormatType.JSON).result(f.getAbsolutePath());
+    new Runner(options.build()).run();
+    System.out.println("Results written to "+f.getAbsolutePath());
+  }
+
+  /**
+   * The current git commit, if there is one, so the results of different commits don't
+   * overwrite each other
+   */
+  private static String label() {
+    try {
+      Process p = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+      String s = new String(p.getInputStream().readAllBytes()).trim();
+      if (p.waitFor() == 0 && s.matches("[0-9a-f]+")) {
+        return s;
+      }
+    } catch (Exception e) {
+      // not in a git repository, or no git
+    }
+    return new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+  }
+}
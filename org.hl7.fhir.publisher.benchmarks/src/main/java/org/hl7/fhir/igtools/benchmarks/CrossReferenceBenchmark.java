@@ -0,0 +1,91 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.renderers.CrossReferenceIndex;
+import org.hl7.fhir.r5.context.ContextUtilities;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cross references of every profile in an IG (derived profiles, and the profiles that
+ * use it as a type or target profile), as the StructureDefinitionRenderer finds them for the
+ * profile pages: a scan of all the structures for each page, as it used to be, against one
+ * CrossReferenceIndex for the whole IG. The scan grows with the square of the profile count
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class CrossReferenceBenchmark {
+
+  @Param({"100", "1000", "5000"})
+  public int size;
+
+  private IWorkerContext context;
+  private List<String> urls;
+
+  @Setup
+  public void setup() throws Exception {
+    context = new SyntheticIG(size).conformanceContext();
+    urls = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      urls.add(SyntheticIG.CANONICAL+"/StructureDefinition/profile"+i);
+    }
+  }
+
+  @Benchmark
+  public int scanPerPage() {
+    int res = 0;
+    for (String url : urls) {
+      for (StructureDefinition sd : new ContextUtilities(context).allStructures()) {
+        if (url.equals(sd.getBaseDefinition())) {
+          res++;
+        }
+        for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+          for (TypeRefComponent tr : ed.getType()) {
+            for (CanonicalType u : tr.getProfile()) {
+              if (url.equals(u.getValue())) {
+                res++;
+              }
+            }
+            for (CanonicalType u : tr.getTargetProfile()) {
+              if (url.equals(u.getValue())) {
+                res++;
+              }
+            }
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  @Benchmark
+  public int sharedIndex() {
+    CrossReferenceIndex index = CrossReferenceIndex.build(context);
+    int res = 0;
+    for (String url : urls) {
+      res = res + index.getDerived(url).size() + index.getProfileUsers(url).size() + index.getTargetProfileUsers(url).size();
+    }
+    return res;
+  }
+}
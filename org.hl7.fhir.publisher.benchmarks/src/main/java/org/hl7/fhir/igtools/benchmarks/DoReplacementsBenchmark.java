@@ -0,0 +1,139 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.FetchedResource;
+import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
+import org.hl7.fhir.igtools.publisher.ReplacementTemplate;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.utilities.Utilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IGKnowledgeProvider.doReplacements: the String.replace() chain it used to be, against the
+ * compiled template, for a wrapper page (a few KB, a dozen tokens), and for -json-html /
+ * -xml-html fragments of large bundles (hundreds of KB to MB, hardly any tokens)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DoReplacementsBenchmark {
+
+  @Param({"wrapper", "fragment-256k", "fragment-2m"})
+  public String content;
+
+  private IGKnowledgeProvider igpkp;
+  private FetchedResource resource;
+  private Map<String, String> vars;
+  private String source;
+  private ReplacementTemplate compiled;
+
+  @Setup
+  public void setup() throws Exception {
+    igpkp = new IGKnowledgeProvider(null, "http://hl7.org/fhir/R4", "http://example.org/fhir/ig", null, new ArrayList<>(), false, null, new ArrayList<>());
+    Bundle bnd = new Bundle();
+    bnd.setId("example-bundle");
+    resource = new FetchedResource();
+    resource.setResource(bnd);
+    resource.setId("example-bundle");
+    resource.setTitle("An example bundle");
+    vars = new HashMap<>();
+    vars.put("parent-name", "Base Profile");
+    vars.put("parent-link", "StructureDefinition-base.html");
+    vars.put("sd.Type", "Patient");
+    vars.put("sd.Type-plural", "Patients");
+    vars.put("sd.type", "patient");
+    vars.put("sd.type-plural", "patients");
+    switch (content) {
+    case "wrapper":
+      source = wrapper();
+      break;
+    case "fragment-256k":
+      source = fragment(256 * 1024);
+      break;
+    default:
+      source = fragment(2 * 1024 * 1024);
+    }
+    compiled = ReplacementTemplate.compile(source);
+  }
+
+  private String wrapper() {
+    StringBuilder b = new StringBuilder();
+    b.append("---\r\nlayout: resource-instance\r\ntitle: {{[title]}}\r\nid: {{[id]}}\r\ntype: {{[type]}}\r\n---\r\n");
+    b.append("{% include header.html %}\r\n<div class=\"col-12\">\r\n");
+    for (int i = 0; i < 40; i++) {
+      b.append("  <p>Some of the layout that the template puts around the content, line "+i+"</p>\r\n");
+    }
+    b.append("{% include {{[name]}}.xhtml %}\r\n<a href=\"{{[parent-link]}}\">{{[parent-name]}}</a> <a name=\"{{[uid]}}\"></a>\r\n");
+    b.append("{% include {{[type]}}-{{[id]}}-{{[fmt]}}.xhtml %}\r\n</div>\r\n{% include footer.html %}\r\n");
+    return b.toString();
+  }
+
+  private String fragment(int size) {
+    StringBuilder b = new StringBuilder(size + 200);
+    b.append("<div><p><b>Generated Narrative: {{[type]}} {{[id]}}</b></p><pre class=\"json\">\r\n");
+    int i = 0;
+    while (b.length() < size) {
+      b.append("  <span class=\"json-name\">\"entry\"</span> : [{ <a href=\"Patient-example-"+i+".html\">\"fullUrl\" : \"http://example.org/fhir/ig/Patient/example-"+i+"\"</a>,\r\n");
+      i++;
+    }
+    b.append("</pre></div>");
+    return b.toString();
+  }
+
+  @Benchmark
+  public String legacyReplace() {
+    return legacyDoReplacements(source, resource, vars, "json");
+  }
+
+  @Benchmark
+  public String compileAndApply() {
+    return igpkp.doReplacements(source, resource, vars, "json");
+  }
+
+  @Benchmark
+  public String applyCompiled() {
+    return igpkp.doReplacements(compiled, resource, vars, "json");
+  }
+
+  /**
+   * The implementation before the compiled templates, as the baseline
+   */
+  private String legacyDoReplacements(String s, FetchedResource r, Map<String, String> vars, String format) {
+    if (Utilities.noString(s))
+      return s;
+    s = s.replace("{{[title]}}", r.getTitle() == null ? "?title?" : r.getTitle());
+    s = s.replace("{{[name]}}", r.getId()+(format==null? "": "-"+format)+"-html");
+    s = s.replace("{{[id]}}", r.getId());
+    if (format!=null)
+      s = s.replace("{{[fmt]}}", format);
+    s = s.replace("{{[type]}}", r.fhirType());
+    s = s.replace("{{[uid]}}", r.fhirType()+"="+r.getId());
+    if (vars != null) {
+      for (String n : vars.keySet()) {
+        String v = vars.get(n);
+        if (v == null) {
+          v = "";
+        }
+        s = s == null ? "" : s.replace("{{["+n+"]}}", v);
+      }
+    }
+    return s;
+  }
+}
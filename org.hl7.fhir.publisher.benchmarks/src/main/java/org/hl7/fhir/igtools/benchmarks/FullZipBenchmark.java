@@ -0,0 +1,118 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.ParallelZipGenerator;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.ZipGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building full-ig.zip for a generated site: ZipGenerator in the temp folder and a copy into
+ * the output, as it used to be, against the ParallelZipGenerator writing in place, with and
+ * without the previous build's archive to reuse entries from (one page in 20 has changed).
+ *
+ * The peak disk use - all the archive files that exist at once - is reported at the end of
+ * each trial
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FullZipBenchmark {
+
+  @Param({"2000", "20000"})
+  public int size;
+
+  @Param({"ZipGenerator", "parallel", "parallel-reuse"})
+  public String writer;
+
+  private File temp;
+  private File output;
+  private String previous;
+  private long peak;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    File root = SyntheticIG.tempFolder("zip-"+size);
+    temp = new File(root, "temp");
+    temp.mkdirs();
+    output = new File(root, "output");
+    output.mkdirs();
+    new SyntheticIG(size).writeSite(output);
+    Random random = new Random(size);
+    for (int i = 0; i < size / 20; i++) {
+      byte[] image = new byte[20000 + random.nextInt(40000)];
+      random.nextBytes(image);
+      TextFile.bytesToFile(image, new File(output, "image-"+i+".png").getAbsolutePath());
+    }
+    byte[] pkg = new byte[size * 500];
+    random.nextBytes(pkg);
+    TextFile.bytesToFile(pkg, new File(output, "package.tgz").getAbsolutePath());
+    previous = Utilities.path(temp.getAbsolutePath(), "full-ig.previous.zip");
+    if ("parallel-reuse".equals(writer)) {
+      ParallelZipGenerator zip = new ParallelZipGenerator(previous, threads());
+      zip.addFolder(output.getAbsolutePath(), "site/");
+      zip.addFileSource("index.html", "redirect");
+      zip.close();
+      for (int i = 0; i < size; i += 20) {
+        Files.write(new File(output, "page-"+i+".html").toPath(), "<!-- changed -->\r\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+      }
+    }
+  }
+
+  private int threads() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  @Benchmark
+  public void buildZip() throws IOException {
+    String dest = Utilities.path(output.getAbsolutePath(), "full-ig.zip");
+    new File(dest).delete();
+    if ("ZipGenerator".equals(writer)) {
+      String tmp = Utilities.path(temp.getAbsolutePath(), "full-ig.zip");
+      ZipGenerator zip = new ZipGenerator(tmp);
+      zip.addFolder(output.getAbsolutePath(), "site/", false);
+      zip.addFileSource("index.html", "redirect", false);
+      zip.close();
+      Utilities.copyFile(tmp, dest);
+      peak = Math.max(peak, new File(tmp).length() + new File(dest).length());
+      new File(tmp).delete();
+    } else {
+      ParallelZipGenerator zip = new ParallelZipGenerator(dest, threads());
+      if ("parallel-reuse".equals(writer)) {
+        zip.setPrevious(previous);
+      }
+      zip.addFolder(output.getAbsolutePath(), "site/");
+      zip.addFileSource("index.html", "redirect");
+      zip.close();
+      peak = Math.max(peak, new File(dest).length() + new File(previous).length());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void report() {
+    System.out.println("Peak disk use for the archives ("+writer+", "+size+" pages): "+(peak / (1024 * 1024))+"MB");
+  }
+}
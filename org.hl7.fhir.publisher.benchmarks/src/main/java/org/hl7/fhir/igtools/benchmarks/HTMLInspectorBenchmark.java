@@ -0,0 +1,74 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.HTMLInspector;
+import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTMLInspector.check: loading and link checking a generated site. firstCheck is a new
+ * inspector each time (a normal build); recheck is the same inspector again with nothing
+ * changed (a watch mode cycle)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HTMLInspectorBenchmark {
+
+  @Param({"200", "2000"})
+  public int size;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private File dir;
+  private List<SpecMapManager> specs;
+  private HTMLInspector warm;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    SyntheticIG ig = new SyntheticIG(size);
+    dir = SyntheticIG.tempFolder("html-"+size);
+    ig.writeSite(dir);
+    specs = new ArrayList<>();
+    specs.add(ig.coreSpecMap());
+    warm = inspector();
+    warm.check("synthetic");
+  }
+
+  private HTMLInspector inspector() {
+    HTMLInspector res = new HTMLInspector(dir.getAbsolutePath(), specs, new SyntheticIG.QuietLogger(), SyntheticIG.CANONICAL, SyntheticIG.PACKAGE_ID, new HashMap<>());
+    res.setThreads(threads);
+    return res;
+  }
+
+  @Benchmark
+  public List<ValidationMessage> firstCheck() throws Exception {
+    return inspector().check("synthetic");
+  }
+
+  @Benchmark
+  public List<ValidationMessage> recheck() throws Exception {
+    return warm.check("synthetic");
+  }
+}
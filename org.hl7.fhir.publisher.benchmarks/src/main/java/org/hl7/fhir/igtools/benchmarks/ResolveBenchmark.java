@@ -0,0 +1,126 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.hl7.fhir.igtools.publisher.FetchedResource;
+import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
+import org.hl7.fhir.igtools.publisher.Publisher;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.renderers.utils.DirectWrappers;
+import org.hl7.fhir.r5.renderers.utils.ElementWrappers;
+import org.hl7.fhir.r5.renderers.utils.Resolver.ResourceWithReference;
+import org.hl7.fhir.utilities.Utilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Publisher.resolve: resolving the references the renderers find - local ones, canonical
+ * ones, ones in the core spec, and ones that don't resolve at all.
+ *
+ * baseline is the way resolve found the IG's own resources before the ResourceIndex: a
+ * scan of every file and bundle entry for each reference. The references it doesn't find
+ * go on to resolve() for the spec maps, as they used to
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResolveBenchmark {
+
+  @Param({"100", "1000", "10000", "20000"})
+  public int size;
+
+  private Publisher publisher;
+  private List<String> references;
+
+  @Setup
+  public void setup() throws Exception {
+    SyntheticIG ig = new SyntheticIG(size);
+    publisher = new Publisher();
+    publisher.setIgpkp(new IGKnowledgeProvider(null, SyntheticIG.SPEC, SyntheticIG.CANONICAL, null, new ArrayList<>(), false, null, new ArrayList<>()));
+    publisher.getSpecMaps().add(ig.coreSpecMap());
+    publisher.getFileList().addAll(ig.fetchedFiles());
+    publisher.getResourceIndex().update(publisher.getFileList());
+    references = ig.references();
+  }
+
+  @Benchmark
+  public void resolve(Blackhole bh) {
+    for (String ref : references) {
+      bh.consume(publisher.resolve(null, ref));
+    }
+  }
+
+  @Benchmark
+  public void baseline(Blackhole bh) {
+    for (String ref : references) {
+      ResourceWithReference res = scan(ref);
+      bh.consume(res != null ? res : publisher.resolve(null, ref));
+    }
+  }
+
+  private ResourceWithReference scan(String url) {
+    IGKnowledgeProvider igpkp = publisher.getIgpkp();
+    String[] parts = url.split("\\/");
+    if (parts.length >= 2 && !Utilities.startsWithInList(url, "urn:uuid:", "urn:oid:", "cid:")) {
+      for (FetchedFile f : publisher.getFileList()) {
+        for (FetchedResource r : f.getResources()) {
+          if (r.getElement() != null && r.fhirType().equals(parts[0]) && r.getId().equals(parts[1])) {
+            String path = igpkp.getLinkFor(r, true);
+            return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(null, r.getElement()));
+          }
+          if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
+            if (url.equals(((CanonicalResource) r.getResource()).getUrl())) {
+              String path = igpkp.getLinkFor(r, true);
+              return new ResourceWithReference(path, new DirectWrappers.ResourceWrapperDirect(null, r.getResource()));
+            }
+          }
+        }
+      }
+      for (FetchedFile f : publisher.getFileList()) {
+        for (FetchedResource r : f.getResources()) {
+          if (r.fhirType().equals("Bundle")) {
+            for (Element entry : r.getElement().getChildrenByName("entry")) {
+              Element res = entry.getNamedChild("resource");
+              if (res != null && res.fhirType().equals(parts[0]) && res.hasChild("id") && res.getNamedChildValue("id").equals(parts[1])) {
+                String path = igpkp.getLinkFor(r, true)+"#"+parts[0]+"_"+parts[1];
+                return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(null, r.getElement()));
+              }
+            }
+          }
+        }
+      }
+    }
+    for (FetchedFile f : publisher.getFileList()) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.fhirType().equals("Bundle")) {
+          for (Element entry : r.getElement().getChildrenByName("entry")) {
+            Element res = entry.getNamedChild("resource");
+            String fu = entry.getNamedChildValue("fullUrl");
+            if (res != null && fu != null && fu.equals(url)) {
+              String path = igpkp.getLinkFor(r, true)+"#"+fu.replace(":", "-");
+              return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(null, r.getElement()));
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+}
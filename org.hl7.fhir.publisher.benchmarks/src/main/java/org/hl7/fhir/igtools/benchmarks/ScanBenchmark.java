@@ -0,0 +1,57 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.hl7.fhir.igtools.publisher.SimpleFetcher;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SimpleFetcher.scan: reading and sniffing every file in an input folder, and parsing the
+ * ones that look like resources. A new fetcher each time, so nothing is reused from an
+ * earlier scan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+  @Param({"200", "2000"})
+  public int size;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private File dir;
+  private SimpleWorkerContext context;
+
+  @Setup
+  public void setup() throws Exception {
+    dir = SyntheticIG.tempFolder("scan-"+size);
+    new SyntheticIG(size).writeSources(dir);
+    context = SyntheticIG.definitions();
+  }
+
+  @Benchmark
+  public List<FetchedFile> scan() throws Exception {
+    SimpleFetcher fetcher = new SimpleFetcher(new SyntheticIG.QuietLogger());
+    fetcher.setThreads(threads);
+    return fetcher.scan(dir.getAbsolutePath(), context, false);
+  }
+}
@@ -0,0 +1,51 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * SpecMapManager.getPath: looking up a url in a spec map the size of the core spec's, half
+ * of them known and half of them not (the unknown ones go through the url pattern fallback)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpecMapBenchmark {
+
+  @Param({"100", "1000"})
+  public int size;
+
+  private SpecMapManager spm;
+  private List<String> urls;
+
+  @Setup
+  public void setup() {
+    SyntheticIG ig = new SyntheticIG(size);
+    spm = ig.coreSpecMap();
+    urls = ig.specMapUrls();
+  }
+
+  @Benchmark
+  public void getPath(Blackhole bh) {
+    for (String url : urls) {
+      bh.consume(spm.getPath(url, null, null, null));
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.SuppressedMessageInformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * SuppressedMessageInformation.contains: checking each validation message against the
+ * suppressed message list, for lists of the size found in small and very large IGs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SuppressedMessagesBenchmark {
+
+  @Param({"50", "500", "5000"})
+  public int size;
+
+  private SuppressedMessageInformation suppressed;
+  private List<String> messages;
+
+  @Setup
+  public void setup() {
+    SyntheticIG ig = new SyntheticIG(size);
+    suppressed = ig.suppressedMessages();
+    messages = ig.messages();
+  }
+
+  @Benchmark
+  public void contains(Blackhole bh) {
+    for (String msg : messages) {
+      bh.consume(suppressed.contains(msg));
+    }
+  }
+}
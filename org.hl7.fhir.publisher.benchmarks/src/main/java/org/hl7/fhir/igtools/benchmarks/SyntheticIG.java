@@ -0,0 +1,447 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.hl7.fhir.igtools.publisher.FetchedResource;
+import org.hl7.fhir.igtools.publisher.PublisherLoader;
+import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.SuppressedMessageInformation;
+import org.hl7.fhir.igtools.publisher.xig.XIGInformation;
+import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
+import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService.LogCategory;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
+import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.utilities.npm.ToolsVersion;
+
+/**
+ * Makes IGs of a given size for the benchmarks, so that none of them need a real IG, a
+ * terminology server or the internet. Everything is generated from the size alone, so the
+ * same size always gives the same content
+ */
+public class SyntheticIG {
+
+  public static final String CANONICAL = "http://example.org/fhir/synthetic";
+  public static final String SPEC = "http://hl7.org/fhir/R4";
+  public static final String PACKAGE_ID = "example.fhir.synthetic";
+
+  private static final String[] CORE_PAGES = {"patient.html", "observation.html", "valueset.html", "codesystem.html", "structuredefinition.html", "datatypes.html", "terminologies.html", "references.html"};
+  private static final String[] REALMS = {"us", "uv", "au", "de", "nl"};
+  private static final String[] SYSTEMS = {"http://snomed.info/sct", "http://loinc.org", "http://unitsofmeasure.org", "urn:oid:2.16.840.1.113883.6.238", "http://terminology.hl7.org/CodeSystem/v3-ActCode", CANONICAL+"/CodeSystem/local"};
+
+  private int size;
+
+  /**
+   * @param size the number of resources (and pages) in the IG
+   */
+  public SyntheticIG(int size) {
+    this.size = size;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public static File tempFolder(String name) throws IOException {
+    File f = new File(Utilities.path(System.getProperty("java.io.tmpdir"), "ig-benchmarks", name));
+    if (f.exists()) {
+      FileUtils.deleteDirectory(f);
+    }
+    f.mkdirs();
+    return f;
+  }
+
+  /**
+   * A worker context with the R5 definitions, if they're in the local package cache (any
+   * publisher run will have put them there). Nothing is downloaded; without the package,
+   * the context is empty, and resources can be sniffed but not parsed
+   */
+  public static SimpleWorkerContext definitions() throws IOException {
+    FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    NpmPackage npm = pcm.loadPackageFromCacheOnly("hl7.fhir.r5.core", "5.0.0");
+    if (npm == null) {
+      System.out.println("hl7.fhir.r5.core#5.0.0 is not in the package cache; using an empty context");
+      return new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing();
+    }
+    return new SimpleWorkerContext.SimpleWorkerContextBuilder().fromPackage(npm, new PublisherLoader(npm, SpecMapManager.fromPackage(npm), npm.getWebLocation(), null).makeLoader());
+  }
+
+  /**
+   * An input folder as SimpleFetcher.scan() sees it: json and xml resources, plus some of
+   * the other files that are found in real input folders
+   */
+  public void writeSources(File dir) throws IOException {
+    for (int i = 0; i < size; i++) {
+      switch (i % 4) {
+      case 0:
+        TextFile.stringToFile(patientJson(i), new File(dir, "Patient-p"+i+".json").getAbsolutePath());
+        break;
+      case 1:
+        TextFile.stringToFile(observationXml(i), new File(dir, "Observation-o"+i+".xml").getAbsolutePath());
+        break;
+      case 2:
+        TextFile.stringToFile(valueSetJson(i), new File(dir, "ValueSet-vs"+i+".json").getAbsolutePath());
+        break;
+      default:
+        TextFile.stringToFile("This is the introduction for artifact "+i+"\r\n", new File(dir, "notes-"+i+".md").getAbsolutePath());
+      }
+    }
+  }
+
+  private String patientJson(int i) {
+    return "{\r\n  \"resourceType\" : \"Patient\",\r\n  \"id\" : \"p"+i+"\",\r\n  \"active\" : true,\r\n"+
+        "  \"name\" : [{ \"family\" : \"Family"+i+"\", \"given\" : [\"Given"+i+"\"] }],\r\n"+
+        "  \"gender\" : \""+(i % 8 == 0 ? "female" : "male")+"\",\r\n  \"birthDate\" : \"19"+(10 + i % 90)+"-01-01\"\r\n}\r\n";
+  }
+
+  private String observationXml(int i) {
+    return "<Observation xmlns=\"http://hl7.org/fhir\">\r\n  <id value=\"o"+i+"\"/>\r\n  <status value=\"final\"/>\r\n"+
+        "  <code>\r\n    <coding>\r\n      <system value=\"http://loinc.org\"/>\r\n      <code value=\"8867-4\"/>\r\n    </coding>\r\n  </code>\r\n"+
+        "  <subject>\r\n    <reference value=\"Patient/p"+(i - 1)+"\"/>\r\n  </subject>\r\n"+
+        "  <valueQuantity>\r\n    <value value=\""+(60 + i % 40)+"\"/>\r\n    <unit value=\"/min\"/>\r\n  </valueQuantity>\r\n</Observation>\r\n";
+  }
+
+  private String valueSetJson(int i) {
+    return "{\r\n  \"resourceType\" : \"ValueSet\",\r\n  \"id\" : \"vs"+i+"\",\r\n  \"url\" : \""+CANONICAL+"/ValueSet/vs"+i+"\",\r\n"+
+        "  \"name\" : \"ValueSet"+i+"\",\r\n  \"status\" : \"draft\",\r\n"+
+        "  \"compose\" : { \"include\" : [{ \"system\" : \""+SYSTEMS[i % SYSTEMS.length]+"\" }] }\r\n}\r\n";
+  }
+
+  /**
+   * A generated site as HTMLInspector.check() sees it: pages that link to each other, to
+   * anchors in each other, and to the core spec, with a few broken links
+   */
+  public void writeSite(File dir) throws IOException {
+    for (int i = 0; i < size; i++) {
+      StringBuilder b = new StringBuilder();
+      b.append("<!DOCTYPE HTML>\r\n<html xml:lang=\"en\" xmlns=\"http://www.w3.org/1999/xhtml\" lang=\"en\">\r\n<head>\r\n");
+      b.append("  <title>Page "+i+"</title>\r\n  <link href=\"fhir.css\" rel=\"stylesheet\"/>\r\n</head>\r\n<body>\r\n");
+      b.append("  <ul class=\"nav\"><li><a href=\"index.html\">Home</a></li><li><a href=\"page-"+((i + 1) % size)+".html\">Next</a></li></ul>\r\n");
+      for (int s = 0; s < 5; s++) {
+        b.append("  <a name=\"s"+s+"\"> </a><h2>Section "+s+"</h2>\r\n  <p>");
+        b.append("See <a href=\"page-"+((i * 7 + s) % size)+".html#s"+((s + 1) % 5)+"\">the related section</a>, ");
+        b.append("the <a href=\""+SPEC+"/"+CORE_PAGES[(i + s) % CORE_PAGES.length]+"\">core definition</a> and ");
+        b.append("<a href=\"#s"+s+"\">this section</a>.");
+        if (s == 4 && i % 50 == 0) {
+          b.append(" <a href=\"missing-"+i+".html\">Broken</a>");
+        }
+        b.append("</p>\r\n");
+        b.append("  <table class=\"grid\"><tr><td>Element</td><td>Value</td></tr><tr><td>Patient.name</td><td>Family "+i+"</td></tr></table>\r\n");
+      }
+      b.append("</body>\r\n</html>\r\n");
+      TextFile.stringToFile(b.toString(), new File(dir, "page-"+i+".html").getAbsolutePath());
+    }
+    TextFile.stringToFile("<html><head><title>Home</title></head><body><p><a href=\"page-0.html\">Start</a></p></body></html>\r\n", new File(dir, "index.html").getAbsolutePath());
+    TextFile.stringToFile("body { margin: 0 }\r\n", new File(dir, "fhir.css").getAbsolutePath());
+  }
+
+  /**
+   * The spec map for the core spec, as it's loaded from spec.internals
+   */
+  public SpecMapManager coreSpecMap() {
+    SpecMapManager spm = new SpecMapManager("hl7.fhir.r4.core", "4.0.1", "4.0.1", "0", null, SPEC);
+    spm.setBase(SPEC);
+    spm.setBase2(SPEC);
+    spm.setName("hl7.fhir.r4.core");
+    for (String p : CORE_PAGES) {
+      spm.target(p);
+    }
+    for (int i = 0; i < size * 10; i++) {
+      String type = "Type"+(i % 150);
+      spm.path("http://hl7.org/fhir/StructureDefinition/"+type+"-"+i, type.toLowerCase()+"-"+i+".html");
+      spm.path("http://hl7.org/fhir/ValueSet/vs-"+i, "valueset-vs-"+i+".html");
+      spm.target(type.toLowerCase()+"-"+i+".html");
+    }
+    return spm;
+  }
+
+  /**
+   * The urls that coreSpecMap() knows about, followed by the same number of ones it doesn't
+   */
+  public List<String> specMapUrls() {
+    List<String> res = new ArrayList<>();
+    for (int i = 0; i < size * 10; i += 10) {
+      res.add("http://hl7.org/fhir/StructureDefinition/Type"+(i % 150)+"-"+i);
+      res.add("http://hl7.org/fhir/ValueSet/vs-"+i);
+    }
+    int c = res.size();
+    for (int i = 0; i < c; i++) {
+      res.add(CANONICAL+"/StructureDefinition/unknown-"+i);
+    }
+    return res;
+  }
+
+  /**
+   * The loaded files of the IG, as Publisher.resolve() sees them: one resource per file,
+   * with a canonical resource for every other one
+   */
+  public List<FetchedFile> fetchedFiles() {
+    List<FetchedFile> res = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      FetchedFile f = new FetchedFile("input/resources/"+(i % 2 == 0 ? "Patient-p"+i : "StructureDefinition-sd"+i)+".json");
+      FetchedResource r = f.addResource();
+      Resource resource;
+      if (i % 2 == 0) {
+        resource = new Patient();
+        resource.setId("p"+i);
+      } else {
+        resource = structureDefinition(i);
+      }
+      r.setResource(resource);
+      r.setId(resource.getId());
+      r.setElement(new Element(resource.fhirType(), null, resource.fhirType(), null));
+      res.add(f);
+    }
+    return res;
+  }
+
+  /**
+   * References as they're found in narratives: local ones, canonical ones, core ones and ones
+   * that don't resolve
+   */
+  public List<String> references() {
+    List<String> res = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      switch (i % 4) {
+      case 0:
+        res.add("Patient/p"+i);
+        break;
+      case 1:
+        res.add(CANONICAL+"/StructureDefinition/sd"+i);
+        break;
+      case 2:
+        res.add("http://hl7.org/fhir/ValueSet/vs-"+i);
+        break;
+      default:
+        res.add("Observation/unknown-"+i);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * A suppressed message list like the ones in big IGs: mostly exact matches, and some with
+   * wildcards
+   */
+  public SuppressedMessageInformation suppressedMessages() {
+    SuppressedMessageInformation res = new SuppressedMessageInformation();
+    for (int i = 0; i < size; i++) {
+      String cat = "Category "+(i % 10);
+      switch (i % 5) {
+      case 0:
+        res.add("%code "+i+" not found%", cat);
+        break;
+      case 1:
+        res.add("The extension "+CANONICAL+"/StructureDefinition/ext-"+i+"%", cat);
+        break;
+      default:
+        res.add("Constraint failed: dom-"+i+": 'If the resource is contained in another resource, it SHALL NOT contain nested Resources'", cat);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Messages to check against suppressedMessages(): half of them are suppressed
+   */
+  public List<String> messages() {
+    List<String> res = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      switch (i % 5) {
+      case 0:
+        res.add("Unknown code: the code "+i+" not found in the value set");
+        break;
+      case 1:
+        res.add("The extension "+CANONICAL+"/StructureDefinition/ext-"+i+" could not be found so is not allowed here");
+        break;
+      default:
+        res.add("Constraint failed: dom-"+i+": 'If the resource is contained in another resource, it SHALL NOT contain nested Resources'");
+      }
+      res.add("Slicing cannot be evaluated: Could not match discriminator ([code]) for slice Observation.category:"+i);
+    }
+    return res;
+  }
+
+  /**
+   * The XIG information as XIGLoader would have built it from a package registry with this
+   * many canonical resources, spread across realms and packages
+   */
+  public XIGInformation xigInformation() {
+    XIGInformation info = new XIGInformation();
+    info.setCtxt(new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing());
+    for (int i = 0; i < size; i++) {
+      String realm = REALMS[i % REALMS.length];
+      String pid = "example.fhir."+realm+".p"+(i % 20)+"#1.0.0";
+      CanonicalResource cr;
+      switch (i % 3) {
+      case 0:
+        cr = structureDefinition(i);
+        break;
+      case 1:
+        ValueSet vs = new ValueSet();
+        vs.setId("vs"+i);
+        vs.setUrl(CANONICAL+"/"+realm+"/ValueSet/vs"+i);
+        vs.getCompose().addInclude().setSystem(SYSTEMS[i % SYSTEMS.length]);
+        cr = vs;
+        break;
+      default:
+        CodeSystem cs = new CodeSystem();
+        cs.setId("cs"+i);
+        cs.setUrl(CANONICAL+"/"+realm+"/CodeSystem/cs"+i);
+        cs.setContent(CodeSystemContentMode.values()[i % 5]);
+        cr = cs;
+      }
+      cr.setName(cr.fhirType()+i);
+      cr.setTitle(cr.fhirType()+" number "+i);
+      cr.setStatus(PublicationStatus.ACTIVE);
+      cr.setDescription("A synthetic "+cr.fhirType()+" for the benchmarks");
+      cr.setVersion("1.0.0");
+      info.getPid().put(pid, "http://example.org/"+realm+"/p"+(i % 20));
+      cr.setUserData("path", "http://example.org/"+realm+"/p"+(i % 20)+"/"+cr.fhirType()+"-"+cr.getId()+".html");
+      cr.setUserData("pid", pid);
+      cr.setUserData("purl", "http://example.org/"+realm+"/p"+(i % 20));
+      cr.setUserData("pname", "Package "+(i % 20));
+      cr.setUserData("fver", "4.0.1");
+      cr.setUserData("realm", realm);
+      if (i % 4 == 0) {
+        cr.setUserData("auth", "hl7");
+      }
+      cr.setUserData("filebase", (cr.fhirType()+"-"+pid.substring(0, pid.indexOf("#"))+"-"+cr.getId()).toLowerCase());
+      info.getJurisdictions().add(realm);
+      JsonObject j = new JsonObject();
+      info.fillOutJson(cr, j);
+      cr.setUserData("json", j);
+      info.getResources().put(cr.getUrl(), cr);
+    }
+    info.buildUsageMap();
+    return info;
+  }
+
+  /**
+   * A worker context holding the conformance resources of an IG with this many profiles, as
+   * the renderers see it once the snapshots are generated: the profiles derive from each other,
+   * refer to each other as type and target profiles, use extensions and bind value sets, and the
+   * value sets include code systems and each other
+   */
+  public SimpleWorkerContext conformanceContext() throws IOException {
+    SimpleWorkerContext ctxt = new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing();
+    for (int i = 0; i < size; i++) {
+      ctxt.cacheResource(profile(i));
+      if (i % 4 == 0) {
+        CodeSystem cs = new CodeSystem();
+        cs.setId("cs"+i);
+        cs.setUrl(CANONICAL+"/CodeSystem/cs"+i);
+        cs.setName("CodeSystem"+i);
+        cs.setStatus(PublicationStatus.DRAFT);
+        cs.setContent(CodeSystemContentMode.COMPLETE);
+        cs.addConcept().setCode("a");
+        ctxt.cacheResource(cs);
+      }
+      if (i % 2 == 0) {
+        ValueSet vs = new ValueSet();
+        vs.setId("vs"+i);
+        vs.setUrl(CANONICAL+"/ValueSet/vs"+i);
+        vs.setName("ValueSet"+i);
+        vs.setStatus(PublicationStatus.DRAFT);
+        vs.getCompose().addInclude().setSystem(CANONICAL+"/CodeSystem/cs"+(i / 8 * 4));
+        if (i > 0) {
+          vs.getCompose().addInclude().addValueSet(CANONICAL+"/ValueSet/vs"+(i / 4 * 2));
+        }
+        ctxt.cacheResource(vs);
+      }
+    }
+    return ctxt;
+  }
+
+  /**
+   * A profile with a snapshot. Each profile derives from the one at i / 2, so they form a tree
+   */
+  public StructureDefinition profile(int i) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId("profile"+i);
+    sd.setUrl(CANONICAL+"/StructureDefinition/profile"+i);
+    sd.setName("Profile"+i);
+    sd.setType("Patient");
+    sd.setKind(StructureDefinitionKind.RESOURCE);
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+    sd.setBaseDefinition(i == 0 ? "http://hl7.org/fhir/StructureDefinition/Patient" : CANONICAL+"/StructureDefinition/profile"+(i / 2));
+    sd.setAbstract(false);
+    sd.setUserData("path", "StructureDefinition-profile"+i+".html");
+    sd.getSnapshot().addElement().setPath("Patient");
+    for (String p : new String[] {"id", "meta", "language", "text", "identifier", "active", "name", "telecom", "gender", "birthDate", "address", "photo", "contact"}) {
+      sd.getSnapshot().addElement().setPath("Patient."+p);
+    }
+    ElementDefinition ed = sd.getSnapshot().addElement();
+    ed.setPath("Patient.extension");
+    ed.addType().setCode("Extension").addProfile(CANONICAL+"/StructureDefinition/sd"+(i % 50 * 2));
+    ed = sd.getSnapshot().addElement();
+    ed.setPath("Patient.maritalStatus");
+    ed.addType().setCode("CodeableConcept");
+    ed.getBinding().setValueSet(CANONICAL+"/ValueSet/vs"+(i / 2 * 2));
+    ed = sd.getSnapshot().addElement();
+    ed.setPath("Patient.generalPractitioner");
+    ed.addType().setCode("Reference").addTargetProfile(CANONICAL+"/StructureDefinition/profile"+(i / 3));
+    ed = sd.getSnapshot().addElement();
+    ed.setPath("Patient.link.other");
+    ed.addType().setCode("Reference").addProfile(CANONICAL+"/StructureDefinition/profile"+(i / 5));
+    return sd;
+  }
+
+  private StructureDefinition structureDefinition(int i) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId("sd"+i);
+    sd.setUrl(CANONICAL+"/StructureDefinition/sd"+i);
+    sd.setName("Profile"+i);
+    boolean ext = i % 2 == 0;
+    sd.setType(ext ? "Extension" : "Patient");
+    sd.setKind(ext ? StructureDefinitionKind.COMPLEXTYPE : StructureDefinitionKind.RESOURCE);
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+    sd.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/"+sd.getType());
+    sd.setAbstract(false);
+    ElementDefinition ed = sd.getDifferential().addElement();
+    ed.setPath(sd.getType());
+    ed = sd.getDifferential().addElement();
+    ed.setPath(sd.getType()+".extension");
+    ed.addType().setCode("Extension").addProfile(CANONICAL+"/StructureDefinition/sd"+(i / 2 * 2));
+    return sd;
+  }
+
+  /**
+   * A logger that drops everything, so the benchmarks measure the work, not the console
+   */
+  public static class QuietLogger implements ILoggingService {
+
+    @Override
+    public void logMessage(String message) {
+    }
+
+    @Override
+    public void logDebugMessage(LogCategory category, String message) {
+    }
+
+    @Override
+    public boolean isDebugLogging() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.hl7.fhir.igtools.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.igtools.publisher.xig.XIGHandler.PageContent;
+import org.hl7.fhir.igtools.publisher.xig.XIGInformation;
+import org.hl7.fhir.igtools.publisher.xig.XIGRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * XIGRenderer page-set generation: all the index pages for one realm (a single realm, and
+ * everything), over a registry of synthetic canonical resources
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class XIGPageSetBenchmark {
+
+  @Param({"1000", "10000"})
+  public int size;
+
+  @Param({"us", "all"})
+  public String realm;
+
+  private File dir;
+  private XIGRenderer renderer;
+
+  @Setup
+  public void setup() throws Exception {
+    dir = SyntheticIG.tempFolder("xig-"+size);
+    XIGInformation info = new SyntheticIG(size).xigInformation();
+    renderer = new XIGRenderer(info, dir.getAbsolutePath(), "(benchmark)");
+  }
+
+  @Benchmark
+  public PageContent genPageSet() throws Exception {
+    return renderer.genPageSet(dir.getAbsolutePath(), realm, realm);
+  }
+}
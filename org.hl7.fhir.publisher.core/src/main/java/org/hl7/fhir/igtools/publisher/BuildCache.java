@@ -0,0 +1,175 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+
+/**
+ * A content addressed cache of build products that persists between runs of the publisher
+ * (in [temp]/_build-cache: temp is jekyll's source folder, and jekyll leaves out folders that
+ * start with '_', so the cache is never copied into the output or the zip).
+ *
+ * Entries are stored by kind (e.g. 'validation') and by a key that the caller builds from
+ * everything the product depends on (see digest()). Anything that affects every product - the
+ * publisher version, the dependency packages, the template - goes into the global key; when
+ * that changes, the whole cache is dropped.
+ *
+ * A cold build (-cold-build) empties the cache at the start and then fills it again. Entries
+ * that a run doesn't use are dropped at the end of it (see evictUnused()), so the cache only 
+ * holds what the current content needs.
+ *
+ * The cache holds the validation outcome of each resource, and the OutputSink's manifest. 
+ * The other products can't be cached without changing the output:
+ * - a parsed element can only be stored in one of the FHIR formats, and reading it back is 
+ *   a parse with the same element model parser, which is the work a cache hit would save
+ * - ProfileUtilities.generateSnapshot() puts user data (the base model, and the derivation 
+ *   pointers and flags) on the snapshot elements, and the StructureDefinition renderers use 
+ *   it. A snapshot read back from JSON doesn't have it, so its pages would be different
+ * - a fragment depends on any resource in the IG (through links, lists and the cross 
+ *   references), and generating it also records what the later steps use (the tracked 
+ *   fragments, the other files, the indexes), so it can't be skipped resource by resource. 
+ *   A fragment that comes out the same isn't written again (see OutputSink)
+ */
+public class BuildCache {
+
+  public static final String FOLDER_NAME = "_build-cache";
+
+  private String folder;
+  private boolean active;
+  private int hits;
+  private int misses;
+  private Set<String> used = ConcurrentHashMap.newKeySet(); // the files loaded or stored since the last evictUnused()
+
+  /**
+   * Until this is called, the cache does nothing (no hits, and nothing is stored)
+   *
+   * @param tempDir the temp folder for the build
+   * @param globalKey the digest of everything that all the products depend on
+   * @param cold true if the existing content must not be used
+   */
+  public void start(String tempDir, String globalKey, boolean cold) throws IOException {
+    folder = Utilities.path(tempDir, FOLDER_NAME);
+    Utilities.createDirectory(folder);
+    String kf = Utilities.path(folder, "global.key");
+    if (cold || !new File(kf).exists() || !globalKey.equals(TextFile.fileToString(kf).trim())) {
+      Utilities.clearDirectory(folder);
+      TextFile.stringToFile(globalKey, kf, false);
+    }
+    active = true;
+  }
+
+  public boolean isActive() {
+    return active;
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the cached product, or null if there isn't one (or it can't be read)
+   */
+  public JsonObject load(String kind, String key) {
+    if (!active || key == null) {
+      return null;
+    }
+    try {
+      File f = new File(filename(kind, key));
+      if (f.exists()) {
+        JsonObject res = JsonParser.parseObject(TextFile.fileToString(f));
+        used.add(f.getAbsolutePath());
+        synchronized (this) {
+          hits++;
+        }
+        return res;
+      }
+    } catch (Exception e) {
+      // treat it as a miss; it'll be written again
+    }
+    synchronized (this) {
+      misses++;
+    }
+    return null;
+  }
+
+  public void store(String kind, String key, JsonObject value) throws IOException {
+    if (!active || key == null) {
+      return;
+    }
+    String fn = filename(kind, key);
+    Utilities.createDirectory(Utilities.getDirectoryForFile(fn));
+    // write and rename so that a partially written entry is never seen
+    File tmp = new File(fn+"."+Thread.currentThread().getId()+".tmp");
+    TextFile.stringToFile(JsonParser.compose(value, false), tmp.getAbsolutePath(), false);
+    File dst = new File(fn);
+    if (!tmp.renameTo(dst)) {
+      tmp.delete();
+    }
+    used.add(dst.getAbsolutePath());
+  }
+
+  /**
+   * Deletes the entries of the kind that haven't been loaded or stored since the last call.
+   * Call it once every product of the kind has been asked for (e.g. at the end of validation)
+   *
+   * @return the number of entries deleted
+   */
+  public int evictUnused(String kind) throws IOException {
+    int res = 0;
+    if (active) {
+      File[] dirs = new File(Utilities.path(folder, kind)).listFiles();
+      if (dirs != null) {
+        for (File dir : dirs) {
+          File[] files = dir.listFiles();
+          if (files != null) {
+            for (File f : files) {
+              if (!used.contains(f.getAbsolutePath()) && f.delete()) {
+                res++;
+              }
+            }
+          }
+          dir.delete(); // only if it's empty now
+        }
+      }
+    }
+    used.clear();
+    return res;
+  }
+
+  private String filename(String kind, String key) throws IOException {
+    return Utilities.path(folder, kind, key.substring(0, 2), key.substring(2)+".json");
+  }
+
+  public static String digest(byte[] content) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      return String.format("%064x", new BigInteger(1, md.digest(content)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  public static String digest(String... parts) {
+    StringBuilder b = new StringBuilder();
+    for (String s : parts) {
+      b.append(s == null ? "" : s);
+      b.append('\u0000');
+    }
+    return digest(b.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+}
@@ -0,0 +1,212 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The content of a source file, kept deflated in a direct buffer (outside the heap) and
+ * inflated again each time something asks for it, along with the SHA-256 digest of the content.
+ *
+ * When the content is read from a file or a stream, it's digested and deflated a chunk at a
+ * time as it's read, so the whole of it is never on the heap. The digest is in the same form as
+ * BuildCache.digest(), so it can be used in the build cache keys directly
+ */
+public class CompressedSource {
+
+  private static final int CHUNK = 65536;
+
+  private ByteBuffer data;
+  private int length;
+  private boolean deflated;
+  private String digest;
+
+  private CompressedSource() {
+    super();
+  }
+
+  public static CompressedSource of(byte[] content) {
+    MessageDigest md = sha256();
+    md.update(content);
+    CompressedSource res = new CompressedSource();
+    res.length = content.length;
+    res.digest = hex(md);
+    if (content.length <= CHUNK) {
+      res.storeSmall(content, content.length);
+    } else {
+      Deflater def = new Deflater(Deflater.BEST_SPEED);
+      try {
+        def.setInput(content);
+        def.finish();
+        res.data = res.drain(def, ByteBuffer.allocateDirect(content.length / 4 + 64));
+        res.deflated = true;
+      } finally {
+        def.end();
+      }
+    }
+    return res;
+  }
+
+  public static CompressedSource read(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return read(in, file.length());
+    }
+  }
+
+  /**
+   * Reads the stream to the end (but doesn't close it)
+   *
+   * @param size how much content to expect, if it's known (for the size of the first buffer)
+   */
+  public static CompressedSource read(InputStream in, long size) throws IOException {
+    MessageDigest md = sha256();
+    byte[] buf = new byte[CHUNK];
+    int n = in.readNBytes(buf, 0, CHUNK);
+    md.update(buf, 0, n);
+    CompressedSource res = new CompressedSource();
+    if (n < CHUNK) {
+      res.length = n;
+      res.digest = hex(md);
+      res.storeSmall(buf, n);
+      return res;
+    }
+    Deflater def = new Deflater(Deflater.BEST_SPEED);
+    try {
+      ByteBuffer out = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE / 2, Math.max(size, CHUNK) / 4 + 64));
+      long total = 0;
+      while (n > 0) {
+        total += n;
+        if (total > Integer.MAX_VALUE) {
+          throw new IOException("Source is too large ("+total+" bytes)");
+        }
+        def.setInput(buf, 0, n);
+        while (!def.needsInput()) {
+          out = deflate(def, out);
+        }
+        n = in.readNBytes(buf, 0, CHUNK);
+        md.update(buf, 0, n);
+      }
+      def.finish();
+      res.data = res.drain(def, out);
+      res.length = (int) total;
+      res.deflated = true;
+      res.digest = hex(md);
+    } finally {
+      def.end();
+    }
+    return res;
+  }
+
+  /**
+   * Small content is deflated in one go, and only kept deflated if that saves something
+   */
+  private void storeSmall(byte[] content, int len) {
+    byte[] out = new byte[len + 64];
+    Deflater def = new Deflater(Deflater.BEST_SPEED);
+    int size;
+    try {
+      def.setInput(content, 0, len);
+      def.finish();
+      size = def.deflate(out);
+      deflated = def.finished() && size < len;
+    } finally {
+      def.end();
+    }
+    data = ByteBuffer.allocateDirect(deflated ? size : len);
+    data.put(deflated ? out : content, 0, deflated ? size : len);
+    data.flip();
+  }
+
+  private ByteBuffer drain(Deflater def, ByteBuffer out) {
+    while (!def.finished()) {
+      out = deflate(def, out);
+    }
+    out.flip();
+    if (out.capacity() - out.limit() > out.limit() / 8) {
+      // don't keep the unused space
+      ByteBuffer exact = ByteBuffer.allocateDirect(out.limit());
+      exact.put(out);
+      exact.flip();
+      out = exact;
+    }
+    return out;
+  }
+
+  private static ByteBuffer deflate(Deflater def, ByteBuffer out) {
+    if (!out.hasRemaining()) {
+      ByteBuffer bigger = ByteBuffer.allocateDirect(out.capacity() * 2);
+      out.flip();
+      bigger.put(out);
+      out = bigger;
+    }
+    def.deflate(out);
+    return out;
+  }
+
+  /**
+   * @return a new copy of the content (which is inflated each time)
+   */
+  public byte[] getContent() {
+    byte[] res = new byte[length];
+    ByteBuffer src = data.duplicate();
+    if (!deflated) {
+      src.get(res);
+      return res;
+    }
+    Inflater inf = new Inflater();
+    try {
+      inf.setInput(src);
+      int pos = 0;
+      while (pos < length) {
+        int n = inf.inflate(res, pos, length - pos);
+        if (n == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) {
+          throw new Error("Stored source is truncated ("+pos+" of "+length+" bytes)");
+        }
+        pos += n;
+      }
+    } catch (DataFormatException e) {
+      throw new Error("Stored source is corrupt: "+e.getMessage(), e);
+    } finally {
+      inf.end();
+    }
+    return res;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return the number of bytes held outside the heap
+   */
+  public int getStoredSize() {
+    return data.limit();
+  }
+
+  /**
+   * @return the SHA-256 digest of the content, in hex
+   */
+  public String getDigest() {
+    return digest;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  private static String hex(MessageDigest md) {
+    return String.format("%064x", new BigInteger(1, md.digest()));
+  }
+}
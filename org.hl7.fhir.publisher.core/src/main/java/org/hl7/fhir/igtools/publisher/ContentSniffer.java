@@ -0,0 +1,246 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Works out what a file is - XML, JSON or Turtle, and for XML and JSON, the resource type
+ * and id - from the first few KB of the content, so that scanning the input folders
+ * doesn't have to try each parser in turn on the whole file to find out.
+ *
+ * This is only a guess; the content still has to be parsed properly. The type and id
+ * are null if they aren't found near the start of the content
+ */
+public class ContentSniffer {
+
+  public enum Format { XML, JSON, TURTLE, UNKNOWN }
+
+  public static final int SNIFF_LENGTH = 4096;
+  public static final String FHIR_NS = "http://hl7.org/fhir";
+
+  private Format format = Format.UNKNOWN;
+  private String resourceType;
+  private String id;
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public static ContentSniffer sniff(byte[] content) {
+    ContentSniffer res = new ContentSniffer();
+    int len = Math.min(content.length, SNIFF_LENGTH);
+    // ISO-8859-1 maps each byte to one char, which is all that's needed to find the markup
+    String s = new String(content, 0, len, StandardCharsets.ISO_8859_1);
+    int i = 0;
+    if (s.startsWith("\u00EF\u00BB\u00BF")) { // UTF-8 BOM
+      i = 3;
+    }
+    i = skipWhitespace(s, i);
+    if (i >= s.length()) {
+      return res;
+    }
+    char ch = s.charAt(i);
+    if (ch == '{') {
+      res.format = Format.JSON;
+      res.sniffJson(s, i);
+    } else if (ch == '<' && !isTurtleIri(s, i)) {
+      res.format = Format.XML;
+      res.sniffXml(s, i);
+    } else if (s.startsWith("@prefix", i) || s.startsWith("@base", i) || s.startsWith("PREFIX", i) || s.startsWith("BASE", i) || ch == '#' || ch == '<') {
+      res.format = Format.TURTLE;
+    }
+    return res;
+  }
+
+  private static boolean isTurtleIri(String s, int i) {
+    return s.startsWith("<http:", i) || s.startsWith("<https:", i) || s.startsWith("<urn:", i);
+  }
+
+  private static int skipWhitespace(String s, int i) {
+    while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private void sniffXml(String s, int i) {
+    // skip the processing instructions, comments, and doctype to get to the root element
+    while (i < s.length() && s.charAt(i) == '<') {
+      int end;
+      if (s.startsWith("<?", i)) {
+        end = s.indexOf("?>", i);
+        end = end == -1 ? -1 : end + 2;
+      } else if (s.startsWith("<!--", i)) {
+        end = s.indexOf("-->", i);
+        end = end == -1 ? -1 : end + 3;
+      } else if (s.startsWith("<!", i)) {
+        end = s.indexOf(">", i);
+        end = end == -1 ? -1 : end + 1;
+      } else {
+        break;
+      }
+      if (end == -1) {
+        return;
+      }
+      i = skipWhitespace(s, end);
+    }
+    if (i >= s.length() || s.charAt(i) != '<') {
+      return;
+    }
+    int start = i + 1;
+    int end = start;
+    while (end < s.length() && !Character.isWhitespace(s.charAt(end)) && s.charAt(end) != '>' && s.charAt(end) != '/') {
+      end++;
+    }
+    if (end == s.length()) {
+      return;
+    }
+    String name = s.substring(start, end);
+    int j = s.indexOf('>', end);
+    if (j == -1) {
+      return;
+    }
+    // it's only a resource if it's in the FHIR namespace
+    String prefix = name.contains(":") ? name.substring(0, name.indexOf(":") + 1) : "";
+    String xmlns = prefix.isEmpty() ? "xmlns" : "xmlns:"+prefix.substring(0, prefix.length() - 1);
+    if (!FHIR_NS.equals(attribute(s.substring(end, j), xmlns))) {
+      return;
+    }
+    resourceType = name.contains(":") ? name.substring(name.indexOf(":") + 1) : name;
+
+    // the id is the first child element, if it's there
+    if (s.charAt(j - 1) == '/') {
+      return;
+    }
+    j = skipMarkupNoise(s, j + 1);
+    if (j == -1) {
+      return;
+    }
+    String tag = "<"+prefix+"id";
+    if (s.startsWith(tag, j) && j + tag.length() < s.length() && (Character.isWhitespace(s.charAt(j + tag.length())) || s.charAt(j + tag.length()) == '/')) {
+      int e = s.indexOf('>', j);
+      int v = s.indexOf("value", j);
+      if (e != -1 && v != -1 && v < e) {
+        v = skipWhitespace(s, v + 5);
+        if (v < e && s.charAt(v) == '=') {
+          v = skipWhitespace(s, v + 1);
+          if (v < e && (s.charAt(v) == '"' || s.charAt(v) == '\'')) {
+            int ve = s.indexOf(s.charAt(v), v + 1);
+            if (ve != -1 && ve < e) {
+              id = s.substring(v + 1, ve);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The value of the named attribute in the attributes of a start tag, or null
+   */
+  private static String attribute(String attributes, String name) {
+    int i = 0;
+    while (i < attributes.length()) {
+      i = skipWhitespace(attributes, i);
+      int e = attributes.indexOf('=', i);
+      if (e == -1) {
+        return null;
+      }
+      String n = attributes.substring(i, e).trim();
+      int v = skipWhitespace(attributes, e + 1);
+      if (v >= attributes.length() || (attributes.charAt(v) != '"' && attributes.charAt(v) != '\'')) {
+        return null;
+      }
+      int ve = attributes.indexOf(attributes.charAt(v), v + 1);
+      if (ve == -1) {
+        return null;
+      }
+      if (n.equals(name)) {
+        return attributes.substring(v + 1, ve);
+      }
+      i = ve + 1;
+    }
+    return null;
+  }
+
+  private static int skipMarkupNoise(String s, int i) {
+    i = skipWhitespace(s, i);
+    while (s.startsWith("<!--", i)) {
+      int end = s.indexOf("-->", i);
+      if (end == -1) {
+        return -1;
+      }
+      i = skipWhitespace(s, end + 3);
+    }
+    return i;
+  }
+
+  private void sniffJson(String s, int i) {
+    // walk the top level properties, reading the string values of resourceType and id
+    int depth = 0;
+    boolean expectKey = false;
+    String key = null;
+    while (i < s.length()) {
+      char ch = s.charAt(i);
+      if (ch == '"') {
+        int end = endOfString(s, i);
+        if (end == -1) {
+          return;
+        }
+        String value = s.substring(i + 1, end);
+        if (depth == 1 && expectKey) {
+          key = value;
+          expectKey = false;
+        } else if (depth == 1 && key != null) {
+          if ("resourceType".equals(key)) {
+            resourceType = value;
+          } else if ("id".equals(key)) {
+            id = value;
+          }
+          key = null;
+        }
+        if (resourceType != null && id != null) {
+          return;
+        }
+        i = end + 1;
+        continue;
+      }
+      if (ch == '{' || ch == '[') {
+        depth++;
+        expectKey = depth == 1;
+        key = depth == 2 ? null : key;
+      } else if (ch == '}' || ch == ']') {
+        depth--;
+        if (depth <= 0) {
+          return;
+        }
+      } else if (ch == ',' && depth == 1) {
+        expectKey = true;
+        key = null;
+      }
+      i++;
+    }
+  }
+
+  private static int endOfString(String s, int i) {
+    i++;
+    while (i < s.length()) {
+      char ch = s.charAt(i);
+      if (ch == '\\') {
+        i += 2;
+      } else if (ch == '"') {
+        return i;
+      } else {
+        i++;
+      }
+    }
+    return -1;
+  }
+}
@@ -21,14 +21,18 @@ package org.hl7.fhir.igtools.publisher;
  */
 
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 
 public class FetchedFile {
@@ -45,8 +49,11 @@ public class FetchedFile {
   private String title;
   private byte[] xslt;
   
-  private byte[] source;
-  private long hash;
+  private CompressedSource source; // deflated, outside the heap
+  private SoftReference<byte[]> inflated; // the last copy getSource() made, until trim() or the collector needs the room
+  private String digest; // SHA-256 of the source
+  private Element parsed; // if the fetcher parsed the source when it scanned it, until it's loaded
+  private List<ValidationMessage> parseErrors;
   private long time;
   private String contentType;
   private List<FetchedFile> dependencies;
@@ -110,20 +117,97 @@ public class FetchedFile {
   public void setDependencies(List<FetchedFile> dependencies) {
     this.dependencies = dependencies;
   }
-  public long getHash() {
-    return hash;
-  }
-  public void setHash(long hash) {
-    this.hash = hash;
-  }
-  public byte[] getSource() {
+  /**
+   * @return the SHA-256 digest of the source, in hex (the same as BuildCache.digest(getSource()))
+   */
+  public String getDigest() {
+    return digest;
+  }
+  /**
+   * True if the other file's source has the same content
+   */
+  public boolean hasSameSource(FetchedFile other) {
+    return digest == null ? other.digest == null : digest.equals(other.digest);
+  }
+  /**
+   * The source is kept deflated, outside the heap. It's inflated when it's asked for, and that
+   * copy is shared with the callers that ask for it after that (so they mustn't change it) until
+   * trim() is called at the end of the build, unless the collector needs the room first
+   */
+  public synchronized byte[] getSource() {
     if (source == null)
       throw new Error("Source has been dropped");
-    return source;
+    byte[] res = inflated == null ? null : inflated.get();
+    if (res == null) {
+      res = source.getContent();
+      inflated = new SoftReference<>(res);
+    }
+    return res;
+  }
+  public boolean hasSource() {
+    return source != null;
   }
   public void setSource(byte[] source) {
+    setSource(CompressedSource.of(source));
+  }
+  /**
+   * Reads the source from the file, working out the digest as it goes
+   */
+  public void loadSource(File file) throws IOException {
+    setSource(CompressedSource.read(file));
+  }
+  /**
+   * Reads the source from the stream, to the end (but doesn't close it)
+   */
+  public void loadSource(InputStream stream) throws IOException {
+    setSource(CompressedSource.read(stream, 0));
+  }
+  private synchronized void setSource(CompressedSource source) {
     this.source = source;
-    this.hash =Arrays.hashCode(source);
+    this.inflated = null;
+    this.parsed = null;
+    this.digest = source.getDigest();
+  }
+  /**
+   * Used when the fetcher knows the file hasn't changed since it was last read: the source
+   * that was read then (which is never changed) is shared, so it isn't read again, and the
+   * digest is always the digest of the content
+   */
+  public void setSourceFrom(FetchedFile other) {
+    CompressedSource src;
+    synchronized (other) {
+      src = other.source;
+    }
+    if (src == null)
+      throw new Error("Source has been dropped");
+    setSource(src);
+  }
+  /**
+   * Used when the fetcher has already parsed the source, the way it's loaded, with the issues it found
+   */
+  public synchronized void setParsed(Element parsed, List<ValidationMessage> errors) {
+    this.parsed = parsed;
+    this.parseErrors = errors;
+  }
+  public synchronized boolean hasParsed() {
+    return parsed != null;
+  }
+  /**
+   * @return the element the fetcher parsed, once; the issues it found are added to the errors
+   */
+  public synchronized Element takeParsed() {
+    Element res = parsed;
+    errors.addAll(parseErrors);
+    parsed = null;
+    parseErrors = null;
+    return res;
+  }
+  /**
+   * @return the bytes held outside the heap for the source (0 if there isn't one)
+   */
+  public int getStoredSourceSize() {
+    CompressedSource src = source;
+    return src == null ? 0 : src.getStoredSize();
   }
   
 
@@ -194,8 +278,9 @@ public class FetchedFile {
   public String getStatedPath() {
     return statedPath;
   }
-  public void trim() {
+  public synchronized void trim() {
     source = null;
+    inflated = null;
   }
   public String getLogical() {
     return logical;
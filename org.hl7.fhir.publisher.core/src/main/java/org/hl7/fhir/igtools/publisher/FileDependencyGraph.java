@@ -0,0 +1,279 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.utilities.TextFile;
+
+/**
+ * Tracks which files in the IG depend on which other files, so that when running in
+ * watch mode, a change to one file only causes the files that use it to be rebuilt.
+ *
+ * Each file provides a set of keys (type/id, canonical URL, bundle entry fullUrl) and
+ * requires a set of keys (baseDefinition, bindings, meta.profile, value set includes,
+ * references - any canonical or reference in the content). Nodes are tracked by path
+ * so that the graph from the previous cycle still applies to the newly loaded files
+ */
+public class FileDependencyGraph {
+
+  private static class Node {
+    private FetchedFile file;
+    private Set<String> provides = new HashSet<>();
+    private Map<String, String> requires = new LinkedHashMap<>(); // key -> reason
+  }
+
+  private String canonical;
+  private Map<String, Node> nodes = new HashMap<>();
+  private Map<String, Set<String>> dependents = new HashMap<>(); // key -> paths that require it
+  private Map<String, Set<String>> providers = new HashMap<>(); // key -> paths that provide it
+  private Map<String, String> lastReasons = new LinkedHashMap<>();
+
+  public FileDependencyGraph(String canonical) {
+    super();
+    this.canonical = canonical;
+  }
+
+  /**
+   * Bring the graph up to date with the file list, and set the direct dependencies of each file
+   *
+   * @param changed the files that have been (re)loaded or rebuilt since the last update
+   */
+  public void update(List<FetchedFile> files, Collection<FetchedFile> changed) {
+    Map<String, FetchedFile> current = new HashMap<>();
+    for (FetchedFile f : files) {
+      current.put(f.getPath(), f);
+    }
+    Set<FetchedFile> changes = new HashSet<>(changed);
+    for (Node node : new ArrayList<>(nodes.values())) {
+      if (current.get(node.file.getPath()) != node.file || changes.contains(node.file)) {
+        drop(node);
+      }
+    }
+    for (FetchedFile f : files) {
+      if (!nodes.containsKey(f.getPath())) {
+        add(makeNode(f));
+      }
+    }
+    for (FetchedFile f : files) {
+      List<FetchedFile> deps = new ArrayList<>();
+      for (String key : nodes.get(f.getPath()).requires.keySet()) {
+        for (String p : providers.getOrDefault(key, new HashSet<>())) {
+          FetchedFile d = current.get(p);
+          if (d != null && d != f && !deps.contains(d)) {
+            deps.add(d);
+          }
+        }
+      }
+      f.setDependencies(deps);
+    }
+  }
+
+  /**
+   * Work out which files need to be rebuilt because something they depend on (directly or
+   * indirectly) has changed or has been deleted. This uses the graph as it was at the last 
+   * update, plus what the changed files provide now (for new content that something was 
+   * already looking for)
+   *
+   * @return the affected files from the list, in list order, not including the changed files
+   */
+  public List<FetchedFile> findAffected(List<FetchedFile> files, Collection<FetchedFile> changed) {
+    lastReasons.clear();
+    Set<String> visited = new HashSet<>();
+    LinkedList<String> queue = new LinkedList<>();
+    Map<String, Set<String>> provided = new HashMap<>();
+    Set<String> current = new HashSet<>();
+    for (FetchedFile f : files) {
+      current.add(f.getPath());
+    }
+    for (Node node : nodes.values()) {
+      if (!current.contains(node.file.getPath())) {
+        // deleted: what used it needs to be rebuilt, to find that it's gone
+        provided.put(node.file.getPath(), node.provides);
+        visited.add(node.file.getPath());
+        queue.add(node.file.getPath());
+      }
+    }
+    for (FetchedFile f : changed) {
+      Set<String> keys = new HashSet<>(makeNode(f).provides);
+      Node old = nodes.get(f.getPath());
+      if (old != null) {
+        keys.addAll(old.provides);
+      }
+      provided.put(f.getPath(), keys);
+      visited.add(f.getPath());
+      queue.add(f.getPath());
+    }
+    while (!queue.isEmpty()) {
+      String path = queue.removeFirst();
+      Set<String> keys = provided.containsKey(path) ? provided.get(path) : nodes.get(path).provides;
+      for (String key : keys) {
+        for (String dp : dependents.getOrDefault(key, new HashSet<>())) {
+          if (!visited.contains(dp)) {
+            visited.add(dp);
+            queue.add(dp);
+            lastReasons.put(dp, nodes.get(dp).requires.get(key)+" "+key+" (in "+path+")");
+          }
+        }
+      }
+    }
+    List<FetchedFile> res = new ArrayList<>();
+    for (FetchedFile f : files) {
+      if (lastReasons.containsKey(f.getPath())) {
+        res.add(f);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return why the file was found to be affected by the last call to findAffected (or null)
+   */
+  public String getReason(FetchedFile f) {
+    return lastReasons.get(f.getPath());
+  }
+
+  /**
+   * Write out the graph, and the reasons for the last rebuild, for debugging
+   */
+  public void dump(List<FetchedFile> files, String filename) throws IOException {
+    StringBuilder b = new StringBuilder();
+    for (FetchedFile f : files) {
+      Node node = nodes.get(f.getPath());
+      if (node == null) {
+        continue;
+      }
+      b.append(f.getPath()+"\r\n");
+      if (lastReasons.containsKey(f.getPath())) {
+        b.append("  rebuilt because of "+lastReasons.get(f.getPath())+"\r\n");
+      }
+      for (String key : node.requires.keySet()) {
+        Set<String> pl = providers.get(key);
+        if (pl != null) {
+          for (String p : pl) {
+            if (!p.equals(f.getPath())) {
+              b.append("  depends on "+p+" via "+node.requires.get(key)+" "+key+"\r\n");
+            }
+          }
+        }
+      }
+      Set<String> used = new HashSet<>();
+      for (String key : node.provides) {
+        used.addAll(dependents.getOrDefault(key, new HashSet<>()));
+      }
+      used.remove(f.getPath());
+      for (String p : used) {
+        b.append("  used by "+p+"\r\n");
+      }
+    }
+    TextFile.stringToFile(b.toString(), filename, false);
+  }
+
+  private Node makeNode(FetchedFile f) {
+    Node node = new Node();
+    node.file = f;
+    for (FetchedResource r : f.getResources()) {
+      node.provides.add(normalise(r.fhirType()+"/"+r.getId()));
+      if (r.getElement() != null) {
+        Element e = r.getElement();
+        if (e.hasChild("url") && e.getNamedChild("url").isPrimitive()) {
+          node.provides.add(normalise(e.getNamedChildValue("url")));
+        }
+        for (Element entry : e.getChildrenByName("entry")) {
+          if (entry.hasChild("fullUrl")) {
+            node.provides.add(normalise(entry.getNamedChildValue("fullUrl")));
+          }
+          Element res = entry.getNamedChild("resource");
+          if (res != null && res.hasChild("id")) {
+            node.provides.add(normalise(res.fhirType()+"/"+res.getNamedChildValue("id")));
+          }
+        }
+        scan(node, e, null);
+      }
+    }
+    for (String key : node.provides) {
+      node.requires.remove(key);
+    }
+    return node;
+  }
+
+  private void scan(Node node, Element e, String parent) {
+    for (Element c : e.getChildren()) {
+      if (c.isPrimitive() && c.hasValue()) {
+        String name = parent == null ? c.getName() : parent+"."+c.getName();
+        if ("canonical".equals(c.getType())) {
+          require(node, c.getValue(), name);
+        } else if ("reference".equals(c.getName()) && "Reference".equals(e.getType())) {
+          require(node, c.getValue(), parent == null ? "reference" : parent);
+        } else if ("system".equals(c.getName()) && ("include".equals(e.getName()) || "exclude".equals(e.getName()))) {
+          require(node, c.getValue(), name);
+        }
+      }
+      if (c.hasChildren()) {
+        scan(node, c, c.getName());
+      }
+    }
+  }
+
+  private void require(Node node, String value, String reason) {
+    String key = normalise(value);
+    if (key != null && !node.requires.containsKey(key)) {
+      node.requires.put(key, reason);
+    }
+  }
+
+  private String normalise(String value) {
+    if (value == null) {
+      return null;
+    }
+    if (value.contains("|")) {
+      value = value.substring(0, value.indexOf("|"));
+    }
+    if (value.contains("#")) {
+      value = value.substring(0, value.indexOf("#"));
+    }
+    if (canonical != null && value.startsWith(canonical+"/")) {
+      value = value.substring(canonical.length()+1);
+    }
+    return value;
+  }
+
+  private void add(Node node) {
+    nodes.put(node.file.getPath(), node);
+    for (String key : node.provides) {
+      providers.computeIfAbsent(key, k -> new HashSet<>()).add(node.file.getPath());
+    }
+    for (String key : node.requires.keySet()) {
+      dependents.computeIfAbsent(key, k -> new HashSet<>()).add(node.file.getPath());
+    }
+  }
+
+  private void drop(Node node) {
+    nodes.remove(node.file.getPath());
+    for (String key : node.provides) {
+      remove(providers, key, node.file.getPath());
+    }
+    for (String key : node.requires.keySet()) {
+      remove(dependents, key, node.file.getPath());
+    }
+  }
+
+  private void remove(Map<String, Set<String>> map, String key, String path) {
+    Set<String> set = map.get(key);
+    if (set != null) {
+      set.remove(path);
+      if (set.isEmpty()) {
+        map.remove(key);
+      }
+    }
+  }
+
+}
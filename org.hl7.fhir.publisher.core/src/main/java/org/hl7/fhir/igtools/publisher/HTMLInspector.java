@@ -21,6 +21,7 @@ package org.hl7.fhir.igtools.publisher;
  */
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -35,6 +36,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hl7.fhir.exceptions.FHIRFormatError;
 import org.hl7.fhir.igtools.publisher.SpecMapManager.SpecialPackageType;
@@ -118,6 +126,9 @@ public class HTMLInspector {
     private String path;
     private boolean hasXhtml;
     private int id = 0;
+    private Set<String> fragments = new HashSet<>();
+    private XhtmlNode xhtml; // kept from loading until the links have been checked
+    private boolean referencesValidatorPack;
 
     public LoadedFile(String filename, String path, long lastModified, int iteration, Boolean hl7State, boolean exempt, boolean hasXhtml) {
       this.filename = filename;
@@ -168,6 +179,132 @@ public class HTMLInspector {
     
   }
 
+  /**
+   * The things that links are resolved against that don't change while the links are 
+   * being checked: the exact URLs the specs publish, a trie of the spec base URLs, and 
+   * the files in the output. With this, a link needs one or two lookups, instead of a 
+   * loop through the specs building URLs, and a call to the file system
+   */
+  private static class LinkIndex {
+    private static class TrieNode {
+      private Map<Character, TrieNode> children = new HashMap<>();
+      private List<SpecMapManager> targetSpecs = new ArrayList<>(); // base or base2 ends here
+      private List<SpecMapManager> baseSpecs = new ArrayList<>(); // base ends here
+    }
+
+    private Set<String> specUrls = new HashSet<>();
+    private TrieNode specTrie = new TrieNode();
+    private String root;
+    private Set<String> localFiles;
+    private Set<String> localFilesLower = new HashSet<>();
+    private Set<String> exceptions;
+
+    private LinkIndex(List<SpecMapManager> specs, String rootFolder, Set<String> localFiles, Set<String> exceptions) {
+      if (specs != null) {
+        for (SpecMapManager spec : specs) {
+          if (spec.getBase() != null) {
+            String base = spec.getBase();
+            specUrls.add(base);
+            specUrls.add(base+"/");
+            if (base.endsWith("/")) {
+              specUrls.add(base.substring(0, base.length()-1));
+            }
+            for (String s : new String[] {"definitions.json.zip", "full-ig.zip", "definitions.xml.zip", "package.tgz", "history.html"}) {
+              specUrls.add(Utilities.pathURL(base, s));
+            }
+            node(base).targetSpecs.add(spec);
+            node(base).baseSpecs.add(spec);
+            if (spec.getBase2() != null) {
+              node(spec.getBase2()).targetSpecs.add(spec);
+            }
+          }
+          if (spec.getBase2() != null) {
+            String base2 = spec.getBase2();
+            specUrls.add(base2);
+            if (base2.endsWith("/")) {
+              specUrls.add(base2.substring(0, base2.length()-1));
+            }
+            for (String s : new String[] {"definitions.json.zip", "definitions.xml.zip", "package.tgz", "full-ig.zip"}) {
+              specUrls.add(Utilities.pathURL(base2, s));
+            }
+          }
+        }
+      }
+      this.root = new File(rootFolder).getAbsolutePath();
+      this.localFiles = localFiles;
+      this.exceptions = exceptions;
+      for (String s : localFiles) {
+        localFilesLower.add(s.toLowerCase());
+      }
+    }
+
+    private TrieNode node(String url) {
+      TrieNode n = specTrie;
+      for (char ch : url.toCharArray()) {
+        TrieNode c = n.children.get(ch);
+        if (c == null) {
+          c = new TrieNode();
+          n.children.put(ch, c);
+        }
+        n = c;
+      }
+      return n;
+    }
+
+    /**
+     * True if the url is one that one of the specs has (same as looping through the specs 
+     * checking the base urls, the standard downloads, and spec.hasTarget)
+     */
+    private boolean isSpecUrl(String url) {
+      if (specUrls.contains(url)) {
+        return true;
+      }
+      TrieNode n = specTrie;
+      for (int i = 0; n != null; i++) {
+        for (SpecMapManager spec : n.targetSpecs) {
+          if (spec.hasTarget(url)) {
+            return true;
+          }
+        }
+        n = i < url.length() ? n.children.get(url.charAt(i)) : null;
+      }
+      return false;
+    }
+
+    /**
+     * True if the url starts with the base of one of the specs, other than an examples spec
+     */
+    private boolean isInSpec(String url) {
+      TrieNode n = specTrie;
+      for (int i = 0; n != null; i++) {
+        for (SpecMapManager spec : n.baseSpecs) {
+          if (spec.getSpecial() != SpecialPackageType.Examples) {
+            return true;
+          }
+        }
+        n = i < url.length() ? n.children.get(url.charAt(i)) : null;
+      }
+      return false;
+    }
+
+    /**
+     * Same as new File(filename).exists(), but for files in the output that were
+     * listed at the start of the check, without going to the file system
+     */
+    private boolean exists(String filename) {
+      String path = new File(filename).getAbsolutePath();
+      if (localFiles.contains(path)) {
+        return true;
+      }
+      if (localFilesLower.contains(path.toLowerCase()) || !path.startsWith(root+File.separator) || Utilities.startsWithInList(path, exceptions) 
+          || path.contains(File.separator+"."+File.separator) || path.endsWith(File.separator+".")) {
+        // case insensitive file systems, or not something that was listed
+        return new File(filename).exists();
+      }
+      return false;
+    }
+  }
+
   private static final String RELEASE_HTML_MARKER = "<!--ReleaseHeader--><p id=\"publish-box\">Publish Box goes here</p><!--EndReleaseHeader-->";
   private static final String START_HTML_MARKER = "<!--ReleaseHeader--><p id=\"publish-box\">";
   private static final String END_HTML_MARKER = "</p><!--EndReleaseHeader-->";
@@ -178,10 +315,11 @@ public class HTMLInspector {
   private String rootFolder;
   private String altRootFolder;
   private List<SpecMapManager> specs;
-  private Map<String, LoadedFile> cache = new HashMap<String, LoadedFile>();
+  private Map<String, LoadedFile> cache = new ConcurrentHashMap<String, LoadedFile>();
   private int iteration = 0;
   private List<StringPair> otherlinks = new ArrayList<StringPair>();
-  private int links;
+  private AtomicInteger links = new AtomicInteger();
+  private int threads = 1;
   private List<String> manual = new ArrayList<String>(); // pages that will be provided manually when published, so allowed to be broken links
   private ILoggingService log;
   private boolean forHL7;
@@ -192,13 +330,13 @@ public class HTMLInspector {
   private Map<String, String> specList = new HashMap<>();
   private List<String> errorPackages = new ArrayList<>();
   private String canonical;
+  private LinkIndex linkIndex;
 
   private String statusText;
   private List<String> exemptHtmlPatterns = new ArrayList<>();
   private boolean missingPublishBox;
   private List<String> missingPublishBoxList = new ArrayList<>();
   private Set<String> exceptions = new HashSet<>();
-  private boolean referencesValidatorPack;
   private Map<String, List<String>> trackedFragments;
   private Set<String> foundFragments = new HashSet<>();
 
@@ -225,34 +363,40 @@ public class HTMLInspector {
     log.logDebugMessage(LogCategory.HTML, "CheckHTML: List files");
     // list new or updated files
     List<String> loadList = new ArrayList<>();
-    listFiles(rootFolder, loadList);
+    Set<String> allFiles = new HashSet<>();
+    allFiles.add(new File(rootFolder).getAbsolutePath());
+    listFiles(rootFolder, loadList, allFiles);
     log.logMessage("found "+Integer.toString(loadList.size())+" files");
+    linkIndex = new LinkIndex(specs, rootFolder, allFiles, exceptions);
 
     checkGoneFiles();
 
     log.logDebugMessage(LogCategory.HTML, "Loading Files");
-    // load files
-    int i = 0;
-    int c = loadList.size() / 40;
+    // load files. Each file is parsed once, and the tree is kept for the link checking 
+    List<Callable<List<ValidationMessage>>> tasks = new ArrayList<>();
     for (String s : loadList) {
-      loadFile(s, rootFolder, messages);
-      if (i == c) {
-        System.out.print(".");
-        i = 0;
-      }
-      i++;
+      tasks.add(() -> {
+        List<ValidationMessage> msgs = new ArrayList<>();
+        loadFile(s, rootFolder, msgs);
+        return msgs;
+      });
     }
-    System.out.println();
-
+    runTasks(tasks, messages);
 
     log.logDebugMessage(LogCategory.HTML, "Checking Files");
-    links = 0;
-    // check links
+    links.set(0);
+    // check links. The files are checked in parallel, but the messages are 
+    // collected in file name order 
+    List<String> files = sorted(cache.keySet());
+    tasks.clear();
+    for (String s : files) {
+      tasks.add(() -> checkFile(s, cache.get(s)));
+    }
+    List<List<ValidationMessage>> results = new ArrayList<>();
+    runTasks(tasks, null, results);
     boolean first = true;
-    i = 0;
-    c = cache.size() / 40;
-    for (String s : sorted(cache.keySet())) {
-      log.logDebugMessage(LogCategory.HTML, "Check "+s);
+    for (int i = 0; i < files.size(); i++) {
+      String s = files.get(i);
       LoadedFile lf = cache.get(s);
 
       if (lf.getHl7State() != null && !lf.getHl7State()) {
@@ -277,34 +421,14 @@ public class HTMLInspector {
           first = false;
         }
       }
-      checkFragmentIds(TextFile.fileToString(lf.filename));
-      
-      if (lf.isHasXhtml()) {
-        XhtmlNode x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(lf.filename), null);
-        referencesValidatorPack = false;
-        if (checkLinks(lf, s, "", x, null, messages, false) != NodeChangeType.NONE) { // returns true if changed
-          saveFile(lf, x);
-        }
-        if (referencesValidatorPack) {
-          if (lf.getHl7State() != null && lf.getHl7State()) {
-            messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.ERROR));                      
-          } else {
-            messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.WARNING));                                  
-          }
-        }
-      }
-      if (i == c) {
-        System.out.print(".");
-        i = 0;
-      }
-      i++;
+      foundFragments.addAll(lf.fragments);
+      messages.addAll(results.get(i));
     }
-    System.out.println();
  
     log.logDebugMessage(LogCategory.HTML, "Checking Other Links");
     // check other links:
     for (StringPair sp : otherlinks) {
-      checkResolveLink(sp.source, null, null, sp.link, sp.text, messages, null);
+      checkResolveLink(null, sp.source, null, null, sp.link, sp.text, messages, null);
     }
     
     log.logDebugMessage(LogCategory.HTML, "Done checking");
@@ -323,12 +447,89 @@ public class HTMLInspector {
     return messages;
   }
 
-  private void checkFragmentIds(String src) {
+  private List<ValidationMessage> checkFile(String s, LoadedFile lf) throws IOException {
+    log.logDebugMessage(LogCategory.HTML, "Check "+s);
+    List<ValidationMessage> messages = new ArrayList<>();
+    if (lf.isHasXhtml()) {
+      XhtmlNode x = lf.xhtml;
+      lf.xhtml = null;
+      if (x == null) { // not changed since the last check
+        x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(lf.filename), null);
+      }
+      lf.referencesValidatorPack = false;
+      if (checkLinks(lf, s, "", x, null, messages, false) != NodeChangeType.NONE) { // returns true if changed
+        saveFile(lf, x);
+      }
+      if (lf.referencesValidatorPack) {
+        if (lf.getHl7State() != null && lf.getHl7State()) {
+          messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.ERROR));                      
+        } else {
+          messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.WARNING));                                  
+        }
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Runs the tasks on the thread pool (if there's more than one thread), and collects the 
+   * results in task order, printing progress as it goes
+   */
+  private <T> void runTasks(List<Callable<List<T>>> tasks, List<T> all, List<List<T>> each) throws IOException {
+    int i = 0;
+    int c = tasks.size() / 40;
+    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    try {
+      List<Future<List<T>>> futures = new ArrayList<>();
+      if (executor != null) {
+        for (Callable<List<T>> task : tasks) {
+          futures.add(executor.submit(task));
+        }
+      }
+      for (int t = 0; t < tasks.size(); t++) {
+        List<T> res = executor == null ? tasks.get(t).call() : futures.get(t).get();
+        if (all != null) {
+          all.addAll(res);
+        }
+        if (each != null) {
+          each.add(res);
+        }
+        if (i == c) {
+          System.out.print(".");
+          i = 0;
+        }
+        i++;
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      } else {
+        throw new IOException(e.getCause());
+      }
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    System.out.println();
+  }
+
+  private <T> void runTasks(List<Callable<List<T>>> tasks, List<T> all) throws IOException {
+    runTasks(tasks, all, null);
+  }
+
+  private void findFragmentIds(String src, Set<String> fragments) {
     int s = src.indexOf(TRACK_PREFIX);
     while (s > -1) {
       src = src.substring(s+TRACK_PREFIX.length());
       int e = src.indexOf(TRACK_SUFFIX);
-      foundFragments.add(src.substring(0, e));
+      fragments.add(src.substring(0, e));
       s = src.indexOf(TRACK_PREFIX);
     }    
   }
@@ -358,11 +559,12 @@ public class HTMLInspector {
       cache.remove(s);
   }
 
-  private void listFiles(String folder, List<String> loadList) {
+  private void listFiles(String folder, List<String> loadList, Set<String> allFiles) {
     for (File f : new File(folder).listFiles()) {
       if (!Utilities.startsWithInList(f.getAbsolutePath(), exceptions)) {
+        allFiles.add(f.getAbsolutePath());
         if (f.isDirectory()) {
-          listFiles(f.getAbsolutePath(), loadList);
+          listFiles(f.getAbsolutePath(), loadList, allFiles);
         } else {
           LoadedFile lf = cache.get(f.getAbsolutePath());
           if (lf == null || lf.getLastModified() != f.lastModified())
@@ -381,8 +583,11 @@ public class HTMLInspector {
     Boolean hl7State = null;
     XhtmlNode x = null;
     boolean htmlName = f.getName().endsWith(".html") || f.getName().endsWith(".xhtml");
+    String src = null;
     try {
-      x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(f), null);
+      byte[] cnt = TextFile.fileToBytes(f);
+      src = TextFile.bytesToString(cnt);
+      x = new XhtmlParser().setMustBeWellFormed(strict).parse(new ByteArrayInputStream(cnt), null);
       if (x.getElement("html")==null && !htmlName) {
         // We don't want resources being treated as HTML.  We'll check the HTML of the narrative in the page representation
         x = null;
@@ -394,20 +599,22 @@ public class HTMLInspector {
       }
     }
     if (x != null) {
-      String src;
       try {
-        src = TextFile.fileToString(f);
         hl7State = src.contains(RELEASE_HTML_MARKER);
         if (hl7State) {
           src = src.replace(RELEASE_HTML_MARKER, START_HTML_MARKER + statusText+END_HTML_MARKER);
           TextFile.stringToFile(src, f, false);
+          x = new XhtmlParser().setMustBeWellFormed(strict).parse(new ByteArrayInputStream(TextFile.fileToBytes(f)), null);
         }
-        x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(f), null);
       } catch (Exception e1) {
         hl7State = false;
       }
     }
     LoadedFile lf = new LoadedFile(s, getPath(s, base), f.lastModified(), iteration, hl7State, findExemptionComment(x) || Utilities.existsInList(f.getName(), "searchform.html"), x != null);
+    if (src != null) {
+      findFragmentIds(src, lf.fragments);
+    }
+    lf.xhtml = x;
     cache.put(s, lf);
     if (x != null) {
       checkHtmlStructure(s, x, messages);
@@ -529,14 +736,14 @@ public class HTMLInspector {
       path = path + "/"+ x.getName();
     } else {
       if (x.getContent() != null && x.getContent().contains("validator.pack")) {
-        referencesValidatorPack = true;
+        lf.referencesValidatorPack = true;
       }
     }
     if ("title".equals(x.getName()) && Utilities.noString(x.allText())) {
       x.addText("?html-link?");
     }
     if ("a".equals(x.getName()) && x.hasAttribute("href")) {
-      changed = checkResolveLink(s, x.getLocation(), path, x.getAttribute("href"), x.allText(), messages, uuid);
+      changed = checkResolveLink(lf, s, x.getLocation(), path, x.getAttribute("href"), x.allText(), messages, uuid);
     }
     if ("img".equals(x.getName()) && x.hasAttribute("src")) {
       changed = checkResolveImageLink(s, x.getLocation(), path, x.getAttribute("src"), messages, uuid) || changed;
@@ -591,8 +798,8 @@ public class HTMLInspector {
       return false;
   }
 
-  private boolean checkResolveLink(String filename, Location loc, String path, String ref, String text, List<ValidationMessage> messages, String uuid) throws IOException {
-    links++;
+  private boolean checkResolveLink(LoadedFile lf, String filename, Location loc, String path, String ref, String text, List<ValidationMessage> messages, String uuid) throws IOException {
+    links.incrementAndGet();
     String rref = Utilities.URLDecode(ref);
     if ((rref.startsWith("http:") || rref.startsWith("https:") ) && (rref.endsWith(".sch") || rref.endsWith(".xsd") || rref.endsWith(".shex"))) { // work around for the fact that spec.internals does not track all these minor things 
       rref = Utilities.changeFileExt(ref, ".html");
@@ -604,8 +811,8 @@ public class HTMLInspector {
       rref = rref.substring(0, rref.length()-1);
     }
     
-    if (rref.contains("validator.pack")) {
-      referencesValidatorPack = true;
+    if (rref.contains("validator.pack") && lf != null) {
+      lf.referencesValidatorPack = true;
     }
     if (ref.startsWith("data:")) {
       return true;
@@ -623,18 +830,7 @@ public class HTMLInspector {
       resolved = rref.startsWith("http://build.fhir.org/ig/FHIR/fhir-tools-ig") || rref.startsWith("http://build.fhir.org/ig/FHIR/ig-guidance"); // always allowed to refer to tooling or IG Guidance IG build location
     }
     if (!resolved && specs != null){
-      for (SpecMapManager spec : specs) {
-        if (!resolved && spec.getBase() != null) {
-          resolved = resolved || spec.getBase().equals(rref) || (spec.getBase()).equals(rref+"/") || (spec.getBase()+"/").equals(rref)|| spec.hasTarget(rref) || 
-            Utilities.existsInList(rref, Utilities.pathURL(spec.getBase(), "definitions.json.zip"), 
-                Utilities.pathURL(spec.getBase(), "full-ig.zip"), Utilities.pathURL(spec.getBase(), "definitions.xml.zip"), 
-                Utilities.pathURL(spec.getBase(), "package.tgz"), Utilities.pathURL(spec.getBase(), "history.html"));
-        }
-        if (!resolved && spec.getBase2() != null) {
-          resolved = spec.getBase2().equals(rref) || (spec.getBase2()).equals(rref+"/") || 
-              Utilities.existsInList(rref, Utilities.pathURL(spec.getBase2(), "definitions.json.zip"), Utilities.pathURL(spec.getBase2(), "definitions.xml.zip"), Utilities.pathURL(spec.getBase2(), "package.tgz"), Utilities.pathURL(spec.getBase2(), "full-ig.zip")); 
-        }
-      }
+      resolved = linkIndex.isSpecUrl(rref);
     }
     
     if (!resolved) {
@@ -657,7 +853,7 @@ public class HTMLInspector {
      // a local file may have been created by some poorly tracked process, so we'll consider that as a possible
      if (!resolved && !Utilities.isAbsoluteUrl(rref) && !rref.contains("..")) { // .. is security check. Maybe there's some ways it could be valid, but we're not interested for now
        String fname = Utilities.path(new File(filename).getParent(), rref);
-       if (new File(fname).exists()) {
+       if (linkIndex.exists(fname)) {
          resolved = true;
        }
      }
@@ -669,14 +865,7 @@ public class HTMLInspector {
     
     if (!resolved) {
       if (rref.startsWith("http://") || rref.startsWith("https://") || rref.startsWith("ftp://") || rref.startsWith("tel:")) {
-        resolved = true;
-        if (specs != null) {
-          for (SpecMapManager spec : specs) {
-            if (spec.getSpecial() != SpecialPackageType.Examples && spec.getBase() != null && rref.startsWith(spec.getBase())) {
-              resolved = false;
-            }
-          }
-        }
+        resolved = specs == null || !linkIndex.isInSpec(rref);
       } else { 
         String page = rref;
         String name = null;
@@ -752,7 +941,7 @@ public class HTMLInspector {
   }
 
   private boolean checkResolveImageLink(String filename, Location loc, String path, String ref, List<ValidationMessage> messages, String uuid) throws IOException {
-    links++;
+    links.incrementAndGet();
     String tgtList = "";
     boolean resolved = Utilities.existsInList(ref);
     if (ref.startsWith("data:"))
@@ -804,7 +993,7 @@ public class HTMLInspector {
   }
 
   public int links() {
-    return links;
+    return links.get();
   }
 
   public static void main(String[] args) throws Exception {
@@ -851,6 +1040,18 @@ public class HTMLInspector {
     this.strict = strict;
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * The number of threads to use for loading and checking the files. The messages are 
+   * the same whatever the thread count
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   public  List<SpecMapManager> getSpecMaps() {
     return specs;
   }
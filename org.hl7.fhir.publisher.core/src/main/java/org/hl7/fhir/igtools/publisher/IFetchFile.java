@@ -51,4 +51,21 @@ public interface IFetchFile {
   InputStream openAsStream(String filename) throws FileNotFoundException;
   String openAsString(String path) throws FileNotFoundException, IOException;
   void setRootDir(String rootDir);
+
+  /**
+   * How many files to read and parse at once when scanning
+   */
+  void setThreads(int threads);
+
+  /**
+   * Start watching for changes to the files in these directories (and in the sub-directories of
+   * the recursive ones). Returns false if that's not possible, in which case every file is
+   * checked for changes on every load
+   */
+  boolean startWatching(List<String> recursiveDirs, List<String> dirs);
+
+  /**
+   * Wait until there might be changes to load
+   */
+  void waitForChanges(long pollInterval) throws InterruptedException;
 }
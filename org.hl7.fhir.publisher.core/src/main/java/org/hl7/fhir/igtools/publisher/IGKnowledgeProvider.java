@@ -21,6 +21,7 @@ package org.hl7.fhir.igtools.publisher;
  */
 
  
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -74,6 +75,7 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
   private Template template;
   private List<String> listedURLExemptions;
   private Set<String> summaryRows = new HashSet<>();
+  private ThreadLocal<List<Runnable>> deferredMessages = new ThreadLocal<>();
   
   public IGKnowledgeProvider(IWorkerContext context, String pathToSpec, String canonical, JsonObject igs, List<ValidationMessage> errors, boolean noXhtml, Template template, List<String> listedURLExemptions) throws Exception {
     super();
@@ -135,68 +137,75 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
   public String doReplacements(String s, FetchedResource r, Map<String, String> vars, String format) throws FHIRException {
     if (Utilities.noString(s))
       return s;
-    if (r.getId()== null) {
-      throw new FHIRException("Error doing replacements - no id defined in resource: " + (r.getTitle()== null ? "NO TITLE EITHER" : r.getTitle()));
-    }
-    s = s.replace("{{[title]}}", r.getTitle() == null ? "?title?" : r.getTitle());
-    s = s.replace("{{[name]}}", r.getId()+(format==null? "": "-"+format)+"-html");
-    s = s.replace("{{[id]}}", r.getId());
-    if (format!=null)
-      s = s.replace("{{[fmt]}}", format);
-    s = s.replace("{{[type]}}", r.fhirType());
-    s = s.replace("{{[uid]}}", r.fhirType()+"="+r.getId());
-    if (vars != null) {
-      for (String n : vars.keySet()) {
-        String v = vars.get(n);
-        if (v == null) {
-          v = "";
-        }
-        s = s == null ? "" : s.replace("{{["+n+"]}}", v);
+    checkHasId(r);
+    return s.contains(ReplacementTemplate.TOKEN_START) ? doReplacements(ReplacementTemplate.compile(s), r, vars, format) : s;
+  }
+
+  public String doReplacements(ReplacementTemplate t, FetchedResource r, Map<String, String> vars, String format) throws FHIRException {
+    checkHasId(r);
+    return t.apply(n -> {
+      switch (n) {
+      case "title": return r.getTitle() == null ? "?title?" : r.getTitle();
+      case "name": return r.getId()+(format==null? "": "-"+format)+"-html";
+      case "id": return r.getId();
+      case "fmt": return format;
+      case "type": return r.fhirType();
+      case "uid": return r.fhirType()+"="+r.getId();
+      default: return var(vars, n);
       }
-    }
-    return s;
+    });
   }
 
   public String doReplacements(String s, FetchedResource r, Resource res, Map<String, String> vars, String format, String prefixForContained) throws FHIRException {
     if (Utilities.noString(s))
       return s;
-    if (r.getId()== null) {
-      throw new FHIRException("Error doing replacements - no id defined in resource: " + (r.getTitle()== null ? "NO TITLE EITHER" : r.getTitle()));
-    }
-    s = s.replace("{{[title]}}", r.getTitle() == null ? "?title?" : r.getTitle());
-    s = s.replace("{{[name]}}", res.getId()+(format==null? "": "-"+format)+"-html");
-    s = s.replace("{{[id]}}", prefixForContained+res.getId());
-    if (format!=null)
-      s = s.replace("{{[fmt]}}", format);
-    s = s.replace("{{[type]}}", res.fhirType());
-    s = s.replace("{{[uid]}}", res.fhirType()+"="+prefixForContained+res.getId());
-    if (vars != null) {
-      for (String n : vars.keySet()) {
-        String v = vars.get(n);
-        if (v == null) {
-          v = "";
-        }
-        s = s == null ? "" : s.replace("{{["+n+"]}}", v);
+    checkHasId(r);
+    return s.contains(ReplacementTemplate.TOKEN_START) ? doReplacements(ReplacementTemplate.compile(s), r, res, vars, format, prefixForContained) : s;
+  }
+
+  public String doReplacements(ReplacementTemplate t, FetchedResource r, Resource res, Map<String, String> vars, String format, String prefixForContained) throws FHIRException {
+    checkHasId(r);
+    return t.apply(n -> {
+      switch (n) {
+      case "title": return r.getTitle() == null ? "?title?" : r.getTitle();
+      case "name": return res.getId()+(format==null? "": "-"+format)+"-html";
+      case "id": return prefixForContained+res.getId();
+      case "fmt": return format;
+      case "type": return res.fhirType();
+      case "uid": return res.fhirType()+"="+prefixForContained+res.getId();
+      default: return var(vars, n);
       }
-    }
-    return s;
+    });
   }
 
   public String doReplacements(String s, Resource r, Map<String, String> vars, String format) {
-    if (Utilities.noString(s))
+    if (Utilities.noString(s) || !s.contains(ReplacementTemplate.TOKEN_START))
       return s;
-    s = s.replace("{{[title]}}", "?title?");
-    s = s.replace("{{[name]}}", r.getId()+(format==null? "": "-"+format)+"-html");
-    s = s.replace("{{[id]}}", r.getId());
-    if (format!=null)
-      s = s.replace("{{[fmt]}}", format);
-//    s = s.replace("{{[type]}}", r.fhirType());
-//    s = s.replace("{{[uid]}}", r.fhirType()+"="+r.getId());
-    if (vars != null) {
-      for (String n : vars.keySet())
-        s = s.replace("{{["+n+"]}}", vars.get(n));
+    return ReplacementTemplate.compile(s).apply(n -> {
+      switch (n) {
+      case "title": return "?title?";
+      case "name": return r.getId()+(format==null? "": "-"+format)+"-html";
+      case "id": return r.getId();
+      case "fmt": return format;
+      case "type": return null;
+      case "uid": return null;
+      default: return vars == null ? null : vars.get(n);
+      }
+    });
+  }
+
+  private void checkHasId(FetchedResource r) throws FHIRException {
+    if (r.getId()== null) {
+      throw new FHIRException("Error doing replacements - no id defined in resource: " + (r.getTitle()== null ? "NO TITLE EITHER" : r.getTitle()));
+    }
+  }
+
+  private String var(Map<String, String> vars, String name) {
+    if (vars == null || !vars.containsKey(name)) {
+      return null;
     }
-    return s;
+    String v = vars.get(name);
+    return v == null ? "" : v;
   }
 
   public boolean wantGen(FetchedResource r, String code) {
@@ -449,16 +458,53 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
   }
 
   private void error(FetchedFile f, String path, String msg, String msgId) {
-    if (!msgs.contains(msg)) {
-      msgs.add(msg);
-      f.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, path, msg, IssueSeverity.ERROR).setMessageId(msgId));
-    }
+    report(() -> {
+      if (!msgs.contains(msg)) {
+        msgs.add(msg);
+        f.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, path, msg, IssueSeverity.ERROR).setMessageId(msgId));
+      }
+    });
   }
 
   private void hint(String location, String msg) {
-    if (!msgs.contains(msg)) {
-      msgs.add(msg);
-      errors.add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, location, msg, IssueSeverity.INFORMATION));
+    report(() -> {
+      if (!msgs.contains(msg)) {
+        msgs.add(msg);
+        errors.add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, location, msg, IssueSeverity.INFORMATION));
+      }
+    });
+  }
+
+  /**
+   * Messages are only reported once, so when several threads are using the knowledge provider,
+   * which thread reports a message first matters. Threads that call this hold on to their
+   * messages until takeDeferredMessages(), and the caller reports them in a fixed order 
+   * with reportDeferredMessages()
+   */
+  public void deferMessages() {
+    deferredMessages.set(new ArrayList<>());
+  }
+
+  public List<Runnable> takeDeferredMessages() {
+    List<Runnable> res = deferredMessages.get();
+    deferredMessages.remove();
+    return res == null ? new ArrayList<>() : res;
+  }
+
+  public void reportDeferredMessages(List<Runnable> messages) {
+    for (Runnable m : messages) {
+      report(m);
+    }
+  }
+
+  private void report(Runnable message) {
+    List<Runnable> deferred = deferredMessages.get();
+    if (deferred != null) {
+      deferred.add(message);
+    } else {
+      synchronized (msgs) {
+        message.run();
+      }
     }
   }
 
@@ -468,12 +514,14 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
 
   private void brokenLinkWarning(String location, String ref) {
     String s = "The reference "+ref+" could not be resolved";
-    if (!msgs.contains(s)) {
-      msgs.add(s);
-      if (errors != null) {
-        errors.add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, pathToFhirPath(location), s, IssueSeverity.ERROR));
+    report(() -> {
+      if (!msgs.contains(s)) {
+        msgs.add(s);
+        if (errors != null) {
+          errors.add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, pathToFhirPath(location), s, IssueSeverity.ERROR));
+        }
       }
-    }
+    });
   }
 
   private String pathToFhirPath(String path) {
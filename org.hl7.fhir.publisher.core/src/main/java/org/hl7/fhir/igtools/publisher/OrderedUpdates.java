@@ -0,0 +1,57 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes to shared state (the package, the lists of outputs, etc) made while generating
+ * the outputs for a file. Normally these are made straight away, but when the files are
+ * generated on worker threads, each worker defers them, and the caller applies them in
+ * file order, so the result is the same as if the files had been done one after another
+ */
+public class OrderedUpdates {
+
+  public interface Update {
+    void apply() throws Exception;
+  }
+
+  private ThreadLocal<List<Update>> deferred = new ThreadLocal<>();
+
+  /**
+   * Until take() is called, updates made on this thread are collected, not applied
+   */
+  public void defer() {
+    deferred.set(new ArrayList<>());
+  }
+
+  public List<Update> take() {
+    List<Update> res = deferred.get();
+    deferred.remove();
+    return res == null ? new ArrayList<>() : res;
+  }
+
+  /**
+   * Make the change now, or collect it if this thread is deferring updates
+   */
+  public void update(Update u) throws IOException {
+    List<Update> list = deferred.get();
+    if (list != null) {
+      list.add(u);
+    } else {
+      try {
+        u.apply();
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+  }
+
+  public void apply(List<Update> updates) throws Exception {
+    for (Update u : updates) {
+      u.apply();
+    }
+  }
+}
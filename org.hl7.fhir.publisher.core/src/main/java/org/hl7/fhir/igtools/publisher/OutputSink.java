@@ -0,0 +1,314 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.utilities.CSFile;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonProperty;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+
+/**
+ * Writes the generated files, but only when the content has changed.
+ *
+ * For each file written, the sink remembers the hash of the content, and the size and
+ * modification time of the file as written. If the same content is written again, and
+ * the file on disk hasn't been touched since, nothing is read or written. Files the sink
+ * doesn't know about (or that have been changed by something else) are read and compared,
+ * as before.
+ *
+ * The actual writes are done on a small pool of writer threads, so the callers don't wait
+ * for the disk. The number of pending writes is bounded; when the limit is reached, callers
+ * wait. Anything that reads the output files must call flush() first. A write that fails is
+ * reported (with the file that failed) by the next call to write() or flush().
+ *
+ * The manifest of hashes is saved between runs, in the build cache. At startup, the files it
+ * knows that haven't been touched since are kept (see clearExceptKnown()), so writing them
+ * again with the same content costs nothing. The ones that aren't written again in the run,
+ * and haven't been changed by anything else either, are removed by removeStale()
+ */
+public class OutputSink {
+
+  public static final String MANIFEST_NAME = "outputs.json";
+
+  private static class Entry {
+    private String hash;
+    private volatile long size;
+    private volatile long modified = -1; // -1 while the write is pending
+  }
+
+  private static class Pending {
+    private Entry entry;
+    private byte[] content;
+  }
+
+  private int threads;
+  private int capacity;
+  private Semaphore slots;
+  private ExecutorService writers; // null until something is written, and after close()
+  private Map<String, Entry> manifest = new ConcurrentHashMap<>();
+  private Map<String, Pending> pending = new ConcurrentHashMap<>();
+  private Map<String, IOException> failures = new TreeMap<>(); // path -> what went wrong; guarded by itself
+  private Set<String> kept = ConcurrentHashMap.newKeySet(); // kept from the last run, not written again yet
+  private AtomicInteger written = new AtomicInteger();
+  private AtomicInteger unchanged = new AtomicInteger();
+
+  /**
+   * @param threads the number of writer threads
+   * @param capacity the maximum number of writes that can be waiting
+   */
+  public OutputSink(int threads, int capacity) {
+    super();
+    this.threads = threads;
+    this.capacity = capacity;
+    slots = new Semaphore(capacity);
+  }
+
+  private synchronized ExecutorService writers() {
+    if (writers == null) {
+      writers = Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "output-writer");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return writers;
+  }
+
+  /**
+   * Write the content to the path, unless the file already has that content
+   *
+   * @return true if the content has changed (and the file will be written)
+   */
+  public boolean write(byte[] content, String path) throws IOException {
+    checkFailure();
+    kept.remove(path);
+    String hash = BuildCache.digest(content);
+    Entry e = manifest.get(path);
+    File f = new CSFile(path);
+    if (e != null && e.hash.equals(hash) && (e.modified == -1 || (f.exists() && f.length() == e.size && f.lastModified() == e.modified))) {
+      unchanged.incrementAndGet();
+      return false;
+    }
+    if ((e == null || e.modified != -1) && f.exists() && f.length() == content.length && Arrays.equals(content, TextFile.fileToBytes(f))) {
+      e = new Entry();
+      e.hash = hash;
+      e.size = f.length();
+      e.modified = f.lastModified();
+      manifest.put(path, e);
+      unchanged.incrementAndGet();
+      return false;
+    }
+
+    Pending p = new Pending();
+    p.entry = new Entry();
+    p.entry.hash = hash;
+    p.content = content;
+    try {
+      slots.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted writing "+path);
+    }
+    manifest.put(path, p.entry);
+    pending.put(path, p);
+    written.incrementAndGet();
+    try {
+      writers().execute(() -> store(path));
+    } catch (RuntimeException ex) {
+      slots.release();
+      throw ex;
+    }
+    return true;
+  }
+
+  private void store(String path) {
+    try {
+      // if the same path was written again in the meantime, this writes the latest content
+      Pending p = pending.remove(path);
+      if (p != null) {
+        File f = new File(path);
+        TextFile.bytesToFile(p.content, f);
+        p.entry.size = f.length();
+        p.entry.modified = f.lastModified();
+      }
+    } catch (IOException e) {
+      synchronized (failures) {
+        failures.put(path, e);
+      }
+      manifest.remove(path);
+    } finally {
+      slots.release();
+    }
+  }
+
+  /**
+   * Wait until all the pending writes are done
+   */
+  public void flush() throws IOException {
+    try {
+      slots.acquire(capacity);
+      slots.release(capacity);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for output to be written");
+    }
+    checkFailure();
+  }
+
+  /**
+   * Wait until all the pending writes are done, and stop the writer threads. They are
+   * started again if anything else is written (e.g. in the next cycle in watch mode)
+   */
+  public void close() throws IOException {
+    flush();
+    synchronized (this) {
+      if (writers != null) {
+        writers.shutdown();
+        writers = null;
+      }
+    }
+  }
+
+  /**
+   * Throws an exception naming the files that couldn't be written (in path order), if any
+   */
+  private void checkFailure() throws IOException {
+    synchronized (failures) {
+      if (failures.isEmpty()) {
+        return;
+      }
+      StringBuilder b = new StringBuilder();
+      IOException first = null;
+      for (String path : failures.keySet()) {
+        IOException e = failures.get(path);
+        b.append(b.length() == 0 ? "Error writing " : "; ");
+        b.append(path+": "+e.getMessage());
+        first = first == null ? e : first;
+      }
+      failures.clear();
+      throw new IOException(b.toString(), first);
+    }
+  }
+
+  public int getWritten() {
+    return written.get();
+  }
+
+  public int getUnchanged() {
+    return unchanged.get();
+  }
+
+  /**
+   * Load the manifest from a previous run. Entries for files already written in this run are kept
+   */
+  public void loadManifest(String filename) {
+    File mf = new File(filename);
+    if (!mf.exists()) {
+      return;
+    }
+    try {
+      JsonObject json = JsonParser.parseObject(TextFile.fileToString(mf));
+      for (JsonProperty p : json.getProperties()) {
+        if (p.getValue().isJsonObject()) {
+          JsonObject o = (JsonObject) p.getValue();
+          Entry e = new Entry();
+          e.hash = o.asString("hash");
+          e.size = Long.parseLong(o.asString("size"));
+          e.modified = Long.parseLong(o.asString("modified"));
+          if (e.hash != null) {
+            manifest.putIfAbsent(p.getName(), e);
+          }
+        }
+      }
+    } catch (Exception e) {
+      // it's only a cache; everything unknown is read and compared
+    }
+  }
+
+  /**
+   * Empties the folder (apart from the excluded names at the top level), except for the files 
+   * in the manifest that are as they were written. Call loadManifest() first
+   */
+  public void clearExceptKnown(String folder, String... exclusions) throws IOException {
+    kept.clear();
+    File[] files = new File(folder).listFiles();
+    if (files != null) {
+      Set<String> excluded = new HashSet<>(Arrays.asList(exclusions));
+      for (File f : files) {
+        if (!excluded.contains(f.getName())) {
+          clearExceptKnown(f);
+        }
+      }
+    }
+  }
+
+  private void clearExceptKnown(File f) throws IOException {
+    if (f.isDirectory()) {
+      File[] files = f.listFiles();
+      if (files != null) {
+        for (File c : files) {
+          clearExceptKnown(c);
+        }
+      }
+    } else {
+      Entry e = manifest.get(f.getPath());
+      if (e != null && e.modified != -1 && f.length() == e.size && f.lastModified() == e.modified) {
+        kept.add(f.getPath());
+      } else {
+        manifest.remove(f.getPath());
+        if (!f.delete()) {
+          throw new IOException("Unable to delete "+f.getPath());
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the files that were kept by clearExceptKnown() but haven't been written in this run.
+   * A file that has been changed since it was kept was written by something other than the sink
+   * (e.g. copied from the template) in this run, so it stays, but the sink forgets it
+   */
+  public void removeStale() {
+    for (String path : kept) {
+      File f = new File(path);
+      Entry e = manifest.remove(path);
+      if (e != null && f.exists() && f.length() == e.size && f.lastModified() == e.modified) {
+        f.delete();
+      }
+    }
+    kept.clear();
+  }
+
+  /**
+   * Save the manifest for the next run (call flush() first)
+   */
+  public void saveManifest(String filename) throws IOException {
+    JsonObject json = new JsonObject();
+    for (String path : Utilities.sorted(manifest.keySet())) {
+      Entry e = manifest.get(path);
+      if (e != null && e.modified != -1) {
+        JsonObject o = new JsonObject();
+        o.add("hash", e.hash);
+        o.add("size", Long.toString(e.size));
+        o.add("modified", Long.toString(e.modified));
+        json.add(path, o);
+      }
+    }
+    Utilities.createDirectory(Utilities.getDirectoryForFile(filename));
+    TextFile.stringToFile(JsonParser.compose(json, false), filename, false);
+  }
+
+}
@@ -0,0 +1,706 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Builds a zip file like ZipGenerator does, but compresses the entries on a pool of threads
+ * and writes the archive in place (to [filename].tmp, which is renamed when it's complete),
+ * rather than building it somewhere else and copying it.
+ *
+ * Entries are written in a stable order: folders are walked in name order, and the sources
+ * follow in the order they were added. Entries that are already compressed (archives, images,
+ * fonts) are stored. If there's a previous archive, an entry whose content is byte for byte the
+ * same as the entry with the same name in it is copied across as it is, without compressing
+ * it again.
+ *
+ * Nothing is written until close()
+ */
+public class ParallelZipGenerator {
+
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int END_SIG = 0x06054b50;
+  private static final int ZIP64_END_SIG = 0x06064b50;
+  private static final int ZIP64_LOC_SIG = 0x07064b50;
+  private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+  private static final long ZIP64_SIZE_LIMIT = 0xFFFF0000L; // leaves room for deflate making things bigger
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+  private static final int FLAG_UTF8 = 0x0800;
+  private static final int LARGE = 8 * 1024 * 1024; // bigger than this, and the entry is streamed rather than compressed in memory
+
+  private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+      "zip", "tgz", "gz", "jar", "war", "xlsx", "docx", "pptx", "png", "jpg", "jpeg", "gif", "webp", "ico", "woff", "woff2", "mp3", "mp4", "7z", "bz2"));
+
+  private static class Entry {
+    private String name;
+    private byte[] nameBytes;
+    private File file;
+    private byte[] source;
+    private long time;
+    private int method;
+    private long crc;
+    private long size;
+    private long csize;
+    private long offset;
+  }
+
+  private String filename;
+  private int threads;
+  private String previous;
+  private List<Entry> entries = new ArrayList<>();
+  private Set<String> names = new HashSet<>();
+  private AtomicInteger reused = new AtomicInteger();
+  private AtomicInteger deflated = new AtomicInteger();
+  private AtomicInteger stored = new AtomicInteger();
+
+  public ParallelZipGenerator(String filename, int threads) {
+    super();
+    this.filename = filename;
+    this.threads = threads;
+  }
+
+  /**
+   * @param previous an earlier version of the archive to copy unchanged entries from. It's
+   *   fine if it doesn't exist, or isn't a zip file
+   */
+  public void setPrevious(String previous) {
+    this.previous = previous;
+  }
+
+  /**
+   * Adds the files in the folder and its sub-folders. The archive itself, and the previous
+   * archive, are left out, if they're in the folder
+   */
+  public void addFolder(String actualDir, String statedDir) throws IOException {
+    File[] files = new File(actualDir).listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, (f1, f2) -> f1.getName().compareTo(f2.getName()));
+    for (File f : files) {
+      String name = statedDir+(statedDir.endsWith("/") || statedDir.isEmpty() ? "" : "/")+f.getName();
+      if (f.isDirectory()) {
+        addFolder(f.getAbsolutePath(), name);
+      } else if (!isOwnFile(f)) {
+        addFile(name, f);
+      }
+    }
+  }
+
+  public void addFile(String statedPath, File file) {
+    Entry e = makeEntry(statedPath);
+    if (e != null) {
+      e.file = file;
+      e.time = file.lastModified();
+    }
+  }
+
+  public void addFileSource(String path, String content) {
+    Entry e = makeEntry(path);
+    if (e != null) {
+      e.source = content.getBytes(StandardCharsets.UTF_8);
+      e.time = System.currentTimeMillis();
+    }
+  }
+
+  private Entry makeEntry(String name) {
+    if (!names.add(name)) {
+      return null;
+    }
+    Entry e = new Entry();
+    e.name = name;
+    e.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    entries.add(e);
+    return e;
+  }
+
+  private boolean isOwnFile(File f) throws IOException {
+    String path = f.getCanonicalPath();
+    return path.equals(new File(filename).getCanonicalPath()) || path.equals(new File(filename+".tmp").getCanonicalPath())
+        || (previous != null && path.equals(new File(previous).getCanonicalPath()));
+  }
+
+  public int getReused() {
+    return reused.get();
+  }
+
+  public int getDeflated() {
+    return deflated.get();
+  }
+
+  public int getStored() {
+    return stored.get();
+  }
+
+  /**
+   * Compresses and writes all the entries, then replaces the archive (if there is one) with
+   * the new one
+   */
+  public void close() throws IOException {
+    File tmp = new File(filename+".tmp");
+    PreviousArchive prev = PreviousArchive.open(previous);
+    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    boolean done = false;
+    try (ZipOutput out = new ZipOutput(tmp)) {
+      Deque<Future<byte[]>> pending = new ArrayDeque<>();
+      int window = threads * 2;
+      int next = 0;
+      for (Entry e : entries) {
+        byte[] data;
+        if (executor == null) {
+          data = compress(e, prev);
+        } else {
+          while (next < entries.size() && pending.size() < window) {
+            Entry n = entries.get(next);
+            pending.add(executor.submit(() -> compress(n, prev)));
+            next++;
+          }
+          data = pending.poll().get();
+        }
+        if (data == null) {
+          writeStreamed(out, e);
+        } else {
+          e.offset = out.getPosition();
+          writeLocalHeader(out, e, false);
+          out.write(data, 0, data.length);
+        }
+      }
+      writeCentralDirectory(out);
+      done = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted building "+filename, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      if (prev != null) {
+        prev.close();
+      }
+      if (!done) {
+        tmp.delete();
+      }
+    }
+    Files.move(tmp.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @return the data for the entry, or null if it's too big to hold, and has to be streamed
+   */
+  private byte[] compress(Entry e, PreviousArchive prev) throws IOException {
+    if (e.source == null && e.file.length() > LARGE) {
+      return null;
+    }
+    byte[] content = e.source != null ? e.source : Files.readAllBytes(e.file.toPath());
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    e.crc = crc.getValue();
+    e.size = content.length;
+    if (prev != null) {
+      PreviousArchive.PreviousEntry pe = prev.find(e.name);
+      if (pe != null && pe.size == e.size && pe.crc == e.crc) {
+        byte[] raw = prev.read(pe);
+        if (raw != null && Arrays.equals(content, pe.method == STORED ? raw : inflate(raw, content.length))) {
+          e.method = pe.method;
+          e.csize = raw.length;
+          reused.incrementAndGet();
+          return raw;
+        }
+      }
+    }
+    if (!isCompressed(e.name)) {
+      byte[] data = deflate(content);
+      if (data.length < content.length) {
+        e.method = DEFLATED;
+        e.csize = data.length;
+        count(DEFLATED);
+        return data;
+      }
+    }
+    e.method = STORED;
+    e.csize = content.length;
+    count(STORED);
+    return content;
+  }
+
+  private void count(int method) {
+    (method == STORED ? stored : deflated).incrementAndGet();
+  }
+
+  private static boolean isCompressed(String name) {
+    int i = name.lastIndexOf('.');
+    return i > name.lastIndexOf('/') && COMPRESSED_EXTENSIONS.contains(name.substring(i + 1).toLowerCase(Locale.ROOT));
+  }
+
+  private static byte[] deflate(byte[] content) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+      ByteBuffer buffer = ByteBuffer.allocate(Math.max(1024, content.length / 2));
+      while (!deflater.finished()) {
+        if (!buffer.hasRemaining()) {
+          ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+          buffer.flip();
+          bigger.put(buffer);
+          buffer = bigger;
+        }
+        int n = deflater.deflate(buffer.array(), buffer.position(), buffer.remaining());
+        buffer.position(buffer.position() + n);
+      }
+      return Arrays.copyOf(buffer.array(), buffer.position());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] raw, int size) {
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(raw);
+      byte[] res = new byte[size];
+      int n = 0;
+      while (n < size && !inflater.finished()) {
+        int c = inflater.inflate(res, n, size - n);
+        if (c == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          return null;
+        }
+        n = n + c;
+      }
+      return n == size ? res : null;
+    } catch (DataFormatException e) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * An entry that's too big to hold in memory is compressed as it's written, and the header
+   * is filled in afterwards
+   */
+  private void writeStreamed(ZipOutput out, Entry e) throws IOException {
+    long length = e.file.length();
+    boolean zip64 = length >= ZIP64_SIZE_LIMIT;
+    e.method = isCompressed(e.name) ? STORED : DEFLATED;
+    e.offset = out.getPosition();
+    writeLocalHeader(out, e, zip64);
+    long start = out.getPosition();
+    CRC32 crc = new CRC32();
+    Deflater deflater = e.method == DEFLATED ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+    byte[] buffer = new byte[65536];
+    byte[] output = new byte[65536];
+    long size = 0;
+    try (InputStream in = new FileInputStream(e.file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, n);
+        size = size + n;
+        if (deflater == null) {
+          out.write(buffer, 0, n);
+        } else {
+          deflater.setInput(buffer, 0, n);
+          while (!deflater.needsInput()) {
+            int c = deflater.deflate(output);
+            out.write(output, 0, c);
+          }
+        }
+      }
+      if (deflater != null) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int c = deflater.deflate(output);
+          out.write(output, 0, c);
+        }
+      }
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+    e.crc = crc.getValue();
+    e.size = size;
+    e.csize = out.getPosition() - start;
+    if (!zip64 && (e.size >= ZIP64_LIMIT || e.csize >= ZIP64_LIMIT)) {
+      throw new IOException("The file "+e.file.getAbsolutePath()+" changed size while it was being added to "+filename);
+    }
+    count(e.method);
+    // fill in the crc and sizes (or, for zip64, the sizes in the extra field)
+    ByteBuffer b = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt((int) e.crc);
+    b.putInt(zip64 ? (int) ZIP64_LIMIT : (int) e.csize);
+    b.putInt(zip64 ? (int) ZIP64_LIMIT : (int) e.size);
+    b.flip();
+    out.patch(e.offset + 14, b);
+    if (zip64) {
+      b = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      b.putLong(e.size);
+      b.putLong(e.csize);
+      b.flip();
+      out.patch(e.offset + 30 + e.nameBytes.length + 4, b);
+    }
+  }
+
+  private void writeLocalHeader(ZipOutput out, Entry e, boolean zip64) throws IOException {
+    out.writeInt(LOC_SIG);
+    out.writeShort(zip64 ? 45 : 20);
+    out.writeShort(FLAG_UTF8);
+    out.writeShort(e.method);
+    out.writeInt(dosTime(e.time));
+    out.writeInt((int) e.crc);
+    out.writeInt(zip64 ? (int) ZIP64_LIMIT : (int) e.csize);
+    out.writeInt(zip64 ? (int) ZIP64_LIMIT : (int) e.size);
+    out.writeShort(e.nameBytes.length);
+    out.writeShort(zip64 ? 20 : 0);
+    out.write(e.nameBytes, 0, e.nameBytes.length);
+    if (zip64) {
+      out.writeShort(1);
+      out.writeShort(16);
+      out.writeLong(e.size);
+      out.writeLong(e.csize);
+    }
+  }
+
+  private void writeCentralDirectory(ZipOutput out) throws IOException {
+    long start = out.getPosition();
+    for (Entry e : entries) {
+      boolean bigSize = e.size >= ZIP64_LIMIT;
+      boolean bigCSize = e.csize >= ZIP64_LIMIT;
+      boolean bigOffset = e.offset >= ZIP64_LIMIT;
+      int extra = (bigSize ? 8 : 0) + (bigCSize ? 8 : 0) + (bigOffset ? 8 : 0);
+      out.writeInt(CEN_SIG);
+      out.writeShort(extra > 0 ? 45 : 20);
+      out.writeShort(extra > 0 ? 45 : 20);
+      out.writeShort(FLAG_UTF8);
+      out.writeShort(e.method);
+      out.writeInt(dosTime(e.time));
+      out.writeInt((int) e.crc);
+      out.writeInt(bigCSize ? (int) ZIP64_LIMIT : (int) e.csize);
+      out.writeInt(bigSize ? (int) ZIP64_LIMIT : (int) e.size);
+      out.writeShort(e.nameBytes.length);
+      out.writeShort(extra > 0 ? extra + 4 : 0);
+      out.writeShort(0); // comment
+      out.writeShort(0); // disk
+      out.writeShort(0); // internal attributes
+      out.writeInt(0); // external attributes
+      out.writeInt(bigOffset ? (int) ZIP64_LIMIT : (int) e.offset);
+      out.write(e.nameBytes, 0, e.nameBytes.length);
+      if (extra > 0) {
+        out.writeShort(1);
+        out.writeShort(extra);
+        if (bigSize) {
+          out.writeLong(e.size);
+        }
+        if (bigCSize) {
+          out.writeLong(e.csize);
+        }
+        if (bigOffset) {
+          out.writeLong(e.offset);
+        }
+      }
+    }
+    long end = out.getPosition();
+    long length = end - start;
+    boolean zip64 = entries.size() >= 0xFFFF || start >= ZIP64_LIMIT || length >= ZIP64_LIMIT;
+    if (zip64) {
+      out.writeInt(ZIP64_END_SIG);
+      out.writeLong(44);
+      out.writeShort(45);
+      out.writeShort(45);
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeLong(entries.size());
+      out.writeLong(entries.size());
+      out.writeLong(length);
+      out.writeLong(start);
+      out.writeInt(ZIP64_LOC_SIG);
+      out.writeInt(0);
+      out.writeLong(end);
+      out.writeInt(1);
+    }
+    out.writeInt(END_SIG);
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(zip64 ? 0xFFFF : entries.size());
+    out.writeShort(zip64 ? 0xFFFF : entries.size());
+    out.writeInt(zip64 ? (int) ZIP64_LIMIT : (int) length);
+    out.writeInt(zip64 ? (int) ZIP64_LIMIT : (int) start);
+    out.writeShort(0);
+  }
+
+  private static int dosTime(long millis) {
+    LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    if (t.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16 | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+  }
+
+  /**
+   * A buffered writer that knows where it is, and can go back and fill in a header
+   */
+  private static class ZipOutput implements Closeable {
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private long position;
+
+    private ZipOutput(File file) throws IOException {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private long getPosition() {
+      return position;
+    }
+
+    private void ensure(int n) throws IOException {
+      if (buffer.remaining() < n) {
+        flush();
+      }
+    }
+
+    private void writeShort(int v) throws IOException {
+      ensure(2);
+      buffer.putShort((short) v);
+      position = position + 2;
+    }
+
+    private void writeInt(int v) throws IOException {
+      ensure(4);
+      buffer.putInt(v);
+      position = position + 4;
+    }
+
+    private void writeLong(long v) throws IOException {
+      ensure(8);
+      buffer.putLong(v);
+      position = position + 8;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+      position = position + len;
+      while (len > 0) {
+        if (!buffer.hasRemaining()) {
+          flush();
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.put(b, off, n);
+        off = off + n;
+        len = len - n;
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    private void patch(long pos, ByteBuffer b) throws IOException {
+      flush();
+      while (b.hasRemaining()) {
+        pos = pos + channel.write(b, pos);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      channel.close();
+    }
+  }
+
+  /**
+   * Reads the central directory of the previous archive, and the raw (compressed) data of its
+   * entries. Reads are positional, so the workers can share it
+   */
+  private static class PreviousArchive implements Closeable {
+
+    private static class PreviousEntry {
+      private int method;
+      private long crc;
+      private long size;
+      private long csize;
+      private long offset;
+    }
+
+    private FileChannel channel;
+    private Map<String, PreviousEntry> entries = new HashMap<>();
+
+    private static PreviousArchive open(String filename) {
+      if (filename == null || !new File(filename).exists()) {
+        return null;
+      }
+      PreviousArchive res = new PreviousArchive();
+      try {
+        res.channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ);
+        res.readCentralDirectory();
+        return res;
+      } catch (Exception e) {
+        // not a zip we can read; everything is compressed again
+        res.close();
+        return null;
+      }
+    }
+
+    private ByteBuffer read(long pos, int length) throws IOException {
+      ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      while (b.hasRemaining()) {
+        int n = channel.read(b, pos + b.position());
+        if (n < 0) {
+          throw new IOException("Unexpected end of file");
+        }
+      }
+      b.flip();
+      return b;
+    }
+
+    private void readCentralDirectory() throws IOException {
+      long fileSize = channel.size();
+      int tail = (int) Math.min(fileSize, 65535 + 22);
+      ByteBuffer b = read(fileSize - tail, tail);
+      int end = -1;
+      for (int i = tail - 22; i >= 0; i--) {
+        if (b.getInt(i) == END_SIG) {
+          end = i;
+          break;
+        }
+      }
+      if (end < 0) {
+        throw new IOException("Not a zip file");
+      }
+      long count = b.getShort(end + 10) & 0xFFFF;
+      long length = b.getInt(end + 12) & ZIP64_LIMIT;
+      long start = b.getInt(end + 16) & ZIP64_LIMIT;
+      if (end >= 20 && b.getInt(end - 20) == ZIP64_LOC_SIG) {
+        ByteBuffer z = read(b.getLong(end - 20 + 8), 56);
+        if (z.getInt(0) != ZIP64_END_SIG) {
+          throw new IOException("Bad zip64 end record");
+        }
+        count = z.getLong(32);
+        length = z.getLong(40);
+        start = z.getLong(48);
+      }
+      ByteBuffer cd = read(start, (int) length);
+      int p = 0;
+      for (long i = 0; i < count; i++) {
+        if (cd.getInt(p) != CEN_SIG) {
+          throw new IOException("Bad central directory");
+        }
+        PreviousEntry e = new PreviousEntry();
+        e.method = cd.getShort(p + 10) & 0xFFFF;
+        e.crc = cd.getInt(p + 16) & ZIP64_LIMIT;
+        e.csize = cd.getInt(p + 20) & ZIP64_LIMIT;
+        e.size = cd.getInt(p + 24) & ZIP64_LIMIT;
+        int nameLength = cd.getShort(p + 28) & 0xFFFF;
+        int extraLength = cd.getShort(p + 30) & 0xFFFF;
+        int commentLength = cd.getShort(p + 32) & 0xFFFF;
+        e.offset = cd.getInt(p + 42) & ZIP64_LIMIT;
+        byte[] name = new byte[nameLength];
+        cd.position(p + 46);
+        cd.get(name);
+        int x = p + 46 + nameLength;
+        while (x < p + 46 + nameLength + extraLength) {
+          int id = cd.getShort(x) & 0xFFFF;
+          int size = cd.getShort(x + 2) & 0xFFFF;
+          if (id == 1) {
+            int y = x + 4;
+            if (e.size == ZIP64_LIMIT) {
+              e.size = cd.getLong(y);
+              y = y + 8;
+            }
+            if (e.csize == ZIP64_LIMIT) {
+              e.csize = cd.getLong(y);
+              y = y + 8;
+            }
+            if (e.offset == ZIP64_LIMIT) {
+              e.offset = cd.getLong(y);
+            }
+          }
+          x = x + 4 + size;
+        }
+        if (e.method == STORED || e.method == DEFLATED) {
+          entries.put(new String(name, StandardCharsets.UTF_8), e);
+        }
+        p = p + 46 + nameLength + extraLength + commentLength;
+      }
+    }
+
+    private PreviousEntry find(String name) {
+      return entries.get(name);
+    }
+
+    /**
+     * @return the raw data for the entry, or null if it can't be read
+     */
+    private byte[] read(PreviousEntry e) {
+      try {
+        if (e.csize > LARGE) {
+          return null;
+        }
+        ByteBuffer h = read(e.offset, 30);
+        if (h.getInt(0) != LOC_SIG) {
+          return null;
+        }
+        long data = e.offset + 30 + (h.getShort(26) & 0xFFFF) + (h.getShort(28) & 0xFFFF);
+        return read(data, (int) e.csize).array();
+      } catch (IOException ex) {
+        return null;
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        if (channel != null) {
+          channel.close();
+        }
+      } catch (IOException e) {
+        // nothing
+      }
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records the phases of a build, and the steps for each resource within them, as nested
+ * spans, so that it's possible to see where the time goes (TimeTracker only has the total for
+ * each phase).
+ *
+ * Each span is a JDK Flight Recorder event (org.hl7.fhir.igtools.Phase), so a recording made
+ * with -XX:StartFlightRecording shows them, per thread, alongside everything else. With
+ * setChromeTrace(true), the spans are kept as well, and writeChromeTrace() writes them in the
+ * Chrome trace event format (for chrome://tracing, or https://ui.perfetto.dev).
+ *
+ * When there's no recording and no chrome trace, start() returns the same empty span every
+ * time, and does nothing else
+ */
+public class PhaseTracer {
+
+  @Name("org.hl7.fhir.igtools.Phase")
+  @Label("IG Publisher Phase")
+  @Category({"FHIR", "IG Publisher"})
+  @Description("A phase of the build, or a step for one resource within it")
+  @StackTrace(false)
+  public static class PhaseEvent extends Event {
+    @Label("Phase")
+    public String phase;
+
+    @Label("Detail")
+    public String detail;
+  }
+
+  public static class Span implements AutoCloseable {
+    private PhaseTracer tracer;
+    private String name;
+    private String detail;
+    private long start;
+    private PhaseEvent event;
+    private boolean ended;
+
+    private Span(PhaseTracer tracer, String name, String detail, PhaseEvent event) {
+      this.tracer = tracer;
+      this.name = name;
+      this.detail = detail;
+      this.event = event;
+      this.start = System.nanoTime();
+    }
+
+    public void end() {
+      if (tracer == null || ended) {
+        return;
+      }
+      ended = true;
+      long now = System.nanoTime();
+      if (event != null) {
+        event.commit();
+      }
+      tracer.ended(name, detail, start, now);
+    }
+
+    @Override
+    public void close() {
+      end();
+    }
+  }
+
+  private static class TraceEvent {
+    private String name;
+    private String detail;
+    private long thread;
+    private long start;
+    private long end;
+  }
+
+  private static final Span NONE = new Span(null, null, null, null);
+
+  private boolean chrome;
+  private long origin = System.nanoTime();
+  private ConcurrentLinkedQueue<TraceEvent> events = new ConcurrentLinkedQueue<>();
+  private Map<Long, String> threads = new LinkedHashMap<>();
+
+  public boolean isChromeTrace() {
+    return chrome;
+  }
+
+  /**
+   * Keep the spans, for writeChromeTrace()
+   */
+  public void setChromeTrace(boolean chrome) {
+    this.chrome = chrome;
+  }
+
+  /**
+   * True if spans are being recorded, so callers can skip working out a detail that won't be used
+   */
+  public boolean isEnabled() {
+    return chrome || new PhaseEvent().isEnabled();
+  }
+
+  public Span start(String name) {
+    return start(name, null);
+  }
+
+  /**
+   * @param detail what the step is for (e.g. the resource), or null for a phase
+   */
+  public Span start(String name, String detail) {
+    PhaseEvent event = new PhaseEvent();
+    boolean jfr = event.isEnabled();
+    if (!jfr && !chrome) {
+      return NONE;
+    }
+    if (jfr) {
+      event.phase = name;
+      event.detail = detail;
+      event.begin();
+    }
+    return new Span(this, name, detail, jfr ? event : null);
+  }
+
+  private void ended(String name, String detail, long start, long end) {
+    if (chrome) {
+      record(name, detail, start, end);
+    }
+  }
+
+  private void record(String name, String detail, long start, long end) {
+    TraceEvent e = new TraceEvent();
+    e.name = name;
+    e.detail = detail;
+    e.thread = Thread.currentThread().getId();
+    e.start = start;
+    e.end = end;
+    events.add(e);
+    synchronized (threads) {
+      if (!threads.containsKey(e.thread)) {
+        threads.put(e.thread, Thread.currentThread().getName());
+      }
+    }
+  }
+
+  public int getEventCount() {
+    return events.size();
+  }
+
+  /**
+   * Writes the spans recorded so far as a chrome trace: one complete ("X") event for each span,
+   * with the times in microseconds from when the tracer was created, and the thread names
+   */
+  public void writeChromeTrace(String filename) throws IOException {
+    List<TraceEvent> list = new ArrayList<>(events);
+    list.sort((e1, e2) -> e1.start != e2.start ? Long.compare(e1.start, e2.start) : Long.compare(e2.end, e1.end));
+    Map<Long, String> names;
+    synchronized (threads) {
+      names = new LinkedHashMap<>(threads);
+    }
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8))) {
+      w.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+      boolean first = true;
+      for (Long t : names.keySet()) {
+        first = comma(w, first);
+        w.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"+t+",\"args\":{\"name\":"+quote(names.get(t))+"}}");
+      }
+      for (TraceEvent e : list) {
+        first = comma(w, first);
+        w.write("{\"name\":"+quote(e.name)+",\"cat\":\"publisher\",\"ph\":\"X\",\"pid\":1,\"tid\":"+e.thread+
+            ",\"ts\":"+micros(e.start - origin)+",\"dur\":"+micros(e.end - e.start));
+        if (e.detail != null) {
+          w.write(",\"args\":{\"detail\":"+quote(e.detail)+"}");
+        }
+        w.write("}");
+      }
+      w.write("\n]}\n");
+    }
+  }
+
+  private static boolean comma(Writer w, boolean first) throws IOException {
+    if (!first) {
+      w.write(",\n");
+    }
+    return false;
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%d.%03d", nanos / 1000, nanos % 1000);
+  }
+
+  private static String quote(String s) {
+    StringBuilder b = new StringBuilder();
+    b.append('"');
+    for (char c : s.toCharArray()) {
+      switch (c) {
+      case '"': b.append("\\\""); break;
+      case '\\': b.append("\\\\"); break;
+      case '\n': b.append("\\n"); break;
+      case '\r': b.append("\\r"); break;
+      case '\t': b.append("\\t"); break;
+      default:
+        if (c < 0x20) {
+          b.append(String.format("\\u%04x", (int) c));
+        } else {
+          b.append(c);
+        }
+      }
+    }
+    b.append('"');
+    return b.toString();
+  }
+}
@@ -40,6 +40,7 @@ import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -52,6 +53,8 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -60,6 +63,13 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -97,14 +107,20 @@ import org.hl7.fhir.exceptions.FHIRFormatError;
 import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.igtools.publisher.FetchedFile.FetchedBundleType;
 import org.hl7.fhir.igtools.publisher.IFetchFile.FetchState;
+import org.hl7.fhir.igtools.publisher.ResourceIndex.BundleEntryReference;
+import org.hl7.fhir.igtools.publisher.SuppressedMessageInformation.SuppressedMessage;
 import org.hl7.fhir.igtools.publisher.comparators.IpaComparator;
 import org.hl7.fhir.igtools.publisher.comparators.PreviousVersionComparator;
 import org.hl7.fhir.igtools.publisher.realm.NullRealmBusinessRules;
 import org.hl7.fhir.igtools.publisher.realm.RealmBusinessRules;
 import org.hl7.fhir.igtools.publisher.realm.USRealmBusinessRules;
+import org.hl7.fhir.igtools.publisher.site.JekyllSupervisor;
+import org.hl7.fhir.igtools.publisher.site.SiteDiff;
+import org.hl7.fhir.igtools.publisher.site.SiteRenderer;
 import org.hl7.fhir.igtools.publisher.xig.XIGGenerator;
 import org.hl7.fhir.igtools.renderers.CanonicalRenderer;
 import org.hl7.fhir.igtools.renderers.CodeSystemRenderer;
+import org.hl7.fhir.igtools.renderers.CrossReferenceIndex;
 import org.hl7.fhir.igtools.renderers.CrossViewRenderer;
 import org.hl7.fhir.igtools.renderers.DependencyRenderer;
 import org.hl7.fhir.igtools.renderers.HTAAnalysisRenderer;
@@ -620,11 +636,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   public static final int FMM_DERIVATION_MAX = 5;
 
   public enum GenerationTool {
-    Jekyll
+    Jekyll, Liquid
   }
 
   private static final String IG_NAME = "!ig!";
 
+  private static final String PREVIOUS_ZIP = "_full-ig.previous.zip"; // in temp; the _ keeps it out of the site
   private static final String REDIRECT_SOURCE = "<html>\r\n<head>\r\n<meta http-equiv=\"Refresh\" content=\"0; url=site/index.html\"/>\r\n</head>\r\n"+
        "<body>\r\n<p>See here: <a href=\"site/index.html\">this link</a>.</p>\r\n</body>\r\n</html>\r\n";
 
@@ -644,6 +661,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private String txServer;
   private String igPack = "";
   private boolean watch;
+  private boolean watchPoll;
   private boolean debug;
   private boolean isChild;
   private boolean cacheVersion;
@@ -655,7 +673,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private Map<String,String> countryCodeFor2Letter = null;
   private Map<String,String> shortCountryCode = null;
   private Map<String,String> stateNameForCode = null;
-  private Map<String, Map<String, ElementDefinition>> sdMapCache = new HashMap<>();
+  private Map<String, Map<String, ElementDefinition>> sdMapCache = new ConcurrentHashMap<>();
+  private CrossReferenceIndex crossReferences; // built once the conformance resources are loaded
   private List<String> ignoreFlags = null;
 
   private Publisher childPublisher = null;
@@ -702,6 +721,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private Map<String, FetchedResource> canonicalResources = new HashMap<String, FetchedResource>();
   private List<FetchedFile> fileList = new ArrayList<FetchedFile>();
   private List<FetchedFile> changeList = new ArrayList<FetchedFile>();
+  private ResourceIndex resourceIndex = new ResourceIndex(fileList);
+  private FileDependencyGraph dependencyGraph;
+  private Map<String, WrapperTemplate> wrapperTemplates = new ConcurrentHashMap<>(); // by path
   private List<String> fileNames = new ArrayList<String>();
   private Map<String, FetchedFile> relativeNames = new HashMap<String, FetchedFile>();
   private Set<String> bndIds = new HashSet<String>();
@@ -711,10 +733,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
   private Calendar execTime = Calendar.getInstance();
   private Set<String> otherFilesStartup = new HashSet<String>();
-  private Set<String> otherFilesRun = new HashSet<String>();
+  private Set<String> otherFilesRun = ConcurrentHashMap.newKeySet();
   private Set<String> regenList = new HashSet<String>();
   private StringBuilder filelog;
-  private Set<String> allOutputs = new HashSet<String>();
+  private Set<String> allOutputs = ConcurrentHashMap.newKeySet();
+  private Set<String> outputCollisions = new TreeSet<>(); // found on the worker threads, and reported once they're done
+  private OutputSink outputSink; // made in execute(), once the number of threads is known
   private Set<FetchedResource> examples = new HashSet<FetchedResource>();
   private Set<FetchedResource> testscripts = new HashSet<FetchedResource>();
   private HashMap<String, FetchedResource> resources = new HashMap<String, FetchedResource>();
@@ -742,6 +766,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private String adHocTmpDir;
 
   private RenderingContext rc;
+  private ThreadLocal<RenderingContext> workerRc = new ThreadLocal<>();
+  private OrderedUpdates sharedUpdates = new OrderedUpdates();
 
   private List<ContactDetail> contacts;
   private List<UsageContext> contexts;
@@ -860,6 +886,18 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean noValidation;
   private boolean noGenerate;
+  private int threads = 1; // worker threads for the phases that can run in parallel. 1 = the old sequential behaviour
+  private boolean coldBuild; // ignore anything in the build cache
+  private boolean liquidSite; // render the site in process instead of running jekyll
+  private boolean liquidCompare; // run jekyll, then render in process too, and report the differences
+  private SiteRenderer siteRenderer; // kept across watch cycles so only the affected pages are rendered again
+  private boolean jekyllWatch; // in watch mode, keep one jekyll running in its own watch mode
+  private JekyllSupervisor jekyllSupervisor;
+  private long changeSeen; // when the watch saw the change that started this cycle
+  private PhaseTracer tracer = new PhaseTracer(); // spans for the phases and each resource, for JFR and -trace
+  private BuildCache buildCache = new BuildCache();
+  private String buildCacheKey;
+  private String validationCacheScope;
 
   private String fmtDateTime = "yyyy-MM-dd HH:mm:ssZZZ";
   private String fmtDate = "yyyy-MM-dd";
@@ -902,6 +940,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   public void execute() throws Exception {
     tt = new TimeTracker();
+    outputSink = new OutputSink(threads, 256);
     initialize();
     if (isBuildingTemplate) {
       packageTemplate();
@@ -912,16 +951,25 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       } catch (Exception e) {
         recordOutcome(e, null);
         throw e;
+      } finally {
+        writeTrace();
       }
 
       if (watch) {
         firstExecution = false;
-        log("Watching for changes on a 5sec cycle");
+        checkDependencies();
+        if (!watchPoll && fetcher.startWatching(watchedDirs(), Collections.singletonList(rootDir))) {
+          log("Watching for changes");
+        } else {
+          log("Watching for changes on a 5sec cycle");
+        }
         while (watch) { // terminated externally
-          Thread.sleep(5000);
+          fetcher.waitForChanges(5000);
+          changeSeen = System.currentTimeMillis();
           if (load()) {
             log("Processing changes to "+Integer.toString(changeList.size())+(changeList.size() == 1 ? " file" : " files")+" @ "+genTime());
             long startTime = System.nanoTime();
+            reloadAffectedFiles();
             loadConformance();
             generateNarratives();
             checkDependencies();
@@ -940,9 +988,11 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
                     noNarrativeResources, noValidateResources, noValidation, noGenerate, dependentIgFinder);
             log("Built. "+ DurationUtil.presentDuration(endTime - startTime)+". Validation output in "+val.generate(sourceIg.getName(), errors, fileList, Utilities.path(destDir != null ? destDir : outputDir, "qa.html"), suppressedMessages));
             recordOutcome(null, val);
+            writeTrace();
             log("Finished");
           }
         }
+        outputSink.close();
       } else {
         log("Done"+(!publishing && mode != IGBuildMode.AUTOBUILD ? ". This IG has been built using the 'normal' process for local use. If building to host on an an external website, use the process documented here: https://confluence.hl7.org/display/FHIR/Maintaining+a+FHIR+IG+Publication)" : ""));
       }
@@ -960,6 +1010,21 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
   }
 
+  /**
+   * With -trace, writes the spans recorded so far (in watch mode, for all the cycles)
+   */
+  private void writeTrace() {
+    if (tracer.isChromeTrace() && outputDir != null) {
+      try {
+        String fn = Utilities.path(destDir != null ? destDir : outputDir, "qa-trace.json");
+        tracer.writeChromeTrace(fn);
+        log("Trace written to "+fn);
+      } catch (IOException e) {
+        log("Unable to write the trace: "+e.getMessage());
+      }
+    }
+  }
+
   private String renderGlobals() {
     if (sourceIg.hasGlobal()) {
       StringBuilder b = new StringBuilder();
@@ -1014,11 +1079,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     String json = org.hl7.fhir.utilities.json.parser.JsonParser.compose(qaJson, true);
     TextFile.stringToFile(json, Utilities.path(outputDir, "qa.json"), false);
 
-    ZipGenerator zip = new ZipGenerator(Utilities.path(tempDir, "full-ig.zip"));
-    zip.addFolder(outputDir, "site/", false);
-    zip.addFileSource("index.html", REDIRECT_SOURCE, false);
-    zip.close();
-    Utilities.copyFile(Utilities.path(tempDir, "full-ig.zip"), Utilities.path(outputDir, "full-ig.zip"));
+    buildFullZip();
 
     // registering the package locally
     log("Finished. "+DurationUtil.presentDuration(endTime - startTime)+". Output in "+outputDir);
@@ -1071,6 +1132,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   public void createIg() throws Exception, IOException, EOperationOutcome, FHIRException {
     try {
+      startBuildCache();
       TimeTracker.Session tts = tt.start("loading");
       load();
       tts.end();
@@ -1118,6 +1180,46 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
   }
 
+  /**
+   * Everything that any cached build product depends on, other than the IG content itself
+   */
+  private void startBuildCache() throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append(IGVersionUtil.getVersion()+"|"+version+"|"+txServer+"|");
+    for (NpmPackage npm : npmList) {
+      b.append(npm.name()+"#"+npm.version()+"@"+(npm.getNpm().has("date") ? npm.getNpm().asString("date") : "")+"|");
+    }
+    b.append(templatePck+"|");
+    if (templateManager != null) {
+      for (String t : templateManager.listTemplateVersions()) {
+        b.append(t+"|");
+      }
+    }
+    String tf = Utilities.path(rootDir, "template");
+    if (new File(tf).exists()) {
+      for (File f : FileUtils.listFiles(new File(tf), null, true)) {
+        b.append(f.getAbsolutePath()+"="+BuildCache.digest(TextFile.fileToBytes(f.getAbsolutePath()))+"|");
+      }
+    }
+    buildCacheKey = BuildCache.digest(b.toString());
+    buildCache.start(tempDir, buildCacheKey, coldBuild);
+  }
+
+  /**
+   * Empties temp, apart from the build cache, and the files that were generated last time 
+   * and haven't been touched since (unless this is a cold build). Writing those again with
+   * the same content is skipped; the ones that aren't written again are removed once the 
+   * outputs have been generated
+   */
+  private void clearTempDir() throws IOException {
+    if (coldBuild) {
+      Utilities.clearDirectory(tempDir, BuildCache.FOLDER_NAME);
+    } else {
+      outputSink.loadManifest(Utilities.path(tempDir, BuildCache.FOLDER_NAME, OutputSink.MANIFEST_NAME));
+      outputSink.clearExceptKnown(tempDir, BuildCache.FOLDER_NAME);
+    }
+  }
+
   private Set<String> scanForR5Extensions() {
     XVerExtensionManager xver = new XVerExtensionManager(context);
     Set<String> set = new HashSet<>();
@@ -1341,50 +1443,26 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     
     String[] parts = url.split("\\/");
     if (parts.length >= 2 && !Utilities.startsWithInList(url, "urn:uuid:", "urn:oid:", "cid:")) {
-      for (FetchedFile f : fileList) {
-        for (FetchedResource r : f.getResources()) {
-          if (r.getElement() != null && r.fhirType().equals(parts[0]) && r.getId().equals(parts[1])) {
-            String path = igpkp.getLinkFor(r, true);
-            return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
-          }
-          if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
-            if (url.equals(((CanonicalResource) r.getResource()).getUrl())) {
-              String path = igpkp.getLinkFor(r, true);
-              return new ResourceWithReference(path, new DirectWrappers.ResourceWrapperDirect(context, r.getResource()));            
-            }
-          }
-        }
+      FetchedResource r = resourceIndex.getByTypeAndIdOrUrl(parts[0], parts[1], url);
+      if (r != null && r.getElement() != null && r.fhirType().equals(parts[0]) && r.getId().equals(parts[1])) {
+        String path = igpkp.getLinkFor(r, true);
+        return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
       }
-      for (FetchedFile f : fileList) {
-        for (FetchedResource r : f.getResources()) {
-          if (r.fhirType().equals("Bundle")) {
-            List<Element> entries = r.getElement().getChildrenByName("entry");
-            for (Element entry : entries) {
-              Element res = entry.getNamedChild("resource");
-              if (res != null && res.fhirType().equals(parts[0]) && res.hasChild("id") && res.getNamedChildValue("id").equals(parts[1])) {
-                String path = igpkp.getLinkFor(r, true)+"#"+parts[0]+"_"+parts[1];
-                return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
-              }
-            }
-          }
-        }
+      if (r != null) {
+        String path = igpkp.getLinkFor(r, true);
+        return new ResourceWithReference(path, new DirectWrappers.ResourceWrapperDirect(context, r.getResource()));            
       }
-    }
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.fhirType().equals("Bundle")) {
-          List<Element> entries = r.getElement().getChildrenByName("entry");
-          for (Element entry : entries) {
-            Element res = entry.getNamedChild("resource");
-            String fu = entry.getNamedChildValue("fullUrl");
-            if (res != null && fu != null && fu.equals(url)) {
-              String path = igpkp.getLinkFor(r, true)+"#"+fu.replace(":", "-");
-              return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
-            }
-          }
-        }
+      BundleEntryReference be = resourceIndex.getBundleEntry(parts[0], parts[1]);
+      if (be != null) {
+        String path = igpkp.getLinkFor(be.getBundle(), true)+"#"+parts[0]+"_"+parts[1];
+        return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, be.getBundle().getElement()));
       }
     }
+    BundleEntryReference be = resourceIndex.getBundleEntryByFullUrl(url);
+    if (be != null) {
+      String path = igpkp.getLinkFor(be.getBundle(), true)+"#"+url.replace(":", "-");
+      return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, be.getBundle().getElement()));
+    }
     
     for (SpecMapManager sp : specMaps) {
       String fp = Utilities.isAbsoluteUrl(url) ? url : sp.getBase()+"/"+url;
@@ -1867,67 +1945,329 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private void generateNarratives() throws Exception {
     Session tts = tt.start("narrative generation");
-    logDebugMessage(LogCategory.PROGRESS, "gen narratives");
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {        
-        if (r.getExampleUri()==null || genExampleNarratives) {
-          if (!passesNarrativeFilter(r)) {
-            noNarrativeResources.add(r);
-            logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId()+" suppressed");
+    PhaseTracer.Span span = tracer.start("narratives");
+    try {
+      logDebugMessage(LogCategory.PROGRESS, "gen narratives");
+      if (threads > 1) {
+        generateNarrativesInParallel();
+      } else {
+        for (FetchedFile f : fileList) {
+          generateNarratives(f, rc, noNarrativeResources, null);
+        }
+      }
+    } finally {
+      span.end();
+    }
+    tts.end();
+  }
+
+  /**
+   * The narratives for each file are generated on a worker thread, and each worker has its own 
+   * rendering context (with its own profile utilities). The workers read the resources of 
+   * other files when they resolve references, so each narrative is generated in a copy of 
+   * the resource, and the resources are only changed once all the workers are done. The 
+   * messages from the knowledge provider and the suppressed resources are collected, and 
+   * applied in file order, as if the files had been done one after another
+   */
+  private void generateNarrativesInParallel() throws Exception {
+    BlockingQueue<RenderWorker> workers = new ArrayBlockingQueue<>(threads);
+    for (int i = 0; i < threads; i++) {
+      workers.add(new RenderWorker(i+1));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<NarrativeTask>> futures = new ArrayList<>();
+    try {
+      for (FetchedFile f : fileList) {
+        futures.add(executor.submit(() -> {
+          RenderWorker worker = workers.take();
+          NarrativeTask task = new NarrativeTask();
+          Session wts;
+          synchronized (tt) {
+            wts = tt.start("narrative generation [thread "+worker.id+"]");
+          }
+          igpkp.deferMessages();
+          try {
+            generateNarratives(f, worker.rc, task.suppressed, task.updates);
+          } finally {
+            task.messages = igpkp.takeDeferredMessages();
+            synchronized (tt) {
+              wts.end();
+            }
+            workers.add(worker);
+          }
+          return task;
+        }));
+      }
+      List<NarrativeTask> tasks = new ArrayList<>();
+      for (Future<NarrativeTask> future : futures) {
+        NarrativeTask task;
+        try {
+          task = future.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw new Exception(e.getCause());
+        }
+        noNarrativeResources.addAll(task.suppressed);
+        igpkp.reportDeferredMessages(task.messages);
+        tasks.add(task);
+      }
+      // the other workers may still be reading the resources until they're all done
+      for (NarrativeTask task : tasks) {
+        for (Runnable update : task.updates) {
+          update.run();
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private class RenderWorker {
+    private int id;
+    private RenderingContext rc;
+
+    private RenderWorker(int id) {
+      this.id = id;
+      rc = Publisher.this.rc.copy();
+      rc.setProfileUtilities(new ProfileUtilities(context, new ArrayList<ValidationMessage>(), igpkp));
+    }
+  }
+
+  /**
+   * The outputs for each changed file are generated on a worker thread, with the worker's 
+   * rendering context (see rc()). The files write to their own outputs; changes to shared 
+   * state (the package, the expansions, the all-profiles spreadsheets) and the messages 
+   * from the knowledge provider are collected, and applied in file order, so the package 
+   * and the other outputs are the same as when the files are done one after another. 
+   * Files that generate the same output are reported once all the files are done, so the 
+   * report doesn't depend on which thread got there first
+   */
+  private void generateOutputsInParallel(boolean html) throws Exception {
+    BlockingQueue<RenderWorker> workers = new ArrayBlockingQueue<>(threads);
+    for (int i = 0; i < threads; i++) {
+      workers.add(new RenderWorker(i+1));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<OutputTask>> futures = new ArrayList<>();
+    try {
+      for (FetchedFile f : changeList) {
+        futures.add(executor.submit(() -> {
+          RenderWorker worker = workers.take();
+          OutputTask task = new OutputTask();
+          Session wts;
+          synchronized (tt) {
+            wts = tt.start((html ? "html" : "native")+" output generation [thread "+worker.id+"]");
+          }
+          igpkp.deferMessages();
+          sharedUpdates.defer();
+          workerRc.set(worker.rc);
+          try {
+            if (html) {
+              generateHtmlOutputs(f, false);
+            } else {
+              generateNativeOutputs(f, false);
+            }
+          } finally {
+            workerRc.remove();
+            task.updates = sharedUpdates.take();
+            task.messages = igpkp.takeDeferredMessages();
+            synchronized (tt) {
+              wts.end();
+            }
+            workers.add(worker);
+          }
+          return task;
+        }));
+      }
+      for (Future<OutputTask> future : futures) {
+        OutputTask task;
+        try {
+          task = future.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+          }
+          throw new Exception(e.getCause());
+        }
+        sharedUpdates.apply(task.updates);
+        igpkp.reportDeferredMessages(task.messages);
+      }
+      checkOutputCollisions();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void checkOutputCollisions() {
+    if (!outputCollisions.isEmpty()) {
+      String paths = String.join(", ", outputCollisions);
+      boolean one = outputCollisions.size() == 1;
+      outputCollisions.clear();
+      throw new Error("Error generating build: the file"+(one ? " " : "s ")+paths+(one ? " is" : " are")+" being generated more than once (may differ by case)");
+    }
+  }
+
+  private class OutputTask {
+    private List<OrderedUpdates.Update> updates;
+    private List<Runnable> messages;
+  }
+
+  /**
+   * The rendering context to use for the current thread: a worker's own copy when the 
+   * outputs are being generated in parallel
+   */
+  private RenderingContext rc() {
+    RenderingContext wrc = workerRc.get();
+    return wrc == null ? rc : wrc;
+  }
+
+  private class NarrativeTask {
+    private List<FetchedResource> suppressed = new ArrayList<>();
+    private List<Runnable> updates = new ArrayList<>();
+    private List<Runnable> messages;
+  }
+
+  /**
+   * @param updates null to generate the narratives in the resources themselves. Otherwise, the 
+   *   narratives are generated in copies of the resources, and the changes to the resources 
+   *   are added to the list, so that the resources aren't changed while other threads are 
+   *   reading them (to resolve references)
+   */
+  private void generateNarratives(FetchedFile f, RenderingContext wrc, List<FetchedResource> suppressed, List<Runnable> updates) throws Exception {
+    PhaseTracer.Span span = tracer.start("narrative", f.getName());
+    try {
+      doGenerateNarratives(f, wrc, suppressed, updates);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doGenerateNarratives(FetchedFile f, RenderingContext wrc, List<FetchedResource> suppressed, List<Runnable> updates) throws Exception {
+    for (FetchedResource r : f.getResources()) {        
+      if (r.getExampleUri()==null || genExampleNarratives) {
+        if (!passesNarrativeFilter(r)) {
+          suppressed.add(r);
+          logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId()+" suppressed");
+          update(updates, () -> {
             if (r.getResource() != null && r.getResource() instanceof DomainResource) {
               ((DomainResource) r.getResource()).setText(null);
             }
             r.getElement().removeChild("text");
-          } else {
-            logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId());
-            if (r.getResource() != null && isConvertableResource(r.getResource().fhirType())) {
-              boolean regen = false;
-              RenderingContext lrc = rc.copy().setDefinitionsTarget(igpkp.getDefinitionsName(r));
-              lrc.setRules(GenerationRules.VALID_RESOURCE);
-              lrc.setDefinitionsTarget(igpkp.getDefinitionsName(r));
-              if (r.getResource() instanceof DomainResource && !(((DomainResource) r.getResource()).hasText() && ((DomainResource) r.getResource()).getText().hasDiv())) {
-                regen = true;
-                RendererFactory.factory(r.getResource(), lrc).render((DomainResource) r.getResource());
-              } else if (r.getResource() instanceof Bundle) {
-                regen = true;
-                new BundleRenderer(lrc).render((Bundle) r.getResource());
-              } else if (r.getResource() instanceof Parameters) {
-                regen = true;
-                Parameters p = (Parameters) r.getResource();
-                new ParametersRenderer(lrc, new ResourceContext(null, p)).render(p);
-              } else if (r.getResource() instanceof DomainResource) {
-                checkExistingNarrative(f, r, ((DomainResource) r.getResource()).getText().getDiv());
-              }
-              if (regen) {
-                Element e = convertToElement(r, r.getResource());
-                e.copyUserData(r.getElement());
-                r.setElement(e);
-              }
-            } else {
-              RenderingContext lrc = rc.copy().setParser(getTypeLoader(f,r));
-              lrc.setRules(GenerationRules.VALID_RESOURCE);
-              if (isDomainResource(r) && !hasNarrative(r.getElement())) {
-                ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, r.getElement());
-                RendererFactory.factory(rw, lrc).setRcontext(new ResourceContext(null, rw)).render(rw);
-              } else if (r.fhirType().equals("Bundle")) {
-                for (Element e : r.getElement().getChildrenByName("entry")) {
-                  Element res = e.getNamedChild("resource");
-                  if (res!=null && "http://hl7.org/fhir/StructureDefinition/DomainResource".equals(res.getProperty().getStructure().getBaseDefinition()) && !hasNarrative(res)) {
-                    ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, res);
-                    RendererFactory.factory(rw, lrc, new ResourceContext(null, r.getElement())).render(rw);
+          });
+        } else {
+          logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId());
+          if (r.getResource() != null && isConvertableResource(r.getResource().fhirType())) {
+            boolean regen = false;
+            Resource res = updates == null ? r.getResource() : r.getResource().copy();
+            RenderingContext lrc = wrc.copy().setDefinitionsTarget(igpkp.getDefinitionsName(r));
+            lrc.setRules(GenerationRules.VALID_RESOURCE);
+            lrc.setDefinitionsTarget(igpkp.getDefinitionsName(r));
+            if (res instanceof DomainResource && !(((DomainResource) res).hasText() && ((DomainResource) res).getText().hasDiv())) {
+              regen = true;
+              RendererFactory.factory(res, lrc).render((DomainResource) res);
+            } else if (res instanceof Bundle) {
+              regen = true;
+              new BundleRenderer(lrc).render((Bundle) res);
+            } else if (res instanceof Parameters) {
+              regen = true;
+              Parameters p = (Parameters) res;
+              new ParametersRenderer(lrc, new ResourceContext(null, p)).render(p);
+            } else if (res instanceof DomainResource) {
+              checkExistingNarrative(f, r, ((DomainResource) res).getText().getDiv());
+            }
+            if (regen) {
+              Element e = convertToElement(r, res);
+              e.copyUserData(r.getElement());
+              update(updates, () -> {
+                if (res != r.getResource()) {
+                  // the resource may be in the context, so it keeps its identity
+                  if (res instanceof DomainResource) {
+                    ((DomainResource) r.getResource()).setText(((DomainResource) res).getText());
+                  } else {
+                    r.setResource(res);
                   }
                 }
-              } else if (isDomainResource(r) && hasNarrative(r.getElement())) {
-                checkExistingNarrative(f, r, r.getElement().getNamedChild("text").getNamedChild("div").getXhtml());
+                r.setElement(e);
+              });
+            }
+          } else {
+            Element el = r.getElement();
+            if (updates != null) {
+              el = (Element) r.getElement().copy();
+              el.copyUserData(r.getElement());
+            }
+            RenderingContext lrc = wrc.copy().setParser(getTypeLoader(f,r));
+            lrc.setRules(GenerationRules.VALID_RESOURCE);
+            if (isDomainResource(r) && !hasNarrative(el)) {
+              ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, el);
+              RendererFactory.factory(rw, lrc).setRcontext(new ResourceContext(null, rw)).render(rw);
+            } else if (r.fhirType().equals("Bundle")) {
+              for (Element e : el.getChildrenByName("entry")) {
+                Element res = e.getNamedChild("resource");
+                if (res!=null && "http://hl7.org/fhir/StructureDefinition/DomainResource".equals(res.getProperty().getStructure().getBaseDefinition()) && !hasNarrative(res)) {
+                  ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, res);
+                  RendererFactory.factory(rw, lrc, new ResourceContext(null, el)).render(rw);
+                }
               }
+            } else if (isDomainResource(r) && hasNarrative(el)) {
+              checkExistingNarrative(f, r, el.getNamedChild("text").getNamedChild("div").getXhtml());
+            }
+            if (el != r.getElement()) {
+              Element copy = el;
+              updates.add(() -> copyNarratives(copy, r.getElement()));
             }
           }
-        } else {
-          logDebugMessage(LogCategory.PROGRESS, "skipped narrative for "+f.getName()+" : "+r.getId());
         }
+      } else {
+        logDebugMessage(LogCategory.PROGRESS, "skipped narrative for "+f.getName()+" : "+r.getId());
+      }
+    }
+  }
+
+  private void update(List<Runnable> updates, Runnable update) {
+    if (updates == null) {
+      update.run();
+    } else {
+      updates.add(update);
+    }
+  }
+
+  /**
+   * Moves the narratives generated in a copy of a resource (and of the resources in its 
+   * entries, if it's a bundle) to the resource. The rest of the copy is the same as the resource
+   */
+  private void copyNarratives(Element src, Element dst) {
+    copyNarrative(src, dst);
+    List<Element> srcEntries = src.getChildrenByName("entry");
+    List<Element> dstEntries = dst.getChildrenByName("entry");
+    for (int i = 0; i < srcEntries.size() && i < dstEntries.size(); i++) {
+      Element srcRes = srcEntries.get(i).getNamedChild("resource");
+      Element dstRes = dstEntries.get(i).getNamedChild("resource");
+      if (srcRes != null && dstRes != null) {
+        copyNarrative(srcRes, dstRes);
+      }
+    }
+  }
+
+  /**
+   * The renderer fills in a text that has no div, so the resource's text is replaced 
+   * whenever the copy has a narrative, not just when the resource has no text
+   */
+  private void copyNarrative(Element src, Element dst) {
+    Element text = src.getNamedChild("text");
+    if (text != null && text.hasChild("div")) {
+      Element old = dst.getNamedChild("text");
+      if (old != null) {
+        dst.getChildren().set(dst.getChildren().indexOf(old), text);
+      } else {
+        dst.getChildren().add(src.getChildren().indexOf(text), text);
       }
     }
-    tts.end();
   }
 
   private boolean isDomainResource(FetchedResource r) {
@@ -2042,70 +2382,59 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return new SimpleDateFormat("dd/MM/yyyy", new Locale("en", "US")).format(execTime.getTime());
   }
 
-  private void checkDependencies() {
-    // first, we load all the direct dependency lists
-    for (FetchedFile f : fileList) {
-      if (f.getDependencies() == null) {
-        loadDependencyList(f);
+  /**
+   * The directories that hold the IG source. The generated FML folder is left out, 
+   * since the publisher writes to it itself
+   */
+  private List<String> watchedDirs() throws IOException {
+    List<String> dirs = new ArrayList<>();
+    List<String> candidates = new ArrayList<>();
+    candidates.add(Utilities.path(rootDir, "input"));
+    candidates.add(Utilities.path(rootDir, "fsh"));
+    candidates.addAll(resourceDirs);
+    candidates.addAll(pagesDirs);
+    for (String d : candidates) {
+      if (new File(d).isDirectory() && !d.equals(fmlDir) && !dirs.contains(d)) {
+        dirs.add(d);
       }
     }
-
-    // now, we keep adding to the change list till there's no change
-    boolean changed;
-    do {
-      changed = false;
-      for (FetchedFile f : fileList) {
-        if (!changeList.contains(f)) {
-          boolean dep = false;
-          for (FetchedFile d : f.getDependencies())
-            if (changeList.contains(d))
-              dep = true;
-          if (dep) {
-            changeList.add(f);
-            changed = true;
-          }
-        }
-      }
-    } while (changed);
+    return dirs;
   }
 
-  private void loadDependencyList(FetchedFile f) {
-    f.setDependencies(new ArrayList<FetchedFile>());
-    for (FetchedResource r : f.getResources()) {
-      if (r.fhirType().equals("ValueSet"))
-        loadValueSetDependencies(f, r);
-      else if (r.fhirType().equals("StructureDefinition"))
-        loadProfileDependencies(f, r);
-      else
-        ; // all other resource types don't have dependencies that we care about for rendering purposes
+  /**
+   * Work out which unchanged files use the files that have changed or been deleted, so 
+   * that they get rebuilt too. This is done straight after loading, before anything else:
+   * their narratives, snapshots and validation depend on what they use, so they are 
+   * dropped and loaded again from their source, and join the change list
+   */
+  private void reloadAffectedFiles() throws Exception {
+    List<FetchedFile> affected = dependencyGraph == null ? new ArrayList<>() : dependencyGraph.findAffected(fileList, changeList);
+    if (affected.isEmpty()) {
+      return;
     }
-  }
-
-  private void loadValueSetDependencies(FetchedFile f, FetchedResource r) {
-    ValueSet vs = (ValueSet) r.getResource();
-    for (ConceptSetComponent cc : vs.getCompose().getInclude()) {
-      for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
-      }
+    for (FetchedFile f : affected) {
+      logDebugMessage(LogCategory.PROGRESS, "rebuild "+f.getName()+": "+dependencyGraph.getReason(f));
     }
-    for (ConceptSetComponent cc : vs.getCompose().getExclude()) {
-      for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
+    log("Also rebuilding "+Integer.toString(affected.size())+(affected.size() == 1 ? " file" : " files")+" that depend on the changes");
+    Set<FetchedFile> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+    dropped.addAll(affected);
+    altMap.values().removeIf(dropped::contains);
+    List<FetchedFile> changed = new ArrayList<>(changeList);
+    load(); // the files that changed are unchanged now, so only the dropped ones are parsed again
+    for (FetchedFile f : changed) {
+      if (!changeList.contains(f)) {
+        changeList.add(f);
       }
     }
-    for (ConceptSetComponent vsc : vs.getCompose().getInclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
+  }
+
+  private void checkDependencies() throws IOException {
+    if (dependencyGraph == null) {
+      dependencyGraph = new FileDependencyGraph(igpkp.getCanonical());
     }
-    for (ConceptSetComponent vsc : vs.getCompose().getExclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
+    dependencyGraph.update(fileList, changeList);
+    if (debug) {
+      dependencyGraph.dump(fileList, Utilities.path(tempDir, "file-dependencies.txt"));
     }
   }
 
@@ -2117,14 +2446,6 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return null;
   }
 
-  
-  private FetchedFile getFileForUri(String uri) {
-    for (FetchedFile f : fileList) {
-      if (getResourceForUri(f, uri) != null)
-        return f;
-    }
-    return null;
-  }
 
   private FetchedResource getResourceForUri(FetchedFile f, String uri) {
     for (FetchedResource r : f.getResources()) {
@@ -2163,13 +2484,6 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return null;
   }
 
-  private void loadProfileDependencies(FetchedFile f, FetchedResource r) {
-    StructureDefinition sd = (StructureDefinition) r.getResource();
-    FetchedFile fi = getFileForUri(sd.getBaseDefinition());
-    if (fi != null)
-      f.getDependencies().add(fi);
-  }
-
   private boolean bool(JsonObject obj, String name) throws Exception {
     if (!obj.has(name))
       return false;
@@ -2482,7 +2796,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     sourceIg = template.onLoadEvent(sourceIg, messages);
     checkOutcomes(messages);
     // ok, loaded. Now we start loading settings out of the IG
-    tool = GenerationTool.Jekyll;
+    tool = liquidSite ? GenerationTool.Liquid : GenerationTool.Jekyll;
     version = processVersion(sourceIg.getFhirVersion().get(0).asStringValue()); // todo: support multiple versions
 
     if (!VersionUtilities.isSupportedVersion(version)) {
@@ -2723,11 +3037,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     pagesDirs.removeAll(missingDirs);
 
     logDebugMessage(LogCategory.INIT, "Temp: "+tempDir);
-    Utilities.clearDirectory(tempDir);
+    clearTempDir();
     forceDir(Utilities.path(tempDir, "_includes"));
     forceDir(Utilities.path(tempDir, "_data"));
     logDebugMessage(LogCategory.INIT, "Output: "+outputDir);
     forceDir(outputDir);
+    keepPreviousZip();
     Utilities.clearDirectory(outputDir);
     if (qaDir != null) {
       logDebugMessage(LogCategory.INIT, "QA Dir: "+qaDir);
@@ -2825,6 +3140,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     inspector.getManual().add("qa-tx.html");
     inspector.getExemptHtmlPatterns().addAll(exemptHtmlPatterns);
     inspector.setPcm(pcm);
+    inspector.setThreads(threads);
+    fetcher.setThreads(threads);
     
     int i = 0;
     for (ImplementationGuideDependsOnComponent dep : sourceIg.getDependsOn()) {
@@ -2867,7 +3184,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     validator.setShowMessagesFromReferences(showReferenceMessages);
     validator.getExtensionDomains().addAll(extensionDomains);
     validator.getExtensionDomains().add(ToolingExtensions.EXT_PRIVATE_BASE);
-    validationFetcher = new ValidationServices(context, igpkp, fileList, npmList, bundleReferencesResolve);
+    validationFetcher = new ValidationServices(context, igpkp, resourceIndex, npmList, bundleReferencesResolve);
     validator.setFetcher(validationFetcher);
     validator.setPolicyAdvisor(validationFetcher);
     validator.setTracker(this);
@@ -3055,9 +3372,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       genExampleNarratives = configuration.asBoolean("exampleNarratives");
     }
 
-    if (configuration.has("tool") && !"jekyll".equals(str(configuration, "tool")))
-      throw new Exception("Error: At present, configuration file must include a \"tool\" property with a value of 'jekyll'");
-    tool = GenerationTool.Jekyll;
+    if (configuration.has("tool") && !"jekyll".equals(str(configuration, "tool")) && !"liquid".equals(str(configuration, "tool")))
+      throw new Exception("Error: At present, configuration file must include a \"tool\" property with a value of 'jekyll' or 'liquid'");
+    tool = liquidSite || "liquid".equals(str(configuration, "tool")) ? GenerationTool.Liquid : GenerationTool.Jekyll;
     version = ostr(configuration, "version");
     if (Utilities.noString(version))
       version = Constants.VERSION;
@@ -3160,7 +3477,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       checkDir(s);
     }
     logDebugMessage(LogCategory.INIT, "Temp: "+tempDir);
-    Utilities.clearDirectory(tempDir);
+    clearTempDir();
     forceDir(tempDir);
     forceDir(Utilities.path(tempDir, "_includes"));
     forceDir(Utilities.path(tempDir, "_data"));
@@ -3170,6 +3487,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     logDebugMessage(LogCategory.INIT, "Output: "+outputDir);
     forceDir(outputDir);
+    keepPreviousZip();
     Utilities.clearDirectory(outputDir);
     logDebugMessage(LogCategory.INIT, "Temp: "+qaDir);
     forceDir(qaDir);
@@ -3263,6 +3581,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     inspector.setStrict("true".equals(ostr(configuration, "allow-malformed-html")));
     inspector.setPcm(pcm);
+    inspector.setThreads(threads);
+    fetcher.setThreads(threads);
     makeQA = mode == IGBuildMode.WEBSERVER ? false : !"true".equals(ostr(configuration, "suppress-qa"));
     
     JsonArray deps = configuration.getJsonArray("dependencyList");
@@ -3330,7 +3650,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       if (!suppressPath.isEmpty())
         loadSuppressedMessages(Utilities.path(rootDir, suppressPath), "ConfigFile.suppressedWarningFile");
     }
-    validationFetcher = new ValidationServices(context, igpkp, fileList, npmList, bool(configuration, "bundleReferencesResolve"));
+    validationFetcher = new ValidationServices(context, igpkp, resourceIndex, npmList, bool(configuration, "bundleReferencesResolve"));
     validator.setFetcher(validationFetcher);
     validator.setPolicyAdvisor(validationFetcher);
     validator.setTracker(this);
@@ -4052,21 +4372,19 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     logDebugMessage(LogCategory.GENERATE, "Check Generate "+path);
     if (firstExecution) {
       String s = path.toLowerCase();
-      if (allOutputs.contains(s))
-        throw new Error("Error generating build: the file "+path+" is being generated more than once (may differ by case)");
-      allOutputs.add(s);
+      if (!allOutputs.add(s)) {
+        if (workerRc.get() == null) {
+          throw new Error("Error generating build: the file "+path+" is being generated more than once (may differ by case)");
+        }
+        synchronized (outputCollisions) {
+          outputCollisions.add(path);
+        }
+        return false;
+      }
     }
 
     outputTracker.add(path);
-    File f = new CSFile(path);
-    byte[] existing = null;
-    if (f.exists())
-      existing = TextFile.fileToBytes(path);
-    if (!Arrays.equals(bs, existing)) {
-      TextFile.bytesToFile(bs, path);
-      return true;
-    }
-    return false;
+    return outputSink.write(bs, path);
   }
 
   private boolean needFile(String s) {
@@ -4096,6 +4414,15 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
 
   private boolean load() throws Exception {
+    PhaseTracer.Span span = tracer.start("load");
+    try {
+      return doLoad();
+    } finally {
+      span.end();
+    }
+  }
+
+  private boolean doLoad() throws Exception {
     validationFetcher.initOtherUrls();
     fileList.clear();
     changeList.clear();
@@ -4444,7 +4771,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         logDebugMessage(LogCategory.INIT, "    "+r.fhirType()+"/"+r.getId());      
     }
     extensionTracker.scan(publishedIg);
-    
+    resourceIndex.update(changeList);
     return needToBuild;
   }
 
@@ -4645,7 +4972,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean loadPrePage(FetchedFile file, PreProcessInfo ppinfo) {
     FetchedFile existing = altMap.get("pre-page/"+file.getPath());
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || existing.getTime() != file.getTime() || !existing.hasSameSource(file)) {
       file.setProcessMode(ppinfo.hasXslt() && !file.getPath().endsWith(".md") ? FetchedFile.PROCESS_XSLT : FetchedFile.PROCESS_NONE);
       file.setXslt(ppinfo.getXslt());
       if (ppinfo.hasRelativePath())
@@ -4692,7 +5019,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean loadPage(FetchedFile file) {
     FetchedFile existing = altMap.get("page/"+file.getPath());
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || existing.getTime() != file.getTime() || !existing.hasSameSource(file)) {
       file.setProcessMode(FetchedFile.PROCESS_NONE);
       addFile(file);
       altMap.put("page/"+file.getPath(), file);
@@ -5112,12 +5439,23 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
   
   private void loadConformance() throws Exception {
+    PhaseTracer.Span span = tracer.start("conformance");
+    try {
+      doLoadConformance();
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doLoadConformance() throws Exception {
     for (String s : metadataResourceNames()) 
       scan(s);
     loadDepInfo();
     loadInfo();
     for (String s : metadataResourceNames()) 
       load(s);
+    validationFetcher.resourcesLoaded();
+    resourceIndex.update(changeList);
     loadPaths();
     log("Generating Snapshots");
     generateSnapshots();
@@ -5143,6 +5481,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     validateExpressions();
     errors.addAll(cql.getGeneralErrors());
     scanForUsageStats();
+    resourceIndex.update(changeList); // generated examples and transforms may have added resources
+    crossReferences = CrossReferenceIndex.build(context);
   }
 
   private void loadPaths() {
@@ -5414,7 +5754,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean noteFile(ImplementationGuideDefinitionResourceComponent key, FetchedFile file) {
     FetchedFile existing = fileMap.get(key);
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || existing.getTime() != file.getTime() || !existing.hasSameSource(file)) {
       fileList.add(file);
       fileMap.put(key, file);
       addFile(file);
@@ -5432,7 +5772,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean noteFile(String key, FetchedFile file) {
     FetchedFile existing = altMap.get(key);
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || existing.getTime() != file.getTime() || !existing.hasSameSource(file)) {
       fileList.add(file);
       altMap.put(key, file);
       addFile(file);
@@ -5494,7 +5834,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     file.getErrors().clear();
     Element e = null;
     try {        
-      if (file.getContentType().contains("json")) {
+      if (file.hasParsed()) {
+        e = file.takeParsed();
+      } else if (file.getContentType().contains("json")) {
         e = loadFromJson(file);
       } else if (file.getContentType().contains("xml")) {
         e = loadFromXml(file);
@@ -5961,8 +6303,18 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void generateSnapshots() throws Exception {
+    PhaseTracer.Span span = tracer.start("snapshots");
+    try {
+      doGenerateSnapshots();
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doGenerateSnapshots() throws Exception {
     context.setAllowLoadingDuplicates(true);
     logDebugMessage(LogCategory.PROGRESS, "Generate Snapshots");
+    runSnapshotTasks(planSnapshots());
     for (FetchedFile f : fileList) {
       for (FetchedResource r : f.getResources()) {
         if (r.getResource() instanceof StructureDefinition) {
@@ -5971,14 +6323,6 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
           }
 
           StructureDefinition sd = (StructureDefinition) r.getResource();
-          if (!r.isSnapshotted()) {
-            sd.setSnapshot(null); // make sure its clrared out so we do actually regenerate it at this point
-            try {
-              generateSnapshot(f, r, sd, false);
-            } catch (Exception e) {
-              throw new Exception("Error generating snapshot for "+f.getTitle()+(f.getResources().size() > 0 ? "("+r.getId()+")" : "")+": "+e.getMessage(), e);
-            }
-          }
           if ("Extension".equals(sd.getType()) && sd.getSnapshot().getElementFirstRep().getIsModifier()) {
             modifierExtensions.add(sd);
           }
@@ -5987,6 +6331,251 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
   }
 
+  /**
+   * A StructureDefinition to snapshot. The tasks are planned in the order that the old loop 
+   * did them: in file order, but with each base definition done first, when it's first needed
+   */
+  private class SnapshotTask {
+    private FetchedFile file;
+    private FetchedResource resource;
+    private StructureDefinition sd;
+    private FetchedFile triggerFile; // the loop was at this file and resource when it needed this one
+    private FetchedResource trigger;
+    private boolean clear; // the loop cleared the snapshot first, but base definitions done on demand kept theirs
+    private List<SnapshotTask> uses = new ArrayList<>(); // the tasks for the profiles it refers to
+    private int level; // the tasks it uses are all in lower levels
+    private boolean done;
+    private List<ValidationMessage> fileErrors = new ArrayList<>();
+    private List<Runnable> messages = new ArrayList<>();
+    private Exception error;
+  }
+
+  private List<SnapshotTask> planSnapshots() throws Exception {
+    Map<String, FetchedResource> byUrl = new HashMap<>(); // the first one, as fetchSnapshotted finds
+    Map<FetchedResource, FetchedFile> files = new HashMap<>();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof StructureDefinition) {
+          files.put(r, f);
+          byUrl.putIfAbsent(((StructureDefinition) r.getResource()).getUrl(), r);
+        }
+      }
+    }
+    List<SnapshotTask> tasks = new ArrayList<>();
+    Map<FetchedResource, SnapshotTask> planned = new HashMap<>();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof StructureDefinition && !r.isSnapshotted() && !planned.containsKey(r)) {
+          planSnapshot(r, f, r, true, files, byUrl, planned, tasks, new ArrayList<>());
+        }
+      }
+    }
+
+    // Besides the base definition, generating a snapshot can look at (and even snapshot) the profiles
+    // that the differential uses as types, including extensions. So each task waits until the tasks
+    // for the profiles it uses are done. Profiles that use each other, directly or not, can't be put
+    // in order like that, so they're done one after another, in task order
+    for (SnapshotTask task : tasks) {
+      for (FetchedResource u : snapshotReferences(task.resource, byUrl)) {
+        SnapshotTask t = planned.get(u);
+        if (t != null && t != task && !task.uses.contains(t)) {
+          task.uses.add(t);
+        }
+      }
+    }
+    List<List<SnapshotTask>> groups = new ArrayList<>();
+    Map<SnapshotTask, int[]> seen = new HashMap<>();
+    LinkedList<SnapshotTask> stack = new LinkedList<>();
+    for (SnapshotTask task : tasks) {
+      if (!seen.containsKey(task)) {
+        groupSnapshots(task, seen, stack, groups);
+      }
+    }
+    // each group comes after all of every group that it uses
+    Map<SnapshotTask, Integer> after = new HashMap<>();
+    for (List<SnapshotTask> group : groups) {
+      int level = 0;
+      for (SnapshotTask task : group) {
+        for (SnapshotTask t : task.uses) {
+          if (!group.contains(t)) {
+            level = Math.max(level, after.get(t));
+          }
+        }
+      }
+      group.sort(Comparator.comparingInt(tasks::indexOf));
+      for (SnapshotTask task : group) {
+        task.level = level++;
+      }
+      for (SnapshotTask task : group) {
+        after.put(task, level);
+      }
+    }
+    return tasks;
+  }
+
+  private void planSnapshot(FetchedResource r, FetchedFile triggerFile, FetchedResource trigger, boolean clear, Map<FetchedResource, FetchedFile> files, 
+      Map<String, FetchedResource> byUrl, Map<FetchedResource, SnapshotTask> planned, List<SnapshotTask> tasks, List<FetchedResource> stack) throws Exception {
+    if (stack.contains(r)) {
+      CommaSeparatedStringBuilder b = new CommaSeparatedStringBuilder(" -> ");
+      for (FetchedResource s : stack.subList(stack.indexOf(r), stack.size())) {
+        b.append(((StructureDefinition) s.getResource()).getUrl());
+      }
+      b.append(((StructureDefinition) r.getResource()).getUrl());
+      throw new Exception("Error generating snapshot for "+triggerFile.getTitle()+"("+trigger.getId()+"): circular base definitions: "+b.toString());
+    }
+    stack.add(r);
+    StructureDefinition sd = (StructureDefinition) r.getResource();
+    if (sd.hasBaseDefinition()) {
+      FetchedResource base = byUrl.get(sd.getBaseDefinition());
+      if (base != null && !base.isSnapshotted() && !planned.containsKey(base)) {
+        planSnapshot(base, triggerFile, trigger, false, files, byUrl, planned, tasks, stack);
+      }
+    }
+    stack.remove(stack.size() - 1);
+    SnapshotTask task = new SnapshotTask();
+    task.file = files.get(r);
+    task.resource = r;
+    task.sd = sd;
+    task.triggerFile = triggerFile;
+    task.trigger = trigger;
+    task.clear = clear;
+    planned.put(r, task);
+    tasks.add(task);
+  }
+
+  /**
+   * Splits the tasks into groups that use each other (Tarjan's strongly connected components). 
+   * A group is only added once all the groups it uses have been
+   */
+  private void groupSnapshots(SnapshotTask task, Map<SnapshotTask, int[]> seen, LinkedList<SnapshotTask> stack, List<List<SnapshotTask>> groups) {
+    int[] low = new int[] { seen.size(), seen.size() }; // order seen, lowest reachable on the stack
+    seen.put(task, low);
+    stack.push(task);
+    for (SnapshotTask t : task.uses) {
+      if (!seen.containsKey(t)) {
+        groupSnapshots(t, seen, stack, groups);
+        low[1] = Math.min(low[1], seen.get(t)[1]);
+      } else if (stack.contains(t)) {
+        low[1] = Math.min(low[1], seen.get(t)[0]);
+      }
+    }
+    if (low[1] == low[0]) {
+      List<SnapshotTask> group = new ArrayList<>();
+      SnapshotTask t;
+      do {
+        t = stack.pop();
+        group.add(t);
+      } while (t != task);
+      groups.add(group);
+    }
+  }
+
+  /**
+   * The profiles in the IG that generating the snapshot for this one might look at: the base 
+   * definition, and the type profiles in the differential (which includes the extensions)
+   */
+  private Set<FetchedResource> snapshotReferences(FetchedResource r, Map<String, FetchedResource> byUrl) {
+    StructureDefinition sd = (StructureDefinition) r.getResource();
+    List<String> urls = new ArrayList<>();
+    if (sd.hasBaseDefinition()) {
+      urls.add(sd.getBaseDefinition());
+    }
+    for (ElementDefinition ed : sd.getDifferential().getElement()) {
+      for (TypeRefComponent t : ed.getType()) {
+        for (CanonicalType p : t.getProfile()) {
+          urls.add(p.getValue());
+        }
+      }
+    }
+    Set<FetchedResource> res = new HashSet<>();
+    for (String url : urls) {
+      FetchedResource u = url == null ? null : byUrl.get(url.contains("|") ? url.substring(0, url.indexOf("|")) : url);
+      if (u != null && u != r) {
+        res.add(u);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * The tasks in each level are done in parallel. Whatever they report is applied in 
+   * task order afterwards, so the errors are the same as when they're done one by one
+   */
+  private void runSnapshotTasks(List<SnapshotTask> tasks) throws Exception {
+    if (threads <= 1 || tasks.size() < 2) {
+      for (SnapshotTask task : tasks) {
+        runSnapshotTask(task);
+        finishSnapshotTask(task);
+      }
+      return;
+    }
+    int maxLevel = 0;
+    for (SnapshotTask task : tasks) {
+      maxLevel = Math.max(maxLevel, task.level);
+    }
+    logDebugMessage(LogCategory.PROGRESS, "Generating "+tasks.size()+" snapshots in "+(maxLevel+1)+" levels on "+threads+" threads");
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      boolean failed = false;
+      for (int level = 0; level <= maxLevel && !failed; level++) {
+        List<Future<SnapshotTask>> futures = new ArrayList<>();
+        for (SnapshotTask task : tasks) {
+          if (task.level == level) {
+            futures.add(executor.submit(() -> {
+              igpkp.deferMessages();
+              try {
+                runSnapshotTask(task);
+              } finally {
+                task.messages = igpkp.takeDeferredMessages();
+              }
+              return task;
+            }));
+          }
+        }
+        for (Future<SnapshotTask> future : futures) {
+          SnapshotTask task;
+          try {
+            task = future.get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+              throw (Exception) e.getCause();
+            }
+            throw new Exception(e.getCause());
+          }
+          failed = failed || task.error != null;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    for (SnapshotTask task : tasks) {
+      if (task.done) {
+        finishSnapshotTask(task);
+      }
+    }
+  }
+
+  private void runSnapshotTask(SnapshotTask task) {
+    try {
+      if (task.clear) {
+        task.sd.setSnapshot(null); // make sure its clrared out so we do actually regenerate it at this point
+      }
+      generateSnapshot(task.file, task.resource, task.sd, false, task.fileErrors);
+    } catch (Exception e) {
+      FetchedFile f = task.triggerFile;
+      task.error = new Exception("Error generating snapshot for "+f.getTitle()+(f.getResources().size() > 0 ? "("+task.trigger.getId()+")" : "")+": "+e.getMessage(), e);
+    }
+    task.done = true;
+  }
+
+  private void finishSnapshotTask(SnapshotTask task) throws Exception {
+    task.file.getErrors().addAll(task.fileErrors);
+    igpkp.reportDeferredMessages(task.messages);
+    if (task.error != null) {
+      throw task.error;
+    }
+  }
+
   private void checkR4R4B() throws Exception {
     logDebugMessage(LogCategory.PROGRESS, "R4/R4B Check");
     for (FetchedFile f : fileList) {
@@ -6001,10 +6590,26 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void generateSnapshot(FetchedFile f, FetchedResource r, StructureDefinition sd, boolean close) throws Exception {
+    generateSnapshot(f, r, sd, close, f.getErrors());
+  }
+
+  /**
+   * @param fileErrors where the errors for the file go (the file's own list, unless this is done on a worker thread)
+   */
+  private void generateSnapshot(FetchedFile f, FetchedResource r, StructureDefinition sd, boolean close, List<ValidationMessage> fileErrors) throws Exception {
+    PhaseTracer.Span span = tracer.start("snapshot", sd.getUrl());
+    try {
+      doGenerateSnapshot(f, r, sd, close, fileErrors);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doGenerateSnapshot(FetchedFile f, FetchedResource r, StructureDefinition sd, boolean close, List<ValidationMessage> fileErrors) throws Exception {
     boolean changed = false;
     logDebugMessage(LogCategory.PROGRESS, "Check Snapshot for "+sd.getUrl());
     sd.setFhirVersion(FHIRVersion.fromCode(version));
-    ProfileUtilities utils = new ProfileUtilities(context, f.getErrors(), igpkp);
+    ProfileUtilities utils = new ProfileUtilities(context, fileErrors, igpkp);
     StructureDefinition base = sd.hasBaseDefinition() ? fetchSnapshotted(sd.getBaseDefinition()) : null;
     utils.setIds(sd, true);
     utils.setXver(context.getXVer());
@@ -6025,12 +6630,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     	    try {
             utils.sortDifferential(base, sd, "profile " + sd.getUrl(), errors, true);
           } catch (Exception e) {
-            f.getErrors().add(new ValidationMessage(Source.ProfileValidator, IssueType.EXCEPTION, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "Exception generating snapshot: "+e.getMessage(), IssueSeverity.ERROR));
+            fileErrors.add(new ValidationMessage(Source.ProfileValidator, IssueType.EXCEPTION, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "Exception generating snapshot: "+e.getMessage(), IssueSeverity.ERROR));
             r.getErrors().add(new ValidationMessage(Source.ProfileValidator, IssueType.EXCEPTION, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "Exception generating snapshot: "+e.getMessage(), IssueSeverity.ERROR));
           }
         }
         for (String s : errors) {
-          f.getErrors().add(new ValidationMessage(Source.ProfileValidator, IssueType.INVALID, "StructureDefinition.where(url = '"+sd.getUrl()+"')", s, IssueSeverity.ERROR));
+          fileErrors.add(new ValidationMessage(Source.ProfileValidator, IssueType.INVALID, "StructureDefinition.where(url = '"+sd.getUrl()+"')", s, IssueSeverity.ERROR));
           r.getErrors().add(new ValidationMessage(Source.ProfileValidator, IssueType.INVALID, "StructureDefinition.where(url = '"+sd.getUrl()+"')", s, IssueSeverity.ERROR));
         }
         utils.setIds(sd, true);
@@ -6253,39 +6858,66 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (noValidation) {
       return;
     }
-    
+    PhaseTracer.Span span = tracer.start("validate");
+    try {
+      doValidate();
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doValidate() throws Exception {
     checkURLsUnique();
     checkOIDsUnique();
+    validationFetcher.resourcesLoaded(); // examples and transforms may have added resources since the conformance resources were loaded
     
-    for (FetchedFile f : fileList) {
-      logDebugMessage(LogCategory.PROGRESS, " .. validate "+f.getName());
-      if (firstExecution) {
-        logDebugMessage(LogCategory.PROGRESS, " .. "+f.getName());
-      }
-      for (FetchedResource r : f.getResources()) {
-        if (!r.isValidated()) {
-          logDebugMessage(LogCategory.PROGRESS, "     validating "+r.getTitle());
-          validate(f, r);
+    validationCacheScope = buildCache.isActive() ? makeValidationCacheScope() : null;
+    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    try {
+      Map<FetchedResource, Future<ValidationTask>> pending = executor != null ? startParallelValidation(executor) : null;
+      for (FetchedFile f : fileList) {
+        logDebugMessage(LogCategory.PROGRESS, " .. validate "+f.getName());
+        if (firstExecution) {
+          logDebugMessage(LogCategory.PROGRESS, " .. "+f.getName());
+        }
+        for (FetchedResource r : f.getResources()) {
+          if (!r.isValidated()) {
+            logDebugMessage(LogCategory.PROGRESS, "     validating "+r.getTitle());
+            if (pending != null && pending.containsKey(r)) {
+              finishValidation(waitForValidation(pending.get(r)));
+            } else {
+              validate(f, r);
+            }
+          }
         }
-      }
-      FetchedResource r = f.getResources().get(0);
-      if (f.getLogical() != null && f.getResources().size() == 1 && r.fhirType().equals("Binary")) {
-        Binary bin = (Binary) r.getResource();
-        StructureDefinition profile = context.fetchResource(StructureDefinition.class, f.getLogical());
-        List<ValidationMessage> errs = new ArrayList<ValidationMessage>();
-        if (profile == null) {
-          errs.add(new ValidationMessage(Source.InstanceValidator, IssueType.NOTFOUND, "file", context.formatMessage(I18nConstants.Bundle_BUNDLE_Entry_NO_LOGICAL_EXPL, r.getId(), f.getLogical()), IssueSeverity.ERROR));
-        } else {
-          FhirFormat fmt = FhirFormat.readFromMimeType(bin.getContentType());        
-          Session tts = tt.start("validation");
-          List<StructureDefinition> profiles = new ArrayList<>();
-          profiles.add(profile);
-          validator.validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), fmt, profiles);    
-          tts.end();
+        FetchedResource r = f.getResources().get(0);
+        if (f.getLogical() != null && f.getResources().size() == 1 && r.fhirType().equals("Binary")) {
+          Binary bin = (Binary) r.getResource();
+          StructureDefinition profile = context.fetchResource(StructureDefinition.class, f.getLogical());
+          List<ValidationMessage> errs = new ArrayList<ValidationMessage>();
+          if (profile == null) {
+            errs.add(new ValidationMessage(Source.InstanceValidator, IssueType.NOTFOUND, "file", context.formatMessage(I18nConstants.Bundle_BUNDLE_Entry_NO_LOGICAL_EXPL, r.getId(), f.getLogical()), IssueSeverity.ERROR));
+          } else {
+            FhirFormat fmt = FhirFormat.readFromMimeType(bin.getContentType());        
+            Session tts = tt.start("validation");
+            List<StructureDefinition> profiles = new ArrayList<>();
+            profiles.add(profile);
+            validator.validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), fmt, profiles);    
+            tts.end();
+          }
+          processValidationOutcomes(f, r, errs);
         }
-        processValidationOutcomes(f, r, errs);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow(); // if a validation failed, don't leave the rest running
       }
     }
+    if (buildCache.isActive()) {
+      // in watch mode, the resources that haven't changed aren't validated again, so their entries aren't used
+      int evicted = firstExecution ? buildCache.evictUnused("validation") : 0;
+      logDebugMessage(LogCategory.PROGRESS, "Build cache: "+buildCache.getHits()+" hits, "+buildCache.getMisses()+" misses, "+evicted+" unused entries dropped");
+    }
     logDebugMessage(LogCategory.PROGRESS, " .. check Profile Examples");
     logDebugMessage(LogCategory.PROGRESS, "gen narratives");
     for (FetchedFile f : fileList) {
@@ -6460,28 +7092,48 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       return;
     }
     Session tts = tt.start("validation");
-    List<ValidationMessage> errs = new ArrayList<ValidationMessage>();
+    PhaseTracer.Span span = tracer.start("validate", tracer.isEnabled() ? r.fhirType()+"/"+r.getId() : null);
+    ValidationTask task = new ValidationTask(file, r);
+    setValidationContext(file, r);
+    try {
+      runValidation(validator, task);
+    } finally {
+      validator.setTracker(this);
+      span.end();
+    }
+    finishValidation(task);
+    tts.end();
+  }
+
+  /**
+   * The host services find the example being validated through these. Set before the 
+   * validation starts (on the main thread, when validating in parallel)
+   */
+  private void setValidationContext(FetchedFile file, FetchedResource r) {
     r.getElement().setUserData("igpub.context.file", file);
     r.getElement().setUserData("igpub.context.resource", r);
+  }
+
+  private void validate(InstanceValidator val, FetchedFile file, FetchedResource r, List<ValidationMessage> errs) throws Exception {
     if (r.isValidateAsResource()) { 
       Resource res = r.getResource();
       if (res instanceof Bundle) {
-        validator.validate(r.getElement(), errs, null, r.getElement());
+        val.validate(r.getElement(), errs, null, r.getElement());
 
         for (BundleEntryComponent be : ((Bundle) res).getEntry()) {
           Resource ber = be.getResource();
           if (ber.hasUserData("profile")) {
-            validator.validate(r.getElement(), errs, ber, ber.getUserString("profile"));
+            val.validate(r.getElement(), errs, ber, ber.getUserString("profile"));
           }
         }
       } else if (res.hasUserData("profile")) {
-        validator.validate(r.getElement(), errs, res, res.getUserString("profile"));
+        val.validate(r.getElement(), errs, res, res.getUserString("profile"));
       }
     } else if (r.getResource() != null && r.getResource() instanceof Binary && r.getExampleUri() != null) {
       Binary bin = (Binary) r.getResource();
-      validator.validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), FhirFormat.readFromMimeType(bin.getContentType()));    
+      val.validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), FhirFormat.readFromMimeType(bin.getContentType()));    
     } else {
-      validator.setNoCheckAggregation(r.isExample() && ToolingExtensions.readBoolExtension(r.getResEntry(), "http://hl7.org/fhir/tools/StructureDefinition/igpublisher-no-check-aggregation"));
+      val.setNoCheckAggregation(r.isExample() && ToolingExtensions.readBoolExtension(r.getResEntry(), "http://hl7.org/fhir/tools/StructureDefinition/igpublisher-no-check-aggregation"));
       List<StructureDefinition> profiles = new ArrayList<>();
       
       if (r.getElement().hasUserData("profile")) {
@@ -6490,14 +7142,313 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       for (String s : r.getProfiles(false)) {
         addProfile(profiles, s, r.fhirType());
       }
-      validator.validate(r.getElement(), errs, null, r.getElement(), profiles);
+      val.validate(r.getElement(), errs, null, r.getElement(), profiles);
     }
-    processValidationOutcomes(file, r, errs);
-    r.setValidated(true);
-    if (r.getConfig() == null) {
-      igpkp.findConfiguration(file, r);
+  }
+
+  /**
+   * The outcome of validating a single resource, possibly on a worker thread, or from 
+   * the build cache. Nothing it finds is applied to the shared state until it is handed
+   * to finishValidation(), which happens in the same order as the sequential loop, so the 
+   * errors (and qa.html) come out the same whatever the thread count
+   */
+  private class ValidationTask implements IValidationProfileUsageTracker {
+    private FetchedFile file;
+    private FetchedResource resource;
+    private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
+    private List<FetchedResource[]> profileUsages = new ArrayList<>(); // profile, example
+
+    public ValidationTask(FetchedFile file, FetchedResource resource) {
+      this.file = file;
+      this.resource = resource;
     }
-    tts.end();
+
+    @Override
+    public void recordProfileUsage(StructureDefinition profile, Object appContext, Element element) {
+      if (profile.getUrl().startsWith(igpkp.getCanonical())) { // ignore anything we didn't define
+        FetchedResource example = exampleForContext(appContext);
+        FetchedResource source = resourceIndex.getByUrl(profile.getUrl());
+        if (example != null && source != null && source.getResource() == profile) {
+          profileUsages.add(new FetchedResource[] {source, example});
+        }
+      }
+    }
+
+    private JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      JsonArray msgs = json.forceArray("messages");
+      for (ValidationMessage vm : errors) {
+        if (vm.isSlicingHint() || vm.getRuleDate() != null) {
+          return null; // can't be restored exactly
+        }
+        JsonObject m = new JsonObject();
+        msgs.add(m);
+        m.add("source", vm.getSource().name());
+        m.add("type", vm.getType().toCode());
+        m.add("line", vm.getLine());
+        m.add("col", vm.getCol());
+        m.add("location", vm.getLocation());
+        m.add("message", vm.getMessage());
+        m.add("level", vm.getLevel().toCode());
+        m.add("html", vm.getHtml());
+        m.add("signpost", vm.isSignpost());
+        if (vm.getMessageId() != null) {
+          m.add("id", vm.getMessageId());
+        }
+        if (vm.getLocationLink() != null) {
+          m.add("locationLink", vm.getLocationLink());
+        }
+        if (vm.getTxLink() != null) {
+          m.add("txLink", vm.getTxLink());
+        }
+      }
+      JsonArray usages = json.forceArray("usages");
+      for (FetchedResource[] pu : profileUsages) {
+        JsonObject u = new JsonObject();
+        usages.add(u);
+        u.add("profile", ((CanonicalResource) pu[0].getResource()).getUrl());
+        u.add("example", pu[1].fhirType()+"/"+pu[1].getId());
+      }
+      return json;
+    }
+
+    private boolean fromJson(JsonObject json) {
+      if (json == null) {
+        return false;
+      }
+      List<FetchedResource[]> pul = new ArrayList<>();
+      for (JsonObject u : json.getJsonObjects("usages")) {
+        String[] e = u.asString("example").split("\\/");
+        FetchedResource source = resourceIndex.getByUrl(u.asString("profile"));
+        FetchedResource example = e.length == 2 ? resourceIndex.getByTypeAndId(e[0], e[1]) : null;
+        if (source == null || example == null) {
+          return false; // the cache is out of date; validate again
+        }
+        pul.add(new FetchedResource[] {source, example});
+      }
+      for (JsonObject m : json.getJsonObjects("messages")) {
+        ValidationMessage vm = new ValidationMessage(Source.valueOf(m.asString("source")), IssueType.fromCode(m.asString("type")), m.asInteger("line"), m.asInteger("col"), 
+            m.asString("location"), m.asString("message"), IssueSeverity.fromCode(m.asString("level")));
+        vm.setHtml(m.asString("html"));
+        vm.setSignpost(m.asBoolean("signpost"));
+        if (m.has("id")) {
+          vm.setMessageId(m.asString("id"));
+        }
+        if (m.has("locationLink")) {
+          vm.setLocationLink(m.asString("locationLink"));
+        }
+        if (m.has("txLink")) {
+          vm.setTxLink(m.asString("txLink"));
+        }
+        errors.add(vm);
+      }
+      profileUsages.addAll(pul);
+      return true;
+    }
+  }
+
+  private FetchedResource exampleForContext(Object appContext) {
+    if (appContext instanceof ValidatorHostContext) {
+      return (FetchedResource) ((ValidatorHostContext) appContext).getResource().getUserData("igpub.context.resource");
+    } else {
+      return (FetchedResource) ((Element) appContext).getUserData("igpub.context.resource");
+    }
+  }
+
+  /**
+   * Validates the resource, unless the build cache has the outcome from an earlier run
+   * where the resource itself and everything it could depend on were the same 
+   */
+  private void runValidation(InstanceValidator val, ValidationTask task) throws Exception {
+    String key = validationCacheKey(task);
+    if (task.fromJson(buildCache.load("validation", key))) {
+      return;
+    }
+    val.setTracker(task);
+    validate(val, task.file, task.resource, task.errors);
+    JsonObject json = task.toJson();
+    if (json != null) {
+      buildCache.store("validation", key, json);
+    }
+  }
+
+  private String validationCacheKey(ValidationTask task) {
+    if (!buildCache.isActive() || validationCacheScope == null || !task.file.hasSource()) {
+      return null;
+    }
+    Set<String> refs = new TreeSet<>();
+    if (!addReferencedFiles(task.file, task.resource.getElement(), refs)) {
+      return null;
+    }
+    return BuildCache.digest(validationCacheScope, task.file.getPath(), task.file.getDigest(), 
+        task.resource.fhirType()+"/"+task.resource.getId(), task.resource.getExampleUri(), task.file.getLogical(), String.join("|", refs));
+  }
+
+  /**
+   * Adds the path and digest of the other files that the resource refers to, so that an edit 
+   * to a resource invalidates the resources that refer to it
+   * 
+   * @return false if one of them can't be digested (so the outcome can't be cached)
+   */
+  private boolean addReferencedFiles(FetchedFile file, Element e, Set<String> refs) {
+    if (e == null) {
+      return true;
+    }
+    if (e.getName().equals("reference") && e.hasValue() && !e.getValue().startsWith("#")) {
+      String ref = e.getValue();
+      FetchedFile rf = null;
+      String[] parts = ref.split("\\/");
+      if (parts.length >= 2) {
+        int i = parts.length >= 4 && "_history".equals(parts[parts.length-2]) ? parts.length - 4 : parts.length - 2;
+        rf = resourceIndex.getFileByElementTypeAndId(parts[i], parts[i+1]);
+      }
+      if (rf == null) {
+        BundleEntryReference be = resourceIndex.getBundleEntryByFullUrl(ref);
+        rf = be == null ? null : be.getFile();
+      }
+      if (rf != null && rf != file) {
+        if (!rf.hasSource()) {
+          return false;
+        }
+        refs.add(rf.getPath()+"="+rf.getDigest());
+      }
+    }
+    if (e.hasChildren()) {
+      for (Element c : e.getChildren()) {
+        if (!addReferencedFiles(file, c, refs)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Validating a resource can depend on any of the conformance resources in the IG, on 
+   * which other resources exist (references), and on the validation settings, so all of 
+   * that is part of every resource's cache key. The content of the other resources that
+   * a resource refers to is added to its own key (validationCacheKey). Editing an example 
+   * only invalidates that example and the ones that refer to it; editing a profile or a 
+   * value set invalidates everything. Anything that affects every build product (the 
+   * publisher version, the packages, the template and its version) is in buildCacheKey
+   */
+  private String makeValidationCacheScope() {
+    StringBuilder b = new StringBuilder();
+    b.append("noExtensibleWarnings="+validator.isNoExtensibleWarnings()+"|");
+    b.append("hintAboutNonMustSupport="+validator.isHintAboutNonMustSupport()+"|");
+    b.append("anyExtensionsAllowed="+validator.isAnyExtensionsAllowed()+"|");
+    b.append("showMessagesFromReferences="+validator.isShowMessagesFromReferences()+"|");
+    for (String s : new TreeSet<>(validator.getExtensionDomains())) {
+      b.append("extensionDomain="+s+"|");
+    }
+    for (String c : suppressedMessages.categories()) {
+      for (SuppressedMessage sm : suppressedMessages.list(c)) {
+        b.append("suppressed="+c+":"+sm.getMessageRaw()+"|");
+      }
+    }
+    b.append("canonical="+igpkp.getCanonical()+"|");
+    for (FetchedFile f : fileList) {
+      boolean conformance = false;
+      for (FetchedResource r : f.getResources()) {
+        b.append(r.fhirType()+"/"+r.getId()+"|");
+        conformance = conformance || (r.getResource() != null && r.getResource() instanceof CanonicalResource);
+      }
+      if (conformance) {
+        if (!f.hasSource()) {
+          return null;
+        }
+        b.append(f.getPath()+"="+f.getDigest()+"|");
+      }
+    }
+    return BuildCache.digest(buildCacheKey, b.toString());
+  }
+
+  /**
+   * Submits the validation of each resource to the executor. The caller takes the results 
+   * in file order, and applies them (errors, found profiles) on the main thread.
+   * 
+   * The workers share the context, the ValidationServices and the element trees of the 
+   * other resources, and must only read them:
+   *  - each worker has its own InstanceValidator, and its own tracker (the ValidationTask)
+   *  - everything a worker writes goes into its task; nothing is written to the resources
+   *  - the validation context of every resource is set here, before any worker starts
+   *  - references to other resources are only checked for existence and type (see 
+   *    ValidationServices.policyForReference), so their elements are not validated or changed
+   *  - the context's caches are locked, and lookups go through the synchronized ResourceIndex
+   */
+  private Map<FetchedResource, Future<ValidationTask>> startParallelValidation(ExecutorService executor) {
+    BlockingQueue<InstanceValidator> validators = new ArrayBlockingQueue<>(threads);
+    for (int i = 0; i < threads; i++) {
+      validators.add(makeWorkerValidator());
+    }
+    Map<FetchedResource, Future<ValidationTask>> res = new HashMap<>();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (!r.isValidated() && passesValidationFilter(r)) {
+          ValidationTask task = new ValidationTask(f, r);
+          setValidationContext(f, r);
+          res.put(r, executor.submit(() -> {
+            InstanceValidator val = validators.take();
+            try {
+              runValidation(val, task);
+            } finally {
+              validators.add(val);
+            }
+            return task;
+          }));
+        }
+      }
+    }
+    logDebugMessage(LogCategory.PROGRESS, "Validating "+res.size()+" resources on "+threads+" threads");
+    return res;
+  }
+
+  private ValidationTask waitForValidation(Future<ValidationTask> future) throws Exception {
+    Session tts = tt.start("validation");
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw new Exception(e.getCause());
+    } finally {
+      tts.end();
+    }
+  }
+
+  private void finishValidation(ValidationTask task) {
+    for (FetchedResource[] pu : task.profileUsages) {
+      pu[0].addFoundExample(pu[1]);
+      pu[1].getFoundProfiles().add(((CanonicalResource) pu[0].getResource()).getUrl());
+    }
+    processValidationOutcomes(task.file, task.resource, task.errors);
+    task.resource.setValidated(true);
+    if (task.resource.getConfig() == null) {
+      igpkp.findConfiguration(task.file, task.resource);
+    }
+  }
+
+  /**
+   * Each worker needs its own validator - they hold per-validation state - but they 
+   * are all configured the same way as the main one
+   */
+  private InstanceValidator makeWorkerValidator() {
+    InstanceValidator res = new InstanceValidator(context, new IGPublisherHostServices(), context.getXVer());
+    res.setAllowXsiLocation(true);
+    res.setNoBindingMsgSuppressed(true);
+    res.setNoExtensibleWarnings(validator.isNoExtensibleWarnings());
+    res.setHintAboutNonMustSupport(validator.isHintAboutNonMustSupport());
+    res.setAnyExtensionsAllowed(validator.isAnyExtensionsAllowed());
+    res.setAllowExamples(true);
+    res.setCrumbTrails(true);
+    res.setWantCheckSnapshotUnchanged(true);
+    res.setForPublication(true);
+    res.setShowMessagesFromReferences(validator.isShowMessagesFromReferences());
+    res.getExtensionDomains().addAll(validator.getExtensionDomains());
+    res.setFetcher(validationFetcher);
+    res.setPolicyAdvisor(validationFetcher);
+    return res;
   }
 
   private void processValidationOutcomes(FetchedFile file, FetchedResource r, List<ValidationMessage> errs) {
@@ -6527,6 +7478,15 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void generate() throws Exception {
+    PhaseTracer.Span span = tracer.start("generate");
+    try {
+      doGenerate();
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doGenerate() throws Exception {
     forceDir(tempDir);
     forceDir(Utilities.path(tempDir, "_includes"));
     forceDir(Utilities.path(tempDir, "data"));
@@ -6542,15 +7502,25 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
     updateImplementationGuide();
     
-    for (FetchedFile f : changeList) {
-      generateNativeOutputs(f, false);
+    if (threads > 1) {
+      generateOutputsInParallel(false);
+    } else {
+      for (FetchedFile f : changeList) {
+        generateNativeOutputs(f, false);
+      }
     }
     
+    outputSink.flush(); // the template may look at the native outputs
     templateBeforeGenerate();
 
-    for (FetchedFile f : changeList) {
-      generateHtmlOutputs(f, false);
+    if (threads > 1) {
+      generateOutputsInParallel(true);
+    } else {
+      for (FetchedFile f : changeList) {
+        generateHtmlOutputs(f, false);
+      }
     }
+    outputSink.flush();
     if (allProfilesCsv != null) {
       allProfilesCsv.dump();
     }
@@ -6578,6 +7548,11 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     otherFilesRun.add(Utilities.path(tempDir, "usage-stats.json"));
     
+    outputSink.flush();
+    outputSink.removeStale();
+    outputSink.saveManifest(Utilities.path(tempDir, BuildCache.FOLDER_NAME, OutputSink.MANIFEST_NAME));
+    outputSink.close();
+    logDebugMessage(LogCategory.PROGRESS, "Outputs: "+outputSink.getWritten()+" written, "+outputSink.getUnchanged()+" unchanged");
     printMemUsage();
     System.out.println("Reclaiming memory...");
     cleanOutput(tempDir);
@@ -6679,7 +7654,13 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       if (ipaComparator != null) {
         ipaComparator.addOtherFiles(inspector.getExceptions(), outputDir);
       }
-      List<ValidationMessage> linkmsgs = noGenerate ? new ArrayList<ValidationMessage>() : inspector.check(statusMessage);
+      PhaseTracer.Span ispan = tracer.start("inspector");
+      List<ValidationMessage> linkmsgs;
+      try {
+        linkmsgs = noGenerate ? new ArrayList<ValidationMessage>() : inspector.check(statusMessage);
+      } finally {
+        ispan.end();
+      }
       int bl = 0;
       int lf = 0;
       for (ValidationMessage m : ValidationPresenter.filterMessages(linkmsgs, true, suppressedMessages)) {
@@ -6704,15 +7685,49 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       }
 
       log("Build final .zip");
-      ZipGenerator zip = new ZipGenerator(Utilities.path(tempDir, "full-ig.zip"));
-      zip.addFolder(outputDir, "site/", false);
-      zip.addFileSource("index.html", REDIRECT_SOURCE, false);
-      zip.close();
-      Utilities.copyFile(Utilities.path(tempDir, "full-ig.zip"), Utilities.path(outputDir, "full-ig.zip"));
+      buildFullZip();
       log("Final .zip built");
     }
   }
 
+  /**
+   * full-ig.zip is written straight into the output, compressed on the worker threads. The
+   * entries that are the same as in the last build's archive (kept by keepPreviousZip()) are
+   * copied from it rather than compressed again
+   */
+  private void buildFullZip() throws IOException {
+    PhaseTracer.Span span = tracer.start("zip");
+    try {
+      String previous = Utilities.path(tempDir, PREVIOUS_ZIP);
+      String dest = Utilities.path(outputDir, "full-ig.zip");
+      ParallelZipGenerator zip = new ParallelZipGenerator(dest, threads);
+      zip.setPrevious(new File(previous).exists() ? previous : dest); // when the output wasn't cleared (watch mode), the last one is still there
+      zip.addFolder(outputDir, "site/");
+      zip.addFileSource("index.html", REDIRECT_SOURCE);
+      zip.close();
+      new File(previous).delete();
+      logDebugMessage(LogCategory.PROGRESS, "full-ig.zip: "+zip.getDeflated()+" entries compressed, "+zip.getStored()+" stored, "+zip.getReused()+" reused");
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Moves the last build's full-ig.zip into the temp folder before the output folder is cleared.
+   * Temp is the source of the site, so the name starts with _ to stop jekyll copying it back
+   * into the output (and so into the next full-ig.zip)
+   */
+  private void keepPreviousZip() throws IOException {
+    File zip = new File(Utilities.path(outputDir, "full-ig.zip"));
+    if (zip.exists()) {
+      try {
+        Files.move(zip.toPath(), Paths.get(Utilities.path(tempDir, PREVIOUS_ZIP)), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        logDebugMessage(LogCategory.INIT, "Unable to keep the previous full-ig.zip: "+e.getMessage());
+      }
+    }
+  }
+
   private byte[] validationSummaryOO() throws IOException {
     Bundle bnd = new Bundle();
     bnd.setType(BundleType.COLLECTION);
@@ -6974,40 +7989,45 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void cleanOutput(String folder) throws IOException {
-    for (File f : new File(folder).listFiles()) {
-      cleanOutputFile(f);
+    Session tts = tt.start("clean");
+    Set<String> owned = getOwnedOutputs();
+    File[] files = new File(folder).listFiles();
+    if (files != null) {
+      if (threads > 1) {
+        Arrays.stream(files).parallel().forEach(f -> cleanOutputFile(f, owned));
+      } else {
+        for (File f : files) {
+          cleanOutputFile(f, owned);
+        }
+      }
     }
+    tts.end();
   }
 
-
-  public void cleanOutputFile(File f) {
+  private void cleanOutputFile(File f, Set<String> owned) {
  // Lloyd: this was changed from getPath to getCanonicalPath, but 
  // Grahame: changed it back because this was achange that broke everything, and with no reason provided
-    if (!isValidFile(f.getPath())) {
+    if (!owned.contains(f.getPath())) {
       if (!f.isDirectory()) {
         f.delete();
       }
     }
   }
 
-  private boolean isValidFile(String p) {
-    if (otherFilesStartup.contains(p)) {
-      return true;
-    }
-    if (otherFilesRun.contains(p)) {
-      return true;
-    }
+  /**
+   * All the files that the build has produced, in one set, so that each file in the output
+   * folder can be checked with a single lookup
+   */
+  private Set<String> getOwnedOutputs() {
+    Set<String> owned = new HashSet<>(otherFilesStartup);
+    owned.addAll(otherFilesRun);
     for (FetchedFile f : fileList) {
-      if (f.getOutputNames().contains(p)) {
-        return true;
-      }
+      owned.addAll(f.getOutputNames());
     }
     for (FetchedFile f : altMap.values()) {
-      if (f.getOutputNames().contains(p)) {
-        return true;
-      }
+      owned.addAll(f.getOutputNames());
     }
-    return false;
+    return owned;
   }
 
   private File makeSpecFile() throws Exception {
@@ -7313,12 +8333,24 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private boolean runTool() throws Exception {
+    outputSink.flush();
     if (noGenerate) {
       FileUtils.copyDirectory(new File(tempDir), new File(outputDir));
       return true;
     }
     switch (tool) {
-    case Jekyll: return runJekyll();
+    case Jekyll:
+      try (PhaseTracer.Span span = tracer.start("jekyll")) {
+        boolean ok = watch && jekyllWatch ? runWarmJekyll() : runJekyll();
+        if (liquidCompare) {
+          compareWithLiquid();
+        }
+        return ok;
+      }
+    case Liquid:
+      try (PhaseTracer.Span span = tracer.start("liquid")) {
+        return runLiquid();
+      }
     default:
       throw new Exception("unimplemented tool");
     }
@@ -7429,6 +8461,79 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return true;
   }
 
+  /**
+   * In watch mode (with -jekyll-watch), jekyll is started once, in its own watch mode, and
+   * regenerates just what each cycle changed. The JekyllSupervisor restarts it if it dies or
+   * stalls
+   */
+  private boolean runWarmJekyll() throws IOException {
+    Session tts = tt.start("jekyll");
+    try {
+      if (jekyllSupervisor == null) {
+        String cmd = jekyllCommand+" build --watch --incremental --destination \""+outputDir+"\"";
+        log("Run jekyll: "+cmd+" (in folder "+tempDir+")");
+        jekyllSupervisor = new JekyllSupervisor(SystemUtils.IS_OS_WINDOWS ? Arrays.asList("cmd", "/C", cmd) : Arrays.asList("bash", "-c", cmd), tempDir, s -> log("Jekyll: "+s));
+        if (!SystemUtils.IS_OS_WINDOWS && ToolGlobalSettings.hasRubyPath()) {
+          jekyllSupervisor.getEnvironment().put("PATH", ToolGlobalSettings.getRubyPath()+":"+System.getenv("PATH"));
+        }
+        jekyllSupervisor.setBuildTimeout(jekyllTimeout);
+        JekyllSupervisor js = jekyllSupervisor;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> js.stop()));
+        jekyllSupervisor.start();
+      } else {
+        jekyllSupervisor.update(changeSeen);
+      }
+    } finally {
+      tts.end();
+    }
+    return true;
+  }
+
+  /**
+   * Renders the site in process (see SiteRenderer) instead of running jekyll. In watch mode, the
+   * renderer is kept, and only the pages affected by what changed are rendered again
+   */
+  private boolean runLiquid() throws IOException {
+    Session tts = tt.start("liquid");
+    try {
+      if (siteRenderer == null) {
+        siteRenderer = new SiteRenderer(tempDir, outputDir, threads, s -> markdownEngine.process(s, "page"));
+      }
+      log("Render site: "+tempDir+" to "+outputDir);
+      siteRenderer.render();
+      for (String w : siteRenderer.getWarnings()) {
+        log("Liquid: "+w);
+      }
+      log("Liquid: "+siteRenderer.getRendered()+" pages rendered, "+siteRenderer.getCopied()+" files copied, "+siteRenderer.getDeleted()+" deleted");
+    } finally {
+      tts.end();
+    }
+    return true;
+  }
+
+  /**
+   * Renders the site in process as well, into temp/liquid-site, and reports how the result
+   * differs from the jekyll output. This is for checking the renderer against real IGs
+   */
+  private void compareWithLiquid() throws IOException {
+    Session tts = tt.start("liquid-compare");
+    try {
+      String dest = Utilities.path(rootDir, "temp", "liquid-site");
+      SiteRenderer sr = new SiteRenderer(tempDir, dest, threads, s -> markdownEngine.process(s, "page"));
+      try {
+        sr.render();
+      } catch (IOException e) {
+        log("Liquid: "+e.getMessage());
+      }
+      SiteDiff diff = SiteDiff.compare(outputDir, dest);
+      String report = Utilities.path(rootDir, "temp", "liquid-diff.txt");
+      diff.writeReport(report);
+      log("Liquid comparison: "+diff.summary()+" (see "+report+")");
+    } finally {
+      tts.end();
+    }
+  }
+
   private void dumpVars() {
     log("---- Props -------------");
     Properties properties = System.getProperties();
@@ -8864,15 +9969,29 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void generateNativeOutputs(FetchedFile f, boolean regen) throws IOException, FHIRException {
-    for (FetchedResource r : f.getResources()) {
-        logDebugMessage(LogCategory.PROGRESS, "Produce resources for "+r.fhirType()+"/"+r.getId());
-        saveNativeResourceOutputs(f, r);
-    }    
+    PhaseTracer.Span span = tracer.start("native output", f.getName());
+    try {
+      for (FetchedResource r : f.getResources()) {
+          logDebugMessage(LogCategory.PROGRESS, "Produce resources for "+r.fhirType()+"/"+r.getId());
+          saveNativeResourceOutputs(f, r);
+      }    
+    } finally {
+      span.end();
+    }
   }
   private void generateHtmlOutputs(FetchedFile f, boolean regen) throws Exception {
     if (noGenerate) {
       return;
     }
+    PhaseTracer.Span span = tracer.start("html output", f.getName());
+    try {
+      doGenerateHtmlOutputs(f, regen);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doGenerateHtmlOutputs(FetchedFile f, boolean regen) throws Exception {
     System.out.println("gen: "+f.getName());
     if (f.getProcessMode() == FetchedFile.PROCESS_NONE) {
       String dst = tempDir;
@@ -9107,7 +10226,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
 
   private void generateOutputsOperationDefinition(FetchedFile f, FetchedResource r, OperationDefinition od, Map<String, String> vars, boolean regen, String prefixForContainer) throws FHIRException, IOException {
-    OperationDefinitionRenderer odr = new OperationDefinitionRenderer(context, checkAppendSlash(specPath), od, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc);
+    OperationDefinitionRenderer odr = new OperationDefinitionRenderer(context, checkAppendSlash(specPath), od, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc());
     if (igpkp.wantGen(r, "summary")) {
       fragment("OperationDefinition-"+prefixForContainer+od.getId()+"-summary", odr.summary(), f.getOutputNames(), r, vars, null);
     }
@@ -9470,7 +10589,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     ByteArrayOutputStream bs = new ByteArrayOutputStream();
     org.hl7.fhir.r5.elementmodel.JsonParser jp = new org.hl7.fhir.r5.elementmodel.JsonParser(context);
     jp.compose(r.getElement(), bs, OutputStyle.NORMAL, igpkp.getCanonical());
-    npm.addFile(isExample(f,r ) ? Category.EXAMPLE : Category.RESOURCE, r.getElement().fhirType()+"-"+r.getId()+".json", bs.toByteArray());
+    Category cat = isExample(f,r ) ? Category.EXAMPLE : Category.RESOURCE;
+    String npmName = r.getElement().fhirType()+"-"+r.getId()+".json";
+    sharedUpdates.update(() -> npm.addFile(cat, npmName, bs.toByteArray()));
     String path = Utilities.path(tempDir, "_includes", r.fhirType()+"-"+r.getId()+".json");
     String json = new String(bs.toByteArray());
     TextFile.stringToFile(json, path);
@@ -9618,16 +10739,16 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
     String template = igpkp.getProperty(r, "template-format");
     if (igpkp.wantGen(r, "xml")) {
-      if (tool == GenerationTool.Jekyll)
+      if (tool == GenerationTool.Jekyll || tool == GenerationTool.Liquid)
         genWrapper(null, r, template, igpkp.getProperty(r, "format"), f.getOutputNames(), vars, "xml", "", false);
     }
     if (igpkp.wantGen(r, "json")) {
-      if (tool == GenerationTool.Jekyll)
+      if (tool == GenerationTool.Jekyll || tool == GenerationTool.Liquid)
         genWrapper(null, r, template, igpkp.getProperty(r, "format"), f.getOutputNames(), vars, "json", "", false);
     } 
 
     if (igpkp.wantGen(r, "ttl")) {
-      if (tool == GenerationTool.Jekyll)
+      if (tool == GenerationTool.Jekyll || tool == GenerationTool.Liquid)
         genWrapper(null, r, template, igpkp.getProperty(r, "format"), f.getOutputNames(), vars, "ttl", "", false);
     }
 
@@ -9675,7 +10796,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (igpkp.wantGen(r, "html")) {
       XhtmlNode xhtml = getXhtml(f, r);
       if (xhtml == null && HistoryGenerator.allEntriesAreHistoryProvenance(r.getElement())) {
-        RenderingContext ctxt = rc.copy().setParser(getTypeLoader(f, r));
+        RenderingContext ctxt = rc().copy().setParser(getTypeLoader(f, r));
         List<ProvenanceDetails> entries = loadProvenanceForBundle(igpkp.getLinkFor(r, true), r.getElement(), f);
         xhtml = new HistoryGenerator(ctxt).generateForBundle(entries); 
         fragment(r.fhirType()+"-"+r.getId()+"-html", new XhtmlComposer(XhtmlComposer.XML).compose(xhtml), f.getOutputNames(), r, vars, null);
@@ -9700,7 +10821,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
 
     if (igpkp.wantGen(r, "history")) {
-      XhtmlNode xhtml = new HistoryGenerator(rc).generate(r);
+      XhtmlNode xhtml = new HistoryGenerator(rc()).generate(r);
       String html = xhtml == null ? "" : new XhtmlComposer(XhtmlComposer.XML).compose(xhtml);
       fragment(r.fhirType()+"-"+r.getId()+"-history", html, f.getOutputNames(), r, vars, null);
     }
@@ -9745,7 +10866,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (igpkp.wantGen(r, "html")) {
       XhtmlNode xhtml = getXhtml(f, r, res);
       if (xhtml == null && HistoryGenerator.allEntriesAreHistoryProvenance(r.getElement())) {
-        RenderingContext ctxt = rc.copy().setParser(getTypeLoader(f, r));
+        RenderingContext ctxt = rc().copy().setParser(getTypeLoader(f, r));
         List<ProvenanceDetails> entries = loadProvenanceForBundle(igpkp.getLinkFor(r, true), r.getElement(), f);
         xhtml = new HistoryGenerator(ctxt).generateForBundle(entries); 
         fragment(res.fhirType()+"-"+prefixForContained+res.getId()+"-html", new XhtmlComposer(XhtmlComposer.XML).compose(xhtml), f.getOutputNames(), r, vars, prefixForContained);
@@ -9820,8 +10941,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         }
       }
       if (!existsAsPage) {
-         template = fetcher.openAsString(Utilities.path(fetcher.pathForFile(configFile), template));
-        template = igpkp.doReplacements(template, r, vars, format);
+        template = igpkp.doReplacements(wrapperTemplate(template), r, vars, format);
 
         outputName = determineOutputName(outputName, r, vars, format, extension);
         if (!outputName.contains("#")) {
@@ -9855,8 +10975,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         }
       }
       if (!existsAsPage) {
-        template = fetcher.openAsString(Utilities.path(fetcher.pathForFile(configFile), template));
-        template = igpkp.doReplacements(template, r, res, vars, format, prefixForContained);
+        template = igpkp.doReplacements(wrapperTemplate(template), r, res, vars, format, prefixForContained);
 
         outputName = determineOutputName(outputName, r, res, vars, format, extension, prefixForContained);
         if (!outputName.contains("#")) {
@@ -9867,6 +10986,30 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
   }
 
+  private class WrapperTemplate {
+    private long lastModified;
+    private ReplacementTemplate template;
+    public WrapperTemplate(long lastModified, ReplacementTemplate template) {
+      this.lastModified = lastModified;
+      this.template = template;
+    }
+  }
+
+  /**
+   * The wrapper templates are the same for every resource of a type, so they are 
+   * read and compiled once (and again, in place of the old one, if they change)
+   */
+  private ReplacementTemplate wrapperTemplate(String template) throws IOException {
+    String path = Utilities.path(fetcher.pathForFile(configFile), template);
+    long lastModified = new File(path).lastModified();
+    WrapperTemplate t = wrapperTemplates.get(path);
+    if (t == null || t.lastModified != lastModified) {
+      t = new WrapperTemplate(lastModified, ReplacementTemplate.compile(fetcher.openAsString(path)));
+      wrapperTemplates.put(path, t);
+    }
+    return t.template;
+  }
+
   private String determineOutputName(String outputName, FetchedResource r, Map<String, String> vars, String format, String extension) throws FHIRException {
     if (outputName == null)
       outputName = "{{[type]}}-{{[id]}}"+(extension.equals("")? "":"-"+extension)+(format==null? "": ".{{[fmt]}}")+".html";
@@ -9892,7 +11035,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
    * @throws Exception
    */
   private void generateOutputsCodeSystem(FetchedFile f, FetchedResource fr, CodeSystem cs, Map<String, String> vars, String prefixForContainer) throws Exception {
-    CodeSystemRenderer csr = new CodeSystemRenderer(context, specPath, cs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc);
+    CodeSystemRenderer csr = new CodeSystemRenderer(context, specPath, cs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc());
+    csr.setCrossReferences(crossReferences);
     if (igpkp.wantGen(fr, "summary")) {
       fragment("CodeSystem-"+prefixForContainer+cs.getId()+"-summary", csr.summaryTable(fr, igpkp.wantGen(fr, "xml"), igpkp.wantGen(fr, "json"), igpkp.wantGen(fr, "ttl"), igpkp.summaryRows()), f.getOutputNames(), fr, vars, null);
     }
@@ -9927,7 +11071,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
    * @throws Exception
    */
   private void generateOutputsValueSet(FetchedFile f, FetchedResource r, ValueSet vs, Map<String, String> vars, String prefixForContainer) throws Exception {
-    ValueSetRenderer vsr = new ValueSetRenderer(context, specPath, vs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc);
+    ValueSetRenderer vsr = new ValueSetRenderer(context, specPath, vs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc());
+    vsr.setCrossReferences(crossReferences);
     if (igpkp.wantGen(r, "summary")) {
       fragment("ValueSet-"+prefixForContainer+vs.getId()+"-summary", vsr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     }
@@ -9951,9 +11096,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       } else {
         ValueSetExpansionOutcome exp = context.expandVS(vs, true, true, true);
         if (exp.getValueset() != null) {
-          expansions.add(exp.getValueset());
+          sharedUpdates.update(() -> expansions.add(exp.getValueset()));
 
-          RenderingContext lrc = rc.copy();
+          RenderingContext lrc = rc().copy();
           lrc.setTooCostlyNoteNotEmpty("This value set has >1000 codes in it. In order to keep the publication size manageable, only a selection (1000 codes) of the whole set of codes is shown");
           lrc.setTooCostlyNoteEmpty("This value set cannot be expanded because of the way it is defined - it has an infinite number of members");
           lrc.setTooCostlyNoteNotEmptyDependent("One of this value set's dependencies has >1000 codes in it. In order to keep the publication size manageable, only a selection of the whole set of codes is shown");
@@ -10055,7 +11200,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       new OpenApiGenerator(context, cpbs, oa).generate(displ, "http://spdx.org/licenses/"+lic+".html");
       oa.commit();
       otherFilesRun.add(Utilities.path(tempDir, cpbs.getId()+ ".openapi.json"));
-      npm.addFile(Category.OPENAPI, cpbs.getId()+ ".openapi.json", TextFile.fileToBytes(Utilities.path(tempDir, cpbs.getId()+ ".openapi.json")));
+      byte[] openApi = TextFile.fileToBytes(Utilities.path(tempDir, cpbs.getId()+ ".openapi.json"));
+      sharedUpdates.update(() -> npm.addFile(Category.OPENAPI, cpbs.getId()+ ".openapi.json", openApi));
     }
   }
 
@@ -10073,7 +11219,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (igpkp.wantGen(r, "json-schema"))
       fragmentError("StructureDefinition-"+prefixForContainer+sd.getId()+"-json-schema", "yet to be done: json schema as html", null, f.getOutputNames());
 
-    StructureDefinitionRenderer sdr = new StructureDefinitionRenderer(context, checkAppendSlash(specPath), sd, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc, allInvariants, sdMapCache);
+    StructureDefinitionRenderer sdr = new StructureDefinitionRenderer(context, checkAppendSlash(specPath), sd, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc(), allInvariants, sdMapCache);
+    sdr.setCrossReferences(crossReferences);
     if (igpkp.wantGen(r, "summary")) {
       fragment("StructureDefinition-"+prefixForContainer+sd.getId()+"-summary", sdr.summary(), f.getOutputNames(), r, vars, null);
     }
@@ -10184,14 +11331,17 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (igpkp.wantGen(r, "csv")) {
       String path = Utilities.path(tempDir, sdPrefix + r.getId()+".csv");
       f.getOutputNames().add(path);
-      ProfileUtilities pu = new ProfileUtilities(context, errors, igpkp);
+      List<ValidationMessage> csvErrors = new ArrayList<>();
+      ProfileUtilities pu = new ProfileUtilities(context, csvErrors, igpkp);
       pu.generateCsv(new FileOutputStream(path), sd, true);
-      if (allProfilesCsv == null) {
-        allProfilesCsv = new CSVWriter(new FileOutputStream(Utilities.path(tempDir, "all-profiles.csv")), true);
-        otherFilesRun.add(Utilities.path(tempDir, "all-profiles.csv"));
-
-      }
-      pu.addToCSV(allProfilesCsv, sd);
+      sharedUpdates.update(() -> {
+        if (allProfilesCsv == null) {
+          allProfilesCsv = new CSVWriter(new FileOutputStream(Utilities.path(tempDir, "all-profiles.csv")), true);
+          otherFilesRun.add(Utilities.path(tempDir, "all-profiles.csv"));
+        }
+        pu.addToCSV(allProfilesCsv, sd);
+        errors.addAll(csvErrors);
+      });
     }
 
     if (igpkp.wantGen(r, "java")) {
@@ -10209,17 +11359,24 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       StructureDefinitionSpreadsheetGenerator sdg = new StructureDefinitionSpreadsheetGenerator(context, true, anyMustSupport(sd));
       sdg.renderStructureDefinition(sd, false);
       sdg.finish(new FileOutputStream(path));
-      if (allProfilesXlsx == null) {
-        allProfilesXlsx  = new StructureDefinitionSpreadsheetGenerator(context, true, false);
-      }
-      allProfilesXlsx.renderStructureDefinition(sd, true);
+      sharedUpdates.update(() -> {
+        if (allProfilesXlsx == null) {
+          allProfilesXlsx  = new StructureDefinitionSpreadsheetGenerator(context, true, false);
+        }
+        allProfilesXlsx.renderStructureDefinition(sd, true);
+      });
     }
 
     if (!regen && sd.getKind() != StructureDefinitionKind.LOGICAL &&  igpkp.wantGen(r, "sch")) {
       String path = Utilities.path(tempDir, sdPrefix + r.getId()+".sch");
       f.getOutputNames().add(path);
-      new ProfileUtilities(context, errors, igpkp).generateSchematrons(new FileOutputStream(path), sd);
-      npm.addFile(Category.SCHEMATRON, sdPrefix + r.getId()+".sch", TextFile.fileToBytes(Utilities.path(tempDir, sdPrefix + r.getId()+".sch")));
+      List<ValidationMessage> schErrors = new ArrayList<>();
+      new ProfileUtilities(context, schErrors, igpkp).generateSchematrons(new FileOutputStream(path), sd);
+      byte[] sch = TextFile.fileToBytes(Utilities.path(tempDir, sdPrefix + r.getId()+".sch"));
+      sharedUpdates.update(() -> {
+        npm.addFile(Category.SCHEMATRON, sdPrefix + r.getId()+".sch", sch);
+        errors.addAll(schErrors);
+      });
     }
     if (igpkp.wantGen(r, "sch"))
       fragmentError("StructureDefinition-"+prefixForContainer+sd.getId()+"-sch", "yet to be done: schematron as html", null, f.getOutputNames());
@@ -10239,7 +11396,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void generateOutputsStructureMap(FetchedFile f, FetchedResource r, StructureMap map, Map<String,String> vars, String prefixForContainer) throws Exception {
-    StructureMapRenderer smr = new StructureMapRenderer(context, checkAppendSlash(specPath), map, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc);
+    StructureMapRenderer smr = new StructureMapRenderer(context, checkAppendSlash(specPath), map, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc());
     if (igpkp.wantGen(r, "summary"))
       fragment("StructureMap-"+prefixForContainer+map.getId()+"-summary", smr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -10258,7 +11415,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void generateOutputsCanonical(FetchedFile f, FetchedResource r, CanonicalResource cr, Map<String,String> vars, String prefixForContainer) throws Exception {
-    CanonicalRenderer smr = new CanonicalRenderer(context, checkAppendSlash(specPath), cr, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc);
+    CanonicalRenderer smr = new CanonicalRenderer(context, checkAppendSlash(specPath), cr, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc());
     if (igpkp.wantGen(r, "summary"))
       fragment(cr.fhirType()+"-"+prefixForContainer+cr.getId()+"-summary", smr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -10279,7 +11436,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
   
   private void generateOutputsQuestionnaire(FetchedFile f, FetchedResource r, Questionnaire q, Map<String,String> vars, String prefixForContainer) throws Exception {
-    QuestionnaireRenderer qr = new QuestionnaireRenderer(context, checkAppendSlash(specPath), q, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc.copy().setDefinitionsTarget(igpkp.getDefinitionsName(r)));
+    QuestionnaireRenderer qr = new QuestionnaireRenderer(context, checkAppendSlash(specPath), q, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc().copy().setDefinitionsTarget(igpkp.getDefinitionsName(r)));
     if (igpkp.wantGen(r, "summary"))
       fragment("Questionnaire-"+prefixForContainer+q.getId()+"-summary", qr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -10320,7 +11477,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void generateOutputsQuestionnaireResponse(FetchedFile f, FetchedResource r, Map<String,String> vars, String prefixForContainer) throws Exception {
-    RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+    RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
     String qu = getQuestionnaireURL(r);
     if (qu != null) {
       Questionnaire q = context.fetchResource(Questionnaire.class, qu);
@@ -10374,7 +11531,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 //        return new BundleRenderer(lrc).render(new ElementWrappers.ResourceWrapperMetaElement(lrc, r.getElement()));
 //      }
       if (r.getResource() != null && r.getResource() instanceof Bundle) {
-        RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+        RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
         Bundle b = (Bundle) r.getResource();
         BundleRenderer br = new BundleRenderer(lrc);
         if (br.canRender(b)) {
@@ -10390,10 +11547,10 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     if (r.getResource() != null && r.getResource() instanceof Parameters) {
       Parameters p = (Parameters) r.getResource();
-      return new ParametersRenderer(rc, new ResourceContext(null, p)).render(p);
+      return new ParametersRenderer(rc(), new ResourceContext(null, p)).render(p);
     }
     if (r.fhirType().equals("Parameters")) {
-      RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+      RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
       return new ParametersRenderer(lrc, new ResourceContext(null, r.getElement())).render(new ElementWrappers.ResourceWrapperMetaElement(lrc, r.getElement()));
     } else {
       return getHtmlForResource(r.getElement());
@@ -10408,13 +11565,13 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     if (resource instanceof Bundle) {
       Bundle b = (Bundle) resource;
-      return new BundleRenderer(rc).render(b);
+      return new BundleRenderer(rc()).render(b);
     }
     if (resource instanceof Parameters) {
       Parameters p = (Parameters) resource;
-      return new ParametersRenderer(rc, new ResourceContext(null, p)).render(p);
+      return new ParametersRenderer(rc(), new ResourceContext(null, p)).render(p);
     }
-    RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+    RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
     return RendererFactory.factory(resource, lrc).build(resource);
   }
 
@@ -10448,10 +11605,15 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
   
   private void fragment(String name, String content, Set<String> outputTracker, FetchedResource r, Map<String, String> vars, String format) throws IOException, FHIRException {
-    String fixedContent = (r==null? content : igpkp.doReplacements(content, r, vars, format));
-    if (checkMakeFile(TextFile.stringToBytes(wrapLiquid(fixedContent), false), Utilities.path(tempDir, "_includes", name+".xhtml"), outputTracker)) {
-      if (mode != IGBuildMode.AUTOBUILD && makeQA)
-        TextFile.stringToFile(pageWrap(fixedContent, name), Utilities.path(qaDir, name+".html"), true);
+    PhaseTracer.Span span = tracer.start("fragment", name); // the content was rendered before the call, so this is just the write
+    try {
+      String fixedContent = (r==null? content : igpkp.doReplacements(content, r, vars, format));
+      if (checkMakeFile(TextFile.stringToBytes(wrapLiquid(fixedContent), false), Utilities.path(tempDir, "_includes", name+".xhtml"), outputTracker)) {
+        if (mode != IGBuildMode.AUTOBUILD && makeQA)
+          TextFile.stringToFile(pageWrap(fixedContent, name), Utilities.path(qaDir, name+".html"), true);
+      }
+    } finally {
+      span.end();
     }
   }
 
@@ -10686,6 +11848,25 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       System.out.println("-watch (optional): if this is present, the publisher will not terminate;");
       System.out.println("  instead, it will stay running, an watch for changes to the IG or its ");
       System.out.println("  contents and re-run when it sees changes ");
+      System.out.println("-watch-poll (optional): in watch mode, check every file for changes every 5 seconds,");
+      System.out.println("  instead of using file system events (for file systems that don't report them)");
+      System.out.println("-threads [n] (optional): the number of worker threads to use when scanning the");
+      System.out.println("  input folders, generating snapshots, narratives and the output for each file,");
+      System.out.println("  validating resources and checking the html links (default is 1). The output");
+      System.out.println("  is the same whatever the thread count");
+      System.out.println("-liquid (optional): render the site in process instead of running jekyll.");
+      System.out.println("  Only the pages affected by a change are rendered again in watch mode");
+      System.out.println("-liquid-compare (optional): run jekyll, then render the site in process as");
+      System.out.println("  well, and report the differences in [root]/temp/liquid-diff.txt");
+      System.out.println("-jekyll-watch (optional): in watch mode, start jekyll once, in its own watch");
+      System.out.println("  mode, so that it only regenerates what changed, instead of running a full");
+      System.out.println("  jekyll build for each change");
+      System.out.println("-trace (optional): write the time taken by each phase, and by each resource and");
+      System.out.println("  fragment within it, to [output]/qa-trace.json, for chrome://tracing or");
+      System.out.println("  https://ui.perfetto.dev. The same spans are always available as JFR events");
+      System.out.println("  (org.hl7.fhir.igtools.Phase) when the publisher is run with a flight recording");
+      System.out.println("-cold-build (optional): ignore the results cached in [temp]/_build-cache by");
+      System.out.println("  earlier runs, and process everything again");
       System.out.println("");
       System.out.println("-packages: a directory to load packages (*.tgz) from before resolving dependencies");
       System.out.println("           this parameter can be present multiple times");
@@ -10743,7 +11924,14 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     } else if (hasNamedParam(args, "-generate-archives")) {
       new WebSiteArchiveBuilder().start(getNamedParam(args, "-generate-archives"));
     } else if (hasNamedParam(args, "-xig")) {
-      new XIGGenerator(getNamedParam(args, "-xig")).execute();
+      XIGGenerator xig = new XIGGenerator(getNamedParam(args, "-xig"));
+      if (hasNamedParam(args, "-threads")) {
+        xig.setThreads(Integer.parseInt(getNamedParam(args, "-threads")));
+      }
+      if (hasNamedParam(args, "-xig-packages")) {
+        xig.setPackageCache(getNamedParam(args, "-xig-packages"));
+      }
+      xig.execute();
     } else if (hasNamedParam(args, "-update-history")) {
       new HistoryPageUpdater().updateHistoryPages(getNamedParam(args, "-history"), getNamedParam(args, "-website"), getNamedParam(args, "-website"));
     } else if (hasNamedParam(args, "-publish-update")) {
@@ -10869,6 +12057,26 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         self.noGenerate = true;
         System.out.println("Running without generation to shorten the run time (editor process only)");
       }
+      if (hasNamedParam(args, "-cold-build")) {
+        self.coldBuild = true;
+      }
+      if (hasNamedParam(args, "-liquid")) {
+        self.liquidSite = true;
+        System.out.println("Rendering the site in process instead of running jekyll");
+      }
+      self.liquidCompare = hasNamedParam(args, "-liquid-compare");
+      self.jekyllWatch = hasNamedParam(args, "-jekyll-watch");
+      if (hasNamedParam(args, "-trace")) {
+        self.tracer.setChromeTrace(true);
+      }
+      if (hasNamedParam(args, "-threads")) {
+        String t = getNamedParam(args, "-threads");
+        if (!Utilities.isInteger(t) || Integer.parseInt(t) < 1) {
+          throw new Exception("The -threads parameter must be a positive integer (found '"+t+"')");
+        }
+        self.threads = Integer.parseInt(t);
+        System.out.println("Using "+self.threads+" worker threads");
+      }
 
       setTxServerValue(args, self);
       if (hasNamedParam(args, "-source")) {
@@ -10960,6 +12168,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       self.setTxServer(getNamedParam(args, "-tx"));
       self.setPackagesFolder(getNamedParam(args, "-packages"));
       self.watch = hasNamedParam(args, "-watch");
+      self.watchPoll = hasNamedParam(args, "-watch-poll");
       self.debug = hasNamedParam(args, "-debug");
       self.cacheVersion = hasNamedParam(args, "-cacheVersion");
       if (hasNamedParam(args, "-publish")) {
@@ -11309,10 +12518,42 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return igpkp;
   }
 
+  public void setIgpkp(IGKnowledgeProvider igpkp) {
+    this.igpkp = igpkp;
+  }
+
   public List<FetchedFile> getFileList() {
     return fileList;
   }
 
+  public List<SpecMapManager> getSpecMaps() {
+    return specMaps;
+  }
+
+  public ResourceIndex getResourceIndex() {
+    return resourceIndex;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public PhaseTracer getTracer() {
+    return tracer;
+  }
+
+  public boolean isLiquidSite() {
+    return liquidSite;
+  }
+
+  public void setLiquidSite(boolean liquidSite) {
+    this.liquidSite = liquidSite;
+  }
+
   public ImplementationGuide getSourceIg() {
     return sourceIg;
   }
@@ -11390,12 +12631,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   @Override
   public void recordProfileUsage(StructureDefinition profile, Object appContext, Element element) {
     if (profile.getUrl().startsWith(igpkp.getCanonical())) { // ignore anything we didn't define
-      FetchedResource example;
-      if (appContext instanceof ValidatorHostContext) {
-        example = (FetchedResource) ((ValidatorHostContext) appContext).getResource().getUserData("igpub.context.resource");
-      } else {
-        example= (FetchedResource) ((Element) appContext).getUserData("igpub.context.resource");
-      }
+      FetchedResource example = exampleForContext(appContext);
       if (example != null) {
         FetchedResource source = null;
         for (FetchedFile f : fileList) {
@@ -0,0 +1,85 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A template with {{[name]}} tokens in it, compiled so that the substitutions can be
+ * made in a single pass, instead of one String.replace() - and one copy of the whole
+ * string - per variable.
+ *
+ * Tokens that have no value are left in the output as is. Values that are substituted
+ * in are not scanned for tokens again
+ */
+public class ReplacementTemplate {
+
+  public static final String TOKEN_START = "{{[";
+  public static final String TOKEN_END = "]}}";
+
+  private String source;
+  private String[] literals; // always one more than names
+  private String[] names;
+
+  private ReplacementTemplate(String source, String[] literals, String[] names) {
+    super();
+    this.source = source;
+    this.literals = literals;
+    this.names = names;
+  }
+
+  public static ReplacementTemplate compile(String source) {
+    List<String> literals = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    int last = 0;
+    int start = source.indexOf(TOKEN_START);
+    while (start > -1) {
+      int end = source.indexOf(TOKEN_END, start + TOKEN_START.length());
+      if (end == -1) {
+        break;
+      }
+      // in "{{[a{{[b]}}", the token is "b"
+      int inner = source.lastIndexOf(TOKEN_START, end - 1);
+      if (inner > start) {
+        start = inner;
+      }
+      literals.add(source.substring(last, start));
+      names.add(source.substring(start + TOKEN_START.length(), end));
+      last = end + TOKEN_END.length();
+      start = source.indexOf(TOKEN_START, last);
+    }
+    literals.add(source.substring(last));
+    return new ReplacementTemplate(source, literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]));
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public boolean hasTokens() {
+    return names.length > 0;
+  }
+
+  /**
+   * @param values returns the value for a token name, or null if the token should be left as is
+   */
+  public String apply(Function<String, String> values) {
+    if (names.length == 0) {
+      return source;
+    }
+    StringBuilder b = new StringBuilder(source.length() + 16 * names.length);
+    for (int i = 0; i < names.length; i++) {
+      b.append(literals[i]);
+      String v = values.apply(names[i]);
+      if (v == null) {
+        b.append(TOKEN_START);
+        b.append(names[i]);
+        b.append(TOKEN_END);
+      } else {
+        b.append(v);
+      }
+    }
+    b.append(literals[names.length]);
+    return b.toString();
+  }
+}
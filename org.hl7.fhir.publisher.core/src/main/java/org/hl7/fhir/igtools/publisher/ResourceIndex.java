@@ -0,0 +1,254 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.CanonicalResource;
+
+/**
+ * An index of the resources in the IG by type/id, canonical URL, and (for the
+ * resources inside Bundles) type/id and fullUrl, so that reference resolution
+ * doesn't have to walk every file and every bundle entry for every reference.
+ *
+ * There are two type/id keys, because the publisher has always looked resources up
+ * by the type it recorded for them (getByTypeAndId), and the validator by the type
+ * of their element (getByElementTypeAndId). They are nearly always the same.
+ *
+ * The index is maintained file by file: update() drops the files that are no
+ * longer in the list or that have changed, and re-indexes them. When more than
+ * one resource matches a key, the one from the earliest file (and earliest
+ * resource / entry in that file) is returned, which is what the linear
+ * scans used to find
+ */
+public class ResourceIndex {
+
+  public static class BundleEntryReference {
+    private FetchedFile file;
+    private FetchedResource bundle;
+    private Element entry;
+    private Element resource;
+
+    public BundleEntryReference(FetchedFile file, FetchedResource bundle, Element entry, Element resource) {
+      super();
+      this.file = file;
+      this.bundle = bundle;
+      this.entry = entry;
+      this.resource = resource;
+    }
+
+    public FetchedFile getFile() {
+      return file;
+    }
+
+    public FetchedResource getBundle() {
+      return bundle;
+    }
+
+    public Element getEntry() {
+      return entry;
+    }
+
+    public Element getResource() {
+      return resource;
+    }
+  }
+
+  private static class IndexEntry<T> {
+    private FetchedFile file;
+    private int seq;
+    private T value;
+    private Map<String, List<IndexEntry<T>>> map;
+    private String key;
+  }
+
+  private List<FetchedFile> files;
+  private Map<FetchedFile, Integer> order = new HashMap<>();
+  private Map<FetchedFile, List<IndexEntry<?>>> indexed = new HashMap<>();
+  private Map<String, List<IndexEntry<FetchedResource>>> byTypeId = new HashMap<>();
+  private Map<String, List<IndexEntry<FetchedResource>>> byElementTypeId = new HashMap<>();
+  private Map<String, List<IndexEntry<FetchedResource>>> byUrl = new HashMap<>();
+  private Map<String, List<IndexEntry<BundleEntryReference>>> entriesByTypeId = new HashMap<>();
+  private Map<String, List<IndexEntry<BundleEntryReference>>> entriesByFullUrl = new HashMap<>();
+
+  public ResourceIndex(List<FetchedFile> files) {
+    super();
+    this.files = files;
+  }
+
+  /**
+   * Bring the index up to date with the file list.
+   *
+   * @param changed the files that have been (re)loaded since the last update. Files that are
+   *   in the list but not indexed yet are always indexed
+   */
+  public synchronized void update(Collection<FetchedFile> changed) {
+    order.clear();
+    for (int i = 0; i < files.size(); i++) {
+      order.putIfAbsent(files.get(i), i);
+    }
+    Set<FetchedFile> changes = new HashSet<>(changed);
+    for (FetchedFile f : new ArrayList<>(indexed.keySet())) {
+      if (!order.containsKey(f) || changes.contains(f)) {
+        drop(f);
+      }
+    }
+    for (FetchedFile f : files) {
+      if (!indexed.containsKey(f)) {
+        index(f);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    order.clear();
+    indexed.clear();
+    byTypeId.clear();
+    byElementTypeId.clear();
+    byUrl.clear();
+    entriesByTypeId.clear();
+    entriesByFullUrl.clear();
+  }
+
+  public synchronized FetchedResource getByTypeAndId(String type, String id) {
+    return first(byTypeId, type+"/"+id);
+  }
+
+  public synchronized FetchedResource getByElementTypeAndId(String type, String id) {
+    return first(byElementTypeId, type+"/"+id);
+  }
+
+  /**
+   * The file that has the resource getByElementTypeAndId would return
+   */
+  public synchronized FetchedFile getFileByElementTypeAndId(String type, String id) {
+    IndexEntry<FetchedResource> res = firstEntry(byElementTypeId, type+"/"+id);
+    return res == null ? null : res.file;
+  }
+
+  public synchronized FetchedResource getByUrl(String url) {
+    return first(byUrl, url);
+  }
+
+  /**
+   * The first resource that has either the type/id or the canonical URL. If a resource 
+   * with the URL comes before the resource with the type/id, that's the one returned 
+   * (the resolver used to check both in one pass over the resources)
+   */
+  public synchronized FetchedResource getByTypeAndIdOrUrl(String type, String id, String url) {
+    IndexEntry<FetchedResource> byId = firstEntry(byTypeId, type+"/"+id);
+    IndexEntry<FetchedResource> byCanonical = firstEntry(byUrl, url);
+    if (byId == null || byCanonical == null) {
+      return byId != null ? byId.value : byCanonical != null ? byCanonical.value : null;
+    }
+    return before(byCanonical, byId) ? byCanonical.value : byId.value;
+  }
+
+  public synchronized BundleEntryReference getBundleEntry(String type, String id) {
+    return first(entriesByTypeId, type+"/"+id);
+  }
+
+  public synchronized BundleEntryReference getBundleEntryByFullUrl(String fullUrl) {
+    return first(entriesByFullUrl, fullUrl);
+  }
+
+  private void index(FetchedFile f) {
+    List<IndexEntry<?>> list = new ArrayList<>();
+    indexed.put(f, list);
+    int seq = 0;
+    for (FetchedResource r : f.getResources()) {
+      if (r.getElement() != null) {
+        add(list, byTypeId, r.fhirType()+"/"+r.getId(), f, seq, r);
+        add(list, byElementTypeId, r.getElement().fhirType()+"/"+r.getId(), f, seq, r);
+      }
+      if (r.getResource() != null && r.getResource() instanceof CanonicalResource && ((CanonicalResource) r.getResource()).hasUrl()) {
+        add(list, byUrl, ((CanonicalResource) r.getResource()).getUrl(), f, seq, r);
+      }
+      seq++;
+      if (r.getElement() != null && r.fhirType().equals("Bundle")) {
+        for (Element entry : r.getElement().getChildrenByName("entry")) {
+          Element res = entry.getNamedChild("resource");
+          if (res != null) {
+            BundleEntryReference ber = new BundleEntryReference(f, r, entry, res);
+            if (res.hasChild("id")) {
+              add(list, entriesByTypeId, res.fhirType()+"/"+res.getNamedChildValue("id"), f, seq, ber);
+            }
+            String fu = entry.getNamedChildValue("fullUrl");
+            if (fu != null) {
+              add(list, entriesByFullUrl, fu, f, seq, ber);
+            }
+          }
+          seq++;
+        }
+      }
+    }
+  }
+
+  private <T> void add(List<IndexEntry<?>> list, Map<String, List<IndexEntry<T>>> map, String key, FetchedFile f, int seq, T value) {
+    IndexEntry<T> ie = new IndexEntry<>();
+    ie.file = f;
+    ie.seq = seq;
+    ie.value = value;
+    ie.map = map;
+    ie.key = key;
+    List<IndexEntry<T>> candidates = map.get(key);
+    if (candidates == null) {
+      candidates = new ArrayList<>(1);
+      map.put(key, candidates);
+    }
+    candidates.add(ie);
+    list.add(ie);
+  }
+
+  private void drop(FetchedFile f) {
+    for (IndexEntry<?> ie : indexed.remove(f)) {
+      drop(ie);
+    }
+  }
+
+  private <T> void drop(IndexEntry<T> ie) {
+    List<IndexEntry<T>> candidates = ie.map.get(ie.key);
+    if (candidates != null) {
+      candidates.remove(ie);
+      if (candidates.isEmpty()) {
+        ie.map.remove(ie.key);
+      }
+    }
+  }
+
+  private <T> T first(Map<String, List<IndexEntry<T>>> map, String key) {
+    IndexEntry<T> res = firstEntry(map, key);
+    return res == null ? null : res.value;
+  }
+
+  private <T> IndexEntry<T> firstEntry(Map<String, List<IndexEntry<T>>> map, String key) {
+    List<IndexEntry<T>> candidates = map.get(key);
+    if (candidates == null) {
+      return null;
+    }
+    IndexEntry<T> res = null;
+    for (IndexEntry<T> ie : candidates) {
+      if (res == null || before(ie, res)) {
+        res = ie;
+      }
+    }
+    return res;
+  }
+
+  private boolean before(IndexEntry<?> a, IndexEntry<?> b) {
+    int pa = position(a);
+    int pb = position(b);
+    return pa < pb || (pa == pb && a.seq < b.seq);
+  }
+
+  private int position(IndexEntry<?> ie) {
+    Integer pos = order.get(ie.file);
+    return pos == null ? Integer.MAX_VALUE : pos;
+  }
+
+}
@@ -21,23 +21,46 @@ package org.hl7.fhir.igtools.publisher;
  */
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.ContentSniffer.Format;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService.LogCategory;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.context.SimpleWorkerContext.SimpleWorkerContextBuilder;
+import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.elementmodel.ObjectConverter;
 import org.hl7.fhir.r5.elementmodel.ParserBase.NamedElement;
+import org.hl7.fhir.r5.elementmodel.ParserBase.ValidationPolicy;
 import org.hl7.fhir.r5.formats.FormatUtilities;
 import org.hl7.fhir.r5.model.CanonicalType;
 import org.hl7.fhir.r5.model.DataType;
@@ -50,16 +73,191 @@ import org.hl7.fhir.r5.model.UriType;
 import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
 import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.utilities.xhtml.NodeType;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 
 public class SimpleFetcher implements IFetchFile {
 
+  /**
+   * Watches the source directories, and collects the paths that change. A burst of
+   * events (editors often write several times on save) is reported as a single change
+   */
+  private static class ChangeFeed implements Runnable {
+    private static final long DEBOUNCE = 300;
+    private static final long MAX_DEBOUNCE = 2000;
+
+    private WatchService ws;
+    private Map<WatchKey, Path> keys = new HashMap<>();
+    private Set<String> roots = new HashSet<>(); // watched with all their sub-directories
+    private Set<String> folders = new HashSet<>(); // just the files directly in them
+    private Set<String> changes = new HashSet<>();
+    private boolean overflow;
+    private long lastEvent;
+
+    private ChangeFeed() throws IOException {
+      ws = FileSystems.getDefault().newWatchService();
+    }
+
+    private void register(Path dir, boolean recursive) throws IOException {
+      if (recursive) {
+        roots.add(dir.toString());
+        registerTree(dir, null);
+      } else {
+        folders.add(dir.toString());
+        watch(dir);
+      }
+    }
+
+    private void registerTree(Path dir, Set<String> found) throws IOException {
+      Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+          if (!d.equals(dir) && isIgnoredFile(d.getFileName().toString())) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          watch(d);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          if (found != null) {
+            found.add(file.toString()); // created before we were watching the new directory
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+
+    private void watch(Path dir) throws IOException {
+      keys.put(dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+    }
+
+    private boolean isWatched(String path) {
+      for (String r : roots) {
+        if (path.startsWith(r+File.separator)) {
+          return true;
+        }
+      }
+      String parent = new File(path).getParent();
+      return parent != null && (folders.contains(parent) || roots.contains(parent));
+    }
+
+    private void start() {
+      Thread t = new Thread(this, "ig-publisher-change-feed");
+      t.setDaemon(true);
+      t.start();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        WatchKey key;
+        try {
+          key = ws.take();
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+          return;
+        }
+        Path dir = keys.get(key);
+        Set<String> found = new HashSet<>();
+        boolean lost = dir == null;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            lost = true;
+          } else if (dir != null) {
+            Path child = dir.resolve((Path) event.context());
+            if (isIgnoredFile(child.getFileName().toString()) || (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && Files.isDirectory(child))) {
+              continue; // editor temporary files, and directories (their content is reported separately)
+            }
+            found.add(child.toString());
+            if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+              found.add(dir.toString()); // the folder content list has changed
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child) && isWatched(child.toString())) {
+              try {
+                registerTree(child, found);
+              } catch (IOException e) {
+                lost = true;
+              }
+            }
+          }
+        }
+        if (!key.reset()) {
+          keys.remove(key);
+        }
+        if (!found.isEmpty() || lost) {
+          synchronized (this) {
+            changes.addAll(found);
+            overflow = overflow || lost;
+            lastEvent = System.currentTimeMillis();
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /**
+     * Wait until something changes, and then until the changes stop arriving
+     *
+     * @return the paths that have changed, or null if it's not known what changed (or if
+     *   nothing changed before the timeout)
+     */
+    private synchronized Set<String> waitForChanges(long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (changes.isEmpty() && !overflow && System.currentTimeMillis() < end) {
+        wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+      if (changes.isEmpty() && !overflow) {
+        return null;
+      }
+      long start = System.currentTimeMillis();
+      long quiet = System.currentTimeMillis() - lastEvent;
+      while (quiet < DEBOUNCE && System.currentTimeMillis() - start < MAX_DEBOUNCE) {
+        wait(DEBOUNCE - quiet);
+        quiet = System.currentTimeMillis() - lastEvent;
+      }
+      Set<String> res = overflow ? null : changes;
+      changes = new HashSet<>();
+      overflow = false;
+      return res;
+    }
+
+    private void close() {
+      try {
+        ws.close();
+      } catch (IOException e) {
+        // nothing
+      }
+    }
+  }
+
+  private static class ScanResult {
+    private boolean reuse; // unchanged since the last scan
+    private String contentType; // null if it's not a resource
+    private String type;
+    private byte[] source;
+    private Element element; // if it was parsed the way it's loaded
+    private List<ValidationMessage> errors; // what the parser found when it did
+    private List<String> messages = new ArrayList<>(); // logged in file order, once all the files are scanned
+  }
+
+  // when watching, even with no events, check everything this often, since some
+  // files that are loaded are outside the watched directories
+  private static final long FULL_CHECK_INTERVAL = 60000;
+
   private static final String[] EXTENSIONS = new String[] {".xml", ".json", ".map", ".phinvads", ".fml"};
   private IGKnowledgeProvider pkp;
   private List<String> resourceDirs;
   private ILoggingService log;
   private String rootDir;
+  private ChangeFeed feed;
+  private boolean fullReload = true; // if true, nothing is known about what has changed
+  private Set<String> dirty = new HashSet<>();
+  private Map<String, FetchedFile> known = new HashMap<>(); // what was found last time each file was read
+  private Map<String, String> scanned = new HashMap<>(); // content type found by scan(), or "" if not a resource
+  private int threads = 1;
+  private SimpleWorkerContext mapContext; // for parsing maps; the same for every map, so only made once
   
   public SimpleFetcher(ILoggingService log) {
     this.log = log;
@@ -75,6 +273,15 @@ public class SimpleFetcher implements IFetchFile {
     this.pkp = pkp;
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  @Override
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   public String getRootDir() {
     return rootDir;
   }
@@ -89,6 +296,10 @@ public class SimpleFetcher implements IFetchFile {
     File f = new File(path);
     if (!f.exists())
       throw new Exception("Unable to find file "+path);
+    FetchedFile k = unchanged(f);
+    if (k != null && path.equals(k.getStatedPath())) {
+      return copy(k, k.getStatedPath(), f);
+    }
     FetchedFile ff = new FetchedFile(path);
     ff.setPath(f.getCanonicalPath());
     ff.setName(f.isDirectory() ? path : fileTitle(path));
@@ -110,16 +321,13 @@ public class SimpleFetcher implements IFetchFile {
       } else if (path.endsWith("fml")) {
 	ff.setContentType("text/fhir-mapping"); //don't know if there is an official type
       }
-      InputStream ss = new FileInputStream(f);
-      byte[] b = new byte[ss.available()];
-      ss.read(b, 0, ss.available());
-      ff.setSource(b);
-      ss.close();
+      ff.loadSource(f);
     }
+    remember(ff, f);
     return ff;
   }
 
-  private boolean isIgnoredFile(String name) {
+  private static boolean isIgnoredFile(String name) {
     return name.startsWith(".")
       || name.endsWith("~"); // a little emacs love
   }
@@ -152,11 +360,7 @@ public class SimpleFetcher implements IFetchFile {
     } else if (f.getName().endsWith("xml")) {
       ff.setContentType("application/fhir+xml");
     }
-    InputStream ss = new FileInputStream(f);
-    byte[] b = new byte[ss.available()];
-    ss.read(b, 0, ss.available());
-    ff.setSource(b);
-    ss.close();
+    ff.loadSource(f);
     return ff;
   }
 
@@ -322,80 +526,39 @@ public class SimpleFetcher implements IFetchFile {
       int count = 0;
       File file = new File(s);
       if (file.exists()) {
+        List<File> files = new ArrayList<>();
         for (File f : file.listFiles()) {
-          if (!f.isDirectory()) {
-            String fn = f.getCanonicalPath();
-            String ext = Utilities.getFileExtension(fn);
-	    boolean ok = false;
-	    if (isIgnoredFile(f.getName())) {
-	      continue;
-	    }
-	    if (Utilities.existsInList(ext, "fml")  ) {
-              try {
-		InputStream fis = new FileInputStream(f);
-		byte[] source = new byte[fis.available()];
-		fis.read(source, 0, fis.available());
-		fis.close();
-		String contents = new String(source,StandardCharsets.UTF_8);
-
-		SimpleWorkerContext ctx = new SimpleWorkerContextBuilder().fromNothing();
-		StructureMapUtilities smu = new StructureMapUtilities(ctx);
-		StructureMap map = smu.parse(contents, "map");
-		map.getText().setStatus(NarrativeStatus.GENERATED);
-		map.getText().setDiv(new XhtmlNode(NodeType.Element, "div"));
-		map.getText().getDiv().addTag("pre").addText(contents);		  
-		ObjectConverter oc = new ObjectConverter(context);
-		addFile(res, f,oc.convert(map), "application/fhir+fml"); //why do we need the element?
-		ok = true;
-		count++;
-	      } catch (Exception e) {
-                if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-		  log.logMessage(e.getMessage() +" loading "+f);
-		}
-	      }		
-            } else if (!Utilities.existsInList(ext, "md", "txt") && !fn.endsWith(".gitignore") && !fn.contains("-spreadsheet") && !isIgnoredFile(f.getName())) {
-
-              if (!Utilities.existsInList(ext, "json", "ttl", "html", "txt"))
-                try {
-                  org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.XmlParser(context).parseSingle(new FileInputStream(f));
-                  addFile(res, f, e, "application/fhir+xml");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-") && !f.getName().startsWith("binary-") ) { // we don't notify here because Binary is special. 
-                    log.logMessage(e.getMessage() +" loading "+f);
-//                    e.printStackTrace();
-                  }
-                }
-              if (!ok && !Utilities.existsInList(ext, "xml", "ttl", "html", "txt")) {
-                try {
-                  List<NamedElement> el = new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new FileInputStream(fn));
-                  if (el.size() == 1) {
-                    addFile(res, f, el.get(0).getElement(), "application/fhir+json");
-                    count++;
-                    ok = true;
-                  }
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    log.logMessage(e.getMessage() +" loading "+f);
-//                    e.printStackTrace();
-                  }
-                }
-              }
-              if (!ok && !Utilities.existsInList(ext, "json", "xml", "html", "txt")) {
-                try {
-                  org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.TurtleParser(context).parseSingle(new FileInputStream(fn));
-                  addFile(res, f, e, "application/fhir+turtle");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    log.logMessage(e.getMessage() +" loading "+f);
-//                    e.printStackTrace();
-                  }
-                }
+          if (!f.isDirectory() && !isIgnoredFile(f.getName())) {
+            files.add(f);
+          }
+        }
+        // the files are read and parsed in parallel, but added in directory order
+        List<ScanResult> results = scanFiles(files, context);
+        for (int i = 0; i < files.size(); i++) {
+          File f = files.get(i);
+          ScanResult sr = results.get(i);
+          String fn = f.getCanonicalPath();
+          for (String msg : sr.messages) {
+            log.logMessage(msg);
+          }
+          if (sr.reuse) {
+            // unchanged since the last scan, so no need to parse it again to find out what it is
+            if (!"".equals(scanned.get(fn))) {
+              addFile(res, f, scanned.get(fn), null);
+              count++;
+            }
+          } else if (sr.contentType == null) {
+            scanned.put(fn, "");
+          } else {
+            if (!"ImplementationGuide".equals(sr.type)) {
+              FetchedFile ff = addFile(res, f, sr.contentType, sr.source);
+              if (sr.element != null) {
+                ff.setParsed(sr.element, sr.errors);
               }
-	    }
+            } else {
+              scanned.put(fn, "");
+            }
+            count++;
           }
         }
       }
@@ -404,24 +567,217 @@ public class SimpleFetcher implements IFetchFile {
     return res;
   }
 
-  private void addFile(List<FetchedFile> res, File f, org.hl7.fhir.r5.elementmodel.Element e, String cnt) throws IOException {
-    if (!e.fhirType().equals("ImplementationGuide"))
-      addFile(res, f, cnt);
+  private List<ScanResult> scanFiles(List<File> files, IWorkerContext context) throws IOException {
+    List<ScanResult> res = new ArrayList<>();
+    if (threads <= 1 || files.size() < 2) {
+      for (File f : files) {
+        res.add(scanFile(f, context));
+      }
+      return res;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<ScanResult>> futures = new ArrayList<>();
+      for (File f : files) {
+        futures.add(executor.submit(() -> scanFile(f, context)));
+      }
+      for (Future<ScanResult> future : futures) {
+        res.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted scanning files", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return res;
   }
-  
-  private void addFile(List<FetchedFile> res, File f, String cnt) throws IOException {
+
+  /**
+   * Read the file once, and work out what format it's in, and what resource, from the start
+   * of the content. If that's clear, it's parsed the way it will be loaded, and the element is
+   * kept for then. If not, parse it with the parsers the extension allows to
+   * check that it's a resource. Nothing in here
+   * changes the state of the fetcher, so files can be scanned in parallel
+   */
+  private ScanResult scanFile(File f, IWorkerContext context) throws IOException {
+    ScanResult sr = new ScanResult();
+    String fn = f.getCanonicalPath();
+    String ext = Utilities.getFileExtension(fn);
+    if (isClean(fn) && scanned.containsKey(fn)) {
+      sr.reuse = true;
+    } else if (Utilities.existsInList(ext, "fml")) {
+      try {
+        byte[] source = TextFile.fileToBytes(f);
+        String contents = new String(source, StandardCharsets.UTF_8);
+        StructureMap map;
+        SimpleWorkerContext ctx = getMapContext();
+        synchronized (ctx) {
+          map = new StructureMapUtilities(ctx).parse(contents, "map");
+        }
+        map.getText().setStatus(NarrativeStatus.GENERATED);
+        map.getText().setDiv(new XhtmlNode(NodeType.Element, "div"));
+        map.getText().getDiv().addTag("pre").addText(contents);
+        ObjectConverter oc = new ObjectConverter(context);
+        sr.type = oc.convert(map).fhirType(); //why do we need the element?
+        sr.contentType = "application/fhir+fml";
+        sr.source = source;
+      } catch (Exception e) {
+        if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
+          sr.messages.add(e.getMessage() +" loading "+f);
+        }
+      }
+    } else if (!Utilities.existsInList(ext, "md", "txt") && !fn.endsWith(".gitignore") && !fn.contains("-spreadsheet")) {
+      byte[] source = TextFile.fileToBytes(f);
+      ContentSniffer sniff = ContentSniffer.sniff(source);
+      List<Format> candidates = new ArrayList<>();
+      if (!Utilities.existsInList(ext, "json", "ttl", "html", "txt")) {
+        candidates.add(Format.XML);
+      }
+      if (!Utilities.existsInList(ext, "xml", "ttl", "html", "txt")) {
+        candidates.add(Format.JSON);
+      }
+      if (!Utilities.existsInList(ext, "json", "xml", "html", "txt")) {
+        candidates.add(Format.TURTLE);
+      }
+      // if the content is clearly one format, there's no point trying the others. Otherwise 
+      // everything the extension allows is tried, as it always was, so the parse errors are reported
+      boolean sniffed = candidates.contains(sniff.getFormat());
+      if (sniffed) {
+        candidates.clear();
+        candidates.add(sniff.getFormat());
+      }
+      if (sniffed && isResource(sniff, context)) {
+        // if it doesn't parse, it's reported and left out here, as it always was
+        load(sr, f, source, sniff.getFormat(), context);
+      } else {
+        for (Format fmt : candidates) {
+          if (sr.contentType == null) {
+            parse(sr, f, source, fmt, context);
+          }
+        }
+      }
+      if (sr.contentType != null) {
+        sr.source = source;
+      }
+    }
+    return sr;
+  }
+
+  /**
+   * True if the start of the content names a known resource type and gives the resource an id
+   */
+  private boolean isResource(ContentSniffer sniff, IWorkerContext context) {
+    return sniff.getResourceType() != null && sniff.getId() != null && context.getResourceNames().contains(sniff.getResourceType());
+  }
+
+  /**
+   * Parse the file as Publisher.loadAsElementModel does, so that it doesn't have to be parsed again
+   */
+  private void load(ScanResult sr, File f, byte[] source, Format fmt, IWorkerContext context) {
+    List<ValidationMessage> errors = new ArrayList<>();
+    try {
+      Element e;
+      if (fmt == Format.XML) {
+        org.hl7.fhir.r5.elementmodel.XmlParser xp = new org.hl7.fhir.r5.elementmodel.XmlParser(context);
+        xp.setAllowXsiLocation(true);
+        xp.setupValidation(ValidationPolicy.EVERYTHING, errors);
+        e = xp.parseSingle(new ByteArrayInputStream(source));
+      } else {
+        org.hl7.fhir.r5.elementmodel.JsonParser jp = new org.hl7.fhir.r5.elementmodel.JsonParser(context);
+        jp.setupValidation(ValidationPolicy.EVERYTHING, errors);
+        jp.setAllowComments(true);
+        e = jp.parseSingle(new ByteArrayInputStream(source));
+      }
+      if (e == null) {
+        parseFailed(sr, f, fmt, errors.isEmpty() ? "Unable to parse" : errors.get(0).summary());
+        return;
+      }
+      sr.type = e.fhirType();
+      sr.contentType = contentType(fmt);
+      sr.element = e;
+      sr.errors = errors;
+    } catch (Exception e) {
+      parseFailed(sr, f, fmt, e.getMessage());
+    }
+  }
+
+  private void parse(ScanResult sr, File f, byte[] source, Format fmt, IWorkerContext context) {
+    try {
+      switch (fmt) {
+      case XML:
+        sr.type = new org.hl7.fhir.r5.elementmodel.XmlParser(context).parseSingle(new ByteArrayInputStream(source)).fhirType();
+        break;
+      case JSON:
+        List<NamedElement> el = new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new ByteArrayInputStream(source));
+        if (el.size() != 1) {
+          return;
+        }
+        sr.type = el.get(0).getElement().fhirType();
+        break;
+      case TURTLE:
+        sr.type = new org.hl7.fhir.r5.elementmodel.TurtleParser(context).parseSingle(new ByteArrayInputStream(source)).fhirType();
+        break;
+      default:
+        return;
+      }
+      sr.contentType = contentType(fmt);
+    } catch (Exception e) {
+      parseFailed(sr, f, fmt, e.getMessage());
+    }
+  }
+
+  private void parseFailed(ScanResult sr, File f, Format fmt, String msg) {
+    if (!f.getName().startsWith("Binary-") && !(fmt == Format.XML && f.getName().startsWith("binary-"))) { // we don't notify here because Binary is special. 
+      sr.messages.add(msg +" loading "+f);
+    }
+  }
+
+  private String contentType(Format fmt) {
+    switch (fmt) {
+    case XML: return "application/fhir+xml";
+    case JSON: return "application/fhir+json";
+    case TURTLE: return "application/fhir+turtle";
+    default: return null;
+    }
+  }
+
+  private synchronized SimpleWorkerContext getMapContext() throws IOException {
+    if (mapContext == null) {
+      mapContext = new SimpleWorkerContextBuilder().fromNothing();
+    }
+    return mapContext;
+  }
+
+  /**
+   * @param source the content, if it's already been read. If it's null, and the file hasn't changed 
+   *   since it was last read, the content is only read when it's needed
+   */
+  private FetchedFile addFile(List<FetchedFile> res, File f, String cnt, byte[] source) throws IOException {
     FetchedFile ff = new FetchedFile(new File(rootDir).toURI().relativize(f.toURI()).getPath());
     ff.setPath(f.getCanonicalPath());
     ff.setName(fileTitle(f.getCanonicalPath()));
     ff.setTime(f.lastModified());
     ff.setFolder(false);   
     ff.setContentType(cnt);
-    InputStream ss = new FileInputStream(f);
-    byte[] b = new byte[ss.available()];
-    ss.read(b, 0, ss.available());
-    ff.setSource(b);
-    ss.close();
+    FetchedFile k = source == null ? unchanged(f) : null;
+    if (k != null) {
+      ff.setSourceFrom(k);
+    } else if (source == null) {
+      ff.loadSource(f);
+      remember(ff, f);
+    } else {
+      ff.setSource(source);
+      remember(ff, f);
+    }
+    scanned.put(ff.getPath(), cnt);
     res.add(ff);    
+    return ff;
   }
 
   public ILoggingService getLogger() {
@@ -458,5 +814,74 @@ public class SimpleFetcher implements IFetchFile {
     return TextFile.fileToString(filename);
   }
 
+  @Override
+  public boolean startWatching(List<String> recursiveDirs, List<String> dirs) {
+    try {
+      feed = new ChangeFeed();
+      for (String d : recursiveDirs) {
+        feed.register(new File(d).getCanonicalFile().toPath(), true);
+      }
+      for (String d : dirs) {
+        feed.register(new File(d).getCanonicalFile().toPath(), false);
+      }
+      feed.start();
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      log.logMessage("Unable to watch the file system for changes ("+e.getMessage()+"), so checking every file instead");
+      if (feed != null) {
+        feed.close();
+      }
+      feed = null;
+      return false;
+    }
+  }
+
+  @Override
+  public void waitForChanges(long pollInterval) throws InterruptedException {
+    if (feed == null) {
+      Thread.sleep(pollInterval);
+      fullReload = true;
+    } else {
+      Set<String> changes = feed.waitForChanges(FULL_CHECK_INTERVAL);
+      fullReload = changes == null;
+      dirty = changes == null ? new HashSet<>() : changes;
+    }
+  }
+
+  /**
+   * True if the file system events say that the file hasn't changed since the last load
+   */
+  private boolean isClean(String path) {
+    return feed != null && !fullReload && !dirty.contains(path) && feed.isWatched(path);
+  }
+
+  private FetchedFile unchanged(File f) throws IOException {
+    String path = f.getCanonicalPath();
+    if (!isClean(path)) {
+      return null;
+    }
+    FetchedFile k = known.get(path);
+    return k != null && k.getTime() == f.lastModified() ? k : null;
+  }
+
+  private void remember(FetchedFile ff, File f) {
+    known.put(ff.getPath(), copy(ff, ff.getStatedPath(), f));
+  }
+
+  private FetchedFile copy(FetchedFile k, String statedPath, File f) {
+    FetchedFile ff = new FetchedFile(statedPath);
+    ff.setPath(k.getPath());
+    ff.setName(k.getName());
+    ff.setTime(k.getTime());
+    ff.setContentType(k.getContentType());
+    ff.setFolder(k.isFolder());
+    if (k.isFolder()) {
+      ff.getFiles().addAll(k.getFiles());
+    } else if (k.hasSource()) {
+      ff.setSourceFrom(k);
+    }
+    return ff;
+  }
+
   
 }
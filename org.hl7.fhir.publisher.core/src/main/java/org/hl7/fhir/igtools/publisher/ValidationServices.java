@@ -26,11 +26,16 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.ResourceIndex.BundleEntryReference;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.elementmodel.Manager;
@@ -65,18 +70,21 @@ public class ValidationServices implements IValidatorResourceFetcher, IValidatio
 
   private IWorkerContext context;
   private IGKnowledgeProvider ipg;
-  private List<FetchedFile> files;
+  private ResourceIndex index;
   private List<NpmPackage> packages;
-  private List<String> otherUrls = new ArrayList<>();
-  private List<String> mappingUrls = new ArrayList<>();
+  private Set<String> otherUrls = new HashSet<>();
+  private Set<String> mappingUrls = new HashSet<>();
   private boolean bundleReferencesResolve;
+  private volatile Map<NamingSystemIdentifierType, Set<String>> namingSystemIds; // built on first use after resources are loaded
   
+  private static final Set<String> BUILD_EXTENSION_URLS = new HashSet<>(Arrays.asList(org.hl7.fhir.r5.utils.BuildExtensions.allConsts()));
   
-  public ValidationServices(IWorkerContext context, IGKnowledgeProvider ipg, List<FetchedFile> files, List<NpmPackage> packages, boolean bundleReferencesResolve) {
+  
+  public ValidationServices(IWorkerContext context, IGKnowledgeProvider ipg, ResourceIndex index, List<NpmPackage> packages, boolean bundleReferencesResolve) {
     super();
     this.context = context;
     this.ipg = ipg;
-    this.files = files;
+    this.index = index;
     this.packages = packages;
     this.bundleReferencesResolve = bundleReferencesResolve;
     initOtherUrls();
@@ -136,29 +144,16 @@ public class ValidationServices implements IValidatorResourceFetcher, IValidatio
     
     if (!Utilities.isAbsoluteUrl(url) || url.startsWith(ipg.getCanonical())) {
       if (parts.length == 2) {
-        for (FetchedFile f : files) {
-          for (FetchedResource r : f.getResources()) {
-            if (r.getElement().fhirType().equals(parts[parts.length-2]) && r.getId().equals(parts[parts.length-1]))
-              return r.getElement();
-          }
-        }
+        FetchedResource r = index.getByElementTypeAndId(parts[parts.length-2], parts[parts.length-1]);
+        if (r != null)
+          return r.getElement();
       }
     }
     
     if (Utilities.isAbsoluteUrl(url)) {
-      for (FetchedFile f : files) {
-        for (FetchedResource r : f.getResources()) {
-          if (r.getElement().fhirType().equals("Bundle")) {
-            for (Element be : r.getElement().getChildren("entry")) {
-              Element ber = be.getNamedChild("resource");
-              if (ber != null) {
-                if (be.hasChild("fullUrl") && be.getChildValue("fullUrl").equals(url))
-                  return ber;
-              }
-            }
-          }
-        }
-      }
+      BundleEntryReference be = index.getBundleEntryByFullUrl(url);
+      if (be != null)
+        return be.getResource();
     }
 
     if (parts.length >= 2 && Utilities.existsInList(parts[parts.length - 2], context.getResourceNames())) {
@@ -228,15 +223,13 @@ public class ValidationServices implements IValidatorResourceFetcher, IValidatio
     }
     
 
-    for (NamingSystem ns : context.fetchResourcesByType(NamingSystem.class)) {
-      if (hasURL(ns, u)) {
-        // ignore the version?
-        return true;
-      }
+    if (hasNamingSystemId(NamingSystemIdentifierType.URI, u)) {
+      // ignore the version?
+      return true;
     }
     
     if (u.startsWith("http://hl7.org/fhir")) {
-      if (Utilities.existsInList(u, org.hl7.fhir.r5.utils.BuildExtensions.allConsts())) {
+      if (BUILD_EXTENSION_URLS.contains(u)) {
         return true;
       }
       try {
@@ -249,25 +242,58 @@ public class ValidationServices implements IValidatorResourceFetcher, IValidatio
     return true;
   }
   
-  private boolean hasURL(NamingSystem ns, String url) {
-    for (NamingSystemUniqueIdComponent uid : ns.getUniqueId()) {
-      if (uid.getType() == NamingSystemIdentifierType.URI && uid.hasValue() && uid.getValue().equals(url)) {
-        return true;
+  /**
+   * Whether any NamingSystem in the context has a uniqueId of this type and value
+   */
+  public boolean hasNamingSystemId(NamingSystemIdentifierType type, String value) {
+    Map<NamingSystemIdentifierType, Set<String>> ids = namingSystemIds;
+    if (ids == null) {
+      synchronized (this) {
+        if (namingSystemIds == null) {
+          namingSystemIds = buildNamingSystemIds();
+        }
+        ids = namingSystemIds;
       }
     }
-    return false;
+    Set<String> values = ids.get(type);
+    return values != null && values.contains(value);
+  }
+
+  private Map<NamingSystemIdentifierType, Set<String>> buildNamingSystemIds() {
+    Map<NamingSystemIdentifierType, Set<String>> res = new HashMap<>();
+    for (NamingSystem ns : context.fetchResourcesByType(NamingSystem.class)) {
+      for (NamingSystemUniqueIdComponent uid : ns.getUniqueId()) {
+        if (uid.hasType() && uid.hasValue()) {
+          Set<String> values = res.get(uid.getType());
+          if (values == null) {
+            values = new HashSet<>();
+            res.put(uid.getType(), values);
+          }
+          values.add(uid.getValue());
+        }
+      }
+    }
+    return res;
   }
 
+  /**
+   * Call this when resources have been loaded into the context, so that the NamingSystem
+   * uniqueIds are looked up again
+   */
+  public void resourcesLoaded() {
+    namingSystemIds = null;
+  }
 
-  public List<String> getOtherUrls() {
+  public Set<String> getOtherUrls() {
     return otherUrls;
   }
 
-  public List<String> getMappingUrls() {
+  public Set<String> getMappingUrls() {
     return mappingUrls;
   }
 
   public void initOtherUrls() {
+    resourcesLoaded();
     otherUrls.clear();
     otherUrls.addAll(SIDUtilities.allSystemsList());
     otherUrls.add("http://hl7.org/fhir/w5");
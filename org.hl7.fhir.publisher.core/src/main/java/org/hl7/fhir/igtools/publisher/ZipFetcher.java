@@ -32,7 +32,6 @@ import java.util.Map.Entry;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
 import org.hl7.fhir.r5.formats.FormatUtilities;
@@ -90,8 +89,7 @@ public class ZipFetcher implements IFetchFile {
           } else if (entryName.endsWith("xml")) {
             ff.setContentType("application/fhir+xml");
           }
-          byte[] bytes = IOUtils.toByteArray(zis);
-          ff.setSource(bytes);
+          ff.loadSource(zis);
         }
         if (entryName.contains("/"))
           dirs.get(entryName.substring(0, entryName.lastIndexOf("/"))).getFiles().add(entryName);
@@ -297,4 +295,19 @@ public class ZipFetcher implements IFetchFile {
     
   }
 
+  @Override
+  public void setThreads(int threads) {
+    // the zip is read sequentially
+  }
+
+  @Override
+  public boolean startWatching(List<String> recursiveDirs, List<String> dirs) {
+    return false;
+  }
+
+  @Override
+  public void waitForChanges(long pollInterval) throws InterruptedException {
+    Thread.sleep(pollInterval);
+  }
+
 }
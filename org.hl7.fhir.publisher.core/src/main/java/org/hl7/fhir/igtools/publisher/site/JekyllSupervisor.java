@@ -0,0 +1,326 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps one jekyll process running in watch mode (jekyll build --watch --incremental) across
+ * the publisher's watch cycles, instead of starting jekyll and building the whole site for
+ * every change.
+ *
+ * Jekyll finds the changes itself, by watching the source folder; after each cycle, update()
+ * works out which files the cycle changed, and waits until jekyll has finished a regeneration
+ * after the last of them was written, and has gone quiet. If jekyll doesn't notice the changes, the
+ * changed files are touched, once, to tell it about them. If the process dies, or a build
+ * or regeneration takes longer than the build timeout, it's killed and started again (which
+ * builds the whole site). Jekyll writes nothing while it's building, so how long it has been
+ * silent says nothing about whether it's stuck
+ */
+public class JekyllSupervisor {
+
+  private static final String DONE = "done in";
+  private static final String REGENERATING = "Regenerating:";
+  private static final long SETTLE = 1000; // jekyll notices changes well within this
+
+  private List<String> command;
+  private Map<String, String> environment = new HashMap<>();
+  private File folder;
+  private Consumer<String> logger;
+  private long noticeTimeout = 10000;
+  private long buildTimeout = 3600000;
+
+  private Process process;
+  private Map<String, long[]> stamps; // path -> size, modified
+  private int restarts;
+  private int generation; // the number of builds the current process has finished
+  private boolean building;
+  private long buildStart; // when the current build or regeneration started
+  private long lastDone;
+  private long lastScan;
+
+  /**
+   * @param command the command that runs jekyll in watch mode, e.g. bash -c "jekyll build --watch --incremental --destination ..."
+   * @param folder the jekyll source folder (where the command is run)
+   * @param logger gets each line jekyll writes
+   */
+  public JekyllSupervisor(List<String> command, String folder, Consumer<String> logger) {
+    super();
+    this.command = command;
+    this.folder = new File(folder);
+    this.logger = logger;
+  }
+
+  public Map<String, String> getEnvironment() {
+    return environment;
+  }
+
+  /**
+   * How long to wait for jekyll to start regenerating after the changes are written, before
+   * the changed files are touched (and then, before it's restarted)
+   */
+  public void setNoticeTimeout(long noticeTimeout) {
+    this.noticeTimeout = noticeTimeout;
+  }
+
+  /**
+   * The longest a full build (when jekyll is started), or a regeneration, can take before
+   * jekyll is treated as stuck
+   */
+  public void setBuildTimeout(long buildTimeout) {
+    this.buildTimeout = buildTimeout;
+  }
+
+  public int getRestarts() {
+    return restarts;
+  }
+
+  public synchronized int getGeneration() {
+    return generation;
+  }
+
+  public boolean isRunning() {
+    return process != null && process.isAlive();
+  }
+
+  /**
+   * Starts jekyll, and waits for the first (full) build
+   */
+  public void start() throws IOException {
+    lastScan = System.currentTimeMillis();
+    stamps = scan();
+    launch();
+    waitForBuild(0);
+  }
+
+  /**
+   * Brings the site up to date with the changes made to the source folder since the last
+   * call (or start())
+   *
+   * @param since when the change that started this cycle was seen, for reporting the delay
+   * @return the number of changed files
+   */
+  public int update(long since) throws IOException {
+    long previousScan = lastScan;
+    lastScan = System.currentTimeMillis();
+    Map<String, long[]> current = scan();
+    List<String> changed = new ArrayList<>();
+    long newest = 0;
+    for (String path : current.keySet()) {
+      long[] s = stamps.get(path);
+      long[] c = current.get(path);
+      if (s == null || s[0] != c[0] || s[1] != c[1]) {
+        changed.add(path);
+        newest = Math.max(newest, c[1]);
+      }
+    }
+    int deleted = 0;
+    for (String path : stamps.keySet()) {
+      if (!current.containsKey(path)) {
+        deleted++;
+      }
+    }
+    stamps = current;
+    if (changed.isEmpty() && deleted == 0) {
+      return 0;
+    }
+    if (deleted > 0) {
+      newest = Math.max(newest, previousScan);
+    }
+    if (!isRunning()) {
+      restart("jekyll is not running");
+    } else if (!waitForRegeneration(newest)) {
+      // jekyll hasn't seen the changes: tell it about them
+      for (String path : changed) {
+        new File(folder, path).setLastModified(System.currentTimeMillis());
+      }
+      stamps = scan();
+      if (!waitForRegeneration(System.currentTimeMillis())) {
+        restart("jekyll did not pick up the changes");
+      }
+    }
+    logger.accept("Site updated "+(System.currentTimeMillis() - since)+"ms after the change was seen ("+changed.size()+" files changed, "+deleted+" deleted)");
+    return changed.size() + deleted;
+  }
+
+  /**
+   * Waits until jekyll has finished a regeneration after [after], and hasn't started another
+   * one since
+   *
+   * @return false if jekyll didn't start one in time
+   */
+  private boolean waitForRegeneration(long after) throws IOException {
+    long start = System.currentTimeMillis();
+    while (true) {
+      synchronized (this) {
+        if (!isRunning()) {
+          restart("jekyll stopped");
+          return true;
+        }
+        long now = System.currentTimeMillis();
+        if (!building && lastDone >= after && now - lastDone >= SETTLE) {
+          return true;
+        }
+        if (building && now - buildStart > buildTimeout) {
+          restart("jekyll has stalled (regenerating for more than "+(buildTimeout / 1000)+" seconds)");
+          return true;
+        }
+        if (!building && now - start > noticeTimeout) {
+          return false;
+        }
+        try {
+          wait(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for jekyll", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for the build after jekyll starts. If it doesn't finish, jekyll is started again,
+   * unless this is already a second attempt
+   */
+  private void waitForBuild(int attempt) throws IOException {
+    long start = System.currentTimeMillis();
+    while (true) {
+      synchronized (this) {
+        if (generation > 0) {
+          return;
+        }
+        long now = System.currentTimeMillis();
+        String problem = null;
+        if (!isRunning()) {
+          problem = "jekyll stopped before it built the site (exit code "+process.exitValue()+")";
+        } else if (now - start > buildTimeout) {
+          problem = "jekyll did not build the site in "+(buildTimeout / 1000)+" seconds";
+        }
+        if (problem != null) {
+          if (attempt > 0) {
+            kill();
+            throw new IOException(problem);
+          }
+          logger.accept(problem+"; starting it again");
+          kill();
+          restarts++;
+          launch();
+          start = System.currentTimeMillis();
+          attempt++;
+        } else {
+          try {
+            wait(100);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for jekyll", e);
+          }
+        }
+      }
+    }
+  }
+
+  private void restart(String reason) throws IOException {
+    logger.accept(reason+"; starting it again");
+    kill();
+    restarts++;
+    stamps = scan();
+    launch();
+    waitForBuild(1);
+  }
+
+  private synchronized void launch() throws IOException {
+    generation = 0;
+    building = true;
+    buildStart = System.currentTimeMillis();
+    lastDone = 0;
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.directory(folder);
+    pb.redirectErrorStream(true);
+    pb.environment().putAll(environment);
+    Process p = pb.start();
+    process = p;
+    Thread reader = new Thread(() -> read(p), "jekyll-output");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void read(Process p) {
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        synchronized (this) {
+          if (p == process) {
+            long now = System.currentTimeMillis();
+            if (line.contains(REGENERATING)) {
+              building = true;
+              buildStart = now;
+            } else if (line.contains(DONE)) {
+              building = false;
+              lastDone = now;
+              generation++;
+            }
+            notifyAll();
+          }
+        }
+        if (line.trim().length() > 0) {
+          logger.accept(line.trim());
+        }
+      }
+    } catch (IOException e) {
+      // the process has gone
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  private void kill() {
+    Process p = process;
+    if (p != null) {
+      p.descendants().forEach(ProcessHandle::destroyForcibly);
+      p.destroyForcibly();
+      try {
+        p.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops jekyll (at the end of the watch)
+   */
+  public void stop() {
+    kill();
+    process = null;
+  }
+
+  private Map<String, long[]> scan() {
+    Map<String, long[]> res = new HashMap<>();
+    scan(folder, "", res);
+    return res;
+  }
+
+  private void scan(File dir, String prefix, Map<String, long[]> res) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.getName().startsWith(".jekyll")) {
+          continue; // jekyll's own cache and metadata
+        }
+        if (f.isDirectory()) {
+          scan(f, prefix+f.getName()+"/", res);
+        } else {
+          res.put(prefix+f.getName(), new long[] { f.length(), f.lastModified() });
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * The variables for rendering one page, and the includes it uses. Not thread safe: each
+ * page gets its own context
+ */
+public class LiquidContext {
+
+  public interface IncludeResolver {
+    /**
+     * @return the parsed include, or null if there's no include by that name
+     */
+    LiquidTemplate resolveInclude(String name, boolean relative) throws IOException;
+  }
+
+  private static final int MAX_INCLUDE_DEPTH = 50;
+
+  private List<Map<String, Object>> scopes = new ArrayList<>();
+  private Map<String, Integer> counters = new HashMap<>();
+  private IncludeResolver includes;
+  private Function<String, String> markdown;
+  private int depth;
+
+  public LiquidContext(Map<String, Object> globals, IncludeResolver includes, Function<String, String> markdown) {
+    super();
+    scopes.add(new HashMap<>(globals));
+    this.includes = includes;
+    this.markdown = markdown;
+  }
+
+  public Object get(String name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Map<String, Object> scope = scopes.get(i);
+      if (scope.containsKey(name)) {
+        return scope.get(name);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Set a variable in the outermost scope, as assign and capture do
+   */
+  public void assign(String name, Object value) {
+    scopes.get(0).put(name, value);
+  }
+
+  public void push(Map<String, Object> scope) {
+    scopes.add(scope);
+  }
+
+  public void pop() {
+    scopes.remove(scopes.size() - 1);
+  }
+
+  String markdown(String s) {
+    return markdown == null ? s : markdown.apply(s);
+  }
+
+  int count(String name, boolean increment) {
+    int v = counters.getOrDefault(name, 0);
+    if (increment) {
+      counters.put(name, v + 1);
+      return v;
+    } else {
+      counters.put(name, v - 1);
+      return v - 1;
+    }
+  }
+
+  LiquidTemplate resolveInclude(String name, boolean relative) throws IOException {
+    LiquidTemplate t = includes == null ? null : includes.resolveInclude(name, relative);
+    if (t == null) {
+      throw new FHIRException("Liquid Exception: Could not locate the included file '"+name+"' in any of [\"_includes\"]");
+    }
+    return t;
+  }
+
+  void enterInclude(String name) {
+    depth++;
+    if (depth > MAX_INCLUDE_DEPTH) {
+      throw new FHIRException("Liquid Exception: Nesting too deep including '"+name+"'");
+    }
+  }
+
+  void exitInclude() {
+    depth--;
+  }
+}
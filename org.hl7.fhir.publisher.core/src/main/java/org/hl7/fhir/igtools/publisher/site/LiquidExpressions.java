@@ -0,0 +1,539 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * The expressions in Liquid output and tags: literals, variables (a.b[0]["c"]), ranges,
+ * filters, and the conditions in if, unless and elsif
+ */
+class LiquidExpressions {
+
+  private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?");
+  private static final String[] OPERATORS = { "==", "!=", "<>", ">=", "<=", ">", "<", " contains " };
+
+  private static class Keyword {
+    @Override
+    public String toString() {
+      return "";
+    }
+  }
+
+  /** The 'empty' keyword: equal to an empty string, list or map */
+  static final Object EMPTY = new Keyword();
+  /** The 'blank' keyword: as empty, but also equal to nil, false and whitespace */
+  static final Object BLANK = new Keyword();
+
+  interface Value {
+    Object evaluate(LiquidContext ctxt);
+  }
+
+  interface Condition {
+    boolean test(LiquidContext ctxt);
+  }
+
+  static class Literal implements Value {
+    private Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    public Object evaluate(LiquidContext ctxt) {
+      return value;
+    }
+  }
+
+  static class Variable implements Value {
+    private String root;
+    private List<Object> segments = new ArrayList<>(); // String or Value
+
+    @Override
+    public Object evaluate(LiquidContext ctxt) {
+      Object v = root == null ? null : ctxt.get(root);
+      for (Object s : segments) {
+        Object key = s instanceof Value ? ((Value) s).evaluate(ctxt) : s;
+        v = property(v, key);
+        if (v == null) {
+          return null;
+        }
+      }
+      return v;
+    }
+  }
+
+  static class Range implements Value {
+    private Value from;
+    private Value to;
+
+    @Override
+    public Object evaluate(LiquidContext ctxt) {
+      int f = LiquidFilters.toInt(from.evaluate(ctxt));
+      int t = LiquidFilters.toInt(to.evaluate(ctxt));
+      List<Object> res = new ArrayList<>();
+      for (int i = f; i <= t; i++) {
+        res.add(i);
+      }
+      return res;
+    }
+  }
+
+  static class Filter {
+    private String name;
+    private List<Value> args = new ArrayList<>();
+  }
+
+  static class Filtered implements Value {
+    private Value value;
+    private List<Filter> filters = new ArrayList<>();
+
+    @Override
+    public Object evaluate(LiquidContext ctxt) {
+      Object v = value.evaluate(ctxt);
+      for (Filter f : filters) {
+        List<Object> args = new ArrayList<>();
+        for (Value a : f.args) {
+          args.add(a.evaluate(ctxt));
+        }
+        v = LiquidFilters.apply(f.name, v, args, ctxt);
+      }
+      return v;
+    }
+  }
+
+  private static class Comparison implements Condition {
+    private Value left;
+    private String op;
+    private Value right;
+
+    @Override
+    public boolean test(LiquidContext ctxt) {
+      Object l = left.evaluate(ctxt);
+      if (op == null) {
+        return isTruthy(l);
+      }
+      Object r = right.evaluate(ctxt);
+      switch (op) {
+      case "==":
+        return areEqual(l, r);
+      case "!=":
+      case "<>":
+        return !areEqual(l, r);
+      case "contains":
+        return contains(l, r);
+      default:
+        return compare(l, r, op);
+      }
+    }
+  }
+
+  private static class Logical implements Condition {
+    private List<Condition> conditions = new ArrayList<>();
+    private List<String> ops = new ArrayList<>();
+
+    @Override
+    public boolean test(LiquidContext ctxt) {
+      // Liquid has no precedence: the conditions are evaluated right to left
+      boolean res = conditions.get(conditions.size() - 1).test(ctxt);
+      for (int i = conditions.size() - 2; i >= 0; i--) {
+        if ("and".equals(ops.get(i))) {
+          res = conditions.get(i).test(ctxt) && res;
+        } else {
+          res = conditions.get(i).test(ctxt) || res;
+        }
+      }
+      return res;
+    }
+  }
+
+  static Condition not(Condition c) {
+    return ctxt -> !c.test(ctxt);
+  }
+
+  // --- parsing ------------------------------------------------------------------------
+
+  static Filtered parseFiltered(String s) {
+    List<String> parts = splitOutside(s, "|");
+    if (parts.isEmpty() || parts.get(0).trim().isEmpty()) {
+      throw new FHIRException("Liquid syntax error: missing value in '"+s.trim()+"'");
+    }
+    Filtered res = new Filtered();
+    res.value = parseValue(parts.get(0));
+    for (int i = 1; i < parts.size(); i++) {
+      String p = parts.get(i).trim();
+      Filter f = new Filter();
+      int c = indexOutside(p, ":");
+      if (c == -1) {
+        f.name = p;
+      } else {
+        f.name = p.substring(0, c).trim();
+        for (String a : splitOutside(p.substring(c+1), ",")) {
+          // keyword arguments (name: value) are passed by position
+          int k = indexOutside(a, ":");
+          f.args.add(parseValue(k == -1 ? a : a.substring(k+1)));
+        }
+      }
+      res.filters.add(f);
+    }
+    return res;
+  }
+
+  static Condition parseCondition(String s) {
+    Logical res = new Logical();
+    List<String> tokens = splitWords(s);
+    StringBuilder b = new StringBuilder();
+    for (String t : tokens) {
+      if (t.equals("and") || t.equals("or")) {
+        res.conditions.add(parseComparison(b.toString()));
+        res.ops.add(t);
+        b.setLength(0);
+      } else {
+        b.append(t);
+        b.append(" ");
+      }
+    }
+    res.conditions.add(parseComparison(b.toString()));
+    return res.conditions.size() == 1 ? res.conditions.get(0) : res;
+  }
+
+  private static Condition parseComparison(String s) {
+    Comparison c = new Comparison();
+    String padded = " "+s.trim()+" ";
+    for (String op : OPERATORS) {
+      int i = indexOutside(padded, op);
+      if (i > -1) {
+        c.left = parseValue(padded.substring(0, i));
+        c.op = op.trim();
+        c.right = parseValue(padded.substring(i + op.length()));
+        return c;
+      }
+    }
+    c.left = parseValue(s);
+    return c;
+  }
+
+  static Value parseValue(String s) {
+    s = s.trim();
+    if (s.isEmpty()) {
+      throw new FHIRException("Liquid syntax error: missing value");
+    }
+    char ch = s.charAt(0);
+    if ((ch == '"' || ch == '\'') && s.length() > 1 && s.charAt(s.length() - 1) == ch) {
+      return new Literal(s.substring(1, s.length() - 1));
+    }
+    if (ch == '(' && s.endsWith(")") && s.contains("..")) {
+      Range r = new Range();
+      String inner = s.substring(1, s.length() - 1);
+      r.from = parseValue(inner.substring(0, inner.indexOf("..")));
+      r.to = parseValue(inner.substring(inner.indexOf("..") + 2));
+      return r;
+    }
+    if (NUMBER.matcher(s).matches()) {
+      if (s.contains(".")) {
+        return new Literal(Double.parseDouble(s));
+      }
+      long l = Long.parseLong(s);
+      return new Literal(l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE ? (Object) (int) l : (Object) l);
+    }
+    switch (s) {
+    case "true":
+      return new Literal(true);
+    case "false":
+      return new Literal(false);
+    case "nil":
+    case "null":
+      return new Literal(null);
+    case "empty":
+      return new Literal(EMPTY);
+    case "blank":
+      return new Literal(BLANK);
+    }
+    return parseVariable(s);
+  }
+
+  private static Variable parseVariable(String s) {
+    Variable v = new Variable();
+    int i = 0;
+    if (s.charAt(0) != '[') {
+      i = identifierEnd(s, 0);
+      if (i == 0) {
+        throw new FHIRException("Liquid syntax error: unexpected character '"+s.charAt(0)+"' in '"+s+"'");
+      }
+      v.root = s.substring(0, i);
+    }
+    while (i < s.length()) {
+      char ch = s.charAt(i);
+      if (ch == '.') {
+        int e = identifierEnd(s, i + 1);
+        if (e == i + 1) {
+          throw new FHIRException("Liquid syntax error: unexpected character in '"+s+"'");
+        }
+        v.segments.add(s.substring(i + 1, e));
+        i = e;
+      } else if (ch == '[') {
+        int e = matchingBracket(s, i);
+        if (e == -1) {
+          throw new FHIRException("Liquid syntax error: unmatched [ in '"+s+"'");
+        }
+        Value index = parseValue(s.substring(i + 1, e));
+        if (v.root == null && v.segments.isEmpty()) {
+          // ["name"] at the start is a variable lookup
+          if (!(index instanceof Literal)) {
+            throw new FHIRException("Liquid syntax error: unexpected character in '"+s+"'");
+          }
+          v.root = String.valueOf(((Literal) index).value);
+        } else {
+          v.segments.add(index instanceof Literal ? ((Literal) index).value : index);
+        }
+        i = e + 1;
+      } else {
+        throw new FHIRException("Liquid syntax error: unexpected character '"+ch+"' in '"+s+"'");
+      }
+    }
+    return v;
+  }
+
+  private static int identifierEnd(String s, int i) {
+    while (i < s.length() && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '_' || s.charAt(i) == '-' || s.charAt(i) == '?')) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int matchingBracket(String s, int i) {
+    int depth = 0;
+    char quote = 0;
+    for (int j = i; j < s.length(); j++) {
+      char ch = s.charAt(j);
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (ch == '"' || ch == '\'') {
+        quote = ch;
+      } else if (ch == '[') {
+        depth++;
+      } else if (ch == ']') {
+        depth--;
+        if (depth == 0) {
+          return j;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The index of the separator, ignoring quoted strings and brackets
+   */
+  static int indexOutside(String s, String sep) {
+    char quote = 0;
+    int depth = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (ch == '"' || ch == '\'') {
+        quote = ch;
+      } else if (ch == '[' || ch == '(') {
+        depth++;
+      } else if (ch == ']' || ch == ')') {
+        depth--;
+      } else if (depth == 0 && s.startsWith(sep, i)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Split on any of the separators, ignoring quoted strings and brackets
+   */
+  static List<String> splitOutside(String s, String... seps) {
+    List<String> res = new ArrayList<>();
+    int last = 0;
+    char quote = 0;
+    int depth = 0;
+    int i = 0;
+    while (i < s.length()) {
+      char ch = s.charAt(i);
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (ch == '"' || ch == '\'') {
+        quote = ch;
+      } else if (ch == '[' || ch == '(') {
+        depth++;
+      } else if (ch == ']' || ch == ')') {
+        depth--;
+      } else if (depth == 0) {
+        String found = null;
+        for (String sep : seps) {
+          if (s.startsWith(sep, i)) {
+            found = sep;
+            break;
+          }
+        }
+        if (found != null) {
+          res.add(s.substring(last, i));
+          i += found.length();
+          last = i;
+          continue;
+        }
+      }
+      i++;
+    }
+    res.add(s.substring(last));
+    return res;
+  }
+
+  /**
+   * Split on whitespace, keeping quoted strings together
+   */
+  private static List<String> splitWords(String s) {
+    List<String> res = new ArrayList<>();
+    StringBuilder b = new StringBuilder();
+    char quote = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (quote != 0) {
+        b.append(ch);
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (Character.isWhitespace(ch)) {
+        if (b.length() > 0) {
+          res.add(b.toString());
+          b.setLength(0);
+        }
+      } else {
+        if (ch == '"' || ch == '\'') {
+          quote = ch;
+        }
+        b.append(ch);
+      }
+    }
+    if (b.length() > 0) {
+      res.add(b.toString());
+    }
+    return res;
+  }
+
+  // --- evaluation ---------------------------------------------------------------------
+
+  @SuppressWarnings("rawtypes")
+  static Object property(Object v, Object key) {
+    if (v instanceof Map) {
+      Map m = (Map) v;
+      Object res = m.get(key == null ? null : key instanceof String ? key : String.valueOf(key));
+      if (res == null && "size".equals(key) && !m.containsKey("size")) {
+        return m.size();
+      }
+      return res;
+    }
+    if (v instanceof List) {
+      List l = (List) v;
+      if (key instanceof Number) {
+        int i = ((Number) key).intValue();
+        if (i < 0) {
+          i = l.size() + i;
+        }
+        return i >= 0 && i < l.size() ? l.get(i) : null;
+      }
+      if ("size".equals(key)) {
+        return l.size();
+      }
+      if ("first".equals(key)) {
+        return l.isEmpty() ? null : l.get(0);
+      }
+      if ("last".equals(key)) {
+        return l.isEmpty() ? null : l.get(l.size() - 1);
+      }
+      return null;
+    }
+    if (v instanceof String && "size".equals(key)) {
+      return ((String) v).length();
+    }
+    return null;
+  }
+
+  static boolean isTruthy(Object v) {
+    return v != null && !Boolean.FALSE.equals(v);
+  }
+
+  @SuppressWarnings("rawtypes")
+  static boolean isEmpty(Object v) {
+    return (v instanceof String && ((String) v).isEmpty()) || (v instanceof Collection && ((Collection) v).isEmpty()) || (v instanceof Map && ((Map) v).isEmpty());
+  }
+
+  static boolean isBlank(Object v) {
+    return v == null || Boolean.FALSE.equals(v) || isEmpty(v) || (v instanceof String && ((String) v).trim().isEmpty());
+  }
+
+  static boolean areEqual(Object l, Object r) {
+    if (r == EMPTY || r == BLANK) {
+      Object t = l;
+      l = r;
+      r = t;
+    }
+    if (l == EMPTY) {
+      return r == EMPTY || isEmpty(r);
+    }
+    if (l == BLANK) {
+      return r == BLANK || isBlank(r);
+    }
+    if (l instanceof Number && r instanceof Number) {
+      return ((Number) l).doubleValue() == ((Number) r).doubleValue();
+    }
+    return l == null ? r == null : l.equals(r);
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static boolean contains(Object l, Object r) {
+    if (l instanceof String) {
+      return r != null && ((String) l).contains(LiquidFilters.str(r));
+    }
+    if (l instanceof Collection) {
+      for (Object o : (Collection) l) {
+        if (areEqual(o, r)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (l instanceof Map) {
+      return ((Map) l).containsKey(r);
+    }
+    return false;
+  }
+
+  private static boolean compare(Object l, Object r, String op) {
+    int c;
+    if (l instanceof Number && r instanceof Number) {
+      c = Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
+    } else if (l instanceof String && r instanceof String) {
+      c = ((String) l).compareTo((String) r);
+    } else {
+      return false;
+    }
+    switch (op) {
+    case ">":
+      return c > 0;
+    case "<":
+      return c < 0;
+    case ">=":
+      return c >= 0;
+    default:
+      return c <= 0;
+    }
+  }
+}
@@ -0,0 +1,598 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The standard Liquid filters, and the Jekyll ones the IG templates use. Unknown filters
+ * return their input unchanged, as they do in Jekyll (which doesn't run Liquid in strict mode)
+ */
+class LiquidFilters {
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  static Object apply(String name, Object input, List<Object> args, LiquidContext ctxt) {
+    switch (name) {
+    // strings
+    case "append":
+      return str(input)+str(arg(args, 0));
+    case "prepend":
+      return str(arg(args, 0))+str(input);
+    case "capitalize": {
+      String s = str(input);
+      return s.isEmpty() ? s : s.substring(0, 1).toUpperCase()+s.substring(1).toLowerCase();
+    }
+    case "downcase":
+      return str(input).toLowerCase();
+    case "upcase":
+      return str(input).toUpperCase();
+    case "escape":
+    case "xml_escape":
+    case "h":
+      return input == null ? null : escape(str(input));
+    case "escape_once":
+      return input == null ? null : escape(str(input).replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&#39;", "'").replace("&amp;", "&"));
+    case "replace":
+      return str(input).replace(str(arg(args, 0)), str(arg(args, 1)));
+    case "replace_first":
+      return replaceFirst(str(input), str(arg(args, 0)), str(arg(args, 1)));
+    case "remove":
+      return str(input).replace(str(arg(args, 0)), "");
+    case "remove_first":
+      return replaceFirst(str(input), str(arg(args, 0)), "");
+    case "strip":
+      return str(input).trim();
+    case "lstrip":
+      return str(input).replaceAll("^\\s+", "");
+    case "rstrip":
+      return str(input).replaceAll("\\s+$", "");
+    case "strip_newlines":
+      return str(input).replace("\r", "").replace("\n", "");
+    case "strip_html":
+      return str(input).replaceAll("(?s)<script.*?</script>|<!--.*?-->|<style.*?</style>", "").replaceAll("<.*?>", "");
+    case "newline_to_br":
+      return str(input).replace("\r\n", "\n").replace("\n", "<br />\n");
+    case "normalize_whitespace":
+      return str(input).replaceAll("\\s+", " ");
+    case "truncate":
+      return truncate(str(input), args.isEmpty() ? 50 : toInt(args.get(0)), args.size() > 1 ? str(args.get(1)) : "...");
+    case "truncatewords":
+      return truncateWords(str(input), args.isEmpty() ? 15 : toInt(args.get(0)), args.size() > 1 ? str(args.get(1)) : "...");
+    case "split":
+      return split(str(input), str(arg(args, 0)));
+    case "slugify":
+      return str(input).toLowerCase().replaceAll("[^a-z0-9]+", "-").replaceAll("^-|-$", "");
+    case "url_encode":
+    case "cgi_escape":
+      return urlEncode(str(input));
+    case "uri_escape":
+      return str(input).replace(" ", "%20");
+    case "url_decode":
+      return urlDecode(str(input));
+    case "number_of_words":
+      return str(input).trim().isEmpty() ? 0 : str(input).trim().split("\\s+").length;
+    case "markdownify":
+      return ctxt.markdown(str(input));
+    case "smartify":
+      return input;
+    case "jsonify":
+      return jsonify(input);
+    case "inspect":
+      return jsonify(input);
+    case "relative_url":
+      return relativeUrl(str(input), ctxt);
+    case "absolute_url":
+      return str(LiquidExpressions.property(ctxt.get("site"), "url"))+relativeUrl(str(input), ctxt);
+    case "date":
+      return date(input, args.isEmpty() ? null : str(args.get(0)));
+    case "date_to_xmlschema":
+      return date(input, "%Y-%m-%dT%H:%M:%S%:z");
+    case "date_to_string":
+      return date(input, "%d %b %Y");
+    case "date_to_long_string":
+      return date(input, "%d %B %Y");
+    case "default":
+      return LiquidExpressions.isTruthy(input) && !LiquidExpressions.isEmpty(input) ? input : arg(args, 0);
+
+    // numbers
+    case "plus":
+      return arithmetic(input, arg(args, 0), '+');
+    case "minus":
+      return arithmetic(input, arg(args, 0), '-');
+    case "times":
+      return arithmetic(input, arg(args, 0), '*');
+    case "divided_by":
+      return arithmetic(input, arg(args, 0), '/');
+    case "modulo":
+      return arithmetic(input, arg(args, 0), '%');
+    case "abs":
+      return isInteger(toNumber(input)) ? (Object) Math.abs(toNumber(input).longValue()) : (Object) Math.abs(toNumber(input).doubleValue());
+    case "ceil":
+      return (int) Math.ceil(toNumber(input).doubleValue());
+    case "floor":
+      return (int) Math.floor(toNumber(input).doubleValue());
+    case "round":
+      return args.isEmpty() ? (Object) (int) Math.round(toNumber(input).doubleValue()) : (Object) new BigDecimal(toNumber(input).toString()).setScale(toInt(args.get(0)), RoundingMode.HALF_UP).doubleValue();
+
+    // lists
+    case "size":
+      return size(input);
+    case "first":
+      return input instanceof String ? (((String) input).isEmpty() ? null : ((String) input).substring(0, 1)) : LiquidExpressions.property(list(input), "first");
+    case "last":
+      return input instanceof String ? (((String) input).isEmpty() ? null : ((String) input).substring(((String) input).length() - 1)) : LiquidExpressions.property(list(input), "last");
+    case "join":
+      return join(list(input), args.isEmpty() ? " " : str(args.get(0)));
+    case "array_to_sentence_string":
+      return sentence(list(input), args.isEmpty() ? "and" : str(args.get(0)));
+    case "reverse": {
+      List<Object> l = new ArrayList<>(list(input));
+      Collections.reverse(l);
+      return l;
+    }
+    case "sort":
+    case "sort_natural":
+      return sort(list(input), args.isEmpty() ? null : str(args.get(0)), name.equals("sort_natural"));
+    case "uniq":
+      return new ArrayList<>(new LinkedHashSet<>(list(input)));
+    case "compact": {
+      List<Object> l = new ArrayList<>(list(input));
+      l.removeIf(o -> o == null);
+      return l;
+    }
+    case "concat": {
+      List<Object> l = new ArrayList<>(list(input));
+      l.addAll(list(arg(args, 0)));
+      return l;
+    }
+    case "map": {
+      List<Object> l = new ArrayList<>();
+      for (Object o : list(input)) {
+        l.add(LiquidExpressions.property(o, str(arg(args, 0))));
+      }
+      return l;
+    }
+    case "where": {
+      List<Object> l = new ArrayList<>();
+      for (Object o : list(input)) {
+        Object v = LiquidExpressions.property(o, str(arg(args, 0)));
+        if (args.size() < 2 ? LiquidExpressions.isTruthy(v) : LiquidExpressions.areEqual(v, args.get(1)) || (v instanceof Collection && ((Collection<?>) v).contains(args.get(1)))) {
+          l.add(o);
+        }
+      }
+      return l;
+    }
+    case "slice": {
+      int start = toInt(arg(args, 0));
+      int len = args.size() > 1 ? toInt(args.get(1)) : 1;
+      if (input instanceof List) {
+        List<?> l = (List<?>) input;
+        start = start < 0 ? l.size() + start : start;
+        return start < 0 || start >= l.size() ? new ArrayList<>() : new ArrayList<>(l.subList(start, Math.min(l.size(), start + len)));
+      }
+      String s = str(input);
+      start = start < 0 ? s.length() + start : start;
+      return start < 0 || start >= s.length() ? "" : s.substring(start, Math.min(s.length(), start + len));
+    }
+    default:
+      return input;
+    }
+  }
+
+  private static Object arg(List<Object> args, int i) {
+    return i < args.size() ? args.get(i) : null;
+  }
+
+  /**
+   * The text Liquid outputs for a value
+   */
+  @SuppressWarnings("rawtypes")
+  static String str(Object v) {
+    if (v == null) {
+      return "";
+    }
+    if (v instanceof String) {
+      return (String) v;
+    }
+    if (v instanceof Double || v instanceof Float) {
+      double d = ((Number) v).doubleValue();
+      return Double.isInfinite(d) || Double.isNaN(d) || d != Math.rint(d) || Math.abs(d) >= 1e16 ? Double.toString(d) : BigDecimal.valueOf(d).setScale(1).toPlainString();
+    }
+    if (v instanceof Collection) {
+      StringBuilder b = new StringBuilder();
+      for (Object o : (Collection) v) {
+        b.append(str(o));
+      }
+      return b.toString();
+    }
+    if (v instanceof Map) {
+      return jsonify(v);
+    }
+    return v.toString();
+  }
+
+  static String escape(String s) {
+    StringBuilder b = new StringBuilder(s.length() + 16);
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      switch (ch) {
+      case '&':
+        b.append("&amp;");
+        break;
+      case '<':
+        b.append("&lt;");
+        break;
+      case '>':
+        b.append("&gt;");
+        break;
+      case '"':
+        b.append("&quot;");
+        break;
+      case '\'':
+        b.append("&#39;");
+        break;
+      default:
+        b.append(ch);
+      }
+    }
+    return b.toString();
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  static List<Object> list(Object v) {
+    if (v == null) {
+      return new ArrayList<>();
+    }
+    if (v instanceof List) {
+      return (List<Object>) v;
+    }
+    if (v instanceof Collection) {
+      return new ArrayList<>((Collection) v);
+    }
+    if (v instanceof Map) {
+      List<Object> res = new ArrayList<>();
+      for (Object e : ((Map) v).entrySet()) {
+        Map.Entry me = (Map.Entry) e;
+        res.add(Arrays.asList(me.getKey(), me.getValue()));
+      }
+      return res;
+    }
+    List<Object> res = new ArrayList<>();
+    res.add(v);
+    return res;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static Object size(Object v) {
+    if (v instanceof String) {
+      return ((String) v).length();
+    }
+    if (v instanceof Collection) {
+      return ((Collection) v).size();
+    }
+    if (v instanceof Map) {
+      return ((Map) v).size();
+    }
+    return 0;
+  }
+
+  static int toInt(Object v) {
+    return toNumber(v).intValue();
+  }
+
+  static Number toNumber(Object v) {
+    if (v instanceof Number) {
+      return (Number) v;
+    }
+    String s = str(v).trim();
+    try {
+      if (s.matches("-?\\d+")) {
+        return Long.parseLong(s);
+      }
+      return Double.parseDouble(s);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static boolean isInteger(Number n) {
+    return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+  }
+
+  private static Object arithmetic(Object l, Object r, char op) {
+    Number a = toNumber(l);
+    Number b = toNumber(r);
+    if (isInteger(a) && isInteger(b)) {
+      long x = a.longValue();
+      long y = b.longValue();
+      long res;
+      switch (op) {
+      case '+':
+        res = x + y;
+        break;
+      case '-':
+        res = x - y;
+        break;
+      case '*':
+        res = x * y;
+        break;
+      case '/':
+        if (y == 0) {
+          throw new ArithmeticException("divided by 0");
+        }
+        res = Math.floorDiv(x, y);
+        break;
+      default:
+        if (y == 0) {
+          throw new ArithmeticException("divided by 0");
+        }
+        res = Math.floorMod(x, y);
+      }
+      return res >= Integer.MIN_VALUE && res <= Integer.MAX_VALUE ? (Object) (int) res : (Object) res;
+    }
+    double x = a.doubleValue();
+    double y = b.doubleValue();
+    switch (op) {
+    case '+':
+      return x + y;
+    case '-':
+      return x - y;
+    case '*':
+      return x * y;
+    case '/':
+      return x / y;
+    default:
+      return x % y;
+    }
+  }
+
+  private static String replaceFirst(String s, String find, String replace) {
+    int i = s.indexOf(find);
+    return i == -1 ? s : s.substring(0, i)+replace+s.substring(i + find.length());
+  }
+
+  private static String truncate(String s, int len, String ellipsis) {
+    if (s.length() <= len) {
+      return s;
+    }
+    int l = Math.max(0, len - ellipsis.length());
+    return s.substring(0, l)+ellipsis;
+  }
+
+  private static String truncateWords(String s, int count, String ellipsis) {
+    String[] words = s.trim().split("\\s+");
+    if (words.length <= count) {
+      return s;
+    }
+    return String.join(" ", Arrays.copyOf(words, Math.max(1, count)))+ellipsis;
+  }
+
+  private static List<Object> split(String s, String sep) {
+    List<Object> res = new ArrayList<>();
+    if (sep.isEmpty()) {
+      for (char ch : s.toCharArray()) {
+        res.add(String.valueOf(ch));
+      }
+      return res;
+    }
+    int last = 0;
+    int i = s.indexOf(sep);
+    while (i > -1) {
+      res.add(s.substring(last, i));
+      last = i + sep.length();
+      i = s.indexOf(sep, last);
+    }
+    res.add(s.substring(last));
+    // like ruby, trailing empty strings are dropped
+    while (!res.isEmpty() && "".equals(res.get(res.size() - 1))) {
+      res.remove(res.size() - 1);
+    }
+    return res;
+  }
+
+  private static String join(List<Object> l, String sep) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < l.size(); i++) {
+      if (i > 0) {
+        b.append(sep);
+      }
+      b.append(str(l.get(i)));
+    }
+    return b.toString();
+  }
+
+  private static String sentence(List<Object> l, String connector) {
+    if (l.isEmpty()) {
+      return "";
+    }
+    if (l.size() == 1) {
+      return str(l.get(0));
+    }
+    if (l.size() == 2) {
+      return str(l.get(0))+" "+connector+" "+str(l.get(1));
+    }
+    return join(l.subList(0, l.size() - 1), ", ")+", "+connector+" "+str(l.get(l.size() - 1));
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static List<Object> sort(List<Object> l, String property, boolean natural) {
+    List<Object> res = new ArrayList<>(l);
+    res.sort((a, b) -> {
+      Object x = property == null ? a : LiquidExpressions.property(a, property);
+      Object y = property == null ? b : LiquidExpressions.property(b, property);
+      if (x == null || y == null) {
+        return x == null ? (y == null ? 0 : 1) : -1; // nils last
+      }
+      if (x instanceof Number && y instanceof Number) {
+        return Double.compare(((Number) x).doubleValue(), ((Number) y).doubleValue());
+      }
+      if (natural) {
+        return str(x).compareToIgnoreCase(str(y));
+      }
+      if (x instanceof Comparable && x.getClass() == y.getClass()) {
+        return ((Comparable) x).compareTo(y);
+      }
+      return str(x).compareTo(str(y));
+    });
+    return res;
+  }
+
+  private static String urlEncode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return s;
+    }
+  }
+
+  private static String urlDecode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return s;
+    }
+  }
+
+  private static String jsonify(Object v) {
+    try {
+      return JSON.writeValueAsString(v);
+    } catch (JsonProcessingException e) {
+      return str(v);
+    }
+  }
+
+  private static String relativeUrl(String s, LiquidContext ctxt) {
+    String base = str(LiquidExpressions.property(ctxt.get("site"), "baseurl"));
+    if (s.startsWith("http:") || s.startsWith("https:") || s.startsWith("//")) {
+      return s;
+    }
+    if (base.endsWith("/")) {
+      base = base.substring(0, base.length() - 1);
+    }
+    return base+(s.startsWith("/") ? s : "/"+s);
+  }
+
+  /**
+   * The date filter, with the strftime formats that ruby supports
+   */
+  static String date(Object input, String format) {
+    Date d;
+    if (input instanceof Date) {
+      d = (Date) input;
+    } else if (input instanceof Number) {
+      d = new Date(((Number) input).longValue() * 1000);
+    } else {
+      String s = str(input).trim();
+      if (s.equals("now") || s.equals("today")) {
+        d = new Date();
+      } else {
+        d = parseDate(s);
+        if (d == null) {
+          return str(input);
+        }
+      }
+    }
+    if (format == null || format.isEmpty()) {
+      return str(input);
+    }
+    Calendar c = Calendar.getInstance();
+    c.setTime(d);
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < format.length(); i++) {
+      char ch = format.charAt(i);
+      if (ch != '%' || i == format.length() - 1) {
+        b.append(ch);
+        continue;
+      }
+      char f = format.charAt(++i);
+      boolean noPad = false;
+      if ((f == '-' || f == ':') && i < format.length() - 1) {
+        noPad = f == '-';
+        if (f == ':') {
+          i++;
+          b.append(zone(c, true));
+          continue;
+        }
+        f = format.charAt(++i);
+      }
+      switch (f) {
+      case 'Y': b.append(c.get(Calendar.YEAR)); break;
+      case 'y': b.append(pad(c.get(Calendar.YEAR) % 100, 2, noPad)); break;
+      case 'm': b.append(pad(c.get(Calendar.MONTH) + 1, 2, noPad)); break;
+      case 'd': b.append(pad(c.get(Calendar.DAY_OF_MONTH), 2, noPad)); break;
+      case 'e': b.append(noPad ? Integer.toString(c.get(Calendar.DAY_OF_MONTH)) : String.format("%2d", c.get(Calendar.DAY_OF_MONTH))); break;
+      case 'j': b.append(pad(c.get(Calendar.DAY_OF_YEAR), 3, noPad)); break;
+      case 'H': b.append(pad(c.get(Calendar.HOUR_OF_DAY), 2, noPad)); break;
+      case 'I': b.append(pad(c.get(Calendar.HOUR) == 0 ? 12 : c.get(Calendar.HOUR), 2, noPad)); break;
+      case 'M': b.append(pad(c.get(Calendar.MINUTE), 2, noPad)); break;
+      case 'S': b.append(pad(c.get(Calendar.SECOND), 2, noPad)); break;
+      case 'L': b.append(pad(c.get(Calendar.MILLISECOND), 3, noPad)); break;
+      case 'p': b.append(c.get(Calendar.AM_PM) == Calendar.AM ? "AM" : "PM"); break;
+      case 'P': b.append(c.get(Calendar.AM_PM) == Calendar.AM ? "am" : "pm"); break;
+      case 'b':
+      case 'h': b.append(new SimpleDateFormat("MMM", Locale.ENGLISH).format(d)); break;
+      case 'B': b.append(new SimpleDateFormat("MMMM", Locale.ENGLISH).format(d)); break;
+      case 'a': b.append(new SimpleDateFormat("EEE", Locale.ENGLISH).format(d)); break;
+      case 'A': b.append(new SimpleDateFormat("EEEE", Locale.ENGLISH).format(d)); break;
+      case 'z': b.append(zone(c, false)); break;
+      case 'Z': b.append(c.getTimeZone().getDisplayName(c.getTimeZone().inDaylightTime(d), TimeZone.SHORT, Locale.ENGLISH)); break;
+      case 's': b.append(d.getTime() / 1000); break;
+      case 'F': b.append(date(d, "%Y-%m-%d")); break;
+      case 'T': b.append(date(d, "%H:%M:%S")); break;
+      case 'D': b.append(date(d, "%m/%d/%y")); break;
+      case '%': b.append('%'); break;
+      default:
+        b.append('%');
+        b.append(f);
+      }
+    }
+    return b.toString();
+  }
+
+  private static String pad(int v, int len, boolean noPad) {
+    String s = Integer.toString(v);
+    while (!noPad && s.length() < len) {
+      s = "0"+s;
+    }
+    return s;
+  }
+
+  private static String zone(Calendar c, boolean colon) {
+    int offset = (c.get(Calendar.ZONE_OFFSET) + c.get(Calendar.DST_OFFSET)) / 60000;
+    String sign = offset < 0 ? "-" : "+";
+    offset = Math.abs(offset);
+    return sign+pad(offset / 60, 2, false)+(colon ? ":" : "")+pad(offset % 60, 2, false);
+  }
+
+  private static Date parseDate(String s) {
+    String[] formats = { "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd HH:mm:ss Z", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd", "EEE, dd MMM yyyy HH:mm:ss Z", "EEE, d MMM, yyyy HH:mm:ss Z" };
+    for (String f : formats) {
+      try {
+        SimpleDateFormat sdf = new SimpleDateFormat(f, Locale.ENGLISH);
+        sdf.setLenient(false);
+        return sdf.parse(s);
+      } catch (Exception e) {
+        // try the next one
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,346 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * The parts of a parsed Liquid template
+ */
+class LiquidNodes {
+
+  private static final Pattern FOR = Pattern.compile("^([\\w-]+)\\s+in\\s+(\\(.*?\\)|\\S+)(.*)$", Pattern.DOTALL);
+  private static final Pattern FOR_LIMIT = Pattern.compile("limit\\s*:\\s*(\\S+)");
+  private static final Pattern FOR_OFFSET = Pattern.compile("offset\\s*:\\s*(\\S+)");
+
+  interface Node {
+    void render(LiquidContext ctxt, StringBuilder b) throws IOException;
+  }
+
+  /**
+   * Thrown by break and continue, and caught by the enclosing for
+   */
+  static class LoopSignal extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private boolean isBreak;
+
+    LoopSignal(boolean isBreak) {
+      super(null, null, false, false);
+      this.isBreak = isBreak;
+    }
+  }
+
+  static void renderAll(List<Node> nodes, LiquidContext ctxt, StringBuilder b) throws IOException {
+    for (Node n : nodes) {
+      n.render(ctxt, b);
+    }
+  }
+
+  static class Text implements Node {
+    private String text;
+
+    Text(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) {
+      b.append(text);
+    }
+  }
+
+  static class Block implements Node {
+    private List<Node> body;
+
+    Block(List<Node> body) {
+      this.body = body;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+      renderAll(body, ctxt, b);
+    }
+  }
+
+  static class Output implements Node {
+    private LiquidExpressions.Value value;
+
+    Output(LiquidExpressions.Value value) {
+      this.value = value;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) {
+      b.append(LiquidFilters.str(value.evaluate(ctxt)));
+    }
+  }
+
+  static class If implements Node {
+    List<LiquidExpressions.Condition> conditions = new ArrayList<>();
+    List<List<Node>> bodies = new ArrayList<>();
+    List<Node> elseBody;
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+      for (int i = 0; i < conditions.size(); i++) {
+        if (conditions.get(i).test(ctxt)) {
+          renderAll(bodies.get(i), ctxt, b);
+          return;
+        }
+      }
+      if (elseBody != null) {
+        renderAll(elseBody, ctxt, b);
+      }
+    }
+  }
+
+  static class Case implements Node {
+    LiquidExpressions.Value value;
+    List<List<LiquidExpressions.Value>> whens = new ArrayList<>();
+    List<List<Node>> bodies = new ArrayList<>();
+    List<Node> elseBody;
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+      Object v = value.evaluate(ctxt);
+      boolean matched = false;
+      for (int i = 0; i < whens.size(); i++) {
+        for (LiquidExpressions.Value w : whens.get(i)) {
+          if (LiquidExpressions.areEqual(v, w.evaluate(ctxt))) {
+            renderAll(bodies.get(i), ctxt, b);
+            matched = true;
+            break;
+          }
+        }
+      }
+      if (!matched && elseBody != null) {
+        renderAll(elseBody, ctxt, b);
+      }
+    }
+  }
+
+  static class For implements Node {
+    private String variable;
+    private LiquidExpressions.Value collection;
+    private LiquidExpressions.Value limit;
+    private LiquidExpressions.Value offset;
+    private boolean reversed;
+    List<Node> body;
+    List<Node> elseBody;
+
+    static For parse(String args) {
+      Matcher m = FOR.matcher(args.trim());
+      if (!m.matches()) {
+        throw new FHIRException("Syntax Error in 'for loop' - Valid syntax: for [item] in [collection]");
+      }
+      For res = new For();
+      res.variable = m.group(1);
+      res.collection = LiquidExpressions.parseValue(m.group(2));
+      String rest = m.group(3);
+      Matcher lm = FOR_LIMIT.matcher(rest);
+      if (lm.find()) {
+        res.limit = LiquidExpressions.parseValue(lm.group(1));
+      }
+      Matcher om = FOR_OFFSET.matcher(rest);
+      if (om.find()) {
+        res.offset = LiquidExpressions.parseValue(om.group(1));
+      }
+      res.reversed = rest.matches("(?s).*\\breversed\\b.*");
+      return res;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+      Object c = collection.evaluate(ctxt);
+      List<Object> items = c instanceof String ? (((String) c).isEmpty() ? new ArrayList<>() : LiquidFilters.list(c)) : LiquidFilters.list(c);
+      int from = offset == null ? 0 : Math.max(0, LiquidFilters.toInt(offset.evaluate(ctxt)));
+      int to = limit == null ? items.size() : Math.min(items.size(), from + Math.max(0, LiquidFilters.toInt(limit.evaluate(ctxt))));
+      items = from >= to ? new ArrayList<>() : new ArrayList<>(items.subList(from, to));
+      if (reversed) {
+        Collections.reverse(items);
+      }
+      if (items.isEmpty()) {
+        if (elseBody != null) {
+          renderAll(elseBody, ctxt, b);
+        }
+        return;
+      }
+      Map<String, Object> scope = new HashMap<>();
+      Map<String, Object> forloop = new HashMap<>();
+      scope.put("forloop", forloop);
+      ctxt.push(scope);
+      try {
+        int len = items.size();
+        forloop.put("length", len);
+        for (int i = 0; i < len; i++) {
+          scope.put(variable, items.get(i));
+          forloop.put("index", i + 1);
+          forloop.put("index0", i);
+          forloop.put("rindex", len - i);
+          forloop.put("rindex0", len - i - 1);
+          forloop.put("first", i == 0);
+          forloop.put("last", i == len - 1);
+          try {
+            renderAll(body, ctxt, b);
+          } catch (LoopSignal s) {
+            if (s.isBreak) {
+              break;
+            }
+          }
+        }
+      } finally {
+        ctxt.pop();
+      }
+    }
+  }
+
+  static class Assign implements Node {
+    private String name;
+    private LiquidExpressions.Value value;
+
+    Assign(String name, LiquidExpressions.Value value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) {
+      ctxt.assign(name, value.evaluate(ctxt));
+    }
+  }
+
+  static class Capture implements Node {
+    private String name;
+    List<Node> body;
+
+    Capture(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+      StringBuilder c = new StringBuilder();
+      renderAll(body, ctxt, c);
+      ctxt.assign(name, c.toString());
+    }
+  }
+
+  static class Counter implements Node {
+    private String name;
+    private boolean increment;
+
+    Counter(String name, boolean increment) {
+      this.name = name;
+      this.increment = increment;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) {
+      b.append(ctxt.count(name, increment));
+    }
+  }
+
+  static class Break implements Node {
+    private boolean isBreak;
+
+    Break(boolean isBreak) {
+      this.isBreak = isBreak;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) {
+      throw new LoopSignal(isBreak);
+    }
+  }
+
+  static class Highlight implements Node {
+    private String language;
+    List<Node> body;
+
+    Highlight(String language) {
+      this.language = language;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+      StringBuilder c = new StringBuilder();
+      renderAll(body, ctxt, c);
+      b.append("<figure class=\"highlight\"><pre><code class=\"language-"+language+"\" data-lang=\""+language+"\">");
+      b.append(LiquidFilters.escape(c.toString().trim()));
+      b.append("</code></pre></figure>");
+    }
+  }
+
+  static class Include implements Node {
+    private LiquidTemplate name; // the name can contain {{ }}
+    private String literalName;
+    private Map<String, LiquidExpressions.Value> params;
+    private boolean relative;
+
+    static Include parse(String args, boolean relative) {
+      Include res = new Include();
+      res.relative = relative;
+      args = args.trim();
+      String n;
+      String rest;
+      if (args.startsWith("{{")) {
+        int e = args.indexOf("}}");
+        if (e == -1) {
+          throw new FHIRException("Invalid syntax for include tag: "+args);
+        }
+        // the name runs to the next whitespace after the variable
+        int sp = e + 2;
+        while (sp < args.length() && !Character.isWhitespace(args.charAt(sp))) {
+          sp++;
+        }
+        n = args.substring(0, sp);
+        rest = args.substring(sp);
+      } else {
+        int sp = 0;
+        while (sp < args.length() && !Character.isWhitespace(args.charAt(sp))) {
+          sp++;
+        }
+        n = args.substring(0, sp);
+        rest = args.substring(sp);
+      }
+      if (n.isEmpty()) {
+        throw new FHIRException("Invalid syntax for include tag: a file name is required");
+      }
+      if (n.contains("{{")) {
+        res.name = LiquidTemplate.parse("include name", n);
+      } else {
+        res.literalName = n;
+      }
+      res.params = LiquidTemplate.parseParams(rest);
+      return res;
+    }
+
+    @Override
+    public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+      String n = literalName != null ? literalName : name.render(ctxt).trim();
+      LiquidTemplate t = ctxt.resolveInclude(n, relative);
+      Map<String, Object> values = new LinkedHashMap<>();
+      for (String p : params.keySet()) {
+        values.put(p, params.get(p).evaluate(ctxt));
+      }
+      Map<String, Object> scope = new HashMap<>();
+      scope.put("include", values);
+      ctxt.enterInclude(n);
+      ctxt.push(scope);
+      try {
+        t.render(ctxt, b);
+      } finally {
+        ctxt.pop();
+        ctxt.exitInclude();
+      }
+    }
+  }
+}
@@ -0,0 +1,396 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * A Liquid template, parsed the way Jekyll parses it: {{ output | filters }}, and the if,
+ * unless, case, for, assign, capture, include, raw, comment and highlight tags, with
+ * Jekyll's whitespace control ({%- -%}).
+ *
+ * The data is plain java: maps, lists, strings, numbers and booleans, as read from the
+ * _data files, _config.yml and the front matter. The LiquidEngine used for the narratives
+ * evaluates FHIRPath against resources, so it isn't used here.
+ *
+ * Templates are immutable once parsed, and can be rendered on several threads at once
+ */
+public class LiquidTemplate {
+
+  private static final Pattern END_RAW = Pattern.compile("\\{%-?\\s*endraw\\s*-?%\\}");
+  private static final Pattern END_COMMENT = Pattern.compile("\\{%-?\\s*endcomment\\s*-?%\\}");
+
+  private String name;
+  private List<LiquidNodes.Node> body;
+
+  private LiquidTemplate(String name, List<LiquidNodes.Node> body) {
+    super();
+    this.name = name;
+    this.body = body;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param name the name of the template, for error messages
+   */
+  public static LiquidTemplate parse(String name, String source) {
+    Parser p = new Parser(name, tokenize(name, source));
+    List<LiquidNodes.Node> body = p.parseBlock();
+    if (p.stop != null) {
+      throw new FHIRException("Liquid Exception: Unexpected tag '"+p.stop.name+"' in "+name);
+    }
+    return new LiquidTemplate(name, body);
+  }
+
+  public String render(LiquidContext ctxt) throws IOException {
+    StringBuilder b = new StringBuilder();
+    render(ctxt, b);
+    return b.toString();
+  }
+
+  public void render(LiquidContext ctxt, StringBuilder b) throws IOException {
+    try {
+      LiquidNodes.renderAll(body, ctxt, b);
+    } catch (LiquidNodes.LoopSignal e) {
+      // break or continue outside a loop stops the template, as it does in Jekyll
+    } catch (FHIRException e) {
+      if (e.getMessage() != null && e.getMessage().startsWith("Liquid Exception:")) {
+        throw e;
+      }
+      throw new FHIRException("Liquid Exception: "+e.getMessage()+" in "+name, e);
+    }
+  }
+
+  // --- tokens -------------------------------------------------------------------------
+
+  protected enum TokenType { TEXT, OUTPUT, TAG }
+
+  protected static class Token {
+    protected TokenType type;
+    protected String text;
+    protected String name; // for tags
+    protected String args; // for tags
+    protected boolean trimLeft;
+    protected boolean trimRight;
+    protected int line;
+
+    @Override
+    public String toString() {
+      return type == TokenType.TAG ? "{% "+name+" "+args+" %}" : text;
+    }
+  }
+
+  private static List<Token> tokenize(String name, String source) {
+    List<Token> tokens = new ArrayList<>();
+    int i = 0;
+    int line = 1;
+    int len = source.length();
+    while (i < len) {
+      int o = source.indexOf("{{", i);
+      int t = source.indexOf("{%", i);
+      int start = o == -1 ? t : t == -1 ? o : Math.min(o, t);
+      if (start == -1) {
+        tokens.add(text(source.substring(i), line));
+        break;
+      }
+      if (start > i) {
+        String s = source.substring(i, start);
+        tokens.add(text(s, line));
+        line += lines(s);
+      }
+      boolean output = start == o;
+      int end = source.indexOf(output ? "}}" : "%}", start + 2);
+      if (end == -1) {
+        throw new FHIRException("Liquid Exception: "+(output ? "Variable" : "Tag")+" '"+abbreviate(source.substring(start))+"' was not properly terminated in "+name+" at line "+line);
+      }
+      String inner = source.substring(start + 2, end);
+      Token tk = new Token();
+      tk.line = line;
+      if (inner.startsWith("-")) {
+        tk.trimLeft = true;
+        inner = inner.substring(1);
+      }
+      if (inner.endsWith("-")) {
+        tk.trimRight = true;
+        inner = inner.substring(0, inner.length() - 1);
+      }
+      line += lines(inner);
+      i = end + 2;
+      if (output) {
+        tk.type = TokenType.OUTPUT;
+        tk.text = inner.trim();
+        tokens.add(tk);
+      } else {
+        tk.type = TokenType.TAG;
+        String s = inner.trim();
+        int sp = firstWhitespace(s);
+        tk.name = sp == -1 ? s : s.substring(0, sp);
+        tk.args = sp == -1 ? "" : s.substring(sp).trim();
+        tokens.add(tk);
+        if ("raw".equals(tk.name) || "comment".equals(tk.name)) {
+          // the content isn't parsed at all
+          Matcher m = ("raw".equals(tk.name) ? END_RAW : END_COMMENT).matcher(source);
+          if (!m.find(i)) {
+            throw new FHIRException("Liquid Exception: '"+tk.name+"' tag was never closed in "+name+" at line "+line);
+          }
+          String content = source.substring(i, m.start());
+          if ("raw".equals(tk.name)) {
+            tokens.add(text(content, line));
+          }
+          line += lines(content);
+          String close = m.group();
+          Token ctk = new Token();
+          ctk.type = TokenType.TAG;
+          ctk.name = "end"+tk.name;
+          ctk.args = "";
+          ctk.line = line;
+          ctk.trimLeft = close.startsWith("{%-");
+          ctk.trimRight = close.endsWith("-%}");
+          tokens.add(ctk);
+          i = m.end();
+        }
+      }
+    }
+    // apply the whitespace control
+    for (int j = 0; j < tokens.size(); j++) {
+      Token tk = tokens.get(j);
+      if (tk.type != TokenType.TEXT) {
+        if (tk.trimLeft && j > 0 && tokens.get(j-1).type == TokenType.TEXT && !isRawContent(tokens, j-1)) {
+          Token p = tokens.get(j-1);
+          p.text = stripTrailing(p.text);
+        }
+        if (tk.trimRight && j < tokens.size() - 1 && tokens.get(j+1).type == TokenType.TEXT && !isRawContent(tokens, j+1)) {
+          Token n = tokens.get(j+1);
+          n.text = stripLeading(n.text);
+        }
+      }
+    }
+    return tokens;
+  }
+
+  private static boolean isRawContent(List<Token> tokens, int j) {
+    return j > 0 && tokens.get(j-1).type == TokenType.TAG && "raw".equals(tokens.get(j-1).name)
+        && j < tokens.size() - 1 && tokens.get(j+1).type == TokenType.TAG && "endraw".equals(tokens.get(j+1).name);
+  }
+
+  private static Token text(String s, int line) {
+    Token tk = new Token();
+    tk.type = TokenType.TEXT;
+    tk.text = s;
+    tk.line = line;
+    return tk;
+  }
+
+  private static int lines(String s) {
+    int c = 0;
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) == '\n') {
+        c++;
+      }
+    }
+    return c;
+  }
+
+  private static int firstWhitespace(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (Character.isWhitespace(s.charAt(i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String stripTrailing(String s) {
+    int i = s.length();
+    while (i > 0 && Character.isWhitespace(s.charAt(i-1))) {
+      i--;
+    }
+    return s.substring(0, i);
+  }
+
+  private static String stripLeading(String s) {
+    int i = 0;
+    while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+      i++;
+    }
+    return s.substring(i);
+  }
+
+  private static String abbreviate(String s) {
+    s = s.replace("\r", "").replace("\n", " ");
+    return s.length() > 40 ? s.substring(0, 40)+"..." : s;
+  }
+
+  // --- parser -------------------------------------------------------------------------
+
+  private static class Parser {
+    private String name;
+    private List<Token> tokens;
+    private int cursor;
+    private Token stop; // the tag that ended the last block
+
+    private Parser(String name, List<Token> tokens) {
+      this.name = name;
+      this.tokens = tokens;
+    }
+
+    private FHIRException error(Token tk, String msg) {
+      return new FHIRException("Liquid Exception: "+msg+" in "+name+" at line "+tk.line);
+    }
+
+    /**
+     * Parse nodes until an end, else, elsif or when tag (left in stop), or the end of the tokens
+     */
+    private List<LiquidNodes.Node> parseBlock() {
+      List<LiquidNodes.Node> nodes = new ArrayList<>();
+      stop = null;
+      while (cursor < tokens.size()) {
+        Token tk = tokens.get(cursor++);
+        try {
+          switch (tk.type) {
+          case TEXT:
+            if (tk.text.length() > 0) {
+              nodes.add(new LiquidNodes.Text(tk.text));
+            }
+            break;
+          case OUTPUT:
+            nodes.add(new LiquidNodes.Output(LiquidExpressions.parseFiltered(tk.text)));
+            break;
+          case TAG:
+            if (tk.name.startsWith("end") || tk.name.equals("else") || tk.name.equals("elsif") || tk.name.equals("when")) {
+              stop = tk;
+              return nodes;
+            }
+            nodes.add(parseTag(tk));
+            stop = null; // the tag consumed its own end tag
+            break;
+          }
+        } catch (FHIRException e) {
+          if (e.getMessage() != null && e.getMessage().startsWith("Liquid Exception:")) {
+            throw e;
+          }
+          throw error(tk, e.getMessage());
+        }
+      }
+      return nodes;
+    }
+
+    private void expectEnd(Token open, String end) {
+      if (stop == null) {
+        throw error(open, "'"+open.name+"' tag was never closed");
+      }
+      if (!stop.name.equals(end)) {
+        throw error(stop, "Unexpected tag '"+stop.name+"' (expecting '"+end+"')");
+      }
+    }
+
+    private LiquidNodes.Node parseTag(Token tk) {
+      switch (tk.name) {
+      case "if":
+      case "unless": {
+        LiquidNodes.If node = new LiquidNodes.If();
+        LiquidExpressions.Condition cond = LiquidExpressions.parseCondition(tk.args);
+        node.conditions.add(tk.name.equals("unless") ? LiquidExpressions.not(cond) : cond);
+        node.bodies.add(parseBlock());
+        while (stop != null && stop.name.equals("elsif")) {
+          node.conditions.add(LiquidExpressions.parseCondition(stop.args));
+          node.bodies.add(parseBlock());
+        }
+        if (stop != null && stop.name.equals("else")) {
+          node.elseBody = parseBlock();
+        }
+        expectEnd(tk, "end"+tk.name);
+        return node;
+      }
+      case "case": {
+        LiquidNodes.Case node = new LiquidNodes.Case();
+        node.value = LiquidExpressions.parseValue(tk.args);
+        parseBlock(); // anything between case and the first when is ignored
+        while (stop != null && stop.name.equals("when")) {
+          List<LiquidExpressions.Value> values = new ArrayList<>();
+          for (String s : LiquidExpressions.splitOutside(stop.args, ",", " or ")) {
+            values.add(LiquidExpressions.parseValue(s));
+          }
+          node.whens.add(values);
+          node.bodies.add(parseBlock());
+        }
+        if (stop != null && stop.name.equals("else")) {
+          node.elseBody = parseBlock();
+        }
+        expectEnd(tk, "endcase");
+        return node;
+      }
+      case "for": {
+        LiquidNodes.For node = LiquidNodes.For.parse(tk.args);
+        node.body = parseBlock();
+        if (stop != null && stop.name.equals("else")) {
+          node.elseBody = parseBlock();
+        }
+        expectEnd(tk, "endfor");
+        return node;
+      }
+      case "assign": {
+        int eq = tk.args.indexOf("=");
+        if (eq == -1) {
+          throw error(tk, "Syntax Error in 'assign' - Valid syntax: assign [var] = [source]");
+        }
+        return new LiquidNodes.Assign(tk.args.substring(0, eq).trim(), LiquidExpressions.parseFiltered(tk.args.substring(eq+1)));
+      }
+      case "capture": {
+        LiquidNodes.Capture node = new LiquidNodes.Capture(tk.args.trim());
+        node.body = parseBlock();
+        expectEnd(tk, "endcapture");
+        return node;
+      }
+      case "include":
+      case "include_relative":
+        return LiquidNodes.Include.parse(tk.args, tk.name.equals("include_relative"));
+      case "raw": {
+        List<LiquidNodes.Node> content = parseBlock();
+        expectEnd(tk, "endraw");
+        return new LiquidNodes.Block(content);
+      }
+      case "comment":
+        parseBlock();
+        expectEnd(tk, "endcomment");
+        return new LiquidNodes.Block(new ArrayList<>());
+      case "highlight": {
+        LiquidNodes.Highlight node = new LiquidNodes.Highlight(tk.args.trim().split("\\s+")[0]);
+        node.body = parseBlock();
+        expectEnd(tk, "endhighlight");
+        return node;
+      }
+      case "break":
+        return new LiquidNodes.Break(true);
+      case "continue":
+        return new LiquidNodes.Break(false);
+      case "increment":
+      case "decrement":
+        return new LiquidNodes.Counter(tk.args.trim(), tk.name.equals("increment"));
+      default:
+        throw error(tk, "Unknown tag '"+tk.name+"'");
+      }
+    }
+  }
+
+  /**
+   * Parse the include parameters: name="value" name=variable ...
+   */
+  protected static Map<String, LiquidExpressions.Value> parseParams(String s) {
+    Map<String, LiquidExpressions.Value> res = new LinkedHashMap<>();
+    Matcher m = Pattern.compile("([\\w-]+)\\s*=\\s*(\"[^\"]*\"|'[^']*'|[\\w\\.\\[\\]\"'-]+)").matcher(s);
+    while (m.find()) {
+      res.put(m.group(1), LiquidExpressions.parseValue(m.group(2)));
+    }
+    return res;
+  }
+}
@@ -0,0 +1,447 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * Reads the YAML in _config.yml, the _data folder and the front matter of pages: block
+ * mappings and sequences, flow [..] and {..} collections, quoted and plain scalars, and
+ * | and > block scalars. Anchors, tags and multi-document streams aren't supported
+ */
+public class SimpleYaml {
+
+  private static final Pattern INTEGER = Pattern.compile("[-+]?\\d+");
+  private static final Pattern DECIMAL = Pattern.compile("[-+]?(\\d+\\.\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+
+  private static class Line {
+    private int indent;
+    private String text;
+    private int number;
+  }
+
+  private List<String> raw;
+  private List<Line> lines = new ArrayList<>();
+  private int cursor;
+
+  private SimpleYaml(String source) {
+    raw = new ArrayList<>();
+    for (String s : source.replace("\r\n", "\n").replace("\r", "\n").split("\n", -1)) {
+      raw.add(s);
+    }
+  }
+
+  /**
+   * @return a map, a list, or a scalar (null if the source is empty)
+   */
+  public static Object parse(String source) {
+    SimpleYaml yaml = new SimpleYaml(source);
+    yaml.prepare();
+    if (yaml.lines.isEmpty()) {
+      return null;
+    }
+    return yaml.parseBlock(yaml.lines.get(0).indent);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> parseMap(String source) {
+    Object o = parse(source);
+    if (o == null) {
+      return new LinkedHashMap<>();
+    }
+    if (!(o instanceof Map)) {
+      throw new FHIRException("YAML content is not a mapping");
+    }
+    return (Map<String, Object>) o;
+  }
+
+  private void prepare() {
+    for (int i = 0; i < raw.size(); i++) {
+      String s = raw.get(i);
+      String t = stripComment(s);
+      if (t.trim().isEmpty() || t.trim().equals("---") || t.trim().equals("...")) {
+        continue;
+      }
+      Line l = new Line();
+      l.indent = indentOf(t);
+      l.text = t.trim();
+      l.number = i;
+      lines.add(l);
+    }
+  }
+
+  private static int indentOf(String s) {
+    int i = 0;
+    while (i < s.length() && s.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private static String stripComment(String s) {
+    char quote = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (ch == '#' && (i == 0 || Character.isWhitespace(s.charAt(i-1)))) {
+        return s.substring(0, i);
+      } else if ((ch == '"' || ch == '\'') && (i == 0 || s.charAt(i-1) == ' ' || s.charAt(i-1) == '[' || s.charAt(i-1) == '{' || s.charAt(i-1) == ',')) {
+        quote = ch;
+      }
+    }
+    return s;
+  }
+
+  private boolean isSequenceItem(Line l) {
+    return l.text.equals("-") || l.text.startsWith("- ");
+  }
+
+  private Object parseBlock(int indent) {
+    Line l = lines.get(cursor);
+    if (isSequenceItem(l)) {
+      return parseSequence(l.indent);
+    }
+    if (keyEnd(l.text) == -1) {
+      // a multi-line plain scalar
+      StringBuilder b = new StringBuilder();
+      while (cursor < lines.size() && lines.get(cursor).indent >= indent) {
+        if (b.length() > 0) {
+          b.append(" ");
+        }
+        b.append(lines.get(cursor).text);
+        cursor++;
+      }
+      return scalar(b.toString());
+    }
+    return parseMapping(l.indent);
+  }
+
+  private Map<String, Object> parseMapping(int indent) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    while (cursor < lines.size()) {
+      Line l = lines.get(cursor);
+      if (l.indent < indent || (l.indent == indent && isSequenceItem(l))) {
+        break;
+      }
+      if (l.indent > indent) {
+        throw new FHIRException("YAML error at line "+(l.number+1)+": unexpected indentation");
+      }
+      int k = keyEnd(l.text);
+      if (k == -1) {
+        throw new FHIRException("YAML error at line "+(l.number+1)+": expected 'key: value' but found '"+l.text+"'");
+      }
+      String key = unquote(l.text.substring(0, k).trim());
+      String value = l.text.substring(k + 1).trim();
+      cursor++;
+      map.put(key, value(value, l, indent));
+    }
+    return map;
+  }
+
+  private List<Object> parseSequence(int indent) {
+    List<Object> list = new ArrayList<>();
+    while (cursor < lines.size()) {
+      Line l = lines.get(cursor);
+      if (l.indent != indent || !isSequenceItem(l)) {
+        if (l.indent > indent) {
+          throw new FHIRException("YAML error at line "+(l.number+1)+": unexpected indentation");
+        }
+        break;
+      }
+      String content = l.text.equals("-") ? "" : l.text.substring(2).trim();
+      if (content.isEmpty()) {
+        cursor++;
+        list.add(cursor < lines.size() && lines.get(cursor).indent > indent ? parseBlock(lines.get(cursor).indent) : null);
+      } else if (isSequenceItem(lineOf(content)) || (keyEnd(content) > -1 && !content.startsWith("[") && !content.startsWith("{") && !content.startsWith("\"") && !content.startsWith("'"))) {
+        // "- key: value" (or "- - item"): the item is a block that starts on this line
+        l.indent = indent + l.text.indexOf(content);
+        l.text = content;
+        list.add(parseBlock(l.indent));
+      } else {
+        cursor++;
+        list.add(value(content, l, indent));
+      }
+    }
+    return list;
+  }
+
+  private Line lineOf(String s) {
+    Line l = new Line();
+    l.text = s;
+    return l;
+  }
+
+  private Object value(String value, Line l, int indent) {
+    if (value.isEmpty()) {
+      if (cursor < lines.size()) {
+        Line n = lines.get(cursor);
+        if (n.indent > indent || (n.indent == indent && isSequenceItem(n))) {
+          return parseBlock(n.indent);
+        }
+      }
+      return null;
+    }
+    if (value.startsWith("|") || value.startsWith(">")) {
+      return blockScalar(value, l, indent);
+    }
+    if (value.startsWith("[") || value.startsWith("{")) {
+      // flow collections can run over several lines
+      StringBuilder b = new StringBuilder(value);
+      while (!balanced(b.toString()) && cursor < lines.size()) {
+        b.append(" ");
+        b.append(lines.get(cursor).text);
+        cursor++;
+      }
+      return flow(b.toString().trim());
+    }
+    if ((value.startsWith("\"") && !closedQuote(value, '"')) || (value.startsWith("'") && !closedQuote(value, '\''))) {
+      StringBuilder b = new StringBuilder(value);
+      while (cursor < lines.size() && !closedQuote(b.toString(), value.charAt(0))) {
+        b.append(" ");
+        b.append(lines.get(cursor).text);
+        cursor++;
+      }
+      return scalar(b.toString());
+    }
+    // plain scalars can continue on more indented lines
+    StringBuilder b = new StringBuilder(value);
+    while (cursor < lines.size() && lines.get(cursor).indent > indent && !isSequenceItem(lines.get(cursor)) && keyEnd(lines.get(cursor).text) == -1) {
+      b.append(" ");
+      b.append(lines.get(cursor).text);
+      cursor++;
+    }
+    return scalar(b.toString());
+  }
+
+  private String blockScalar(String header, Line l, int indent) {
+    boolean folded = header.startsWith(">");
+    boolean keep = header.contains("+");
+    boolean strip = header.contains("-");
+    // block scalars use the raw lines, since blank lines and comments are content
+    int start = l.number + 1;
+    int end = start;
+    int blockIndent = -1;
+    while (end < raw.size()) {
+      String s = raw.get(end);
+      if (!s.trim().isEmpty()) {
+        int ind = indentOf(s);
+        if (ind <= indent) {
+          break;
+        }
+        if (blockIndent == -1) {
+          blockIndent = ind;
+        }
+      }
+      end++;
+    }
+    while (cursor < lines.size() && lines.get(cursor).number < end) {
+      cursor++;
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = start; i < end; i++) {
+      String s = raw.get(i);
+      String content = s.trim().isEmpty() ? "" : s.substring(Math.min(blockIndent, indentOf(s)));
+      if (folded && content.isEmpty() && i > start && !raw.get(i-1).trim().isEmpty() && !raw.get(i-1).substring(Math.min(blockIndent, indentOf(raw.get(i-1)))).startsWith(" ")) {
+        // the line break before the first of a run of blank lines is folded away
+        continue;
+      }
+      if (folded && b.length() > 0 && !content.isEmpty() && b.charAt(b.length() - 1) == '\n' && !content.startsWith(" ") && i > start && !raw.get(i-1).trim().isEmpty()) {
+        b.setLength(b.length() - 1);
+        b.append(" ");
+      }
+      b.append(content);
+      b.append("\n");
+    }
+    String res = b.toString();
+    if (strip) {
+      res = res.replaceAll("\\n+$", "");
+    } else if (!keep) {
+      res = res.replaceAll("\\n+$", "\n");
+    }
+    return res;
+  }
+
+  /**
+   * The index of the ':' that ends a mapping key, or -1 if this isn't a key: value line
+   */
+  private static int keyEnd(String s) {
+    char quote = 0;
+    int depth = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if ((ch == '"' || ch == '\'') && i == 0) {
+        quote = ch;
+      } else if (ch == '[' || ch == '{') {
+        depth++;
+      } else if (ch == ']' || ch == '}') {
+        depth--;
+      } else if (ch == ':' && depth == 0 && (i == s.length() - 1 || s.charAt(i+1) == ' ')) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean balanced(String s) {
+    int depth = 0;
+    char quote = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (ch == '"' || ch == '\'') {
+        quote = ch;
+      } else if (ch == '[' || ch == '{') {
+        depth++;
+      } else if (ch == ']' || ch == '}') {
+        depth--;
+      }
+    }
+    return depth <= 0;
+  }
+
+  private static boolean closedQuote(String s, char quote) {
+    return s.length() > 1 && s.charAt(s.length() - 1) == quote && (quote == '\'' || s.charAt(s.length() - 2) != '\\');
+  }
+
+  private static Object flow(String s) {
+    if (s.startsWith("[") && s.endsWith("]")) {
+      List<Object> list = new ArrayList<>();
+      for (String item : splitFlow(s.substring(1, s.length() - 1))) {
+        if (!item.trim().isEmpty()) {
+          list.add(flow(item.trim()));
+        }
+      }
+      return list;
+    }
+    if (s.startsWith("{") && s.endsWith("}")) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      for (String item : splitFlow(s.substring(1, s.length() - 1))) {
+        if (!item.trim().isEmpty()) {
+          int k = keyEnd(item.trim());
+          if (k == -1) {
+            map.put(unquote(item.trim()), null);
+          } else {
+            map.put(unquote(item.trim().substring(0, k).trim()), flow(item.trim().substring(k + 1).trim()));
+          }
+        }
+      }
+      return map;
+    }
+    return scalar(s);
+  }
+
+  /**
+   * Split the items of a flow collection on the commas that aren't in a nested collection or
+   * a quoted string (braces aren't brackets as far as LiquidExpressions.splitOutside is concerned)
+   */
+  private static List<String> splitFlow(String s) {
+    List<String> res = new ArrayList<>();
+    int depth = 0;
+    char quote = 0;
+    int last = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (ch == '"' || ch == '\'') {
+        quote = ch;
+      } else if (ch == '[' || ch == '{') {
+        depth++;
+      } else if (ch == ']' || ch == '}') {
+        depth--;
+      } else if (ch == ',' && depth == 0) {
+        res.add(s.substring(last, i));
+        last = i + 1;
+      }
+    }
+    res.add(s.substring(last));
+    return res;
+  }
+
+  private static Object scalar(String s) {
+    s = s.trim();
+    if (s.isEmpty() || s.equals("~") || s.equals("null") || s.equals("Null") || s.equals("NULL")) {
+      return null;
+    }
+    if (s.startsWith("\"") || s.startsWith("'")) {
+      return unquote(s);
+    }
+    switch (s) {
+    case "true":
+    case "True":
+    case "TRUE":
+      return true;
+    case "false":
+    case "False":
+    case "FALSE":
+      return false;
+    }
+    if (INTEGER.matcher(s).matches()) {
+      try {
+        long l = Long.parseLong(s.startsWith("+") ? s.substring(1) : s);
+        return l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE ? (Object) (int) l : (Object) l;
+      } catch (NumberFormatException e) {
+        return s;
+      }
+    }
+    if (DECIMAL.matcher(s).matches()) {
+      return Double.parseDouble(s);
+    }
+    return s;
+  }
+
+  private static String unquote(String s) {
+    if (s.length() >= 2 && s.startsWith("'") && s.endsWith("'")) {
+      return s.substring(1, s.length() - 1).replace("''", "'");
+    }
+    if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"")) {
+      String v = s.substring(1, s.length() - 1);
+      StringBuilder b = new StringBuilder();
+      for (int i = 0; i < v.length(); i++) {
+        char ch = v.charAt(i);
+        if (ch == '\\' && i < v.length() - 1) {
+          char n = v.charAt(++i);
+          switch (n) {
+          case 'n': b.append('\n'); break;
+          case 't': b.append('\t'); break;
+          case 'r': b.append('\r'); break;
+          case '"': b.append('"'); break;
+          case '\\': b.append('\\'); break;
+          case '/': b.append('/'); break;
+          case 'u':
+            if (i + 4 < v.length()) {
+              b.append((char) Integer.parseInt(v.substring(i + 1, i + 5), 16));
+              i += 4;
+              break;
+            }
+            b.append("\\u");
+            break;
+          default:
+            b.append('\\');
+            b.append(n);
+          }
+        } else {
+          b.append(ch);
+        }
+      }
+      return b.toString();
+    }
+    return s;
+  }
+}
@@ -0,0 +1,210 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compares two builds of the same site - e.g. the output of jekyll and of the SiteRenderer -
+ * and reports the files that are missing, extra or different. Text files are compared
+ * ignoring line endings and trailing whitespace; the report gives the first line that differs
+ */
+public class SiteDiff {
+
+  private static final int MAX_LINE = 200;
+  private static final List<String> TEXT_TYPES = Arrays.asList("html", "htm", "xhtml", "xml", "json", "js", "css", "txt", "md", "svg", "csv", "ttl");
+
+  public enum DifferenceType { MISSING, EXTRA, DIFFERENT }
+
+  public static class Difference {
+    private String path;
+    private DifferenceType type;
+    private int line;
+    private String expected;
+    private String actual;
+
+    public String getPath() {
+      return path;
+    }
+
+    public DifferenceType getType() {
+      return type;
+    }
+
+    /**
+     * The first line that differs (1 based), or 0 for binary files
+     */
+    public int getLine() {
+      return line;
+    }
+
+    public String getExpected() {
+      return expected;
+    }
+
+    public String getActual() {
+      return actual;
+    }
+  }
+
+  private String expectedDir;
+  private String actualDir;
+  private int identical;
+  private List<Difference> differences = new ArrayList<>();
+
+  private SiteDiff(String expectedDir, String actualDir) {
+    this.expectedDir = expectedDir;
+    this.actualDir = actualDir;
+  }
+
+  /**
+   * @param expectedDir the reference build (jekyll)
+   * @param actualDir the build to check
+   */
+  public static SiteDiff compare(String expectedDir, String actualDir) throws IOException {
+    SiteDiff res = new SiteDiff(expectedDir, actualDir);
+    Set<String> expected = new TreeSet<>();
+    list(new File(expectedDir), "", expected);
+    Set<String> actual = new TreeSet<>();
+    list(new File(actualDir), "", actual);
+    Set<String> all = new TreeSet<>(expected);
+    all.addAll(actual);
+    for (String path : all) {
+      if (!actual.contains(path)) {
+        res.add(path, DifferenceType.MISSING, 0, null, null);
+      } else if (!expected.contains(path)) {
+        res.add(path, DifferenceType.EXTRA, 0, null, null);
+      } else {
+        res.compareFile(path);
+      }
+    }
+    return res;
+  }
+
+  private static void list(File dir, String prefix, Set<String> res) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      if (f.isDirectory()) {
+        list(f, prefix+f.getName()+"/", res);
+      } else {
+        res.add(prefix+f.getName());
+      }
+    }
+  }
+
+  private void add(String path, DifferenceType type, int line, String expected, String actual) {
+    Difference d = new Difference();
+    d.path = path;
+    d.type = type;
+    d.line = line;
+    d.expected = expected;
+    d.actual = actual;
+    differences.add(d);
+  }
+
+  private void compareFile(String path) throws IOException {
+    byte[] e = Files.readAllBytes(new File(expectedDir, path).toPath());
+    byte[] a = Files.readAllBytes(new File(actualDir, path).toPath());
+    if (Arrays.equals(e, a)) {
+      identical++;
+      return;
+    }
+    String ext = path.contains(".") ? path.substring(path.lastIndexOf(".") + 1).toLowerCase() : "";
+    if (!TEXT_TYPES.contains(ext)) {
+      add(path, DifferenceType.DIFFERENT, 0, e.length+" bytes", a.length+" bytes");
+      return;
+    }
+    String[] el = lines(e);
+    String[] al = lines(a);
+    int n = Math.max(el.length, al.length);
+    for (int i = 0; i < n; i++) {
+      String x = i < el.length ? el[i] : null;
+      String y = i < al.length ? al[i] : null;
+      if (x == null || y == null || !x.equals(y)) {
+        add(path, DifferenceType.DIFFERENT, i + 1, abbreviate(x), abbreviate(y));
+        return;
+      }
+    }
+    identical++; // only line endings or trailing whitespace differ
+  }
+
+  private static String[] lines(byte[] content) {
+    String s = new String(content, StandardCharsets.UTF_8).replace("\r\n", "\n").replace("\r", "\n");
+    String[] res = s.split("\n");
+    for (int i = 0; i < res.length; i++) {
+      res[i] = res[i].replaceAll("\\s+$", "");
+    }
+    // trailing blank lines don't count
+    int len = res.length;
+    while (len > 0 && res[len - 1].isEmpty()) {
+      len--;
+    }
+    return Arrays.copyOf(res, len);
+  }
+
+  private static String abbreviate(String s) {
+    if (s == null) {
+      return "(end of file)";
+    }
+    s = s.trim();
+    return s.length() > MAX_LINE ? s.substring(0, MAX_LINE)+"..." : s;
+  }
+
+  public int getIdentical() {
+    return identical;
+  }
+
+  public List<Difference> getDifferences() {
+    return differences;
+  }
+
+  public int count(DifferenceType type) {
+    int c = 0;
+    for (Difference d : differences) {
+      if (d.type == type) {
+        c++;
+      }
+    }
+    return c;
+  }
+
+  public String summary() {
+    return identical+" files the same, "+count(DifferenceType.DIFFERENT)+" different, "+count(DifferenceType.MISSING)+" missing, "+count(DifferenceType.EXTRA)+" extra";
+  }
+
+  public void writeReport(String filename) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("Site comparison\r\n");
+    b.append("  expected: "+expectedDir+"\r\n");
+    b.append("  actual:   "+actualDir+"\r\n");
+    b.append(summary()+"\r\n\r\n");
+    for (Difference d : differences) {
+      switch (d.type) {
+      case MISSING:
+        b.append("missing:   "+d.path+"\r\n");
+        break;
+      case EXTRA:
+        b.append("extra:     "+d.path+"\r\n");
+        break;
+      default:
+        b.append("different: "+d.path+(d.line > 0 ? " (line "+d.line+")" : "")+"\r\n");
+        b.append("  expected: "+d.expected+"\r\n");
+        b.append("  actual:   "+d.actual+"\r\n");
+      }
+    }
+    File f = new File(filename);
+    if (f.getParentFile() != null) {
+      f.getParentFile().mkdirs();
+    }
+    Files.write(f.toPath(), b.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,597 @@
+package org.hl7.fhir.igtools.publisher.site;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Builds the site from the pages folder the way jekyll build does, without Ruby: pages with
+ * front matter are rendered with Liquid (and markdown) and wrapped in their layouts, and the
+ * other files are copied. The layouts, includes, front matter, _config.yml (including the
+ * exclude list and front matter defaults) and the _data files are supported; plugins, posts,
+ * collections and sass aren't.
+ *
+ * The renderer remembers the state of the source files, and the includes and layouts each
+ * page used. When it's run again (in watch mode), only the pages that have changed, or that
+ * use a changed include (e.g. a fragment) or layout, are rendered again. A change to
+ * _config.yml or the _data files renders everything again
+ */
+public class SiteRenderer {
+
+  private static final String[] DEFAULT_EXCLUDES = { "Gemfile", "Gemfile.lock", "node_modules", "vendor" };
+
+  private static class Layout {
+    private String path;
+    private Map<String, Object> frontMatter;
+    private LiquidTemplate template;
+  }
+
+  private static class PageResult {
+    private String path;
+    private String output;
+    private byte[] content;
+    private Set<String> dependencies;
+    private List<String> warnings = new ArrayList<>();
+    private String error;
+  }
+
+  private String source;
+  private String destination;
+  private int threads;
+  private Function<String, String> markdown;
+
+  private Map<String, Object> site;
+  private List<String> excludes = new ArrayList<>();
+  private List<String> includes = new ArrayList<>();
+  private List<Object> defaults = new ArrayList<>();
+  private Map<String, long[]> stamps; // path -> size, modified
+  private Map<String, Set<String>> dependencies = new HashMap<>(); // page -> includes and layouts
+  private Map<String, String> outputs = new HashMap<>(); // source -> output
+  private Set<String> failed = new HashSet<>(); // pages that had errors last time
+  private Map<String, LiquidTemplate> includeCache = new ConcurrentHashMap<>();
+  private Map<String, Layout> layoutCache = new ConcurrentHashMap<>();
+  private List<String> warnings = new ArrayList<>();
+  private int rendered;
+  private int copied;
+  private int deleted;
+
+  /**
+   * @param markdown converts markdown to html (for .md pages and the markdownify filter)
+   */
+  public SiteRenderer(String source, String destination, int threads, Function<String, String> markdown) {
+    super();
+    this.source = new File(source).getAbsolutePath();
+    this.destination = new File(destination).getAbsolutePath();
+    this.threads = Math.max(1, threads);
+    this.markdown = markdown;
+  }
+
+  public int getRendered() {
+    return rendered;
+  }
+
+  public int getCopied() {
+    return copied;
+  }
+
+  public int getDeleted() {
+    return deleted;
+  }
+
+  /**
+   * Warnings from the last run (e.g. missing layouts)
+   */
+  public List<String> getWarnings() {
+    return warnings;
+  }
+
+  /**
+   * Build the site, or bring it up to date if it's been built before
+   */
+  public void render() throws IOException {
+    rendered = 0;
+    copied = 0;
+    deleted = 0;
+    warnings.clear();
+    Map<String, long[]> current = scan();
+    Set<String> changed = new HashSet<>();
+    if (stamps != null) {
+      for (String path : current.keySet()) {
+        long[] old = stamps.get(path);
+        if (old == null || old[0] != current.get(path)[0] || old[1] != current.get(path)[1]) {
+          changed.add(path);
+        }
+      }
+      for (String path : stamps.keySet()) {
+        if (!current.containsKey(path)) {
+          changed.add(path);
+        }
+      }
+    }
+    boolean full = stamps == null;
+    for (String path : changed) {
+      if (path.equals("_config.yml") || path.startsWith("_data/")) {
+        full = true;
+      }
+    }
+    if (full) {
+      loadSite();
+      includeCache.clear();
+      layoutCache.clear();
+      dependencies.clear();
+    } else {
+      for (String path : changed) {
+        includeCache.remove(path);
+        if (path.startsWith("_layouts/")) {
+          layoutCache.clear(); // layouts are cached by name, not path
+        }
+      }
+    }
+
+    List<String> pages = new ArrayList<>();
+    for (String path : current.keySet()) {
+      if (isExcluded(path)) {
+        continue;
+      }
+      if (full || changed.contains(path) || failed.contains(path) || usesAny(path, changed)) {
+        if (hasFrontMatter(path)) {
+          pages.add(path);
+        } else {
+          copy(path);
+        }
+      }
+    }
+    for (String path : changed) {
+      if (!current.containsKey(path) && outputs.containsKey(path)) {
+        File f = new File(destination, outputs.remove(path));
+        dependencies.remove(path);
+        if (f.exists() && f.delete()) {
+          deleted++;
+        }
+      }
+    }
+    List<String> errors = renderPages(pages);
+    // the pages that failed are in failed, so they're rendered again next time
+    stamps = current;
+    if (!errors.isEmpty()) {
+      throw new IOException(errors.get(0)+(errors.size() > 1 ? " (and "+(errors.size() - 1)+" other errors)" : ""));
+    }
+  }
+
+  private boolean usesAny(String path, Set<String> changed) {
+    Set<String> deps = dependencies.get(path);
+    if (deps == null || changed.isEmpty()) {
+      return false;
+    }
+    for (String d : deps) {
+      if (changed.contains(d)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // --- the site -----------------------------------------------------------------------
+
+  private void loadSite() throws IOException {
+    Map<String, Object> config = new LinkedHashMap<>();
+    File cfg = new File(source, "_config.yml");
+    if (cfg.exists()) {
+      config = SimpleYaml.parseMap(read(cfg));
+    }
+    excludes.clear();
+    excludes.addAll(Arrays.asList(DEFAULT_EXCLUDES));
+    for (Object o : LiquidFilters.list(config.get("exclude"))) {
+      excludes.add(LiquidFilters.str(o));
+    }
+    includes.clear();
+    for (Object o : LiquidFilters.list(config.get("include"))) {
+      includes.add(LiquidFilters.str(o));
+    }
+    defaults = LiquidFilters.list(config.get("defaults"));
+
+    site = new LinkedHashMap<>(config);
+    site.putIfAbsent("baseurl", "");
+    site.putIfAbsent("url", "");
+    site.put("time", LiquidFilters.date(new Date(), "%Y-%m-%d %H:%M:%S %z"));
+    site.put("data", loadData(new File(source, "_data")));
+  }
+
+  private Map<String, Object> loadData(File dir) throws IOException {
+    Map<String, Object> data = new TreeMap<>();
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return data;
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (f.isDirectory()) {
+        data.put(name, loadData(f));
+      } else if (name.endsWith(".json")) {
+        data.put(baseName(name), new ObjectMapper().readValue(f, Object.class));
+      } else if (name.endsWith(".yml") || name.endsWith(".yaml")) {
+        data.put(baseName(name), SimpleYaml.parse(read(f)));
+      }
+    }
+    return data;
+  }
+
+  private static String baseName(String name) {
+    return name.contains(".") ? name.substring(0, name.lastIndexOf(".")) : name;
+  }
+
+  /**
+   * The front matter defaults from _config.yml that apply to a page
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> defaultsFor(String path) {
+    Map<String, Object> res = new LinkedHashMap<>();
+    for (Object d : defaults) {
+      if (d instanceof Map) {
+        Object scope = ((Map<String, Object>) d).get("scope");
+        String sp = scope instanceof Map ? LiquidFilters.str(((Map<String, Object>) scope).get("path")) : "";
+        Object values = ((Map<String, Object>) d).get("values");
+        if (values instanceof Map && (sp.isEmpty() || path.equals(sp) || path.startsWith(sp.endsWith("/") ? sp : sp+"/") || matches(path, sp))) {
+          res.putAll((Map<String, Object>) values);
+        }
+      }
+    }
+    return res;
+  }
+
+  // --- the files ----------------------------------------------------------------------
+
+  private Map<String, long[]> scan() {
+    Map<String, long[]> res = new TreeMap<>();
+    scan(new File(source), "", res);
+    return res;
+  }
+
+  private void scan(File dir, String prefix, Map<String, long[]> res) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      if (f.getAbsolutePath().equals(destination)) {
+        continue;
+      }
+      String path = prefix+f.getName();
+      if (f.isDirectory()) {
+        scan(f, path+"/", res);
+      } else {
+        res.put(path, new long[] { f.length(), f.lastModified() });
+      }
+    }
+  }
+
+  /**
+   * Whether a file is left out of the output, following jekyll's rules
+   */
+  private boolean isExcluded(String path) {
+    for (String inc : includes) {
+      if (path.equals(inc) || path.startsWith(inc+"/")) {
+        return false;
+      }
+    }
+    for (String segment : path.split("/")) {
+      if (segment.startsWith("_") || segment.startsWith(".") || segment.startsWith("#") || segment.endsWith("~")) {
+        return true;
+      }
+    }
+    for (String ex : excludes) {
+      String e = ex.endsWith("/") ? ex.substring(0, ex.length() - 1) : ex;
+      if (path.equals(e) || path.startsWith(e+"/") || matches(path, e)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(String path, String glob) {
+    if (!glob.contains("*")) {
+      return false;
+    }
+    StringBuilder b = new StringBuilder();
+    for (char ch : glob.toCharArray()) {
+      if (ch == '*') {
+        b.append(".*");
+      } else {
+        b.append(Pattern.quote(String.valueOf(ch)));
+      }
+    }
+    return path.matches(b.toString());
+  }
+
+  private boolean hasFrontMatter(String path) throws IOException {
+    byte[] b = new byte[5];
+    int len;
+    try (InputStream s = Files.newInputStream(new File(source, path).toPath())) {
+      len = s.read(b);
+    }
+    int i = len >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB && (b[2] & 0xFF) == 0xBF ? 3 : 0;
+    return len - i >= 3 && b[i] == '-' && b[i+1] == '-' && b[i+2] == '-';
+  }
+
+  private void copy(String path) throws IOException {
+    File src = new File(source, path);
+    File dst = new File(destination, path);
+    outputs.put(path, path);
+    if (dst.exists() && dst.length() == src.length() && dst.lastModified() >= src.lastModified()) {
+      return;
+    }
+    dst.getParentFile().mkdirs();
+    Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    copied++;
+  }
+
+  private static String read(File f) throws IOException {
+    String s = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+    return s.startsWith("\uFEFF") ? s.substring(1) : s;
+  }
+
+  // --- rendering ----------------------------------------------------------------------
+
+  /**
+   * @return the errors in the pages that couldn't be rendered
+   */
+  private List<String> renderPages(List<String> pages) throws IOException {
+    List<PageResult> results = new ArrayList<>();
+    if (threads > 1 && pages.size() > 1) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<PageResult>> futures = new ArrayList<>();
+        for (String path : pages) {
+          futures.add(executor.submit(() -> renderPage(path)));
+        }
+        for (Future<PageResult> future : futures) {
+          try {
+            results.add(future.get());
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+              throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+              throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted rendering the site");
+          }
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    } else {
+      for (String path : pages) {
+        results.add(renderPage(path));
+      }
+    }
+
+    List<String> errors = new ArrayList<>();
+    failed.clear();
+    for (PageResult r : results) {
+      warnings.addAll(r.warnings);
+      dependencies.put(r.path, r.dependencies);
+      if (r.error != null) {
+        errors.add(r.error);
+        failed.add(r.path); // render it again next time, even if nothing has changed
+        continue;
+      }
+      outputs.put(r.path, r.output);
+      write(r.content, new File(destination, r.output));
+      rendered++;
+    }
+    warnings.addAll(errors);
+    return errors;
+  }
+
+  private void write(byte[] content, File f) throws IOException {
+    if (f.exists() && f.length() == content.length && Arrays.equals(content, Files.readAllBytes(f.toPath()))) {
+      return;
+    }
+    f.getParentFile().mkdirs();
+    Files.write(f.toPath(), content);
+  }
+
+  private PageResult renderPage(String path) throws IOException {
+    PageResult res = new PageResult();
+    res.path = path;
+    res.dependencies = new HashSet<>();
+    try {
+      String src = read(new File(source, path));
+      int end = frontMatterEnd(src);
+      Map<String, Object> page = defaultsFor(path);
+      if (end > -1) {
+        page.putAll(SimpleYaml.parseMap(src.substring(src.indexOf('\n') + 1, end)));
+        src = src.substring(Math.min(src.length(), src.indexOf('\n', end) == -1 ? src.length() : src.indexOf('\n', end) + 1));
+      }
+      boolean isMarkdown = path.endsWith(".md") || path.endsWith(".markdown");
+      res.output = outputPath(path, isMarkdown, page.get("permalink"));
+      String name = path.contains("/") ? path.substring(path.lastIndexOf("/") + 1) : path;
+      String dir = path.contains("/") ? path.substring(0, path.lastIndexOf("/") + 1) : "";
+      page.put("path", path);
+      page.put("name", name);
+      page.put("dir", "/"+dir);
+      page.put("url", "/"+res.output);
+
+      LiquidContext.IncludeResolver resolver = (n, relative) -> {
+        String key = relative ? normalise(dir+n) : "_includes/"+n;
+        res.dependencies.add(key);
+        return include(key);
+      };
+
+      String content = src;
+      if (!Boolean.FALSE.equals(page.get("render_with_liquid"))) {
+        content = LiquidTemplate.parse(path, src).render(new LiquidContext(payload(page, null, null), resolver, markdown));
+      }
+      if (isMarkdown && markdown != null) {
+        content = markdown.apply(content);
+      }
+
+      Set<String> seen = new HashSet<>();
+      String layoutName = layoutName(page.get("layout"));
+      while (layoutName != null) {
+        Layout layout = layout(layoutName);
+        if (layout == null) {
+          res.warnings.add("Build Warning: Layout '"+layoutName+"' requested in "+path+" does not exist.");
+          break;
+        }
+        res.dependencies.add(layout.path);
+        if (!seen.add(layout.path)) {
+          throw new IOException("Liquid Exception: the layouts used by "+path+" include themselves");
+        }
+        page.put("content", content);
+        content = layout.template.render(new LiquidContext(payload(page, layout.frontMatter, content), resolver, markdown));
+        layoutName = layoutName(layout.frontMatter.get("layout"));
+      }
+      res.content = content.getBytes(StandardCharsets.UTF_8);
+    } catch (IOException | RuntimeException e) {
+      String msg = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+      res.error = msg.startsWith("Liquid Exception:") ? msg+" (page "+path+")" : "Error rendering "+path+": "+msg;
+    }
+    return res;
+  }
+
+  private Map<String, Object> payload(Map<String, Object> page, Map<String, Object> layout, String content) {
+    Map<String, Object> res = new HashMap<>();
+    res.put("site", site);
+    res.put("page", page);
+    if (layout != null) {
+      res.put("layout", layout);
+      res.put("content", content);
+    }
+    return res;
+  }
+
+  private static String layoutName(Object o) {
+    String s = o == null ? null : LiquidFilters.str(o).trim();
+    return s == null || s.isEmpty() || s.equals("none") || s.equals("null") ? null : s;
+  }
+
+  /**
+   * The end of the front matter (the index of the closing ---), or -1 if there isn't any
+   */
+  private static int frontMatterEnd(String src) {
+    if (!src.startsWith("---")) {
+      return -1;
+    }
+    int nl = src.indexOf('\n');
+    if (nl == -1 || !src.substring(0, nl).trim().equals("---")) {
+      return -1;
+    }
+    int i = nl + 1;
+    while (i < src.length()) {
+      int e = src.indexOf('\n', i);
+      String line = (e == -1 ? src.substring(i) : src.substring(i, e)).trim();
+      if (line.equals("---") || line.equals("...")) {
+        return i;
+      }
+      if (e == -1) {
+        break;
+      }
+      i = e + 1;
+    }
+    return -1;
+  }
+
+  private static String outputPath(String path, boolean isMarkdown, Object permalink) {
+    if (permalink != null) {
+      String p = LiquidFilters.str(permalink);
+      if (p.startsWith("/") && !p.contains(":")) {
+        p = p.substring(1);
+        return p.isEmpty() || p.endsWith("/") ? p+"index.html" : p;
+      }
+    }
+    if (isMarkdown) {
+      return path.substring(0, path.lastIndexOf("."))+".html";
+    }
+    return path;
+  }
+
+  private static String normalise(String path) {
+    List<String> res = new ArrayList<>();
+    for (String s : path.split("/")) {
+      if (s.equals("..")) {
+        if (!res.isEmpty()) {
+          res.remove(res.size() - 1);
+        }
+      } else if (!s.isEmpty() && !s.equals(".")) {
+        res.add(s);
+      }
+    }
+    return String.join("/", res);
+  }
+
+  private LiquidTemplate include(String key) throws IOException {
+    LiquidTemplate t = includeCache.get(key);
+    if (t == null) {
+      File f = new File(source, key);
+      if (!f.exists() || f.isDirectory()) {
+        return null;
+      }
+      t = LiquidTemplate.parse(key, read(f));
+      includeCache.put(key, t);
+    }
+    return t;
+  }
+
+  private Layout layout(String name) throws IOException {
+    Layout layout = layoutCache.get(name);
+    if (layout == null) {
+      File dir = new File(source, "_layouts");
+      File f = new File(dir, name.contains(".") ? name : name+".html");
+      if (!f.exists()) {
+        File[] files = dir.listFiles();
+        f = null;
+        if (files != null) {
+          Arrays.sort(files);
+          for (File c : files) {
+            if (baseName(c.getName()).equals(name)) {
+              f = c;
+              break;
+            }
+          }
+        }
+        if (f == null) {
+          return null;
+        }
+      }
+      layout = new Layout();
+      layout.path = "_layouts/"+f.getName();
+      String src = read(f);
+      int end = frontMatterEnd(src);
+      layout.frontMatter = new LinkedHashMap<>();
+      if (end > -1) {
+        layout.frontMatter = SimpleYaml.parseMap(src.substring(src.indexOf('\n') + 1, end));
+        src = src.substring(src.indexOf('\n', end) == -1 ? src.length() : src.indexOf('\n', end) + 1);
+      }
+      layout.template = LiquidTemplate.parse(layout.path, src);
+      layoutCache.put(name, layout);
+    }
+    return layout;
+  }
+}
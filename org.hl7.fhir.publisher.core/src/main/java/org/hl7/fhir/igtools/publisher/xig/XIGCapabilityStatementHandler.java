@@ -70,16 +70,8 @@ public class XIGCapabilityStatementHandler extends XIGHandler {
   
   public PageContent makeCapabilityStatementPage(CapabilityStatementKind kind, String title, String realm) {
     List<CapabilityStatement> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof CapabilityStatement) {
-          CapabilityStatement cs = (CapabilityStatement) cr;
-          boolean ok = cs.getKind() == kind;
-          if (ok) {
-            list.add(cs);
-          }
-        }
-      }
+    for (CanonicalResource cr : info.select(realm, "CapabilityStatement", kind.toCode())) {
+      list.add((CapabilityStatement) cr);
     }
     if (list.isEmpty() && kind != null) {
       return null;
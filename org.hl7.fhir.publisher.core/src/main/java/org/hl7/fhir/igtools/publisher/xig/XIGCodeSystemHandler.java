@@ -38,16 +38,8 @@ public class XIGCodeSystemHandler extends XIGHandler {
   
   public PageContent makeCodeSystemPage(CodeSystemContentMode mode, String title, String realm) {
     List<CodeSystem> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof CodeSystem) {
-          CodeSystem cs = (CodeSystem) cr;
-          boolean ok = cs.getContent() == mode;
-          if (ok) {
-            list.add(cs);
-          }
-        }
-      }
+    for (CanonicalResource cr : info.select(realm, "CodeSystem", mode.toCode())) {
+      list.add((CodeSystem) cr);
     }
     if (list.isEmpty() && mode != null) {
       return null;
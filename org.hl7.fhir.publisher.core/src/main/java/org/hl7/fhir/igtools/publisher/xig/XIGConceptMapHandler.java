@@ -41,23 +41,19 @@ public class XIGConceptMapHandler extends XIGHandler {
   
   public PageContent makeConceptMapsPage(String mode, String title, String realm) {
     List<ConceptMap> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof ConceptMap) {
-          ConceptMap cm = (ConceptMap) cr;
-          Set<String> systems = new HashSet<>();
-          for (ConceptMapGroupComponent g : cm.getGroup()) {
-            if (g.hasSource()) {
-              systems.add(g.getSource());
-            }
-            if (g.hasTarget()) {
-              systems.add(g.getTarget());
-            }
-          }
-          if (inMode(mode, systems)) {
-            list.add(cm);
-          }
+    for (CanonicalResource cr : info.select(realm, "ConceptMap")) {
+      ConceptMap cm = (ConceptMap) cr;
+      Set<String> systems = new HashSet<>();
+      for (ConceptMapGroupComponent g : cm.getGroup()) {
+        if (g.hasSource()) {
+          systems.add(g.getSource());
         }
+        if (g.hasTarget()) {
+          systems.add(g.getTarget());
+        }
+      }
+      if (inMode(mode, systems)) {
+        list.add(cm);
       }
     }
     if (list.size() == 0) {
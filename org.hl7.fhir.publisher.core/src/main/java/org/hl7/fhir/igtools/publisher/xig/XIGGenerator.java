@@ -1,9 +1,12 @@
 package org.hl7.fhir.igtools.publisher.xig;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -28,15 +31,28 @@ public class XIGGenerator {
 
   private static final String SNOMED_EDITION = "900000000000207008"; // international
 
+  private static final List<String> RESOURCE_TYPES = Arrays.asList("CapabilityStatement", "SearchParameter", "OperationDefinition", "StructureDefinition", 
+      "ValueSet", "CodeSystem", "ConceptMap", "StructureMap", "NamingSystem", "GraphDefinition", "ActivityDefinition", "ConditionDefinition", "DeviceDefinition", 
+      "EventDefinition", "ObservationDefinition", "PlanDefinition", "Questionnaire", "SpecimenDefinition", "ExampleScenario", "ActorDefinition", "Requirements");
+
   private String target;
   private XIGInformation info = new XIGInformation();
 
   private FilesystemPackageCacheManager pcm;
 
   private String date;
+
+  private int threads = 1;
+
+  private String packageCache;
     
   public static void main(String[] args) throws Exception {
-    new XIGGenerator(args[0]).execute();
+    XIGGenerator xig = new XIGGenerator(args[0]);
+    if (args.length > 2) {
+      xig.setPackageCache(args[1]);
+      xig.setThreads(Integer.parseInt(args[2]));
+    }
+    xig.execute();
   }
 
   public XIGGenerator(String target) throws FHIRException, IOException, URISyntaxException {
@@ -132,41 +148,84 @@ public class XIGGenerator {
   }
   
   public void execute() throws IOException, ParserConfigurationException, SAXException, FHIRException, EOperationOutcome {
-    PackageVisitor pv = new PackageVisitor();
-    pv.getResourceTypes().add("CapabilityStatement");
-    pv.getResourceTypes().add("SearchParameter");
-    pv.getResourceTypes().add("OperationDefinition");
-    pv.getResourceTypes().add("StructureDefinition");
-    pv.getResourceTypes().add("ValueSet");
-    pv.getResourceTypes().add("CodeSystem");
-    pv.getResourceTypes().add("ConceptMap");
-    pv.getResourceTypes().add("StructureMap");
-    pv.getResourceTypes().add("NamingSystem");
-    pv.getResourceTypes().add("GraphDefinition");
-    pv.getResourceTypes().add("ActivityDefinition");
-    pv.getResourceTypes().add("ConditionDefinition");
-    pv.getResourceTypes().add("DeviceDefinition");
-    pv.getResourceTypes().add("EventDefinition");
-    pv.getResourceTypes().add("ObservationDefinition");
-    pv.getResourceTypes().add("PlanDefinition");
-    pv.getResourceTypes().add("Questionnaire");
-    pv.getResourceTypes().add("SpecimenDefinition");
-    pv.getResourceTypes().add("ExampleScenario");
-    pv.getResourceTypes().add("ActorDefinition");
-    pv.getResourceTypes().add("Requirements");
-    
-    pv.setOldVersions(false);
-    pv.setCorePackages(false);
-    pv.setProcessor(new XIGLoader(info));
-    pv.setCurrent(true);
-    pv.visitPackages();
+    if (packageCache != null) {
+      File storeFile = File.createTempFile("xig", ".store");
+      storeFile.deleteOnExit();
+      XIGStore store = new XIGStore(storeFile);
+      try {
+        loadFromCache(store);
+        render();
+      } finally {
+        store.close();
+        storeFile.delete();
+      }
+    } else {
+      PackageVisitor pv = new PackageVisitor();
+      pv.getResourceTypes().addAll(RESOURCE_TYPES);
     
+      pv.setOldVersions(false);
+      pv.setCorePackages(false);
+      XIGLoader loader = new XIGLoader(info);
+      pv.setProcessor(loader);
+      pv.setCurrent(true);
+      pv.visitPackages();
+      loader.finishPackages();
+      render();
+    }
+  }
+
+  private void render() throws IOException, FHIRException, EOperationOutcome {
     info.buildUsageMap();
+    info.buildIndex();
 
-    new XIGRenderer(info, target, date).produce(pcm);
+    XIGRenderer renderer = new XIGRenderer(info, target, date);
+    renderer.setThreads(threads);
+    renderer.produce(pcm);
     printSummary(); 
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * The number of resource pages, or page sets (one per realm), to generate at the same time
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public String getPackageCache() {
+    return packageCache;
+  }
+
+  /**
+   * Load the packages from this local package cache folder, in parallel (see threads), through
+   * an on-disk store, rather than visiting the package registry
+   */
+  public void setPackageCache(String packageCache) {
+    this.packageCache = packageCache;
+  }
+
+  /**
+   * Loads the packages into the store, and the latest resources from it into the information.
+   * The store has to stay open while the pages are made
+   */
+  private void loadFromCache(XIGStore store) throws IOException {
+    Utilities.createDirectory(target);
+    JsonObject header = new JsonObject();
+    header.add("date", info.getJson().get("date"));
+    header.add("_doco", info.getJson().get("_doco"));
+    info.setJson(null);
+    XIGRegistryWriter registry = new XIGRegistryWriter(Utilities.path(target, "registry.json"), header);
+    XIGPackageScanner scanner = new XIGPackageScanner(packageCache, threads);
+    scanner.getResourceTypes().addAll(RESOURCE_TYPES);
+    scanner.scan(new XIGLoader(info), store, registry);
+    registry.close();
+    System.out.println("Loaded "+store.count()+" resources ("+(store.size() / (1024 * 1024))+"MB), "+store.latest().size()+" distinct");
+    store.loadInto(info);
+  }
+
   private void printSummary() {
     System.out.println("");
     System.out.println("IGs: "+info.getPid().size());
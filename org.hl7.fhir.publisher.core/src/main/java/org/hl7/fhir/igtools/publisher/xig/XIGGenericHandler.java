@@ -18,11 +18,7 @@ public class XIGGenericHandler extends XIGHandler {
   
   public PageContent makeResourcesPage(String type, String title, String realm) {
     List<CanonicalResource> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm) && type.equals(cr.fhirType())) {
-        list.add(cr);
-      }
-    }
+    list.addAll(info.select(realm, type));
     if (list.isEmpty()) {
       return null;
     }
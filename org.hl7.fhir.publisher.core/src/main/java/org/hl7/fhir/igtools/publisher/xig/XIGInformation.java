@@ -1,11 +1,14 @@
 package org.hl7.fhir.igtools.publisher.xig;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.model.CanonicalResource;
@@ -19,6 +22,7 @@ import org.hl7.fhir.r5.model.OperationDefinition;
 import org.hl7.fhir.r5.model.SearchParameter;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.json.model.JsonArray;
 import org.hl7.fhir.utilities.json.model.JsonObject;
 
@@ -75,7 +79,11 @@ public class XIGInformation {
   private JsonObject json = new JsonObject();
   private Set<String> jurisdictions = new HashSet<>();
   private SimpleWorkerContext ctxt;
+  private XIGStore store;
   Map<String, List<CanonicalResourceUsage>> usages = new HashMap<>();
+  private Map<String, Set<String>> references = new HashMap<>(); // url -> the urls the resource's page shows (see recordReference)
+  private Map<String, Map<String, List<CanonicalResource>>> index; // realm -> type (and type/kind) -> resources
+  private Map<String, String> packageDigests = new HashMap<>(); // pid -> digest of the package content (see XIGLoader)
   
   public Map<String, String> getPid() {
     return pid;
@@ -103,15 +111,37 @@ public class XIGInformation {
   public Map<String, List<CanonicalResourceUsage>> getUsages() {
     return usages;
   }
+  public Map<String, Set<String>> getReferences() {
+    return references;
+  }
   public Set<String> getNspr() {
     return nspr;
   }
+  public Map<String, String> getPackageDigests() {
+    return packageDigests;
+  }
   public SimpleWorkerContext getCtxt() {
     return ctxt;
   }
   public void setCtxt(SimpleWorkerContext ctxt) {
     this.ctxt = ctxt;
   }
+  public XIGStore getStore() {
+    return store;
+  }
+
+  public void setStore(XIGStore store) {
+    this.store = store;
+  }
+
+  /**
+   * The whole of the resource, for its own page. Resources loaded from a XIGStore may only
+   * be summaries
+   */
+  public CanonicalResource getFullResource(CanonicalResource cr) throws IOException {
+    return store == null ? cr : store.full(cr);
+  }
+
   public void fillOutJson(CanonicalResource cr, JsonObject j) {
     j.add("resourceType", cr.fhirType());
     if (cr.hasId()) {           j.add("id", cr.getId()); }
@@ -208,8 +238,118 @@ public class XIGInformation {
       } 
     }
   }
+  /**
+   * Index the resources by realm, authority, type and kind, so that each page set only looks
+   * at its own resources instead of going through all of them. The lists are in the same
+   * order as resources.values(), so the pages come out the same as they did from the full
+   * scan. Call this once everything is loaded: the index isn't updated when resources change
+   */
+  public synchronized void buildIndex() {
+    index = new HashMap<>();
+    for (CanonicalResource cr : resources.values()) {
+      Set<String> keys = new LinkedHashSet<>();
+      keys.add("all");
+      if (cr.hasUserData("auth")) {
+        keys.add("auth:"+cr.getUserString("auth"));
+      }
+      if (cr.hasUserData("realm")) {
+        keys.add("realm:"+cr.getUserString("realm"));
+      }
+      JsonObject j = (JsonObject) cr.getUserData("json");
+      if (j != null && j.has("jurisdictions")) {
+        for (String str : j.getStrings("jurisdictions")) {
+          keys.add("realm:"+str);
+        }
+      }
+      String kind = kindOf(cr);
+      for (String key : keys) {
+        Map<String, List<CanonicalResource>> types = index.get(key);
+        if (types == null) {
+          types = new HashMap<>();
+          index.put(key, types);
+        }
+        addToIndex(types, cr.fhirType(), cr);
+        if (kind != null) {
+          addToIndex(types, cr.fhirType()+"/"+kind, cr);
+        }
+      }
+    }
+  }
+
+  private void addToIndex(Map<String, List<CanonicalResource>> types, String type, CanonicalResource cr) {
+    List<CanonicalResource> list = types.get(type);
+    if (list == null) {
+      list = new ArrayList<>();
+      types.put(type, list);
+    }
+    list.add(cr);
+  }
+
+  private String kindOf(CanonicalResource cr) {
+    if (cr instanceof StructureDefinition && ((StructureDefinition) cr).hasKind()) {
+      return ((StructureDefinition) cr).getKind().toCode();
+    }
+    if (cr instanceof CodeSystem && ((CodeSystem) cr).hasContent()) {
+      return ((CodeSystem) cr).getContent().toCode();
+    }
+    if (cr instanceof CapabilityStatement && ((CapabilityStatement) cr).hasKind()) {
+      return ((CapabilityStatement) cr).getKind().toCode();
+    }
+    if (cr instanceof NamingSystem && ((NamingSystem) cr).hasKind()) {
+      return ((NamingSystem) cr).getKind().toCode();
+    }
+    return null;
+  }
+
+  /**
+   * The resources of the given type that belong in the page set for the realm. Realm is as
+   * for XIGHandler.meetsRealm: 'all', an authority ('hl7' or 'ihe'), or a jurisdiction
+   */
+  public List<CanonicalResource> select(String realm, String type) {
+    return select(realm, type, null);
+  }
+
+  /**
+   * As select(realm, type), but only the resources of the given kind (StructureDefinition.kind,
+   * CodeSystem.content, CapabilityStatement.kind or NamingSystem.kind)
+   */
+  public List<CanonicalResource> select(String realm, String type, String kind) {
+    Map<String, List<CanonicalResource>> types;
+    synchronized (this) {
+      if (index == null) {
+        buildIndex();
+      }
+      types = index.get(realm.equals("all") ? "all" : Utilities.existsInList(realm, "hl7", "ihe") ? "auth:"+realm : "realm:"+realm);
+    }
+    List<CanonicalResource> list = types == null ? null : types.get(kind == null ? type : type+"/"+kind);
+    return list == null ? new ArrayList<>() : list;
+  }
+
+  /**
+   * All the resources in the page set for the realm, whatever their type
+   */
+  public List<CanonicalResource> selectAll(String realm) {
+    Map<String, List<CanonicalResource>> types;
+    synchronized (this) {
+      if (index == null) {
+        buildIndex();
+      }
+      types = index.get(realm.equals("all") ? "all" : Utilities.existsInList(realm, "hl7", "ihe") ? "auth:"+realm : "realm:"+realm);
+    }
+    List<CanonicalResource> res = new ArrayList<>();
+    if (types != null) {
+      for (String type : Utilities.sorted(types.keySet())) {
+        if (!type.contains("/")) {
+          res.addAll(types.get(type));
+        }
+      }
+    }
+    return res;
+  }
+
   public void recordUsage(CanonicalResource cr, String value, UsageType usage) {
     if (value != null) {
+      recordReference(cr, value);
       List<CanonicalResourceUsage> list = usages.get(value);
       if (list == null) {
         list = new ArrayList<>();
@@ -223,4 +363,20 @@ public class XIGInformation {
       list.add(new CanonicalResourceUsage(cr, usage));
     }
   }
+
+  /**
+   * Records that the resource's page shows the other resource (a code system it includes, its
+   * base definition, a value set it binds to), so the page has to change when that does. This
+   * is the other way round from the usages, and covers the references that aren't usages
+   */
+  public void recordReference(CanonicalResource cr, String value) {
+    if (value != null && cr.hasUrl()) {
+      Set<String> set = references.get(cr.getUrl());
+      if (set == null) {
+        set = new TreeSet<>();
+        references.put(cr.getUrl(), set);
+      }
+      set.add(value);
+    }
+  }
 }
@@ -1,8 +1,11 @@
 package org.hl7.fhir.igtools.publisher.xig;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.convertors.advisors.impl.BaseAdvisor_10_50;
 import org.hl7.fhir.convertors.analytics.PackageVisitor.IPackageVisitorProcessor;
@@ -33,6 +36,7 @@ public class XIGLoader implements IPackageVisitorProcessor {
 
   private XIGInformation info;
   private Map<String, SpecMapManager> smmList = new HashMap<>();
+  private Map<String, MessageDigest> digests = new ConcurrentHashMap<>(); // pid -> digest of the content so far (see XIGManifest)
 
   public XIGLoader(XIGInformation info) {
     super();
@@ -45,15 +49,117 @@ public class XIGLoader implements IPackageVisitorProcessor {
 
     SpecMapManager smm = smmList.get(pid);
     if (smm == null) {
-      smm = npm.hasFile("other", "spec.internals") ?  new SpecMapManager( TextFile.streamToBytes(npm.load("other", "spec.internals")), npm.fhirVersion()) : SpecMapManager.createSpecialPackage(npm);
-      smm.setName(npm.name());
-      smm.setBase(npm.canonical());
-      smm.setBase2(PackageHacker.fixPackageUrl(npm.url()));
+      smm = makeSpecMap(npm);
       smmList.put(pid, smm);
       info.getJson().getJsonObject("packages").add(pid, npm.getNpm());
     }
+    digest(pid, npm, type, id, content);
         
     info.getPid().put(pid, npm.getWebLocation());
+    CanonicalResource cr = loadCanonical(pid, npm, smm, version, type, id, content);
+    if (cr != null) {
+      JsonObject j = (JsonObject) cr.getUserData("json");
+      info.getJson().getJsonArray("canonicals").add(j);
+      info.fillOutJson(cr, j);
+      if (info.getResources().containsKey(cr.getUrl())) {
+        CanonicalResource crt = info.getResources().get(cr.getUrl());
+        if (VersionUtilities.isThisOrLater(crt.getVersion(), cr.getVersion())) {
+          info.getResources().put(cr.getUrl(), cr);
+        }
+      } else {
+        info.getResources().put(cr.getUrl(), cr);
+      }
+      info.getCtxt().cacheResource(cr);
+      String t = countsKey(npm, type, cr);
+      if (!info.getCounts().containsKey(t)) {
+        info.getCounts().put(t, new HashMap<>());
+      }
+      Map<String, CanonicalResource> list = info.getCounts().get(t);
+      String url = cr.getUrl();
+      if (url == null) {
+        url = cr.getId();
+      }
+      list.put(url, cr);
+    }
+  }
+
+  public static SpecMapManager makeSpecMap(NpmPackage npm) throws IOException {
+    SpecMapManager smm = npm.hasFile("other", "spec.internals") ?  new SpecMapManager( TextFile.streamToBytes(npm.load("other", "spec.internals")), npm.fhirVersion()) : SpecMapManager.createSpecialPackage(npm);
+    smm.setName(npm.name());
+    smm.setBase(npm.canonical());
+    smm.setBase2(PackageHacker.fixPackageUrl(npm.url()));
+    return smm;
+  }
+
+  /**
+   * Called by the XIGPackageScanner once for each package, before its resources
+   */
+  public void startPackage(String pid, NpmPackage npm, XIGRegistryWriter registry) throws IOException {
+    registry.addPackage(pid, npm.getNpm());
+    digests.put(pid, XIGManifest.startDigest(npm));
+    synchronized (info) {
+      info.getPid().put(pid, npm.getWebLocation());
+    }
+  }
+
+  /**
+   * The version of processResource used by the XIGPackageScanner. This is called on several
+   * threads at once; the resource is parsed and converted on the calling thread, and then
+   * written to the store and the registry rather than kept in memory
+   */
+  public void processResource(String pid, NpmPackage npm, SpecMapManager smm, XIGStore.PackageSource source, String version, String type, String id, byte[] content, 
+      XIGStore store, XIGRegistryWriter registry) throws FHIRException, IOException {
+    digest(pid, npm, type, id, content);
+    CanonicalResource cr = loadCanonical(pid, npm, smm, version, type, id, content);
+    if (cr != null) {
+      JsonObject j = (JsonObject) cr.getUserData("json");
+      synchronized (info) {
+        info.fillOutJson(cr, j); // collects the jurisdictions
+      }
+      registry.addCanonical(j);
+      store.add(source, cr, countsKey(npm, type, cr));
+    }
+  }
+
+  /**
+   * Adds the resource to the digest of its package's content. The resources of a package are
+   * always read in the same order, so the digest only changes if the content does
+   */
+  private void digest(String pid, NpmPackage npm, String type, String id, byte[] content) {
+    MessageDigest md = digests.computeIfAbsent(pid, k -> XIGManifest.startDigest(npm));
+    XIGManifest.update(md, type+"/"+id);
+    md.update(content);
+  }
+
+  /**
+   * Called once all the resources in the package have been processed: the digest of its
+   * content goes into the information for the XIGManifest
+   */
+  public void finishPackage(String pid) {
+    MessageDigest md = digests.remove(pid);
+    if (md != null) {
+      String digest = XIGManifest.hex(md);
+      synchronized (info) {
+        info.getPackageDigests().put(pid, digest);
+      }
+    }
+  }
+
+  /**
+   * Finishes all the packages that haven't been (when the packages come from a PackageVisitor,
+   * which doesn't say when it's done with a package)
+   */
+  public void finishPackages() {
+    for (String pid : new ArrayList<>(digests.keySet())) {
+      finishPackage(pid);
+    }
+  }
+
+  /**
+   * Parses the resource and sets up the user data and the registry entry (other than the
+   * parts that fillOutJson adds). Returns null if the resource isn't of interest
+   */
+  private CanonicalResource loadCanonical(String pid, NpmPackage npm, SpecMapManager smm, String version, String type, String id, byte[] content) throws FHIRException {
     Resource r = loadResource(pid, version, type, id, content);
     if (r != null && r instanceof CanonicalResource) {
       CanonicalResource cr = (CanonicalResource) r;
@@ -61,7 +167,6 @@ public class XIGLoader implements IPackageVisitorProcessor {
         cr.setText(null);
         cr.setUserData("path", Utilities.pathURL(smm.getBase(), smm.getPath(cr.getUrl(), null, cr.fhirType(), cr.getIdBase())));
         JsonObject j = new JsonObject();
-        info.getJson().getJsonArray("canonicals").add(j);
         j.add("pid", pid);
         cr.setUserData("pid", pid);
         cr.setUserData("purl", npm.getWebLocation());
@@ -71,7 +176,9 @@ public class XIGLoader implements IPackageVisitorProcessor {
         String realm = getRealm(pid);
         if (realm != null) {
           cr.setUserData("realm", realm);
-          info.getJurisdictions().add(realm);
+          synchronized (info) {
+            info.getJurisdictions().add(realm);
+          }
         }
         String auth = getAuth(pid);
         if (auth != null) {
@@ -82,105 +189,95 @@ public class XIGLoader implements IPackageVisitorProcessor {
         j.add("published", pid.contains("#current"));
         j.add("filebase", cr.getUserString("filebase"));
         j.add("path", cr.getUserString("path"));
-        
-        info.fillOutJson(cr, j);
-        if (info.getResources().containsKey(cr.getUrl())) {
-          CanonicalResource crt = info.getResources().get(cr.getUrl());
-          if (VersionUtilities.isThisOrLater(crt.getVersion(), cr.getVersion())) {
-            info.getResources().put(cr.getUrl(), cr);
-          }
-        } else {
-          info.getResources().put(cr.getUrl(), cr);
-        }
-        info.getCtxt().cacheResource(cr);
-        String t = type;
-        if (cr instanceof StructureDefinition) {
-          StructureDefinition sd = (StructureDefinition) cr;
-          if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
-            t = t + "/logical";
-          } else if (sd.getType().equals("Extension")) {
-            t = t + "/extension";
-          } else if (sd.getKind() == StructureDefinitionKind.RESOURCE) {
-            t = t + "/resource";
+        return cr;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The key for the summary counts: the type, and for StructureDefinitions and ValueSets,
+   * what kind of thing it is
+   */
+  private String countsKey(NpmPackage npm, String type, CanonicalResource cr) {
+    String t = type;
+    if (cr instanceof StructureDefinition) {
+      StructureDefinition sd = (StructureDefinition) cr;
+      if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
+        t = t + "/logical";
+      } else if (sd.getType().equals("Extension")) {
+        t = t + "/extension";
+      } else if (sd.getKind() == StructureDefinitionKind.RESOURCE) {
+        t = t + "/resource";
+      } else {
+        t = t + "/other";
+      }
+    } else if (cr instanceof ValueSet) {
+      ValueSet vs = (ValueSet) cr;
+      String sys = null;
+      for (ConceptSetComponent inc : vs.getCompose().getInclude()) {
+        String s = null;
+        String system = inc.getSystem();
+        if (!Utilities.noString(system)) {
+          if ("http://snomed.info/sct".equals(system)) {
+            s = "sct";
+          } else if ("http://loinc.org".equals(system)) {
+            s = "loinc";
+          } else if ("http://unitsofmeasure.org".equals(system)) {
+            s = "ucum";
+          } else if ("http://hl7.org/fhir/sid/ndc".equals(system)) {
+            s = "ndc";
+          } else if ("http://hl7.org/fhir/sid/cvx".equals(system)) {
+            s = "cvx";
+          } else if (system.contains(":iso:")) {
+            s = "iso";
+          } else if (system.contains(":ietf:")) {
+            s = "ietf";
+          } else if (system.contains("ihe.net")) {
+            s = "ihe";
+          } else if (system.contains("icpc")) {
+            s = "icpc";
+          } else if (system.contains("ncpdp")) {
+            s = "ncpdp";
+          } else if (system.contains("nucc")) {
+            s = "nucc";
+          } else if (Utilities.existsInList(system, "http://hl7.org/fhir/sid/icd-9-cm", "http://hl7.org/fhir/sid/icd-10", "http://fhir.de/CodeSystem/dimdi/icd-10-gm", "http://hl7.org/fhir/sid/icd-10-nl 2.16.840.1.113883.6.3.2", "http://hl7.org/fhir/sid/icd-10-cm")) {
+            s = "icd";
+          } else if (system.contains("urn:oid:")) {
+            s = "oid";
+          } else if ("http://unitsofmeasure.org".equals(system)) {
+            s = "ucum";
+          } else if ("http://dicom.nema.org/resources/ontology/DCM".equals(system)) {
+            s = "dcm";
+          } else if ("http://unitsofmeasure.org".equals(system)) {
+            s = "ucum";
+          } else if ("http://www.ama-assn.org/go/cpt".equals(system)) {
+            s = "cpt";
+          } else if ("http://www.nlm.nih.gov/research/umls/rxnorm".equals(system)) {
+            s = "rx";
+          } else if (system.startsWith("http://terminology.hl7.org")) {
+            s = "tho";
+          } else if (system.startsWith("http://hl7.org/fhir")) {
+            s = "fhir";
+          } else if (npm.canonical() != null && system.startsWith(npm.canonical())) {
+            s = "internal";
+          } else if (system.contains("example.org")) {
+            s = "example";
           } else {
-            t = t + "/other";
+            s = "?";
           }
-        } else if (cr instanceof ValueSet) {
-          ValueSet vs = (ValueSet) cr;
-          String sys = null;
-          for (ConceptSetComponent inc : vs.getCompose().getInclude()) {
-            String s = null;
-            String system = inc.getSystem();
-            if (!Utilities.noString(system)) {
-              if ("http://snomed.info/sct".equals(system)) {
-                s = "sct";
-              } else if ("http://loinc.org".equals(system)) {
-                s = "loinc";
-              } else if ("http://unitsofmeasure.org".equals(system)) {
-                s = "ucum";
-              } else if ("http://hl7.org/fhir/sid/ndc".equals(system)) {
-                s = "ndc";
-              } else if ("http://hl7.org/fhir/sid/cvx".equals(system)) {
-                s = "cvx";
-              } else if (system.contains(":iso:")) {
-                s = "iso";
-              } else if (system.contains(":ietf:")) {
-                s = "ietf";
-              } else if (system.contains("ihe.net")) {
-                s = "ihe";
-              } else if (system.contains("icpc")) {
-                s = "icpc";
-              } else if (system.contains("ncpdp")) {
-                s = "ncpdp";
-              } else if (system.contains("nucc")) {
-                s = "nucc";
-              } else if (Utilities.existsInList(system, "http://hl7.org/fhir/sid/icd-9-cm", "http://hl7.org/fhir/sid/icd-10", "http://fhir.de/CodeSystem/dimdi/icd-10-gm", "http://hl7.org/fhir/sid/icd-10-nl 2.16.840.1.113883.6.3.2", "http://hl7.org/fhir/sid/icd-10-cm")) {
-                s = "icd";
-              } else if (system.contains("urn:oid:")) {
-                s = "oid";
-              } else if ("http://unitsofmeasure.org".equals(system)) {
-                s = "ucum";
-              } else if ("http://dicom.nema.org/resources/ontology/DCM".equals(system)) {
-                s = "dcm";
-              } else if ("http://unitsofmeasure.org".equals(system)) {
-                s = "ucum";
-              } else if ("http://www.ama-assn.org/go/cpt".equals(system)) {
-                s = "cpt";
-              } else if ("http://www.nlm.nih.gov/research/umls/rxnorm".equals(system)) {
-                s = "rx";
-              } else if (system.startsWith("http://terminology.hl7.org")) {
-                s = "tho";
-              } else if (system.startsWith("http://hl7.org/fhir")) {
-                s = "fhir";
-              } else if (npm.canonical() != null && system.startsWith(npm.canonical())) {
-                s = "internal";
-              } else if (system.contains("example.org")) {
-                s = "example";
-              } else {
-                s = "?";
-              }
-            } else if (inc.hasValueSet()) {
-              s = "vs";
-            }
-            if (sys == null) {
-              sys = s;
-            } else if (!sys.equals(s)) {
-              sys = "mixed";
-            }
-          }
-          t = t + "/"+(sys == null ? "n/a" : sys);
-        }
-        if (!info.getCounts().containsKey(t)) {
-          info.getCounts().put(t, new HashMap<>());
+        } else if (inc.hasValueSet()) {
+          s = "vs";
         }
-        Map<String, CanonicalResource> list = info.getCounts().get(t);
-        String url = cr.getUrl();
-        if (url == null) {
-          url = cr.getId();
+        if (sys == null) {
+          sys = s;
+        } else if (!sys.equals(s)) {
+          sys = "mixed";
         }
-        list.put(url, cr);
       }
+      t = t + "/"+(sys == null ? "n/a" : sys);
     }
+    return t;
   }
 
   private boolean isCoreDefinition(CanonicalResource cr, String pid) {
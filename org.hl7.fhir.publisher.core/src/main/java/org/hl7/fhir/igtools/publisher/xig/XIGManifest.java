@@ -0,0 +1,267 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.hl7.fhir.igtools.publisher.IGVersionUtil;
+import org.hl7.fhir.igtools.publisher.xig.XIGInformation.CanonicalResourceUsage;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonProperty;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+/**
+ * What the last XIG run produced, kept in [target]/xig-manifest.json, so that the next run only
+ * renders what has changed.
+ *
+ * The manifest has the id, version and content digest of each package, and the digest of what
+ * went into each resource page (the content of its package, what uses it, and what it uses)
+ * and into each realm's index pages (the resources in the realm, their packages, and what uses
+ * them). A page is only made again if its digest has changed, or the file isn't there. If the
+ * publisher version has changed, everything is made again
+ */
+public class XIGManifest {
+
+  public static final String FILENAME = "xig-manifest.json";
+  private static final String FORMAT = "1";
+
+  private XIGInformation info;
+  private String target;
+  private Map<String, String> previousPages = new HashMap<>();
+  private Map<String, String> previousRealms = new HashMap<>();
+  private Map<String, String> pages = new TreeMap<>();
+  private Map<String, String> realms = new TreeMap<>();
+
+  public XIGManifest(XIGInformation info, String target) {
+    super();
+    this.info = info;
+    this.target = target;
+  }
+
+  /**
+   * Reads the manifest the last run left in the target folder
+   *
+   * @return false if there isn't one (or it's from another version), so everything is made
+   */
+  public boolean readPrevious() {
+    File f = new File(target, FILENAME);
+    if (!f.exists()) {
+      return false;
+    }
+    try (InputStream in = new FileInputStream(f)) {
+      JsonObject json = JsonParser.parseObject(in);
+      if (!FORMAT.equals(json.asString("format")) || !tool().equals(json.asString("tool"))) {
+        return false;
+      }
+      for (JsonProperty p : json.getJsonObject("pages").getProperties()) {
+        previousPages.put(p.getName(), p.getValue().asString());
+      }
+      for (JsonProperty p : json.getJsonObject("realms").getProperties()) {
+        previousRealms.put(p.getName(), p.getValue().asString());
+      }
+      return true;
+    } catch (Exception e) {
+      System.out.println("Unable to read "+f.getAbsolutePath()+" ("+e.getMessage()+"), so generating everything");
+      previousPages.clear();
+      previousRealms.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Records the digest of the resource's page
+   *
+   * @return true if the page needs to be rendered
+   */
+  public boolean needsPage(CanonicalResource cr) throws IOException {
+    String filebase = cr.getUserString("filebase");
+    String digest = pageDigest(cr);
+    if (digest == null) {
+      return true;
+    }
+    pages.put(filebase, digest);
+    return !digest.equals(previousPages.get(filebase)) || !new File(Utilities.path(target, filebase+".html")).exists();
+  }
+
+  /**
+   * Records the digest of the realm's slice of the resources
+   *
+   * @return true if the realm's index pages need to be generated
+   */
+  public boolean needsPageSet(String realm) throws IOException {
+    MessageDigest md = startDigest();
+    for (CanonicalResource cr : info.selectAll(realm)) {
+      String pd = pageDigest(cr);
+      if (pd == null) {
+        return true;
+      }
+      update(md, cr.getUserString("filebase"));
+      update(md, pd);
+    }
+    // these decide which pages there are in each set
+    for (String s : Utilities.sorted(info.getOpr())) {
+      update(md, "opr:"+s);
+    }
+    for (String s : Utilities.sorted(info.getSpr())) {
+      update(md, "spr:"+s);
+    }
+    for (String s : Utilities.sorted(info.getNspr())) {
+      update(md, "nspr:"+s);
+    }
+    String digest = hex(md);
+    realms.put(realm, digest);
+    return !digest.equals(previousRealms.get(realm)) || !new File(Utilities.path(target, realm+"-index.html")).exists();
+  }
+
+  /**
+   * @return the pages from the last run whose resources have gone (call after needsPage for all the resources)
+   */
+  public List<String> removedPages() {
+    List<String> res = new ArrayList<>();
+    for (String filebase : Utilities.sorted(previousPages.keySet())) {
+      if (!pages.containsKey(filebase)) {
+        res.add(filebase);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * The digest of everything that goes into a resource page: the content of the package it came
+   * from, the resources that use it, and the resources it uses, or null if the package digest
+   * isn't known
+   */
+  private String pageDigest(CanonicalResource cr) {
+    String pid = cr.getUserString("pid");
+    String pd = packageDigest(pid);
+    if (pd == null) {
+      return null;
+    }
+    MessageDigest md = startDigest();
+    update(md, pid);
+    update(md, pd);
+    update(md, cr.getUrl());
+    List<CanonicalResourceUsage> list = info.getUsages().get(cr.getUrl());
+    if (list != null) {
+      for (CanonicalResourceUsage cu : list) {
+        // the page links to the resources that use this one, so it changes when they do
+        String upid = cu.getResource().getUserString("pid");
+        update(md, cu.getResource().getUserString("filebase"));
+        update(md, upid);
+        update(md, packageDigest(upid));
+        update(md, cu.getUsage().toString());
+      }
+    }
+    Set<String> refs = info.getReferences().get(cr.getUrl());
+    if (refs != null) {
+      for (String url : refs) {
+        // the page shows the resources this one uses (included code systems, the base definition, bound value sets)
+        CanonicalResource ref = info.getResources().get(url.contains("|") ? url.substring(0, url.indexOf("|")) : url);
+        String rpid = ref == null ? null : ref.getUserString("pid");
+        update(md, url);
+        update(md, rpid);
+        update(md, rpid == null ? null : packageDigest(rpid));
+      }
+    }
+    return hex(md);
+  }
+
+  private String packageDigest(String pid) {
+    synchronized (info) {
+      return info.getPackageDigests().get(pid);
+    }
+  }
+
+  /**
+   * Writes the manifest for this run (once the pages have been made)
+   */
+  public void save() throws IOException {
+    JsonObject json = new JsonObject();
+    json.add("format", FORMAT);
+    json.add("tool", tool());
+    JsonObject pkgs = new JsonObject();
+    json.add("packages", pkgs);
+    Map<String, String> digests;
+    synchronized (info) {
+      digests = new HashMap<>(info.getPackageDigests());
+    }
+    for (String pid : Utilities.sorted(digests.keySet())) {
+      JsonObject p = new JsonObject();
+      p.add("id", pid.contains("#") ? pid.substring(0, pid.indexOf("#")) : pid);
+      p.add("version", pid.contains("#") ? pid.substring(pid.indexOf("#") + 1) : "");
+      p.add("digest", digests.get(pid));
+      pkgs.add(pid, p);
+    }
+    JsonObject pj = new JsonObject();
+    json.add("pages", pj);
+    for (String filebase : pages.keySet()) {
+      pj.add(filebase, pages.get(filebase));
+    }
+    JsonObject rj = new JsonObject();
+    json.add("realms", rj);
+    for (String realm : realms.keySet()) {
+      rj.add(realm, realms.get(realm));
+    }
+    File f = new File(target, FILENAME);
+    File tmp = new File(target, FILENAME+".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      JsonParser.compose(json, out);
+    }
+    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private String tool() {
+    String v = IGVersionUtil.getVersion();
+    return v == null ? "" : v;
+  }
+
+  /**
+   * Starts the digest of a package's content with the package details that appear on the pages
+   */
+  public static MessageDigest startDigest(NpmPackage npm) {
+    MessageDigest md = startDigest();
+    update(md, npm.name());
+    update(md, npm.version());
+    update(md, npm.getWebLocation());
+    update(md, npm.title());
+    update(md, npm.fhirVersion());
+    return md;
+  }
+
+  public static MessageDigest startDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  public static void update(MessageDigest md, String s) {
+    if (s != null) {
+      md.update(s.getBytes(StandardCharsets.UTF_8));
+    }
+    md.update((byte) 0);
+  }
+
+  public static String hex(MessageDigest md) {
+    return String.format("%064x", new BigInteger(1, md.digest()));
+  }
+}
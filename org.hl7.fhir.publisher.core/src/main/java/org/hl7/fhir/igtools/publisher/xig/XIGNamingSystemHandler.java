@@ -35,14 +35,10 @@ public class XIGNamingSystemHandler extends XIGHandler {
 
   public PageContent makeKindPage(NamingSystemType kind, String title, String realm) {
     List<NamingSystem> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof NamingSystem) {
-          NamingSystem ns = (NamingSystem) cr;
-          if ((kind == null) || (ns.getKind() == kind)) {
-            list.add(ns);
-          }
-        }
+    for (CanonicalResource cr : info.select(realm, "NamingSystem")) {
+      NamingSystem ns = (NamingSystem) cr;
+      if ((kind == null) || (ns.getKind() == kind)) {
+        list.add(ns);
       }
     }
     Collections.sort(list, new CanonicalResourceSorter());
@@ -59,21 +55,17 @@ public class XIGNamingSystemHandler extends XIGHandler {
 
   public PageContent makeTypePage(String type, String title, String realm) {
     List<NamingSystem> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof NamingSystem) {
-          NamingSystem ns = (NamingSystem) cr;
-          boolean ok = false;
-          for (Coding c : ns.getType().getCoding()) {
-            if (type.equals(c.getCode())) {
-              ok = true;
-            }
-          }
-          if (ok) {
-            list.add(ns);
-          }
+    for (CanonicalResource cr : info.select(realm, "NamingSystem")) {
+      NamingSystem ns = (NamingSystem) cr;
+      boolean ok = false;
+      for (Coding c : ns.getType().getCoding()) {
+        if (type.equals(c.getCode())) {
+          ok = true;
         }
       }
+      if (ok) {
+        list.add(ns);
+      }
     }
     Collections.sort(list, new CanonicalResourceSorter());
     StringBuilder b = new StringBuilder();
@@ -37,21 +37,17 @@ public class XIGOperationDefinitionHandler extends XIGHandler {
   
   public PageContent makeOperationsPage(String r, String title, String realm) {
     List<OperationDefinition> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof OperationDefinition) {
-          OperationDefinition od = (OperationDefinition) cr;
-          boolean ok = false;
-          for (CodeType c : od.getResource()) {
-            if (r.equals(c.asStringValue())) {
-              ok = true;
-            }
-          }
-          if (ok) {
-            list.add(od);
-          }
+    for (CanonicalResource cr : info.select(realm, "OperationDefinition")) {
+      OperationDefinition od = (OperationDefinition) cr;
+      boolean ok = false;
+      for (CodeType c : od.getResource()) {
+        if (r.equals(c.asStringValue())) {
+          ok = true;
         }
       }
+      if (ok) {
+        list.add(od);
+      }
     }
     if (list.isEmpty() && r != null) {
       return null;
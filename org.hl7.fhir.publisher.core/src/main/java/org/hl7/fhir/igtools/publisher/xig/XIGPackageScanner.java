@@ -0,0 +1,146 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+/**
+ * Loads the packages in a local package cache folder (one folder per id#version) into an
+ * XIGStore, several packages at a time.
+ *
+ * This is the alternative to walking the registry with a PackageVisitor: each worker opens
+ * one package, parses and converts its resources, and hands them to the store, so the heap
+ * only ever holds the packages that are being worked on. Like the PackageVisitor setup in
+ * XIGGenerator, only the latest version of each package is used, and the core packages are
+ * skipped
+ */
+public class XIGPackageScanner {
+
+  private String folder;
+  private int threads;
+  private List<String> resourceTypes = new ArrayList<>();
+
+  public XIGPackageScanner(String folder, int threads) {
+    super();
+    this.folder = folder;
+    this.threads = threads;
+  }
+
+  public List<String> getResourceTypes() {
+    return resourceTypes;
+  }
+
+  /**
+   * The folders to load, sorted
+   */
+  public List<String> listPackages() {
+    Map<String, String> versions = new HashMap<>();
+    File[] files = new File(folder).listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (f.isDirectory() && name.contains("#") && new File(f, Utilities.path("package", "package.json")).exists()) {
+          String id = name.substring(0, name.indexOf("#"));
+          String version = name.substring(name.indexOf("#") + 1);
+          if (!isCorePackage(id) && !"current".equals(version)) {
+            String existing = versions.get(id);
+            if (existing == null || VersionUtilities.isThisOrLater(existing, version)) {
+              versions.put(id, version);
+            }
+          }
+        }
+      }
+    }
+    List<String> res = new ArrayList<>();
+    for (String id : Utilities.sorted(versions.keySet())) {
+      res.add(id+"#"+versions.get(id));
+    }
+    return res;
+  }
+
+  private boolean isCorePackage(String id) {
+    return Utilities.existsInList(id, "hl7.fhir.core", "hl7.fhir.r2.core", "hl7.fhir.r2b.core", "hl7.fhir.r3.core", "hl7.fhir.r4.core", "hl7.fhir.r4b.core", "hl7.fhir.r5.core", "hl7.fhir.r6.core") ||
+        (id.startsWith("hl7.fhir.r") && (id.endsWith(".expansions") || id.endsWith(".elements") || id.endsWith(".search") || id.endsWith(".corexml")));
+  }
+
+  /**
+   * Loads all the packages. A package that can't be loaded is reported and skipped, as the
+   * PackageVisitor does
+   */
+  public void scan(XIGLoader loader, XIGStore store, XIGRegistryWriter registry) throws IOException {
+    List<String> packages = listPackages();
+    System.out.println("Loading "+packages.size()+" packages from "+folder+" on "+threads+" threads");
+    if (threads <= 1) {
+      for (String p : packages) {
+        loadPackage(p, loader, store, registry);
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (String p : packages) {
+        futures.add(executor.submit(() -> {
+          loadPackage(p, loader, store, registry);
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted loading packages", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void loadPackage(String folderName, XIGLoader loader, XIGStore store, XIGRegistryWriter registry) throws IOException {
+    NpmPackage npm;
+    try {
+      npm = NpmPackage.fromFolder(Utilities.path(folder, folderName));
+    } catch (Exception e) {
+      System.out.println("Error loading package "+folderName+": "+e.getMessage());
+      return;
+    }
+    String pid = npm.name()+"#"+npm.version();
+    SpecMapManager smm = XIGLoader.makeSpecMap(npm);
+    XIGStore.PackageSource source = new XIGStore.PackageSource(pid, npm.getWebLocation(), npm.title(), npm.fhirVersion());
+    loader.startPackage(pid, npm, registry);
+    for (String type : resourceTypes) {
+      for (String file : npm.listResources(type)) {
+        String id = file.startsWith(type+"-") && file.endsWith(".json") ? file.substring(type.length() + 1, file.length() - 5) : file;
+        try {
+          byte[] content = TextFile.streamToBytes(npm.loadResource(file));
+          loader.processResource(pid, npm, smm, source, npm.fhirVersion(), type, id, content, store, registry);
+        } catch (FHIRException e) {
+          System.out.println("Error loading "+type+"/"+id+" from "+pid+": "+e.getMessage());
+        }
+      }
+    }
+    loader.finishPackage(pid);
+  }
+}
@@ -0,0 +1,112 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+
+/**
+ * Writes registry.json as the packages are loaded, rather than building it as one JsonObject
+ * and writing it at the end.
+ *
+ * The packages are written straight to the file; the canonicals arrive at the same time, so
+ * they go to a side file and are copied in when the writer is closed. The output is the same
+ * as composing the whole object: the header properties, then "packages", then "canonicals"
+ */
+public class XIGRegistryWriter {
+
+  private File canonicalsFile;
+  private Writer main;
+  private Writer canonicals;
+  private boolean firstPackage = true;
+  private boolean firstCanonical = true;
+  private int packageCount;
+  private int canonicalCount;
+
+  /**
+   * @param header the leading properties (date and _doco)
+   */
+  public XIGRegistryWriter(String filename, JsonObject header) throws IOException {
+    canonicalsFile = new File(filename+".canonicals");
+    main = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8));
+    canonicals = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(canonicalsFile), StandardCharsets.UTF_8));
+    String h = JsonParser.compose(header, false).trim();
+    main.write(h.substring(0, h.length() - 1)); // leave the object open
+    main.write(header.getProperties().isEmpty() ? "" : ",");
+    main.write("\"packages\":{");
+  }
+
+  public synchronized void addPackage(String pid, JsonObject npm) throws IOException {
+    if (!firstPackage) {
+      main.write(",");
+    }
+    firstPackage = false;
+    main.write(quote(pid));
+    main.write(":");
+    main.write(JsonParser.compose(npm, false));
+    packageCount++;
+  }
+
+  public synchronized void addCanonical(JsonObject j) throws IOException {
+    if (!firstCanonical) {
+      canonicals.write(",");
+    }
+    firstCanonical = false;
+    canonicals.write(JsonParser.compose(j, false));
+    canonicalCount++;
+  }
+
+  public synchronized void close() throws IOException {
+    canonicals.close();
+    main.write("},\"canonicals\":[");
+    try (Reader r = new InputStreamReader(new FileInputStream(canonicalsFile), StandardCharsets.UTF_8)) {
+      char[] buffer = new char[65536];
+      int n;
+      while ((n = r.read(buffer)) > 0) {
+        main.write(buffer, 0, n);
+      }
+    }
+    main.write("]}");
+    main.close();
+    canonicalsFile.delete();
+  }
+
+  public synchronized int getPackageCount() {
+    return packageCount;
+  }
+
+  public synchronized int getCanonicalCount() {
+    return canonicalCount;
+  }
+
+  private static String quote(String s) {
+    StringBuilder b = new StringBuilder();
+    b.append('"');
+    for (char c : s.toCharArray()) {
+      switch (c) {
+      case '"': b.append("\\\""); break;
+      case '\\': b.append("\\\\"); break;
+      case '\n': b.append("\\n"); break;
+      case '\r': b.append("\\r"); break;
+      case '\t': b.append("\\t"); break;
+      default:
+        if (c < 0x20) {
+          b.append(String.format("\\u%04x", (int) c));
+        } else {
+          b.append(c);
+        }
+      }
+    }
+    b.append('"');
+    return b.toString();
+  }
+}
@@ -1,9 +1,16 @@
 package org.hl7.fhir.igtools.publisher.xig;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.xig.XIGInformation.CanonicalResourceUsage;
@@ -56,29 +63,46 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
 
   private XIGInformation info;
   private String target;
-  private RenderingContext rc;
 
   private String date;
+  private int threads = 1;
 
   public XIGRenderer(XIGInformation info, String target, String date) {
     super();
     this.info = info;
     this.target = target;
-    this.rc = new RenderingContext(info.getCtxt(), new MarkDownProcessor(Dialect.COMMON_MARK), 
-        new ValidationOptions("en"), "http://hl7.org/fhir", "", "en", ResourceRendererMode.TECHNICAL, GenerationRules.IG_PUBLISHER);
-    this.rc.setDestDir(target);
-    this.rc.setPkp(this);
-    this.rc.setNoSlowLookup(true);
     this.date = date;
   }
 
+  /**
+   * The rendering context for the resource pages. Each thread that renders them has its own
+   */
+  protected RenderingContext newRenderingContext() {
+    RenderingContext rc = new RenderingContext(info.getCtxt(), new MarkDownProcessor(Dialect.COMMON_MARK), 
+        new ValidationOptions("en"), "http://hl7.org/fhir", "", "en", ResourceRendererMode.TECHNICAL, GenerationRules.IG_PUBLISHER);
+    rc.setDestDir(target);
+    rc.setPkp(this);
+    rc.setNoSlowLookup(true);
+    return rc;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   private String summaryForResource(CanonicalResource cr) {
     StringBuilder b = new StringBuilder();
     b.append("<table class=\"grid\">\r\n");
     b.append("<tr><td><a href=\""+cr.getUserString("path")+"\">Source</a></td><td><a href=\""+cr.getUserString("purl")+"\">"+cr.getUserString("pid")+"</a>:"
         +cr.getUserString("pname")+" (v"+cr.getUserString("fver")+")</td></tr>\r\n");
     JsonObject j = new JsonObject();
-    info.fillOutJson(cr, j);
+    synchronized (info) {
+      info.fillOutJson(cr, j); // collects the jurisdictions
+    }
     for (JsonProperty pp : j.getProperties()) {
       if (pp.getValue().isJsonPrimitive()) {
         b.append("<tr><td>"+pp.getName()+"</td><td>"+Utilities.escapeXml(pp.getValue().asString())+"</td></tr>\r\n");
@@ -108,38 +132,28 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
   }
 
   public void produce(FilesystemPackageCacheManager pcm) throws IOException, FHIRException, EOperationOutcome {
-    org.hl7.fhir.utilities.json.parser.JsonParser.compose(info.getJson(), new FileOutputStream(Utilities.path(target, "registry.json")));
-    info.setJson(null);
-
-    System.out.println("Generate...");
-    int i = 0;
-    for (CanonicalResource cr : info.getResources().values()) {
-      try {
-        renderResource(cr);
-      } catch (Exception e) {
-        Exception wrappedException = new Exception("Exception rendering canonical resource " + cr.getId() + " " + cr.getUrl(), e);
-        wrappedException.printStackTrace();
-      }
-      i++;
-      if (i > info.getResources().size() / 100) {
-        System.out.print(".");
-        i = 0;
-      }
+    if (info.getJson() != null) { // otherwise it was written by the XIGRegistryWriter while loading
+      org.hl7.fhir.utilities.json.parser.JsonParser.compose(info.getJson(), new FileOutputStream(Utilities.path(target, "registry.json")));
+      info.setJson(null);
     }
-    System.out.println("");
+
     Utilities.createDirectory(target);
+    XIGManifest manifest = new XIGManifest(info, target);
+    if (!manifest.readPrevious()) {
+      System.out.println("No manifest from a previous run, so generating everything");
+    }
+    renderChanged(manifest);
     fillDirectory(pcm, target);
     StringBuilder b = new StringBuilder();
     b.append("<p><b>Views</b></p>\r\n");
     b.append("<ul>\r\n");
-    addPage(b, "all-index.html", genPageSet(target, "all", "Everything"));
-    addPage(b, "hl7-index.html", genPageSet(target, "hl7", "HL7"));
-    addPage(b, "ihe-index.html", genPageSet(target, "ihe", "IHE"));
-    addPage(b, "uv-index.html", genPageSet(target, "uv", "Intl."));
-    addPage(b, "us-index.html", genPageSet(target, "us", "US"));
-    for (String s : info.getJurisdictions()) {
-      if (!Utilities.existsInList(s, "uv", "us")) {
-        addPage(b, s+"-index.html", genPageSet(target, s, JurisdictionUtilities.displayJurisdiction(s)));
+    List<String[]> sets = pageSets();
+    List<PageContent> pages = genPageSets(sets, manifest);
+    for (int i = 0; i < sets.size(); i++) {
+      if (pages.get(i) == null) {
+        addLink(b, sets.get(i)[0]+"-index.html", "XIG index for "+sets.get(i)[1]);
+      } else {
+        addPage(b, sets.get(i)[0]+"-index.html", pages.get(i));
       }
     }
 
@@ -150,10 +164,104 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
     }
     b.append("</ul>\r\n");
     genPage("XIG index", b.toString(), Utilities.path(target, "index.html"));
+    manifest.save();
 
     System.out.println("Done");
   }
 
+  /**
+   * Renders the pages of the resources that the manifest says have changed, and deletes the
+   * pages of the resources that have gone
+   */
+  public void renderChanged(XIGManifest manifest) throws IOException {
+    List<CanonicalResource> changed = new ArrayList<>();
+    for (CanonicalResource cr : info.getResources().values()) {
+      if (manifest.needsPage(cr)) {
+        changed.add(cr);
+      }
+    }
+    System.out.println("Generate "+changed.size()+" of "+info.getResources().size()+" resources...");
+    renderResources(changed);
+    System.out.println("");
+    for (String filebase : manifest.removedPages()) {
+      new File(Utilities.path(target, filebase+".html")).delete();
+      new File(Utilities.path(target, filebase+".json")).delete();
+    }
+  }
+
+  /**
+   * The realm (or authority) and title of each set of index pages
+   */
+  public List<String[]> pageSets() {
+    List<String[]> sets = new ArrayList<>();
+    sets.add(new String[] {"all", "Everything"});
+    sets.add(new String[] {"hl7", "HL7"});
+    sets.add(new String[] {"ihe", "IHE"});
+    sets.add(new String[] {"uv", "Intl."});
+    sets.add(new String[] {"us", "US"});
+    for (String s : info.getJurisdictions()) {
+      if (!Utilities.existsInList(s, "uv", "us")) {
+        sets.add(new String[] {s, JurisdictionUtilities.displayJurisdiction(s)});
+      }
+    }
+    return sets;
+  }
+
+  /**
+   * Renders the resource pages, with threads > 1 several at a time, each thread with its own
+   * rendering context. A resource that can't be rendered is reported and skipped
+   */
+  private void renderResources(List<CanonicalResource> list) throws IOException {
+    AtomicInteger count = new AtomicInteger();
+    int step = Math.max(1, list.size() / 100);
+    if (threads <= 1) {
+      RenderingContext rc = newRenderingContext();
+      for (CanonicalResource cr : list) {
+        renderResource(cr, rc, count, step);
+      }
+      return;
+    }
+    ThreadLocal<RenderingContext> contexts = ThreadLocal.withInitial(() -> newRenderingContext());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (CanonicalResource cr : list) {
+        futures.add(executor.submit(() -> {
+          renderResource(cr, contexts.get(), count, step);
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted rendering the resources", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void renderResource(CanonicalResource cr, RenderingContext lrc, AtomicInteger count, int step) {
+    try {
+      renderResource(cr, lrc);
+    } catch (Exception e) {
+      Exception wrappedException = new Exception("Exception rendering canonical resource " + cr.getId() + " " + cr.getUrl(), e);
+      wrappedException.printStackTrace();
+    }
+    if (count.incrementAndGet() % step == 0) {
+      System.out.print(".");
+    }
+  }
+
   private void fillDirectory(FilesystemPackageCacheManager pcm, String target) throws FHIRException, IOException {
     NpmPackage npm = pcm.loadPackage(CommonPackages.ID_PUBPACK);
     for (String s : npm.list("other")) {
@@ -162,7 +270,57 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
     }
   }
 
-  private PageContent genPageSet(String target, String realm, String realmT) throws IOException {
+  /**
+   * The page sets don't depend on each other, so with threads > 1 they're generated at the
+   * same time. The results are in the same order as the sets either way. A set whose slice of
+   * the resources hasn't changed since the manifest was written isn't generated again, and
+   * its result is null
+   */
+  public List<PageContent> genPageSets(List<String[]> sets, XIGManifest manifest) throws IOException {
+    info.buildIndex();
+    List<Boolean> needed = new ArrayList<>();
+    for (String[] set : sets) {
+      needed.add(manifest.needsPageSet(set[0]));
+    }
+    List<PageContent> res = new ArrayList<>();
+    if (threads <= 1) {
+      for (int i = 0; i < sets.size(); i++) {
+        res.add(needed.get(i) ? genPageSet(target, sets.get(i)[0], sets.get(i)[1]) : null);
+      }
+      return res;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<PageContent>> futures = new ArrayList<>();
+      for (int i = 0; i < sets.size(); i++) {
+        String[] set = sets.get(i);
+        boolean need = needed.get(i);
+        futures.add(executor.submit(() -> need ? genPageSet(target, set[0], set[1]) : null));
+      }
+      for (Future<PageContent> future : futures) {
+        res.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted generating the page sets", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return res;
+  }
+
+  /**
+   * Generates all the index pages for one realm (or 'all', 'hl7', 'ihe') into target
+   */
+  public PageContent genPageSet(String target, String realm, String realmT) throws IOException {
     System.out.print("Indexes, scope = "+realmT);
     StringBuilder b = new StringBuilder();
     b.append("<p><b>Structures</b></p>\r\n");
@@ -314,14 +472,21 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
     if (page != null) {
       System.out.print(".");
       genPage(page.getTitle(), page.getContent(), Utilities.path(target, name));
-      b.append("<li><a href=\""+name+"\">"+page.getTitle()+"</a></li>\r\n");
+      addLink(b, name, page.getTitle());
     }
   }
 
-  private void renderResource(CanonicalResource cr) throws FHIRException, IOException, EOperationOutcome {
-    RendererFactory.factory(cr, rc).render(cr);
+  private void addLink(StringBuilder b, String name, String title) {
+    b.append("<li><a href=\""+name+"\">"+title+"</a></li>\r\n");
+  }
+
+  protected void renderResource(CanonicalResource cr, RenderingContext lrc) throws FHIRException, IOException, EOperationOutcome {
+    cr = info.getFullResource(cr);
+    RendererFactory.factory(cr, lrc).render(cr);
     String s = new XhtmlComposer(false, true).compose(cr.getText().getDiv());
-    new JsonParser().setOutputStyle(OutputStyle.PRETTY).compose(new FileOutputStream(Utilities.path(target, cr.getUserString("filebase")+".json")), cr);
+    try (FileOutputStream out = new FileOutputStream(Utilities.path(target, cr.getUserString("filebase")+".json"))) {
+      new JsonParser().setOutputStyle(OutputStyle.PRETTY).compose(out, cr);
+    }
     //    new XmlParser().setOutputStyle(OutputStyle.PRETTY).compose(new FileOutputStream(Utilities.path(target, cr.getUserString("filebase")+".xml")), cr);
     genPage(cr.fhirType()+"-"+cr.getIdBase(), summaryForResource(cr) + s, Utilities.path(target, cr.getUserString("filebase")+".html"));  
     cr.setText(null);
@@ -39,21 +39,17 @@ public class XIGSearchParameterHandler extends XIGHandler {
   
   public PageContent makeSearchParamsPage(String r, String title, String realm) {
     List<SearchParameter> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof SearchParameter) {
-          SearchParameter sp = (SearchParameter) cr;
-          boolean ok = false;
-          for (CodeType c : sp.getBase()) {
-            if (r.equals(c.asStringValue())) {
-              ok = true;
-            }
-          }
-          if (ok) {
-            list.add(sp);
-          }
+    for (CanonicalResource cr : info.select(realm, "SearchParameter")) {
+      SearchParameter sp = (SearchParameter) cr;
+      boolean ok = false;
+      for (CodeType c : sp.getBase()) {
+        if (r.equals(c.asStringValue())) {
+          ok = true;
         }
       }
+      if (ok) {
+        list.add(sp);
+      }
     }
     if (list.isEmpty() && r != null) {
       return null;
@@ -0,0 +1,284 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.ResourceFactory;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+
+/**
+ * Holds the resources found while loading the packages on disk instead of in the heap.
+ *
+ * Each resource is written (as R5 json) to the end of a single file, and only a short
+ * summary is kept in memory: the url, version, where it came from, and the offset of the
+ * json in the file. Once loading is done, the latest version of each canonical resource is
+ * read back into the XIGInformation for rendering. The resources that only their own page
+ * looks into are read back as a summary, and the renderer reads the whole of them from the
+ * store when it makes the page, so the store has to stay open until the pages are made
+ */
+public class XIGStore {
+
+  /**
+   * User data on a summary: the Entry to read the whole resource from
+   */
+  public static final String ENTRY = "xig.store.entry";
+
+  /**
+   * Nothing looks up resources of these types except their own page (the index pages only
+   * list their name and description), so they don't need to be in memory in full
+   */
+  private static final Set<String> SUMMARY_TYPES = new HashSet<>(Arrays.asList("StructureMap", "GraphDefinition", "ActivityDefinition",
+      "ConditionDefinition", "DeviceDefinition", "EventDefinition", "ObservationDefinition", "PlanDefinition", "Questionnaire",
+      "SpecimenDefinition", "ExampleScenario", "ActorDefinition"));
+
+  /**
+   * Where a resource came from. There's one of these per package, shared by all the entries
+   */
+  public static class PackageSource {
+    private String pid;
+    private String purl;
+    private String pname;
+    private String fver;
+
+    public PackageSource(String pid, String purl, String pname, String fver) {
+      super();
+      this.pid = pid;
+      this.purl = purl;
+      this.pname = pname;
+      this.fver = fver;
+    }
+
+    public String getPid() {
+      return pid;
+    }
+  }
+
+  public static class Entry {
+    private PackageSource source;
+    private String type;
+    private String url;
+    private String version;
+    private String path;
+    private String filebase;
+    private String realm;
+    private String auth;
+    private long offset;
+    private int length;
+
+    public PackageSource getSource() {
+      return source;
+    }
+    public String getType() {
+      return type;
+    }
+    public String getUrl() {
+      return url;
+    }
+    public String getVersion() {
+      return version;
+    }
+    public long getOffset() {
+      return offset;
+    }
+    public int getLength() {
+      return length;
+    }
+  }
+
+  private RandomAccessFile file;
+  private long size;
+  private int count;
+  private Map<String, Entry> latest = new TreeMap<>(); // by url, so the order doesn't depend on which package was loaded first
+  private Map<String, Set<String>> counts = new HashMap<>();
+
+  public XIGStore(File file) throws IOException {
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0);
+  }
+
+  /**
+   * Writes the resource to the store. The resource must already have the user data that
+   * the loader sets (path, filebase, realm, auth); the caller can drop it afterwards
+   */
+  public Entry add(PackageSource source, CanonicalResource cr, String countsKey) throws IOException {
+    byte[] content = new JsonParser().composeBytes(cr);
+    Entry e = new Entry();
+    e.source = source;
+    e.type = cr.fhirType();
+    e.url = cr.getUrl();
+    e.version = cr.getVersion();
+    e.path = cr.getUserString("path");
+    e.filebase = cr.getUserString("filebase");
+    e.realm = cr.getUserString("realm");
+    e.auth = cr.getUserString("auth");
+    e.length = content.length;
+    synchronized (this) {
+      e.offset = size;
+      file.seek(size);
+      file.write(content);
+      size = size + content.length;
+      count++;
+      Entry existing = latest.get(e.url);
+      if (existing == null || isLater(existing, e)) {
+        latest.put(e.url, e);
+      }
+      Set<String> urls = counts.get(countsKey);
+      if (urls == null) {
+        urls = new TreeSet<>();
+        counts.put(countsKey, urls);
+      }
+      urls.add(e.url);
+    }
+    return e;
+  }
+
+  /**
+   * Packages are loaded in no particular order, so when two packages have the same version of
+   * a resource, the package id decides, so that every run picks the same one
+   */
+  private boolean isLater(Entry existing, Entry e) {
+    if (Objects.equals(existing.version, e.version)) {
+      return e.source.pid.compareTo(existing.source.pid) > 0;
+    }
+    if (existing.version == null || e.version == null) {
+      return e.version != null;
+    }
+    return VersionUtilities.isThisOrLater(existing.version, e.version);
+  }
+
+  /**
+   * Reads a resource back from the store, with the user data the loader set
+   */
+  public CanonicalResource load(Entry e) throws IOException {
+    byte[] content = new byte[e.length];
+    synchronized (this) {
+      file.seek(e.offset);
+      file.readFully(content);
+    }
+    Resource r = new JsonParser().parse(content);
+    CanonicalResource cr = (CanonicalResource) r;
+    setUserData(cr, e);
+    return cr;
+  }
+
+  private void setUserData(CanonicalResource cr, Entry e) {
+    cr.setUserData("path", e.path);
+    cr.setUserData("pid", e.source.pid);
+    cr.setUserData("purl", e.source.purl);
+    cr.setUserData("pname", e.source.pname);
+    cr.setUserData("fver", e.source.fver);
+    cr.setUserData("filebase", e.filebase);
+    if (e.realm != null) {
+      cr.setUserData("realm", e.realm);
+    }
+    if (e.auth != null) {
+      cr.setUserData("auth", e.auth);
+    }
+  }
+
+  /**
+   * What the index pages need of the resource: the canonical details, without the content
+   */
+  private CanonicalResource summary(CanonicalResource cr, Entry e) {
+    CanonicalResource res = (CanonicalResource) ResourceFactory.createResource(cr.fhirType());
+    res.setId(cr.getId());
+    res.setUrl(cr.getUrl());
+    res.setVersion(cr.getVersion());
+    res.setName(cr.getName());
+    res.setTitle(cr.getTitle());
+    if (cr.hasStatus()) {
+      res.setStatus(cr.getStatus());
+    }
+    if (cr.hasExperimental()) {
+      res.setExperimental(cr.getExperimental());
+    }
+    if (cr.hasDate()) {
+      res.setDate(cr.getDate());
+    }
+    res.setPublisher(cr.getPublisher());
+    res.setDescription(cr.getDescription());
+    res.setJurisdiction(cr.getJurisdiction());
+    setUserData(res, e);
+    res.setUserData(ENTRY, e);
+    return res;
+  }
+
+  /**
+   * The whole of the resource: the resource itself, or if it's a summary, the resource read
+   * back from the store
+   */
+  public CanonicalResource full(CanonicalResource cr) throws IOException {
+    Entry e = (Entry) cr.getUserData(ENTRY);
+    if (e == null) {
+      return cr;
+    }
+    CanonicalResource res = load(e);
+    res.setUserData("json", cr.getUserData("json"));
+    return res;
+  }
+
+  /**
+   * Loads the latest version of each canonical resource into the information that the
+   * renderer works from, in url order. The types that only their own page uses are loaded
+   * as summaries (see full())
+   */
+  public void loadInto(XIGInformation info) throws IOException {
+    info.setStore(this);
+    for (Entry e : latest.values()) {
+      CanonicalResource cr = load(e);
+      JsonObject j = new JsonObject();
+      j.add("pid", e.source.pid);
+      j.add("fver", e.source.fver);
+      j.add("published", e.source.pid.contains("#current"));
+      j.add("filebase", e.filebase);
+      j.add("path", e.path);
+      info.fillOutJson(cr, j);
+      if (SUMMARY_TYPES.contains(e.type)) {
+        cr = summary(cr, e);
+      }
+      cr.setUserData("json", j);
+      info.getResources().put(cr.getUrl(), cr);
+      if (info.getCtxt() != null) {
+        info.getCtxt().cacheResource(cr);
+      }
+    }
+    for (String key : counts.keySet()) {
+      Map<String, CanonicalResource> list = new HashMap<>();
+      info.getCounts().put(key, list);
+      for (String url : counts.get(key)) {
+        list.put(url, info.getResources().get(url));
+      }
+    }
+  }
+
+  public synchronized int count() {
+    return count;
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized List<Entry> latest() {
+    return new ArrayList<>(latest.values());
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -54,14 +55,10 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
 
   public PageContent makeLogicalsPage(String realm) {
     List<StructureDefinition> list = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof StructureDefinition) {
-          StructureDefinition sd = (StructureDefinition) cr;
-          if ((sd.getKind() == StructureDefinitionKind.LOGICAL)) {
-            list.add(sd);
-          }
-        }
+    for (CanonicalResource cr : info.select(realm, "StructureDefinition", StructureDefinitionKind.LOGICAL.toCode())) {
+      StructureDefinition sd = (StructureDefinition) cr;
+      if ((sd.getKind() == StructureDefinitionKind.LOGICAL)) {
+        list.add(sd);
       }
     }
     Collections.sort(list, new CanonicalResourceSorter());
@@ -81,30 +78,26 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
 
   public PageContent makeExtensionsPage(XIGRenderer renderer, String string, String realm) throws IOException {
     Map<String, List<StructureDefinition>> profiles = new HashMap<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        boolean ok = false;
-        if (cr instanceof StructureDefinition) {
-          StructureDefinition sd = (StructureDefinition) cr;
-          if ("Extension".equals(sd.getType())) {
-            for (StructureDefinitionContextComponent t : sd.getContext()) {
-              String m = descContext(t);
-              if (m != null) {
-                if (!profiles.containsKey(m)) {
-                  profiles.put(m, new ArrayList<>());
-                }
-                profiles.get(m).add(sd);
-                ok = true;
-              }
-            }
-            if (!ok) {
-              if (!profiles.containsKey("s")) {
-                profiles.put("No Context", new ArrayList<>());
-              }
-              profiles.get("No Context").add(sd);        
+    for (CanonicalResource cr : info.select(realm, "StructureDefinition")) {
+      boolean ok = false;
+      StructureDefinition sd = (StructureDefinition) cr;
+      if ("Extension".equals(sd.getType())) {
+        for (StructureDefinitionContextComponent t : sd.getContext()) {
+          String m = descContext(t);
+          if (m != null) {
+            if (!profiles.containsKey(m)) {
+              profiles.put(m, new ArrayList<>());
             }
+            profiles.get(m).add(sd);
+            ok = true;
           }
         }
+        if (!ok) {
+          if (!profiles.containsKey("s")) {
+            profiles.put("No Context", new ArrayList<>());
+          }
+          profiles.get("No Context").add(sd);        
+        }
       }
     }
     StringBuilder b = new StringBuilder();
@@ -143,9 +136,10 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
     crTrHeaders(b, true);
     int i = 0;
     DuplicateTracker dt = new DuplicateTracker();
+    Map<StructureDefinition, Integer> numbers = new IdentityHashMap<>(); // not user data: the page sets for different realms can run at the same time
     for (StructureDefinition sd : list) {
       i++;
-      sd.setUserData("#", i);
+      numbers.put(sd, i);
       crTr(b, dt, sd, i);
     }
     b.append("</table>\r\n");
@@ -181,7 +175,7 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
       b.append("<tr>\r\n");
       b.append("<td></td>\r\n");
       for (StructureDefinition sd : list) {
-        b.append("<td>"+sd.getUserData("#")+"</td>\r\n");
+        b.append("<td>"+numbers.get(sd)+"</td>\r\n");
       }
       b.append("</tr>\r\n");
       for (String p : paths) {
@@ -292,29 +286,26 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
 
   public PageContent makeProfilesPage(XIGRenderer renderer, StructureDefinitionKind kind, String prefix, String title, String realm) throws IOException {
     Map<String, List<StructureDefinition>> profiles = new HashMap<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof StructureDefinition) {
-          StructureDefinition sd = (StructureDefinition) cr;
-          if ((sd.getKind() == kind) || (kind == null && (sd.getKind() == StructureDefinitionKind.COMPLEXTYPE ||
-              sd.getKind() == StructureDefinitionKind.PRIMITIVETYPE))) {
-            String t = sd.getDifferential().getElementFirstRep().getPath();
-            if (t == null) {
-              t = sd.getType();
-            }
-            if (t == null) {
-              break;
-            }
-            if (t.contains(".")) {
-              t = t.substring(0, t.indexOf("."));
-            }
-            if (!"Extension".equals(t)) {
-              if (!profiles.containsKey(t)) {
-                profiles.put(t, new ArrayList<>());
-              }
-              profiles.get(t).add(sd);
-            }
+    List<CanonicalResource> candidates = kind == null ? info.select(realm, "StructureDefinition") : info.select(realm, "StructureDefinition", kind.toCode());
+    for (CanonicalResource cr : candidates) {
+      StructureDefinition sd = (StructureDefinition) cr;
+      if ((sd.getKind() == kind) || (kind == null && (sd.getKind() == StructureDefinitionKind.COMPLEXTYPE ||
+          sd.getKind() == StructureDefinitionKind.PRIMITIVETYPE))) {
+        String t = sd.getDifferential().getElementFirstRep().getPath();
+        if (t == null) {
+          t = sd.getType();
+        }
+        if (t == null) {
+          break;
+        }
+        if (t.contains(".")) {
+          t = t.substring(0, t.indexOf("."));
+        }
+        if (!"Extension".equals(t)) {
+          if (!profiles.containsKey(t)) {
+            profiles.put(t, new ArrayList<>());
           }
+          profiles.get(t).add(sd);
         }
       }
     }
@@ -346,6 +337,12 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
         info.recordUsage(sd, ed.getBinding().getValueSet(), UsageType.BINDING);
       }
     }
+    // the page shows the bindings the profile inherits as well, but they aren't its usages
+    for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+      if (ed.hasBinding()) {
+        info.recordReference(sd, ed.getBinding().getValueSet());
+      }
+    }
   }
 
   public PageContent makeExtensionUsagePage(XIGRenderer renderer, String title, String realm, boolean core) throws IOException {
@@ -63,17 +63,13 @@ public class XIGValueSetHandler extends XIGHandler {
     }
   }
   
-  protected PageContent makeValueSetsPage(String mode, String title, String realm) {
+  public PageContent makeValueSetsPage(String mode, String title, String realm) {
     List<ValueSet> vslist = new ArrayList<>();
-    for (CanonicalResource cr : info.getResources().values()) {
-      if (meetsRealm(cr, realm)) {
-        if (cr instanceof ValueSet) {
-          ValueSet vs = (ValueSet) cr;
-          String pid = vs.getUserString("pid");
-          if (isOKVsPid(pid) && isOkVSMode(mode, vs)) {
-            vslist.add(vs);
-          }
-        }
+    for (CanonicalResource cr : info.select(realm, "ValueSet")) {
+      ValueSet vs = (ValueSet) cr;
+      String pid = vs.getUserString("pid");
+      if (isOKVsPid(pid) && isOkVSMode(mode, vs)) {
+        vslist.add(vs);
       }
     }
     if (vslist.isEmpty() && mode != null) {
@@ -22,6 +22,7 @@ public class CanonicalRenderer extends BaseRenderer {
 
   private CanonicalResource cr;
   private String destDir;
+  private CrossReferenceIndex crossReferences;
 
   public CanonicalRenderer(IWorkerContext context, String corePath, CanonicalResource cr, String destDir, IGKnowledgeProvider igp, List<SpecMapManager> maps, Set<String> allTargets, MarkDownProcessor markdownEngine, NpmPackage packge, RenderingContext gen) {
     super(context, corePath, igp, maps, allTargets, markdownEngine, packge, gen);
@@ -29,6 +30,21 @@ public class CanonicalRenderer extends BaseRenderer {
     this.destDir = destDir;
   }
 
+  /**
+   * The usages of the resources in the context. If one hasn't been provided, it's built from the
+   * context the first time it's needed
+   */
+  protected CrossReferenceIndex getCrossReferences() {
+    if (crossReferences == null) {
+      crossReferences = CrossReferenceIndex.build(context);
+    }
+    return crossReferences;
+  }
+
+  public void setCrossReferences(CrossReferenceIndex crossReferences) {
+    this.crossReferences = crossReferences;
+  }
+
   public String summaryTable(FetchedResource r, boolean xml, boolean json, boolean ttl, Set<String> rows) throws Exception {
     StringBuilder b = new StringBuilder();
     b.append("<table class=\"grid\">\r\n<tbody>\r\n");
@@ -116,10 +116,8 @@ public class CodeSystemRenderer extends CanonicalRenderer {
     StringBuilder b = new StringBuilder();
     boolean first = true;
     b.append("\r\n");
-    List<String> vsurls = new ArrayList<String>();
-    for (ValueSet vs : context.fetchResourcesByType(ValueSet.class)) {
-        vsurls.add(vs.getUrl());
-    }
+    // only the value sets that refer to this code system; each one is still checked below
+    List<String> vsurls = new ArrayList<String>(getCrossReferences().getCodeSystemUsers(cs.getUrl()));
     Collections.sort(vsurls);
 
     Set<String> processed = new HashSet<String>();
@@ -0,0 +1,219 @@
+package org.hl7.fhir.igtools.renderers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r5.context.ContextUtilities;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.PlanDefinition;
+import org.hl7.fhir.r5.model.Questionnaire;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.UriType;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.model.ValueSet.ConceptSetComponent;
+
+/**
+ * Who uses what, across all the conformance resources in the context: the structures derived
+ * from a profile, the structures that refer to it (as a type profile, a target profile, or an
+ * extension), and the structures and value sets that use a value set or code system.
+ *
+ * The renderers used to work this out by scanning every resource in the context for each page
+ * they rendered. The Publisher builds this once, after the conformance resources are loaded and
+ * their snapshots generated, and passes it to the renderers.
+ *
+ * The lists of structures are in the same order as ContextUtilities.allStructures(). The sets of
+ * urls are candidates: the renderers still check the resource they fetch for each url, so the
+ * output is the same as a full scan
+ */
+public class CrossReferenceIndex {
+
+  private Map<String, List<StructureDefinition>> derived = new HashMap<>();
+  private Map<String, List<StructureDefinition>> profileUsers = new HashMap<>();
+  private Map<String, List<StructureDefinition>> targetProfileUsers = new HashMap<>();
+  private Map<String, List<StructureDefinition>> extensionUsers = new HashMap<>();
+  private Map<String, Set<String>> bindingUsers = new HashMap<>();
+  private Map<String, Set<String>> valueSetUsers = new HashMap<>();
+  private Map<String, Set<String>> codeSystemUsers = new HashMap<>();
+  private Set<String> questionnaires = new HashSet<>();
+  private Set<String> planDefinitions = new HashSet<>();
+
+  private CrossReferenceIndex() {
+    super();
+  }
+
+  public static CrossReferenceIndex build(IWorkerContext context) {
+    CrossReferenceIndex res = new CrossReferenceIndex();
+    for (StructureDefinition sd : new ContextUtilities(context).allStructures()) {
+      res.indexStructure(sd);
+    }
+    for (CanonicalResource cr : context.fetchResourcesByType(CanonicalResource.class)) {
+      if (cr instanceof StructureDefinition) {
+        res.indexBindings((StructureDefinition) cr);
+      } else if (cr instanceof ValueSet) {
+        res.indexValueSet((ValueSet) cr);
+      } else if (cr instanceof Questionnaire && cr.hasUrl()) {
+        res.questionnaires.add(cr.getUrl());
+      } else if (cr instanceof PlanDefinition) {
+        res.planDefinitions.add(cr.getUrl());
+      }
+    }
+    return res;
+  }
+
+  private void indexStructure(StructureDefinition sd) {
+    if (sd.hasBaseDefinition()) {
+      add(derived, sd.getBaseDefinition(), sd);
+    }
+    Set<String> profiles = new HashSet<>();
+    Set<String> targets = new HashSet<>();
+    Set<String> extensions = new HashSet<>();
+    for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+      for (TypeRefComponent tr : ed.getType()) {
+        for (CanonicalType u : tr.getProfile()) {
+          if (u.hasValue()) {
+            profiles.add(u.getValue());
+            if ("Extension".equals(tr.getWorkingCode())) {
+              extensions.add(u.getValue());
+            }
+          }
+        }
+        for (CanonicalType u : tr.getTargetProfile()) {
+          if (u.hasValue()) {
+            targets.add(u.getValue());
+          }
+        }
+      }
+    }
+    for (String url : profiles) {
+      add(profileUsers, url, sd);
+    }
+    for (String url : targets) {
+      add(targetProfileUsers, url, sd);
+    }
+    for (String url : extensions) {
+      add(extensionUsers, url, sd);
+    }
+  }
+
+  private void indexBindings(StructureDefinition sd) {
+    for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+      if (ed.hasBinding() && ed.getBinding().hasValueSet()) {
+        addUrl(bindingUsers, ed.getBinding().getValueSet(), sd.getUrl());
+      }
+    }
+  }
+
+  private void indexValueSet(ValueSet vs) {
+    indexComponents(vs, vs.getCompose().getInclude());
+    indexComponents(vs, vs.getCompose().getExclude());
+  }
+
+  private void indexComponents(ValueSet vs, List<ConceptSetComponent> list) {
+    for (ConceptSetComponent inc : list) {
+      if (inc.hasSystem()) {
+        addUrl(codeSystemUsers, inc.getSystem(), vs.getUrl());
+      }
+      for (UriType u : inc.getValueSet()) {
+        if (u.hasValue()) {
+          addUrl(valueSetUsers, u.getValueAsString(), vs.getUrl());
+        }
+      }
+    }
+  }
+
+  private void add(Map<String, List<StructureDefinition>> map, String url, StructureDefinition sd) {
+    List<StructureDefinition> list = map.get(url);
+    if (list == null) {
+      list = new ArrayList<>();
+      map.put(url, list);
+    }
+    list.add(sd);
+  }
+
+  private void addUrl(Map<String, Set<String>> map, String key, String url) {
+    if (key != null && url != null) {
+      Set<String> set = map.get(key);
+      if (set == null) {
+        set = new HashSet<>();
+        map.put(key, set);
+      }
+      set.add(url);
+    }
+  }
+
+  private static <T> List<T> get(Map<String, List<T>> map, String url) {
+    List<T> list = map.get(url);
+    return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+  }
+
+  private static Set<String> getSet(Map<String, Set<String>> map, String url) {
+    Set<String> set = map.get(url);
+    return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+  }
+
+  /**
+   * The structures whose baseDefinition is this url
+   */
+  public List<StructureDefinition> getDerived(String url) {
+    return get(derived, url);
+  }
+
+  /**
+   * The structures with an element that has this url as a type profile
+   */
+  public List<StructureDefinition> getProfileUsers(String url) {
+    return get(profileUsers, url);
+  }
+
+  /**
+   * The structures with an element that has this url as a target profile
+   */
+  public List<StructureDefinition> getTargetProfileUsers(String url) {
+    return get(targetProfileUsers, url);
+  }
+
+  /**
+   * The structures with an Extension element that has this url as its profile
+   */
+  public List<StructureDefinition> getExtensionUsers(String url) {
+    return get(extensionUsers, url);
+  }
+
+  /**
+   * The urls of the structures with an element bound to this value set
+   */
+  public Set<String> getBindingUsers(String url) {
+    return getSet(bindingUsers, url);
+  }
+
+  /**
+   * The urls of the value sets that include or exclude this value set
+   */
+  public Set<String> getValueSetUsers(String url) {
+    return getSet(valueSetUsers, url);
+  }
+
+  /**
+   * The urls of the value sets that include or exclude codes from this code system
+   */
+  public Set<String> getCodeSystemUsers(String url) {
+    return getSet(codeSystemUsers, url);
+  }
+
+  public Set<String> getQuestionnaires() {
+    return Collections.unmodifiableSet(questionnaires);
+  }
+
+  public Set<String> getPlanDefinitions() {
+    return Collections.unmodifiableSet(planDefinitions);
+  }
+}
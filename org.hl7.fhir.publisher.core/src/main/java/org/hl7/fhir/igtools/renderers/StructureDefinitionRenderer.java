@@ -20,7 +20,6 @@ import org.hl7.fhir.r5.conformance.AdditionalBindingsRenderer;
 import org.hl7.fhir.r5.conformance.profile.BindingResolution;
 import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
 import org.hl7.fhir.r5.conformance.profile.ProfileUtilities.ElementChoiceGroup;
-import org.hl7.fhir.r5.context.ContextUtilities;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.formats.IParser.OutputStyle;
@@ -2188,31 +2187,11 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
 
 
   private List<StructureDefinition> findDerived() {
-    List<StructureDefinition> res = new ArrayList<>();
-    for (StructureDefinition t : new ContextUtilities(context).allStructures()) {
-      if (sd.getUrl().equals(t.getBaseDefinition())) {
-        res.add(t);
-      }
-    }
-    return res;
+    return new ArrayList<>(getCrossReferences().getDerived(sd.getUrl()));
   }
 
   private List<StructureDefinition> findUses() {
-    List<StructureDefinition> res = new ArrayList<>();
-    for (StructureDefinition t : new ContextUtilities(context).allStructures()) {
-      boolean uses = false;
-      for (ElementDefinition ed : t.getSnapshot().getElement()) {
-        for (TypeRefComponent u : ed.getType()) {
-          if (u.hasProfile(sd.getUrl())) {
-            uses = true;
-          }
-        }
-      }
-      if (uses) {
-        res.add(t);
-      }
-    }
-    return res;
+    return new ArrayList<>(getCrossReferences().getProfileUsers(sd.getUrl()));
   }
 
 
@@ -2815,24 +2794,14 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
     Map<String, String> refs = new HashMap<>();
     Map<String, String> trefs = new HashMap<>();
     Map<String, String> examples = new HashMap<>();
-    for (StructureDefinition sd : new ContextUtilities(context).allStructures()) {
-      if (this.sd.getUrl().equals(sd.getBaseDefinition())) {
-        base.put(sd.getUserString("path"), sd.present());
-      }
-      for (ElementDefinition ed : sd.getSnapshot().getElement()) {
-        for (TypeRefComponent tr : ed.getType()) {
-          for (CanonicalType u : tr.getProfile()) {
-            if (this.sd.getUrl().equals(u.getValue())) {
-              refs.put(sd.getUserString("path"), sd.present());
-            }
-          }
-          for (CanonicalType u : tr.getTargetProfile()) {
-            if (this.sd.getUrl().equals(u.getValue())) {
-              trefs.put(sd.getUserString("path"), sd.present());
-            }
-          }
-        }
-      }
+    for (StructureDefinition sd : getCrossReferences().getDerived(this.sd.getUrl())) {
+      base.put(sd.getUserString("path"), sd.present());
+    }
+    for (StructureDefinition sd : getCrossReferences().getProfileUsers(this.sd.getUrl())) {
+      refs.put(sd.getUserString("path"), sd.present());
+    }
+    for (StructureDefinition sd : getCrossReferences().getTargetProfileUsers(this.sd.getUrl())) {
+      trefs.put(sd.getUserString("path"), sd.present());
     }
     for (FetchedFile f : files) {
       for (FetchedResource r : f.getResources()) {
@@ -2913,12 +2882,13 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
         }
       }
       sdCache = new HashMap<String, ElementDefinition>();
-      sdMapCache.put(url, sdCache);
       String webroot = sd.getUserString("webroot");
       for (ElementDefinition e : sd.getSnapshot().getElement()) {
         utils.updateURLs(sd.getUrl(), webroot, e);
         sdCache.put(e.getId(), e);
       }
+      // only shared once it's complete; the cache is used by renderers on other threads
+      sdMapCache.put(url, sdCache);
     }
     return sdCache.get(id);
   }
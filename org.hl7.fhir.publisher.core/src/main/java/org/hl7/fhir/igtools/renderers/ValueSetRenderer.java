@@ -25,7 +25,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -33,7 +32,6 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
 import org.hl7.fhir.igtools.publisher.SpecMapManager;
 import org.hl7.fhir.r5.context.IWorkerContext;
-import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.DataRequirement;
 import org.hl7.fhir.r5.model.DataRequirement.DataRequirementCodeFilterComponent;
 import org.hl7.fhir.r5.model.ElementDefinition;
@@ -99,20 +97,11 @@ public class ValueSetRenderer extends CanonicalRenderer {
     boolean first = true;
     b.append("\r\n");
     if (vs.hasUrl()) {
-      Set<String> sdurls = new HashSet<String>();
-      Set<String> vsurls = new HashSet<String>();
-      Set<String> pdurls = new HashSet<String>();
-      Set<String> qurls = new HashSet<String>();
-      for (CanonicalResource sd : context.fetchResourcesByType(CanonicalResource.class)) {
-        if (sd instanceof StructureDefinition)
-          sdurls.add(sd.getUrl());
-        if (sd instanceof ValueSet)
-          vsurls.add(sd.getUrl());
-        if (sd instanceof PlanDefinition)
-          pdurls.add(sd.getUrl());
-        if (sd instanceof Questionnaire && sd.hasUrl())
-          qurls.add(sd.getUrl());
-      }
+      // only the resources that refer to this value set; each one is still checked below
+      Set<String> sdurls = getCrossReferences().getBindingUsers(vs.getUrl());
+      Set<String> vsurls = getCrossReferences().getValueSetUsers(vs.getUrl());
+      Set<String> pdurls = getCrossReferences().getPlanDefinitions();
+      Set<String> qurls = getCrossReferences().getQuestionnaires();
 
       for (String url : sorted(vsurls)) {
         ValueSet vc = context.fetchResource(ValueSet.class, url);
@@ -56,6 +56,7 @@ public class TemplateManager {
   String templateReason;
   String ghUrl;
   List<String> templateList = new ArrayList<>();
+  List<String> templateVersions = new ArrayList<>(); // with the package date, which changes when a #current template does
 
   public TemplateManager(FilesystemPackageCacheManager pcm, ILoggingService logger, String ghUrl) {
     this.pcm = pcm;
@@ -93,6 +94,7 @@ public class TemplateManager {
     if (!npm.isType(PackageType.IG_TEMPLATE))
       throw new FHIRException("The referenced package '"+template+"' does not have the correct type - is "+npm.type()+" but should be a template");
     templateList.add(npm.name()+"#"+npm.version());
+    templateVersions.add(npm.name()+"#"+npm.version()+"@"+(npm.getNpm().has("date") ? npm.getNpm().asString("date") : ""));
     loadedIds.add(npm.name());
     if (npm.getNpm().has("base")) {
       String baseTemplate = npm.getNpm().asString("base");
@@ -294,5 +296,9 @@ public class TemplateManager {
   public List<String> listTemplates() {
     return templateList;
   }
+
+  public List<String> listTemplateVersions() {
+    return templateVersions;
+  }
   
 }
@@ -0,0 +1,86 @@
+package tests;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.BuildCache;
+import org.hl7.fhir.igtools.publisher.site.SiteRenderer;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+/**
+ * The build cache lives in temp, which is the source folder for the site, so it must not
+ * end up in the output. Entries that a run doesn't use are dropped
+ */
+public class BuildCacheTest {
+
+  private static boolean sampleExists() {
+    return SampleIGBuild.available();
+  }
+
+  @Test
+  public void testCacheIsNotPublished() throws Exception {
+    File root = Files.createTempDirectory("build-cache").toFile();
+    try {
+      File temp = new File(root, "temp");
+      File output = new File(root, "output");
+      BuildCache cache = new BuildCache();
+      cache.start(temp.getAbsolutePath(), "key", false);
+      JsonObject json = new JsonObject();
+      json.add("value", "test");
+      cache.store("validation", BuildCache.digest("entry"), json);
+      TextFile.stringToFile("<html><body>home</body></html>", new File(temp, "index.html"), false);
+
+      new SiteRenderer(temp.getAbsolutePath(), output.getAbsolutePath(), 1, s -> s).render();
+      Assertions.assertTrue(new File(output, "index.html").exists());
+      Assertions.assertFalse(new File(output, BuildCache.FOLDER_NAME).exists());
+      Assertions.assertNotNull(cache.load("validation", BuildCache.digest("entry")));
+    } finally {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+
+  @Test
+  public void testUnusedEntriesAreEvicted() throws Exception {
+    File temp = Files.createTempDirectory("build-cache").toFile();
+    try {
+      JsonObject json = new JsonObject();
+      json.add("value", "test");
+      BuildCache cache = new BuildCache();
+      cache.start(temp.getAbsolutePath(), "key", false);
+      cache.store("validation", BuildCache.digest("old"), json);
+      cache.store("validation", BuildCache.digest("same"), json);
+      Assertions.assertEquals(0, cache.evictUnused("validation"));
+
+      // the next run only uses one of them
+      cache = new BuildCache();
+      cache.start(temp.getAbsolutePath(), "key", false);
+      Assertions.assertNotNull(cache.load("validation", BuildCache.digest("same")));
+      cache.store("validation", BuildCache.digest("new"), json);
+      Assertions.assertEquals(1, cache.evictUnused("validation"));
+      Assertions.assertNull(cache.load("validation", BuildCache.digest("old")));
+      Assertions.assertNotNull(cache.load("validation", BuildCache.digest("same")));
+      Assertions.assertNotNull(cache.load("validation", BuildCache.digest("new")));
+    } finally {
+      FileUtils.deleteDirectory(temp);
+    }
+  }
+
+  @Test
+  @EnabledIf("sampleExists")
+  public void testCacheIsNotInTheOutput() throws Exception {
+    File ig = SampleIGBuild.copy();
+    try {
+      SampleIGBuild.build(ig, 1);
+      Assertions.assertTrue(new File(ig, "temp/"+BuildCache.FOLDER_NAME).exists());
+      Assertions.assertFalse(new File(ig, "output/"+BuildCache.FOLDER_NAME).exists());
+      Assertions.assertFalse(new File(ig, "output/build-cache").exists());
+    } finally {
+      SampleIGBuild.delete(ig);
+    }
+  }
+}
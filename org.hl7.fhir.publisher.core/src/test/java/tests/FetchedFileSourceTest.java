@@ -0,0 +1,179 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.BuildCache;
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the source that FetchedFile keeps: that it comes back exactly as it went in, however
+ * it was read or shared, that it's held outside the heap and only inflated once, and that edits
+ * that Arrays.hashCode can't see (which is what used to decide whether a file had changed in
+ * watch mode) change the digest
+ */
+public class FetchedFileSourceTest {
+
+  private static final int FILES = 400;
+  private static final int FILE_SIZE = 50000;
+
+  @Test
+  public void testHashCollisionIsDetected() throws Exception {
+    // 31 * 'A' + 'a' == 31 * 'B' + 'B', so these have the same Arrays.hashCode
+    byte[] before = resource("Aa").getBytes(StandardCharsets.UTF_8);
+    byte[] after = resource("BB").getBytes(StandardCharsets.UTF_8);
+    Assertions.assertEquals(Arrays.hashCode(before), Arrays.hashCode(after));
+    Assertions.assertFalse(Arrays.equals(before, after));
+
+    FetchedFile f1 = new FetchedFile("Patient-example.json");
+    f1.setSource(before);
+    FetchedFile f2 = new FetchedFile("Patient-example.json");
+    f2.setSource(after);
+    Assertions.assertNotEquals(f1.getDigest(), f2.getDigest());
+    Assertions.assertFalse(f1.hasSameSource(f2));
+
+    FetchedFile f3 = new FetchedFile("Patient-example.json");
+    f3.setSource(before.clone());
+    Assertions.assertTrue(f1.hasSameSource(f3));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    File dir = Files.createTempDirectory("fetched-source").toFile();
+    try {
+      Random random = new Random(1);
+      byte[] noise = new byte[200000];
+      random.nextBytes(noise);
+      List<byte[]> samples = new ArrayList<>();
+      samples.add(new byte[0]);
+      samples.add("{}".getBytes(StandardCharsets.UTF_8));
+      samples.add(resource("Aa").getBytes(StandardCharsets.UTF_8));
+      samples.add(Arrays.copyOf(noise, 1000)); // doesn't compress
+      samples.add(Arrays.copyOf(noise, 65536));
+      samples.add(noise);
+      samples.add(bigResource(random, 3000000)); // many chunks
+
+      for (byte[] content : samples) {
+        String digest = BuildCache.digest(content);
+        File file = new File(dir, "source.json");
+        Files.write(file.toPath(), content);
+
+        FetchedFile set = new FetchedFile("source.json");
+        set.setSource(content);
+        FetchedFile loaded = new FetchedFile("source.json");
+        loaded.loadSource(file);
+        FetchedFile streamed = new FetchedFile("source.json");
+        streamed.loadSource(new ByteArrayInputStream(content));
+        FetchedFile shared = new FetchedFile("source.json");
+        shared.setSourceFrom(loaded);
+        Assertions.assertEquals(loaded.getStoredSourceSize(), shared.getStoredSourceSize());
+        // the file changing afterwards doesn't change what was read, so the digest still matches it
+        Files.write(file.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+
+        for (FetchedFile ff : Arrays.asList(set, loaded, streamed, shared)) {
+          Assertions.assertEquals(digest, ff.getDigest());
+          Assertions.assertArrayEquals(content, ff.getSource(), "length "+content.length);
+          Assertions.assertEquals(digest, BuildCache.digest(ff.getSource()));
+        }
+        Assertions.assertTrue(loaded.getStoredSourceSize() <= content.length + 1024);
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testSourceInflatedOnce() throws Exception {
+    FetchedFile ff = new FetchedFile("Patient-example.json");
+    ff.setSource(resource("Aa").getBytes(StandardCharsets.UTF_8));
+    byte[] first = ff.getSource();
+    Assertions.assertSame(first, ff.getSource());
+
+    ff.setSource(resource("BB").getBytes(StandardCharsets.UTF_8));
+    Assertions.assertArrayEquals(resource("BB").getBytes(StandardCharsets.UTF_8), ff.getSource());
+    Assertions.assertNotSame(first, ff.getSource());
+
+    ff.trim();
+    Assertions.assertFalse(ff.hasSource());
+  }
+
+  @Test
+  public void testHeapSaved() throws Exception {
+    Random random = new Random(2);
+    List<byte[]> sources = new ArrayList<>();
+    long total = 0;
+    for (int i = 0; i < FILES; i++) {
+      byte[] b = bigResource(random, FILE_SIZE);
+      sources.add(b);
+      total += b.length;
+    }
+
+    // the old way: the bytes on the heap
+    long base = usedHeap();
+    List<byte[]> onHeap = new ArrayList<>();
+    for (byte[] b : sources) {
+      onHeap.add(b.clone());
+    }
+    long heapRaw = usedHeap() - base;
+    onHeap = null;
+
+    base = usedHeap();
+    List<FetchedFile> files = new ArrayList<>();
+    long stored = 0;
+    for (int i = 0; i < FILES; i++) {
+      FetchedFile ff = new FetchedFile("file-"+i+".json");
+      ff.setSource(sources.get(i));
+      files.add(ff);
+      stored += ff.getStoredSourceSize();
+    }
+    long heapStored = usedHeap() - base;
+
+    System.out.println("Source of "+FILES+" files ("+(total / 1024)+"KB): "+(heapRaw / 1024)+"KB on the heap as byte arrays, "+
+        (heapStored / 1024)+"KB on the heap and "+(stored / 1024)+"KB outside it as FetchedFile sources");
+    Assertions.assertTrue(heapRaw > total / 2, "the byte arrays took "+heapRaw+" bytes"); // the measurement can see them
+    Assertions.assertTrue(heapStored < total / 10, "the sources took "+heapStored+" bytes of heap");
+    Assertions.assertTrue(stored < total / 2, "the sources took "+stored+" bytes outside the heap");
+    for (int i = 0; i < FILES; i += 37) {
+      Assertions.assertArrayEquals(sources.get(i), files.get(i).getSource());
+    }
+  }
+
+  private String resource(String code) {
+    return "{\r\n  \"resourceType\" : \"Patient\",\r\n  \"id\" : \"example\",\r\n  \"identifier\" : [{\r\n"+
+        "    \"system\" : \"http://example.org/ids\",\r\n    \"value\" : \"12345\",\r\n    \"type\" : { \"text\" : \""+code+"\" }\r\n  }]\r\n}\r\n";
+  }
+
+  /**
+   * Something shaped like a big resource: repetitive structure, varying values
+   */
+  private byte[] bigResource(Random random, int size) {
+    StringBuilder b = new StringBuilder();
+    b.append("{\r\n  \"resourceType\" : \"CodeSystem\",\r\n  \"concept\" : [");
+    int i = 0;
+    while (b.length() < size) {
+      b.append("{\r\n    \"code\" : \"C"+random.nextInt(1000000)+"\",\r\n    \"display\" : \"Concept number "+i+"\",\r\n"+
+          "    \"definition\" : \"The definition of concept "+i+", which is "+(random.nextBoolean() ? "active" : "retired")+"\"\r\n  },");
+      i++;
+    }
+    b.append("{}]\r\n}\r\n");
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private long usedHeap() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
@@ -0,0 +1,190 @@
+package tests;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.hl7.fhir.igtools.publisher.site.JekyllSupervisor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the JekyllSupervisor against a stub jekyll: a shell script that watches its folder
+ * and reports regenerations the way jekyll build --watch does, saying nothing while it builds.
+ * A file called 'crash' makes it exit, one called 'stall' makes it hang in the middle of a
+ * regeneration, and one called 'slow' makes a regeneration take 3 seconds. STUB_BUILD_TIME
+ * is how long the first build takes
+ */
+public class JekyllSupervisorTest {
+
+  private static final String STUB =
+      "#!/bin/bash\n"+
+      "echo start >> \"$STUB_LOG\"\n"+
+      "marker=$(mktemp)\n"+
+      "echo \"            Source: $(pwd)\"\n"+
+      "sleep ${STUB_BUILD_TIME:-0.2}\n"+
+      "echo \"                    done in ${STUB_BUILD_TIME:-0.2} seconds.\"\n"+
+      "while true; do\n"+
+      "  sleep 0.2\n"+
+      "  changed=$(find . -type f -newer \"$marker\" | head -1)\n"+
+      "  if [ -n \"$changed\" ]; then\n"+
+      "    touch \"$marker\"\n"+
+      "    if [ -f crash ]; then rm crash; exit 1; fi\n"+
+      "    echo \"      Regenerating: 1 file(s) changed at $(date)\"\n"+
+      "    if [ -f stall ]; then rm stall; sleep 1000; fi\n"+
+      "    if [ -f slow ]; then rm slow; sleep 3; fi\n"+
+      "    echo \"$changed\" >> \"$STUB_LOG\"\n"+
+      "    sleep 0.1\n"+
+      "    echo \"                    ...done in 0.1 seconds.\"\n"+
+      "  fi\n"+
+      "done\n";
+
+  private File dir;
+  private File source;
+  private File log;
+  private JekyllSupervisor supervisor;
+  private List<String> output = new ArrayList<>();
+
+  @BeforeEach
+  public void setup() throws Exception {
+    Assumptions.assumeFalse(SystemUtils.IS_OS_WINDOWS, "the stub jekyll is a shell script");
+    dir = Files.createTempDirectory("jekyll-stub").toFile();
+    source = new File(dir, "source");
+    source.mkdirs();
+    log = new File(dir, "stub.log");
+    File stub = new File(dir, "jekyll");
+    Files.write(stub.toPath(), STUB.getBytes(StandardCharsets.UTF_8));
+    stub.setExecutable(true);
+    write("index.html", "<p>index</p>");
+    supervisor = new JekyllSupervisor(Arrays.asList("bash", stub.getAbsolutePath()), source.getAbsolutePath(), s -> {
+      synchronized (output) {
+        output.add(s);
+      }
+    });
+    supervisor.getEnvironment().put("STUB_LOG", log.getAbsolutePath());
+    supervisor.setNoticeTimeout(2000);
+    supervisor.setBuildTimeout(5000);
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    if (supervisor != null) {
+      supervisor.stop();
+    }
+    if (dir != null) {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private void write(String name, String content) throws Exception {
+    Files.write(new File(source, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private List<String> stubLog() throws Exception {
+    return Files.readAllLines(log.toPath());
+  }
+
+  private int starts() throws Exception {
+    int res = 0;
+    for (String s : stubLog()) {
+      if ("start".equals(s)) {
+        res++;
+      }
+    }
+    return res;
+  }
+
+  @Test
+  public void testNotification() throws Exception {
+    supervisor.start();
+    Assertions.assertTrue(supervisor.isRunning());
+    Assertions.assertEquals(1, supervisor.getGeneration());
+
+    // nothing has changed, so there's nothing to wait for
+    Assertions.assertEquals(0, supervisor.update(System.currentTimeMillis()));
+
+    write("page.html", "<p>changed</p>");
+    Assertions.assertEquals(1, supervisor.update(System.currentTimeMillis()));
+    Assertions.assertTrue(supervisor.getGeneration() >= 2);
+    Assertions.assertTrue(stubLog().contains("./page.html"));
+    Assertions.assertEquals(0, supervisor.getRestarts());
+    Assertions.assertEquals(1, starts());
+    synchronized (output) {
+      Assertions.assertTrue(output.stream().anyMatch(s -> s.startsWith("Site updated ")), output.toString());
+    }
+  }
+
+  @Test
+  public void testRestartAfterCrash() throws Exception {
+    supervisor.start();
+    write("crash", "");
+    write("page.html", "<p>changed</p>");
+    supervisor.update(System.currentTimeMillis());
+    Assertions.assertEquals(1, supervisor.getRestarts());
+    Assertions.assertEquals(2, starts());
+    Assertions.assertTrue(supervisor.isRunning());
+
+    // and the new process carries on watching
+    write("other.html", "<p>other</p>");
+    Assertions.assertEquals(1, supervisor.update(System.currentTimeMillis()));
+    Assertions.assertEquals(1, supervisor.getRestarts());
+    Assertions.assertTrue(stubLog().contains("./other.html"));
+  }
+
+  @Test
+  public void testRestartAfterStall() throws Exception {
+    supervisor.start();
+    write("stall", "");
+    supervisor.update(System.currentTimeMillis());
+    Assertions.assertEquals(1, supervisor.getRestarts());
+    Assertions.assertEquals(2, starts());
+    Assertions.assertTrue(supervisor.isRunning());
+    synchronized (output) {
+      Assertions.assertTrue(output.stream().anyMatch(s -> s.contains("stalled")), output.toString());
+    }
+  }
+
+  @Test
+  public void testRestartWhenNotRunning() throws Exception {
+    supervisor.start();
+    supervisor.stop();
+    write("page.html", "<p>changed</p>");
+    supervisor.update(System.currentTimeMillis());
+    Assertions.assertEquals(1, supervisor.getRestarts());
+    Assertions.assertTrue(supervisor.isRunning());
+  }
+
+  /**
+   * Jekyll says nothing while it builds or regenerates the site, however long that takes,
+   * so that's not a reason to restart it
+   */
+  @Test
+  public void testLongSilentBuild() throws Exception {
+    supervisor.getEnvironment().put("STUB_BUILD_TIME", "3");
+    supervisor.start();
+    Assertions.assertEquals(1, supervisor.getGeneration());
+    Assertions.assertEquals(0, supervisor.getRestarts());
+
+    write("slow", "");
+    write("page.html", "<p>changed</p>");
+    Assertions.assertEquals(2, supervisor.update(System.currentTimeMillis()));
+    Assertions.assertEquals(0, supervisor.getRestarts());
+    Assertions.assertEquals(1, starts());
+
+    // and after a restart, the whole (silent) build is waited for
+    write("crash", "");
+    write("other.html", "<p>other</p>");
+    supervisor.update(System.currentTimeMillis());
+    Assertions.assertEquals(1, supervisor.getRestarts());
+    Assertions.assertEquals(2, starts());
+    Assertions.assertTrue(supervisor.isRunning());
+  }
+}
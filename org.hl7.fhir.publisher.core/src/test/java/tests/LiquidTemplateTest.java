@@ -0,0 +1,124 @@
+package tests;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.site.LiquidContext;
+import org.hl7.fhir.igtools.publisher.site.LiquidTemplate;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The Liquid tags and filters that the SiteRenderer supports, with the output Jekyll gives
+ */
+public class LiquidTemplateTest {
+
+  private Map<String, LiquidTemplate> includes = new HashMap<>();
+
+  @Test
+  public void testOutputAndFilters() throws Exception {
+    Map<String, Object> vars = vars();
+    Assertions.assertEquals("FHIR", render("{{ name | upcase }}", vars));
+    Assertions.assertEquals("a-b-c", render("{{ \"a,b,c\" | split: \",\" | join: \"-\" }}", vars));
+    Assertions.assertEquals("14", render("{{ 4 | plus: 3 | times: 2 }}", vars));
+    Assertions.assertEquals("2", render("{{ 10 | divided_by: 4 }}", vars));
+    Assertions.assertEquals("2.5", render("{{ 10.0 | divided_by: 4 }}", vars));
+    Assertions.assertEquals("none", render("{{ missing | default: \"none\" }}", vars));
+    Assertions.assertEquals("&lt;b&gt;", render("{{ \"<b>\" | escape }}", vars));
+    Assertions.assertEquals("3 3 x z", render("{{ items | size }} {{ items.size }} {{ items | first }} {{ items | last }}", vars));
+    Assertions.assertEquals("ann, bob", render("{{ people | map: \"name\" | sort | join: \", \" }}", vars));
+    Assertions.assertEquals("bob", render("{{ people | where: \"role\", \"author\" | map: \"name\" | join }}", vars));
+    Assertions.assertEquals("hello-world", render("{{ \"Hello World!\" | slugify }}", vars));
+    Assertions.assertEquals("ab...", render("{{ \"abcdefgh\" | truncate: 5 }}", vars));
+    // filters that aren't known leave the value as it is
+    Assertions.assertEquals("fhir", render("{{ name | no_such_filter }}", vars));
+  }
+
+  @Test
+  public void testConditions() throws Exception {
+    Map<String, Object> vars = vars();
+    String t = "{% if n > 5 %}big{% elsif n > 2 %}mid{% else %}small{% endif %}";
+    vars.put("n", 3);
+    Assertions.assertEquals("mid", render(t, vars));
+    vars.put("n", 1);
+    Assertions.assertEquals("small", render(t, vars));
+    Assertions.assertEquals("off", render("{% unless flag %}off{% endunless %}", vars));
+    // no precedence: evaluated right to left, so this is yes and (no or yes)
+    Assertions.assertEquals("yes", render("{% if name and flag or items %}yes{% endif %}", vars));
+    Assertions.assertEquals("yes", render("{% if title contains \"FHIR\" and items contains \"y\" %}yes{% endif %}", vars));
+    Assertions.assertEquals("yes", render("{% if missing == nil and empty_list == empty %}yes{% endif %}", vars));
+    String c = "{% case kind %}{% when \"a\", \"b\" %}ab{% when \"c\" %}c{% else %}other{% endcase %}";
+    vars.put("kind", "b");
+    Assertions.assertEquals("ab", render(c, vars));
+    vars.put("kind", "d");
+    Assertions.assertEquals("other", render(c, vars));
+  }
+
+  @Test
+  public void testLoops() throws Exception {
+    Map<String, Object> vars = vars();
+    Assertions.assertEquals("1:x,2:y,3:z", render("{% for i in items %}{{ forloop.index }}:{{ i }}{% unless forloop.last %},{% endunless %}{% endfor %}", vars));
+    Assertions.assertEquals("23", render("{% for i in (1..5) limit:2 offset:1 %}{{ i }}{% endfor %}", vars));
+    Assertions.assertEquals("zyx", render("{% for i in items reversed %}{{ i }}{% endfor %}", vars));
+    Assertions.assertEquals("none", render("{% for i in empty_list %}{{ i }}{% else %}none{% endfor %}", vars));
+    Assertions.assertEquals("13", render("{% for i in (1..5) %}{% if i == 2 %}{% continue %}{% endif %}{% if i == 4 %}{% break %}{% endif %}{{ i }}{% endfor %}", vars));
+  }
+
+  @Test
+  public void testVariablesAndBlocks() throws Exception {
+    Map<String, Object> vars = vars();
+    Assertions.assertEquals("HI!", render("{% assign x = \"hi\" | upcase %}{% capture y %}{{ x }}!{% endcapture %}{{ y }}", vars));
+    Assertions.assertEquals("{{ not }} {% if %}", render("{% raw %}{{ not }} {% if %}{% endraw %}", vars));
+    Assertions.assertEquals("ab", render("a{% comment %}{{ name }}{% endcomment %}b", vars));
+    Assertions.assertEquals("01", render("{% increment c %}{% increment c %}", vars));
+  }
+
+  @Test
+  public void testWhitespaceControl() throws Exception {
+    Assertions.assertEquals("abc", render("a \n  {%- if true -%}  \n b  {%- endif -%} \n c", vars()));
+    Assertions.assertEquals("a \n  b \n c", render("a \n  {% if true %}b{% endif %} \n c", vars()));
+  }
+
+  @Test
+  public void testIncludes() throws Exception {
+    includes.put("item.html", LiquidTemplate.parse("item.html", "<li>{{ include.label }}</li>"));
+    Assertions.assertEquals("<li>one</li><li>fhir</li>", render("{% include item.html label=\"one\" %}{% include item.html label=name %}", vars()));
+    FHIRException e = Assertions.assertThrows(FHIRException.class, () -> render("{% include nope.html %}", vars()));
+    Assertions.assertTrue(e.getMessage().contains("nope.html"), e.getMessage());
+  }
+
+  @Test
+  public void testErrors() {
+    FHIRException e = Assertions.assertThrows(FHIRException.class, () -> LiquidTemplate.parse("page.html", "a\n{% if x %}b"));
+    Assertions.assertTrue(e.getMessage().contains("'if' tag was never closed in page.html at line 2"), e.getMessage());
+    e = Assertions.assertThrows(FHIRException.class, () -> LiquidTemplate.parse("page.html", "{{ name"));
+    Assertions.assertTrue(e.getMessage().startsWith("Liquid Exception:"), e.getMessage());
+    e = Assertions.assertThrows(FHIRException.class, () -> LiquidTemplate.parse("page.html", "{% nosuchtag %}"));
+    Assertions.assertTrue(e.getMessage().contains("Unknown tag 'nosuchtag'"), e.getMessage());
+  }
+
+  private Map<String, Object> vars() {
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("name", "fhir");
+    vars.put("title", "The FHIR IG");
+    vars.put("flag", false);
+    vars.put("items", Arrays.asList("x", "y", "z"));
+    vars.put("empty_list", Arrays.asList());
+    vars.put("people", Arrays.asList(person("bob", "author"), person("ann", "editor")));
+    return vars;
+  }
+
+  private Map<String, Object> person(String name, String role) {
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("name", name);
+    res.put("role", role);
+    return res;
+  }
+
+  private String render(String template, Map<String, Object> vars) throws Exception {
+    return LiquidTemplate.parse("test", template).render(new LiquidContext(vars, (n, relative) -> includes.get(n), null));
+  }
+}
@@ -0,0 +1,96 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.OutputSink;
+import org.hl7.fhir.utilities.TextFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class OutputSinkTest {
+
+  @Test
+  public void testFailedWriteNamesTheFile() throws Exception {
+    File dir = Files.createTempDirectory("output-sink").toFile();
+    try {
+      File notADir = new File(dir, "file.txt");
+      TextFile.stringToFile("content", notADir, false);
+      String bad = new File(notADir, "page.html").getPath();
+      String good = new File(dir, "page.html").getPath();
+
+      OutputSink sink = new OutputSink(2, 4);
+      sink.write(bytes("bad"), bad);
+      IOException e = Assertions.assertThrows(IOException.class, () -> sink.flush());
+      Assertions.assertTrue(e.getMessage().contains(bad), e.getMessage());
+
+      // reported once, and not against the next file
+      sink.write(bytes("good"), good);
+      sink.flush();
+      Assertions.assertEquals("good", TextFile.fileToString(good));
+
+      // the writers start again after close()
+      sink.close();
+      sink.write(bytes("again"), good);
+      sink.close();
+      Assertions.assertEquals("again", TextFile.fileToString(good));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testKnownFilesAreKeptBetweenRuns() throws Exception {
+    File dir = Files.createTempDirectory("output-sink").toFile();
+    try {
+      String manifest = new File(dir, "_cache/"+OutputSink.MANIFEST_NAME).getPath();
+      String same = new File(dir, "same.html").getPath();
+      String edited = new File(dir, "sub/edited.html").getPath();
+      String gone = new File(dir, "gone.html").getPath();
+      String other = new File(dir, "other.html").getPath();
+      String copied = new File(dir, "copied.html").getPath();
+
+      OutputSink sink = new OutputSink(2, 4);
+      sink.write(bytes("same"), same);
+      sink.write(bytes("edited"), edited);
+      sink.write(bytes("gone"), gone);
+      sink.write(bytes("copied"), copied);
+      sink.flush();
+      sink.saveManifest(manifest);
+      TextFile.stringToFile("not from the sink", other, false);
+      TextFile.stringToFile("changed by hand", edited, false);
+      new File(edited).setLastModified(System.currentTimeMillis() - 60000);
+
+      // the next run
+      sink = new OutputSink(2, 4);
+      sink.loadManifest(manifest);
+      sink.clearExceptKnown(dir.getPath(), "_cache");
+      Assertions.assertTrue(new File(same).exists());
+      Assertions.assertTrue(new File(gone).exists());
+      Assertions.assertFalse(new File(edited).exists());
+      Assertions.assertFalse(new File(other).exists());
+      Assertions.assertTrue(new File(manifest).exists());
+
+      Assertions.assertFalse(sink.write(bytes("same"), same));
+      Assertions.assertTrue(sink.write(bytes("edited"), edited));
+      TextFile.stringToFile("copied again", copied, false); // not through the sink
+      new File(copied).setLastModified(System.currentTimeMillis() + 60000);
+      sink.flush();
+      sink.removeStale();
+      Assertions.assertEquals(1, sink.getUnchanged());
+      Assertions.assertEquals(1, sink.getWritten());
+      Assertions.assertFalse(new File(gone).exists());
+      Assertions.assertEquals("edited", TextFile.fileToString(edited));
+      Assertions.assertEquals("copied again", TextFile.fileToString(copied));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+}
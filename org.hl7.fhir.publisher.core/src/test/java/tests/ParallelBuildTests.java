@@ -0,0 +1,57 @@
+package tests;
+
+import java.io.File;
+
+import org.hl7.fhir.igtools.publisher.Publisher;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+/**
+ * Builds the sample IG serially and on several threads, and checks that the phases
+ * that run in parallel give the same results either way
+ */
+@EnabledIf("sampleExists")
+public class ParallelBuildTests {
+
+  private static final int THREADS = 4;
+
+  private static File serial;
+  private static File parallel;
+  private static Publisher s;
+  private static Publisher p;
+
+  private static boolean sampleExists() {
+    return SampleIGBuild.available();
+  }
+
+  @BeforeAll
+  public static void build() throws Exception {
+    serial = SampleIGBuild.copy();
+    parallel = SampleIGBuild.copy();
+    s = SampleIGBuild.build(serial, 1);
+    p = SampleIGBuild.build(parallel, THREADS);
+  }
+
+  @AfterAll
+  public static void delete() throws Exception {
+    SampleIGBuild.delete(serial, parallel);
+  }
+
+  @Test
+  public void testParallelValidationMatchesSerial() throws Exception {
+    Assertions.assertEquals(SampleIGBuild.messages(s), SampleIGBuild.messages(p));
+  }
+
+  @Test
+  public void testParallelNarrativesMatchSerial() throws Exception {
+    Assertions.assertEquals(SampleIGBuild.narratives(s), SampleIGBuild.narratives(p));
+  }
+
+  @Test
+  public void testParallelOutputsMatchSerial() throws Exception {
+    SampleIGBuild.assertSameContents(serial, parallel, "output");
+  }
+}
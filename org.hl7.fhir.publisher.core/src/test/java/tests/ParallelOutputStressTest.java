@@ -0,0 +1,55 @@
+package tests;
+
+import java.io.File;
+import java.util.List;
+
+import org.hl7.fhir.igtools.publisher.Publisher;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+/**
+ * Builds the sample IG on several threads a number of times, and checks that the output
+ * (written by Publisher.generateOutputsInParallel) and the messages come out the same as
+ * a serial build's every time, however the work happens to be spread across the threads
+ */
+@EnabledIf("sampleExists")
+public class ParallelOutputStressTest {
+
+  private static final int RUNS = 5;
+  private static final int THREADS = 8;
+
+  private static File serial;
+  private static List<String> messages;
+
+  private static boolean sampleExists() {
+    return SampleIGBuild.available();
+  }
+
+  @BeforeAll
+  public static void build() throws Exception {
+    serial = SampleIGBuild.copy();
+    messages = SampleIGBuild.messages(SampleIGBuild.build(serial, 1));
+  }
+
+  @AfterAll
+  public static void delete() throws Exception {
+    SampleIGBuild.delete(serial);
+  }
+
+  @Test
+  public void testOutputIsIdentical() throws Exception {
+    for (int i = 0; i < RUNS; i++) {
+      File parallel = SampleIGBuild.copy();
+      try {
+        Publisher p = SampleIGBuild.build(parallel, THREADS);
+        Assertions.assertEquals(messages, SampleIGBuild.messages(p), "run "+i+" reported different messages");
+        SampleIGBuild.assertSameContents(serial, parallel, "output");
+      } finally {
+        SampleIGBuild.delete(parallel);
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.ParallelZipGenerator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the archives the ParallelZipGenerator writes extract to exactly the tree they
+ * were made from, read both through the central directory and as a stream, whether the entries
+ * are compressed, stored, streamed or copied from a previous archive
+ */
+public class ParallelZipGeneratorTest {
+
+  private static final String REDIRECT = "<html><body>redirect</body></html>";
+
+  @Test
+  public void testSameTree() throws Exception {
+    File dir = Files.createTempDirectory("parallel-zip").toFile();
+    try {
+      File site = makeSite(dir);
+      String zip = new File(site, "full-ig.zip").getAbsolutePath();
+
+      ParallelZipGenerator gen = build(zip, site, 4, null);
+      checkSame(site, zip);
+      Assertions.assertEquals(0, gen.getReused());
+      Assertions.assertTrue(gen.getStored() > 0);
+      Assertions.assertTrue(gen.getDeflated() > 0);
+
+      // building again, with the archive in place, doesn't put it in itself
+      build(zip, site, 4, null);
+      checkSame(site, zip);
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testReuse() throws Exception {
+    File dir = Files.createTempDirectory("parallel-zip").toFile();
+    try {
+      File site = makeSite(dir);
+      String previous = new File(dir, "previous.zip").getAbsolutePath();
+      String zip = new File(site, "full-ig.zip").getAbsolutePath();
+      build(previous, site, 1, null);
+
+      Files.write(new File(site, "pages/page-3.html").toPath(), "changed".repeat(100).getBytes(StandardCharsets.UTF_8));
+      new File(site, "pages/page-6.html").delete();
+      Files.write(new File(site, "new.html").toPath(), "new".repeat(100).getBytes(StandardCharsets.UTF_8));
+      ParallelZipGenerator gen = build(zip, site, 4, previous);
+      checkSame(site, zip);
+      // everything but the changed page, the new one, and big.json (which is streamed)
+      Assertions.assertEquals(tree(site).size() - 3, gen.getReused());
+      Assertions.assertEquals(3, gen.getDeflated());
+
+      // an archive from ZipOutputStream can be reused as well
+      try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(previous))) {
+        for (Map.Entry<String, byte[]> e : tree(site).entrySet()) {
+          out.putNextEntry(new ZipEntry(e.getKey()));
+          out.write(e.getValue());
+        }
+      }
+      gen = build(zip, site, 4, previous);
+      checkSame(site, zip);
+      Assertions.assertEquals(tree(site).size() - 1, gen.getReused());
+
+      // and one that isn't a zip file is ignored
+      Files.write(new File(previous).toPath(), "not a zip".getBytes(StandardCharsets.UTF_8));
+      gen = build(zip, site, 4, previous);
+      checkSame(site, zip);
+      Assertions.assertEquals(0, gen.getReused());
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  /**
+   * The publisher keeps the last archive in the folder that the site is built from, so a
+   * previous archive that's in the folder being zipped must not end up in the new one
+   */
+  @Test
+  public void testPreviousInFolderIsLeftOut() throws Exception {
+    File dir = Files.createTempDirectory("parallel-zip").toFile();
+    try {
+      File site = makeSite(dir);
+      String zip = new File(dir, "full-ig.zip").getAbsolutePath();
+      String previous = new File(site, "_full-ig.previous.zip").getAbsolutePath();
+      build(previous, site, 1, null);
+
+      ParallelZipGenerator gen = build(zip, site, 4, previous);
+      checkSame(site, zip);
+      try (ZipFile zf = new ZipFile(zip)) {
+        Assertions.assertNull(zf.getEntry("site/_full-ig.previous.zip"));
+      }
+      Assertions.assertEquals(tree(site).size() - 1, gen.getReused());
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private ParallelZipGenerator build(String zip, File site, int threads, String previous) throws Exception {
+    ParallelZipGenerator gen = new ParallelZipGenerator(zip, threads);
+    gen.setPrevious(previous);
+    gen.addFolder(site.getAbsolutePath(), "site/");
+    gen.addFileSource("index.html", REDIRECT);
+    gen.close();
+    Assertions.assertFalse(new File(zip+".tmp").exists());
+    return gen;
+  }
+
+  private File makeSite(File dir) throws Exception {
+    File site = new File(dir, "site");
+    Random random = new Random(1);
+    for (int i = 0; i < 120; i++) {
+      File f = new File(site, (i % 3 == 0 ? "pages" : "pages/sub"+(i % 4))+"/page-"+i+(i % 10 == 0 ? ".png" : ".html"));
+      f.getParentFile().mkdirs();
+      byte[] content = new byte[random.nextInt(20000)];
+      if (i % 10 == 0) {
+        random.nextBytes(content);
+      } else {
+        Arrays.fill(content, (byte) ('a' + i % 26));
+      }
+      Files.write(f.toPath(), content);
+    }
+    // too big to compress in memory
+    byte[] big = new byte[10 * 1024 * 1024];
+    for (int i = 0; i < big.length; i++) {
+      big[i] = (byte) ('a' + (i * 7) % 13);
+    }
+    Files.write(new File(site, "big.json").toPath(), big);
+    Files.write(new File(site, "empty.txt").toPath(), new byte[0]);
+    Files.write(new File(site, "with space.html").toPath(), "space".getBytes(StandardCharsets.UTF_8));
+    return site;
+  }
+
+  private Map<String, byte[]> tree(File site) throws Exception {
+    Map<String, byte[]> res = new TreeMap<>();
+    addTree(site, "site/", res);
+    res.put("index.html", REDIRECT.getBytes(StandardCharsets.UTF_8));
+    return res;
+  }
+
+  private void addTree(File dir, String path, Map<String, byte[]> res) throws Exception {
+    for (File f : dir.listFiles()) {
+      if (f.isDirectory()) {
+        addTree(f, path+f.getName()+"/", res);
+      } else if (!f.getName().startsWith("full-ig.zip") && !f.getName().startsWith("_full-ig.previous.zip")) {
+        res.put(path+f.getName(), Files.readAllBytes(f.toPath()));
+      }
+    }
+  }
+
+  private void checkSame(File site, String zip) throws Exception {
+    Map<String, byte[]> expected = tree(site);
+    Map<String, byte[]> central = new TreeMap<>();
+    try (ZipFile zf = new ZipFile(zip)) {
+      for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements(); ) {
+        ZipEntry ze = e.nextElement();
+        central.put(ze.getName(), zf.getInputStream(ze).readAllBytes());
+      }
+    }
+    Map<String, byte[]> streamed = new TreeMap<>();
+    try (ZipInputStream zin = new ZipInputStream(new FileInputStream(zip))) {
+      ZipEntry ze;
+      while ((ze = zin.getNextEntry()) != null) {
+        streamed.put(ze.getName(), zin.readAllBytes());
+      }
+    }
+    for (Map<String, byte[]> actual : Arrays.asList(central, streamed)) {
+      Assertions.assertEquals(expected.keySet(), actual.keySet());
+      for (String name : expected.keySet()) {
+        Assertions.assertArrayEquals(expected.get(name), actual.get(name), name);
+      }
+    }
+  }
+}
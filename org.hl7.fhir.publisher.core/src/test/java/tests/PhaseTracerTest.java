@@ -0,0 +1,286 @@
+package tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.igtools.publisher.PhaseTracer;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+/**
+ * Traces the phases of a small IG the way the Publisher does - a few profiles and examples,
+ * with the snapshots and narratives done on two threads, and a span for each fragment - and
+ * checks that the chrome trace is well formed: every span is there, with its thread, and the
+ * spans on each thread nest properly. If the sample IG is there, its build is traced as well
+ */
+public class PhaseTracerTest {
+
+  private static final String[] FILES = { "StructureDefinition-patient.json", "StructureDefinition-observation.json",
+      "StructureDefinition-ext-\"quoted\"\\name.json", "Patient-example.json", "Observation-example.json" };
+  private static final List<String> PHASES = Arrays.asList("load", "conformance", "snapshots", "narratives", "validate", "generate", "zip", "inspector", "jekyll", "liquid");
+
+  private static class Span {
+    private String name;
+    private String detail;
+    private long start;
+    private long end;
+  }
+
+  /**
+   * The spans in a chrome trace, by thread
+   */
+  private static class Trace {
+    private Map<String, String> threads = new HashMap<>();
+    private List<Span> spans = new ArrayList<>();
+    private Map<String, List<Span>> byThread = new HashMap<>();
+
+    private Map<String, Integer> counts() {
+      Map<String, Integer> res = new HashMap<>();
+      for (Span sp : spans) {
+        res.put(sp.name, res.getOrDefault(sp.name, 0) + 1);
+      }
+      return res;
+    }
+
+    private List<String> details() {
+      List<String> res = new ArrayList<>();
+      for (Span sp : spans) {
+        if (sp.detail != null) {
+          res.add(sp.detail);
+        }
+      }
+      return res;
+    }
+
+    /**
+     * The spans on one thread, in start order, either contain the next or end before it starts
+     */
+    private void checkNesting() {
+      for (List<Span> list : byThread.values()) {
+        list.sort((s1, s2) -> s1.start != s2.start ? Long.compare(s1.start, s2.start) : Long.compare(s2.end, s1.end));
+        List<Span> stack = new ArrayList<>();
+        for (Span s : list) {
+          while (!stack.isEmpty() && stack.get(stack.size() - 1).end <= s.start) {
+            stack.remove(stack.size() - 1);
+          }
+          if (!stack.isEmpty()) {
+            Span parent = stack.get(stack.size() - 1);
+            Assertions.assertTrue(s.end <= parent.end, s.name+" "+s.start+"-"+s.end+" overlaps "+parent.name+" "+parent.start+"-"+parent.end);
+          }
+          stack.add(s);
+        }
+      }
+    }
+  }
+
+  private static boolean sampleExists() {
+    return SampleIGBuild.available();
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    PhaseTracer tracer = new PhaseTracer();
+    PhaseTracer.Span span = tracer.start("load");
+    tracer.start("fragment", "test").end();
+    span.end();
+    if (!new PhaseTracer.PhaseEvent().isEnabled()) { // unless the tests are run with a flight recording
+      Assertions.assertFalse(tracer.isEnabled());
+      Assertions.assertSame(span, tracer.start("generate"));
+    }
+    Assertions.assertEquals(0, tracer.getEventCount());
+  }
+
+  @Test
+  public void testChromeTrace() throws Exception {
+    PhaseTracer tracer = new PhaseTracer();
+    tracer.setChromeTrace(true);
+    Assertions.assertTrue(tracer.isEnabled());
+    buildSmallIG(tracer);
+    Assertions.assertEquals(expected().values().stream().mapToInt(i -> i).sum(), tracer.getEventCount());
+
+    File dir = Files.createTempDirectory("phase-trace").toFile();
+    try {
+      File fn = new File(dir, "qa-trace.json");
+      tracer.writeChromeTrace(fn.getAbsolutePath());
+      Trace trace = read(fn);
+      Assertions.assertEquals(expected(), trace.counts());
+      Assertions.assertTrue(trace.threads.size() >= 2, "the workers should have their own threads");
+      Assertions.assertTrue(trace.details().contains(FILES[2]), "the details should be escaped");
+      trace.checkNesting();
+    } finally {
+      for (File f : dir.listFiles()) {
+        f.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * Builds the sample IG with -trace, and checks the trace it writes: the phases are there,
+   * and each fragment has a span of its own, within the generate phase
+   */
+  @Test
+  @EnabledIf("sampleExists")
+  public void testSampleIGTrace() throws Exception {
+    File ig = SampleIGBuild.copy();
+    try {
+      SampleIGBuild.build(ig, 2, pub -> pub.getTracer().setChromeTrace(true));
+      Trace trace = read(new File(ig, "output/qa-trace.json"));
+      Map<String, Integer> counts = trace.counts();
+      for (String phase : new String[] { "load", "conformance", "snapshots", "narratives", "validate", "generate", "zip" }) {
+        Assertions.assertEquals(1, trace.spans.stream().filter(sp -> sp.name.equals(phase) && sp.detail == null).count(), phase);
+      }
+      Assertions.assertTrue(counts.getOrDefault("snapshot", 0) > 0);
+      Assertions.assertTrue(counts.getOrDefault("html output", 0) > 0);
+      Assertions.assertTrue(counts.getOrDefault("fragment", 0) > counts.get("html output"), "each resource has several fragments");
+      trace.checkNesting();
+
+      Span generate = trace.spans.stream().filter(sp -> sp.name.equals("generate")).findFirst().get();
+      // each fragment is written within its span, while the pages are generated
+      List<String> fragments = new ArrayList<>();
+      for (Span sp : trace.spans) {
+        if (sp.name.equals("fragment")) {
+          Assertions.assertTrue(sp.start >= generate.start && sp.end <= generate.end, sp.detail+" is outside the generate phase");
+          fragments.add(sp.detail);
+        }
+      }
+      Assertions.assertTrue(fragments.stream().anyMatch(n -> n.startsWith("StructureDefinition-") && n.endsWith("-snapshot")), "no snapshot fragment");
+    } finally {
+      SampleIGBuild.delete(ig);
+    }
+  }
+
+  private Map<String, Integer> expected() {
+    Map<String, Integer> res = new HashMap<>();
+    res.put("load", 1);
+    res.put("snapshot", 3);
+    res.put("narratives", 1);
+    res.put("narrative", FILES.length);
+    res.put("validate", 1 + FILES.length);
+    res.put("generate", 1);
+    res.put("html output", FILES.length);
+    res.put("fragment", FILES.length * 4);
+    res.put("zip", 1);
+    return res;
+  }
+
+  private void buildSmallIG(PhaseTracer tracer) throws Exception {
+    try (PhaseTracer.Span load = tracer.start("load")) {
+      work();
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (String f : FILES) {
+        if (f.startsWith("StructureDefinition")) {
+          futures.add(pool.submit(() -> {
+            try (PhaseTracer.Span span = tracer.start("snapshot", f)) {
+              work();
+            }
+          }));
+        }
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+
+      PhaseTracer.Span narratives = tracer.start("narratives");
+      futures.clear();
+      for (String f : FILES) {
+        futures.add(pool.submit(() -> {
+          try (PhaseTracer.Span span = tracer.start("narrative", f)) {
+            work();
+            try (PhaseTracer.Span fragment = tracer.start("fragment", f+"-narrative")) {
+              work();
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      narratives.end();
+    } finally {
+      pool.shutdownNow();
+    }
+
+    PhaseTracer.Span validate = tracer.start("validate");
+    for (String f : FILES) {
+      try (PhaseTracer.Span span = tracer.start("validate", f)) {
+        work();
+      }
+    }
+    validate.end();
+
+    PhaseTracer.Span generate = tracer.start("generate");
+    for (String f : FILES) {
+      try (PhaseTracer.Span span = tracer.start("html output", f)) {
+        for (String fragment : new String[] { "summary", "xml", "json" }) {
+          try (PhaseTracer.Span fs = tracer.start("fragment", f+"-"+fragment)) {
+            work();
+          }
+        }
+      }
+    }
+    try (PhaseTracer.Span zip = tracer.start("zip")) {
+      work();
+    }
+    generate.end();
+  }
+
+  /**
+   * Reads a chrome trace, checking the format: each thread has a name, and each span that
+   * isn't a whole phase has a detail
+   */
+  private Trace read(File fn) throws Exception {
+    JsonObject json = JsonParser.parseObject(new FileInputStream(fn));
+    Trace res = new Trace();
+    for (JsonObject e : json.getJsonObjects("traceEvents")) {
+      String tid = e.asString("tid");
+      Assertions.assertEquals("1", e.asString("pid"));
+      if ("M".equals(e.asString("ph"))) {
+        Assertions.assertEquals("thread_name", e.asString("name"));
+        res.threads.put(tid, e.getJsonObject("args").asString("name"));
+      } else {
+        Assertions.assertEquals("X", e.asString("ph"));
+        Assertions.assertEquals("publisher", e.asString("cat"));
+        Assertions.assertTrue(res.threads.containsKey(tid), "no name for thread "+tid);
+        Span sp = new Span();
+        sp.name = e.asString("name");
+        sp.start = nanos(e.asString("ts"));
+        sp.end = sp.start + nanos(e.asString("dur"));
+        Assertions.assertTrue(sp.start >= 0 && sp.end >= sp.start);
+        if (e.has("args")) {
+          sp.detail = e.getJsonObject("args").asString("detail");
+        }
+        Assertions.assertTrue(sp.detail != null || PHASES.contains(sp.name), sp.name+" has no detail");
+        res.spans.add(sp);
+        res.byThread.computeIfAbsent(tid, k -> new ArrayList<>()).add(sp);
+      }
+    }
+    return res;
+  }
+
+  private void work() {
+    long end = System.nanoTime() + 200000;
+    while (System.nanoTime() < end) {
+      Thread.onSpinWait();
+    }
+  }
+
+  private long nanos(String micros) {
+    return Math.round(Double.parseDouble(micros) * 1000);
+  }
+}
@@ -0,0 +1,254 @@
+package tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.hl7.fhir.igtools.publisher.FetchedResource;
+import org.hl7.fhir.igtools.publisher.ResourceIndex;
+import org.hl7.fhir.igtools.publisher.ResourceIndex.BundleEntryReference;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the ResourceIndex finds what the linear scans it replaced in Publisher.resolve
+ * and ValidationServices.fetch used to find, including which one wins when more than one
+ * resource matches, and after files are changed, removed and added
+ */
+public class ResourceIndexTest {
+
+  private static final String CANONICAL = "http://example.org/fhir";
+
+  private static final List<String> REFERENCES = Arrays.asList(
+      "Patient/a", "Patient/b", "Patient/x", "Patient/e1", "Patient/missing", "Observation/o1", "StructureDefinition/sd",
+      "ValueSet/vs", "Binary/bin", "Basic/bin", "Bundle/b1", CANONICAL+"/StructureDefinition/sd", CANONICAL+"/ValueSet/vs",
+      CANONICAL+"/ValueSet/missing", "http://example.org/Patient/e1", "urn:uuid:0b2d4a40-1b1c-4d8e-9e59-7a2c1cb3c2f1", "urn:uuid:missing");
+
+  @Test
+  public void testSameAsTheScans() {
+    List<FetchedFile> files = new ArrayList<>();
+    files.add(file("f0", patient("a")));
+    // the value set's url is the same as the reference to the patient in the next file. The old
+    // resolver checked type/id and url in the same pass, so the value set wins
+    files.add(file("f1", canonical(valueSet("vsx", "Patient/x")), canonical(structureDefinition("sd", CANONICAL+"/StructureDefinition/sd"))));
+    files.add(file("f2", patient("x"), patient("b")));
+    files.add(file("f3", bundle("b1",
+        entry("http://example.org/Patient/e1", "Patient", "e1"),
+        entry("urn:uuid:0b2d4a40-1b1c-4d8e-9e59-7a2c1cb3c2f1", "Observation", "o1"),
+        entry(null, "Patient", "a"))));
+    files.add(file("f4", patient("a"), canonical(valueSet("vs", CANONICAL+"/ValueSet/vs")), canonical(valueSet("vs2", CANONICAL+"/ValueSet/vs"))));
+    // a resource that was parsed again as another type keeps the type it was first given
+    files.add(file("f5", retyped("bin", "Binary", "Basic")));
+    files.add(file("f6", bundle("b2", entry("http://example.org/Patient/e1", "Patient", "e1"))));
+
+    ResourceIndex index = new ResourceIndex(files);
+    index.update(files);
+    check(files, index);
+
+    // a change to a file: the duplicate patient a in f4 is now the first one
+    files.get(0).getResources().clear();
+    files.get(0).getResources().add(patient("c"));
+    index.update(Collections.singletonList(files.get(0)));
+    check(files, index);
+
+    // a file that's gone: the entries in the second bundle are found instead
+    files.remove(3);
+    index.update(Collections.emptyList());
+    check(files, index);
+
+    // a new file at the front comes first
+    files.add(0, file("f7", patient("b"), canonical(valueSet("vs3", CANONICAL+"/ValueSet/vs"))));
+    index.update(Collections.emptyList());
+    check(files, index);
+
+    index.clear();
+    Assertions.assertNull(index.getByTypeAndId("Patient", "b"));
+    index.update(Collections.emptyList());
+    check(files, index);
+  }
+
+  private void check(List<FetchedFile> files, ResourceIndex index) {
+    for (String url : REFERENCES) {
+      String[] parts = url.split("\\/");
+      if (parts.length >= 2 && !url.startsWith("urn:")) {
+        Assertions.assertSame(scanTypeIdOrUrl(files, parts[0], parts[1], url), index.getByTypeAndIdOrUrl(parts[0], parts[1], url), url);
+        Assertions.assertSame(scanTypeId(files, parts[0], parts[1]), index.getByTypeAndId(parts[0], parts[1]), url);
+        Assertions.assertSame(scanElementTypeId(files, parts[0], parts[1]), index.getByElementTypeAndId(parts[0], parts[1]), url);
+        Assertions.assertSame(fileOf(files, scanElementTypeId(files, parts[0], parts[1])), index.getFileByElementTypeAndId(parts[0], parts[1]), url);
+        checkEntry(scanBundleEntry(files, parts[0], parts[1]), index.getBundleEntry(parts[0], parts[1]), url);
+      }
+      checkEntry(scanFullUrl(files, url), index.getBundleEntryByFullUrl(url), url);
+    }
+  }
+
+  private void checkEntry(Object[] expected, BundleEntryReference actual, String url) {
+    if (expected == null) {
+      Assertions.assertNull(actual, url);
+    } else {
+      Assertions.assertNotNull(actual, url);
+      Assertions.assertSame(expected[0], actual.getBundle(), url);
+      Assertions.assertSame(expected[1], actual.getResource(), url);
+    }
+  }
+
+  // -- the scans as they were in Publisher.resolve -------------------------------------------
+
+  private FetchedResource scanTypeIdOrUrl(List<FetchedFile> files, String type, String id, String url) {
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getElement() != null && r.fhirType().equals(type) && r.getId().equals(id)) {
+          return r;
+        }
+        if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
+          if (url.equals(((CanonicalResource) r.getResource()).getUrl())) {
+            return r;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private FetchedResource scanTypeId(List<FetchedFile> files, String type, String id) {
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getElement() != null && r.fhirType().equals(type) && r.getId().equals(id)) {
+          return r;
+        }
+      }
+    }
+    return null;
+  }
+
+  private Object[] scanBundleEntry(List<FetchedFile> files, String type, String id) {
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.fhirType().equals("Bundle")) {
+          for (Element entry : r.getElement().getChildrenByName("entry")) {
+            Element res = entry.getNamedChild("resource");
+            if (res != null && res.fhirType().equals(type) && res.hasChild("id") && res.getNamedChildValue("id").equals(id)) {
+              return new Object[] {r, res};
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private Object[] scanFullUrl(List<FetchedFile> files, String url) {
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.fhirType().equals("Bundle")) {
+          for (Element entry : r.getElement().getChildrenByName("entry")) {
+            Element res = entry.getNamedChild("resource");
+            String fu = entry.getNamedChildValue("fullUrl");
+            if (res != null && fu != null && fu.equals(url)) {
+              return new Object[] {r, res};
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  // -- the scan as it was in ValidationServices.fetch -----------------------------------------
+
+  private FetchedResource scanElementTypeId(List<FetchedFile> files, String type, String id) {
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getElement().fhirType().equals(type) && r.getId().equals(id)) {
+          return r;
+        }
+      }
+    }
+    return null;
+  }
+
+  private FetchedFile fileOf(List<FetchedFile> files, FetchedResource r) {
+    for (FetchedFile f : files) {
+      if (f.getResources().contains(r)) {
+        return f;
+      }
+    }
+    return null;
+  }
+
+  // -- building the files -----------------------------------------------------------------------
+
+  private FetchedFile file(String name, FetchedResource... resources) {
+    FetchedFile f = new FetchedFile(name+".json");
+    f.setName(name);
+    f.getResources().addAll(Arrays.asList(resources));
+    return f;
+  }
+
+  private FetchedResource patient(String id) {
+    Patient p = new Patient();
+    p.setId(id);
+    return resource(id, "Patient", p);
+  }
+
+  private FetchedResource canonical(CanonicalResource cr) {
+    return resource(cr.getId(), cr.fhirType(), cr);
+  }
+
+  private ValueSet valueSet(String id, String url) {
+    ValueSet vs = new ValueSet();
+    vs.setId(id);
+    vs.setUrl(url);
+    return vs;
+  }
+
+  private StructureDefinition structureDefinition(String id, String url) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId(id);
+    sd.setUrl(url);
+    return sd;
+  }
+
+  private FetchedResource retyped(String id, String type, String elementType) {
+    FetchedResource r = resource(id, type);
+    r.setElement(new Element(elementType, null, elementType, null));
+    return r;
+  }
+
+  private FetchedResource bundle(String id, Element... entries) {
+    FetchedResource r = resource(id, "Bundle");
+    r.getElement().getChildren().addAll(Arrays.asList(entries));
+    return r;
+  }
+
+  private Element entry(String fullUrl, String type, String id) {
+    Element entry = new Element("entry", null, "BackboneElement", null);
+    if (fullUrl != null) {
+      entry.getChildren().add(new Element("fullUrl", null, "uri", fullUrl));
+    }
+    Element res = new Element("resource", null, type, null);
+    res.getChildren().add(new Element("id", null, "id", id));
+    entry.getChildren().add(res);
+    return entry;
+  }
+
+  private FetchedResource resource(String id, String type) {
+    FetchedResource r = new FetchedResource();
+    r.setId(id);
+    r.setElement(new Element(type, null, type, null));
+    return r;
+  }
+
+  private FetchedResource resource(String id, String type, Resource resource) {
+    FetchedResource r = resource(id, type);
+    r.setResource(resource);
+    return r;
+  }
+}
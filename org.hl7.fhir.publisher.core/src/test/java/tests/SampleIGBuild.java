@@ -0,0 +1,156 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.hl7.fhir.igtools.publisher.FetchedResource;
+import org.hl7.fhir.igtools.publisher.Publisher;
+import org.hl7.fhir.igtools.publisher.Publisher.CacheOption;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.utilities.ToolGlobalSettings;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
+import org.junit.jupiter.api.Assertions;
+
+/**
+ * Builds a copy of the sample IG from the test IGs folder (see AllGuidesTests), so that
+ * two builds done different ways can be compared. Each build is done in its own copy,
+ * so nothing one build leaves behind (temp, the build cache) is seen by the other
+ */
+public class SampleIGBuild {
+
+  public static final String SAMPLE_IG = "example.fhir.uv.myig";
+
+  private static final List<String> NOT_COPIED = Arrays.asList("output", "temp", "template", "qa");
+  private static final List<String> NOT_COMPARED = Arrays.asList("qa.html", "qa.json", "qa.txt", "qa.xml", "qa-tx.html", "qa-time-report.json", "qa-trace.json");
+
+  // the dates and times that the publisher puts in the output
+  private static final Pattern[] DATES = {
+      Pattern.compile("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}(\\.\\d+)?([+-]\\d{2}:\\d{2}|Z)"),
+      Pattern.compile("[A-Z][a-z]{2}, \\d{1,2} [A-Z][a-z]{2}, \\d{4} \\d{2}:\\d{2}:\\d{2} [+-]\\d{4}"),
+      Pattern.compile("[A-Z][a-z]{2}, [A-Z][a-z]{2} \\d{1,2}, \\d{4} \\d{2}:\\d{2}[+-]\\d{4}"),
+      Pattern.compile("\\d{14}[+-]\\d{4}"),
+      Pattern.compile("\\d{2}/\\d{2}/\\d{4}")
+  };
+
+  public static boolean available() {
+    return ToolGlobalSettings.getTestIgsPath() != null && new File(ToolGlobalSettings.getTestIgsPath(), SAMPLE_IG).exists();
+  }
+
+  /**
+   * Copies the sample IG's source (not its output) into a new temporary folder
+   */
+  public static File copy() throws IOException {
+    File src = new File(ToolGlobalSettings.getTestIgsPath(), SAMPLE_IG);
+    File dst = Files.createTempDirectory("sample-ig").toFile();
+    FileUtils.copyDirectory(src, dst, f -> !(f.getParentFile().equals(src) && NOT_COPIED.contains(f.getName())));
+    return dst;
+  }
+
+  public static Publisher build(File folder, int threads) throws Exception {
+    return build(folder, threads, null);
+  }
+
+  /**
+   * Runs the publisher on the folder
+   *
+   * @param setup anything else to set on the publisher before it runs
+   */
+  public static Publisher build(File folder, int threads, Consumer<Publisher> setup) throws Exception {
+    Publisher pub = new Publisher();
+    pub.setConfigFile(folder.getAbsolutePath());
+    pub.setTxServer("http://tx.fhir.org");
+    pub.setCacheOption(CacheOption.LEAVE);
+    pub.setThreads(threads);
+    if (setup != null) {
+      setup.accept(pub);
+    }
+    pub.execute();
+    return pub;
+  }
+
+  /**
+   * The validation messages of each file, in the order the publisher reports them
+   */
+  public static List<String> messages(Publisher pub) {
+    List<String> res = new ArrayList<>();
+    for (FetchedFile f : pub.getFileList()) {
+      for (ValidationMessage vm : f.getErrors()) {
+        res.add(f.getName()+" | "+vm.getLevel()+" | "+vm.getLocation()+" | "+vm.getMessage());
+      }
+    }
+    return res;
+  }
+
+  /**
+   * The generated (or provided) narrative of each resource, by file and resource
+   */
+  public static Map<String, String> narratives(Publisher pub) throws IOException {
+    Map<String, String> res = new TreeMap<>();
+    for (FetchedFile f : pub.getFileList()) {
+      for (FetchedResource r : f.getResources()) {
+        Element text = r.getElement().getNamedChild("text");
+        Element div = text == null ? null : text.getNamedChild("div");
+        res.put(f.getName()+" | "+r.fhirType()+"/"+r.getId(), div == null || div.getXhtml() == null ? "" : new XhtmlComposer(XhtmlComposer.XML).compose(div.getXhtml()));
+      }
+    }
+    return res;
+  }
+
+  /**
+   * The content of each file in a folder, by relative path, with the dates (and the
+   * folder the IG was built in) taken out. The QA files and the packages are left out:
+   * they record how the build was done, and the zips and tgz files have timestamps
+   */
+  public static Map<String, String> contents(File ig, String folder) throws IOException {
+    Map<String, String> res = new TreeMap<>();
+    File dir = new File(ig, folder);
+    for (File f : FileUtils.listFiles(dir, null, true)) {
+      String rel = dir.toPath().relativize(f.toPath()).toString().replace(File.separatorChar, '/');
+      if (NOT_COMPARED.contains(rel) || rel.endsWith(".zip") || rel.endsWith(".tgz")) {
+        continue;
+      }
+      res.put(rel, normalise(ig, new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8)));
+    }
+    return res;
+  }
+
+  /**
+   * Checks that the two builds produced the same files with the same content
+   */
+  public static void assertSameContents(File expected, File actual, String folder) throws IOException {
+    Map<String, String> e = contents(expected, folder);
+    Map<String, String> a = contents(actual, folder);
+    Assertions.assertEquals(e.keySet(), a.keySet(), "The builds produced different files in "+folder);
+    for (String rel : e.keySet()) {
+      Assertions.assertEquals(e.get(rel), a.get(rel), "The builds produced different content for "+folder+"/"+rel);
+    }
+  }
+
+  private static String normalise(File ig, String content) throws IOException {
+    content = content.replace(ig.getAbsolutePath(), "[ig]").replace(ig.getAbsolutePath().replace('\\', '/'), "[ig]");
+    for (Pattern p : DATES) {
+      content = p.matcher(content).replaceAll("[date]");
+    }
+    return content;
+  }
+
+  public static void delete(File... folders) throws IOException {
+    for (File f : folders) {
+      if (f != null) {
+        FileUtils.deleteDirectory(f);
+      }
+    }
+  }
+}
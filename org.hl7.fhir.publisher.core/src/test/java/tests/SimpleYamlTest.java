@@ -0,0 +1,123 @@
+package tests;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.site.SimpleYaml;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The subset of YAML that the _config.yml, _data files and front matter of IGs use
+ */
+public class SimpleYamlTest {
+
+  @Test
+  public void testScalars() {
+    Map<String, Object> map = SimpleYaml.parseMap(
+        "title: My IG # a comment\n"+
+        "count: 12\n"+
+        "big: 12345678901\n"+
+        "ratio: 1.5\n"+
+        "on: true\n"+
+        "off: False\n"+
+        "nothing: ~\n"+
+        "empty:\n"+
+        "quoted: \"a # not a comment\\n\"\n"+
+        "single: 'it''s'\n"+
+        "url: http://example.org/fhir\n"+
+        "long: a plain scalar\n"+
+        "  that continues\n");
+    Assertions.assertEquals("My IG", map.get("title"));
+    Assertions.assertEquals(12, map.get("count"));
+    Assertions.assertEquals(12345678901L, map.get("big"));
+    Assertions.assertEquals(1.5, map.get("ratio"));
+    Assertions.assertEquals(true, map.get("on"));
+    Assertions.assertEquals(false, map.get("off"));
+    Assertions.assertNull(map.get("nothing"));
+    Assertions.assertTrue(map.containsKey("empty"));
+    Assertions.assertNull(map.get("empty"));
+    Assertions.assertEquals("a # not a comment\n", map.get("quoted"));
+    Assertions.assertEquals("it's", map.get("single"));
+    Assertions.assertEquals("http://example.org/fhir", map.get("url"));
+    Assertions.assertEquals("a plain scalar that continues", map.get("long"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCollections() {
+    Map<String, Object> map = SimpleYaml.parseMap(
+        "exclude:\n"+
+        "  - Gemfile\n"+
+        "  - vendor/\n"+
+        "defaults:\n"+
+        "  - scope:\n"+
+        "      path: \"\"\n"+
+        "    values:\n"+
+        "      layout: default\n"+
+        "flow: [a, 'b, c', {x: 1, y: [2, 3]}]\n"+
+        "map: {name: test,\n"+
+        "  other: value}\n"+
+        "nested:\n"+
+        "  inner:\n"+
+        "    - - 1\n"+
+        "      - 2\n");
+    Assertions.assertEquals(Arrays.asList("Gemfile", "vendor/"), map.get("exclude"));
+
+    List<Object> defaults = (List<Object>) map.get("defaults");
+    Assertions.assertEquals(1, defaults.size());
+    Map<String, Object> d = (Map<String, Object>) defaults.get(0);
+    Assertions.assertEquals("", ((Map<String, Object>) d.get("scope")).get("path"));
+    Assertions.assertEquals("default", ((Map<String, Object>) d.get("values")).get("layout"));
+
+    List<Object> flow = (List<Object>) map.get("flow");
+    Assertions.assertEquals("a", flow.get(0));
+    Assertions.assertEquals("b, c", flow.get(1));
+    Map<String, Object> fm = (Map<String, Object>) flow.get(2);
+    Assertions.assertEquals(1, fm.get("x"));
+    Assertions.assertEquals(Arrays.asList(2, 3), fm.get("y"));
+
+    Map<String, Object> m = (Map<String, Object>) map.get("map");
+    Assertions.assertEquals("test", m.get("name"));
+    Assertions.assertEquals("value", m.get("other"));
+
+    Map<String, Object> nested = (Map<String, Object>) map.get("nested");
+    Assertions.assertEquals(Arrays.asList(Arrays.asList(1, 2)), nested.get("inner"));
+
+    // the keys stay in the order they were written
+    Assertions.assertEquals(Arrays.asList("exclude", "defaults", "flow", "map", "nested"), Arrays.asList(map.keySet().toArray()));
+  }
+
+  @Test
+  public void testBlockScalars() {
+    Map<String, Object> map = SimpleYaml.parseMap(
+        "literal: |\n"+
+        "  line one\n"+
+        "  # not a comment\n"+
+        "\n"+
+        "  line three\n"+
+        "folded: >\n"+
+        "  one\n"+
+        "  two\n"+
+        "\n"+
+        "  three\n"+
+        "stripped: |-\n"+
+        "  text\n"+
+        "after: done\n");
+    Assertions.assertEquals("line one\n# not a comment\n\nline three\n", map.get("literal"));
+    Assertions.assertEquals("one two\nthree\n", map.get("folded"));
+    Assertions.assertEquals("text", map.get("stripped"));
+    Assertions.assertEquals("done", map.get("after"));
+  }
+
+  @Test
+  public void testDocuments() {
+    Assertions.assertNull(SimpleYaml.parse(""));
+    Assertions.assertTrue(SimpleYaml.parseMap("# just a comment\n").isEmpty());
+    Assertions.assertEquals(Arrays.asList("a", "b"), SimpleYaml.parse("---\n- a\n- b\n"));
+    Assertions.assertThrows(FHIRException.class, () -> SimpleYaml.parseMap("- a\n"));
+    Assertions.assertThrows(FHIRException.class, () -> SimpleYaml.parseMap("a: 1\n   b: 2\n"));
+  }
+}
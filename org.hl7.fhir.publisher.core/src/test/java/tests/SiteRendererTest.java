@@ -0,0 +1,164 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.hl7.fhir.igtools.publisher.site.SiteDiff;
+import org.hl7.fhir.igtools.publisher.site.SiteDiff.Difference;
+import org.hl7.fhir.igtools.publisher.site.SiteDiff.DifferenceType;
+import org.hl7.fhir.igtools.publisher.site.SiteRenderer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+/**
+ * Renders a small site, then changes one file at a time and checks that only the pages
+ * that depend on it are rendered again. If jekyll is installed, the sample IG is also
+ * built both ways and compared
+ */
+public class SiteRendererTest {
+
+  private File dir;
+  private File source;
+  private File output;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("site-renderer").toFile();
+    source = new File(dir, "source");
+    output = new File(dir, "output");
+    write("_config.yml", "title: Test IG\nexclude:\n  - notes.txt\n");
+    write("_data/info.yml", "name: first\n");
+    write("_includes/footer.html", "footer {{ include.who }}");
+    write("_layouts/default.html", "---\n---\n<html><title>{{ site.title }}</title>{{ content }}</html>");
+    write("a.html", "---\nlayout: default\n---\nA {% include footer.html who=\"a\" %}");
+    write("b.html", "---\nlayout: default\n---\nB {{ site.data.info.name }}");
+    write("c.md", "---\n---\nC {{ page.name }}");
+    write("style.css", "body {}");
+    write("notes.txt", "not published");
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testIncrementalRendering() throws Exception {
+    SiteRenderer sr = new SiteRenderer(source.getAbsolutePath(), output.getAbsolutePath(), 2, s -> "<p>"+s+"</p>");
+    sr.render();
+    Assertions.assertEquals(3, sr.getRendered());
+    Assertions.assertEquals(1, sr.getCopied());
+    Assertions.assertEquals("<html><title>Test IG</title>A footer a</html>", read("a.html"));
+    Assertions.assertEquals("<html><title>Test IG</title>B first</html>", read("b.html"));
+    Assertions.assertEquals("<p>C c.md</p>", read("c.html"));
+    Assertions.assertEquals("body {}", read("style.css"));
+    Assertions.assertFalse(new File(output, "notes.txt").exists());
+    Assertions.assertFalse(new File(output, "_data").exists());
+    Assertions.assertFalse(new File(output, "_includes").exists());
+
+    // nothing has changed
+    sr.render();
+    Assertions.assertEquals(0, sr.getRendered());
+    Assertions.assertEquals(0, sr.getCopied());
+
+    // only the page that uses the include
+    write("_includes/footer.html", "footer by {{ include.who }}");
+    sr.render();
+    Assertions.assertEquals(1, sr.getRendered());
+    Assertions.assertEquals("<html><title>Test IG</title>A footer by a</html>", read("a.html"));
+
+    // the pages that use the layout
+    write("_layouts/default.html", "---\n---\n<body>{{ content }}</body>");
+    sr.render();
+    Assertions.assertEquals(2, sr.getRendered());
+    Assertions.assertEquals("<body>B first</body>", read("b.html"));
+
+    // a data file can be used by any page, so everything is rendered again
+    write("_data/info.yml", "name: second\n");
+    sr.render();
+    Assertions.assertEquals(3, sr.getRendered());
+    Assertions.assertEquals("<body>B second</body>", read("b.html"));
+
+    // a page that's gone is removed from the output
+    new File(source, "c.md").delete();
+    sr.render();
+    Assertions.assertEquals(0, sr.getRendered());
+    Assertions.assertEquals(1, sr.getDeleted());
+    Assertions.assertFalse(new File(output, "c.html").exists());
+  }
+
+  @Test
+  public void testPageErrorsAreReportedAndRetried() throws Exception {
+    write("b.html", "---\nlayout: default\n---\n{% if %}");
+    SiteRenderer sr = new SiteRenderer(source.getAbsolutePath(), output.getAbsolutePath(), 1, null);
+    IOException e = Assertions.assertThrows(IOException.class, () -> sr.render());
+    Assertions.assertTrue(e.getMessage().contains("b.html"), e.getMessage());
+    Assertions.assertTrue(new File(output, "a.html").exists());
+
+    // the page that failed is rendered again, even though it hasn't changed
+    Assertions.assertThrows(IOException.class, () -> sr.render());
+    write("b.html", "---\nlayout: default\n---\nB fixed");
+    sr.render();
+    Assertions.assertEquals(1, sr.getRendered());
+    Assertions.assertEquals("<html><title>Test IG</title>B fixed</html>", read("b.html"));
+  }
+
+  /**
+   * Builds the sample IG with jekyll and with the SiteRenderer, and checks that the sites are
+   * the same, apart from the dates
+   */
+  @Test
+  @EnabledIf("sampleAndJekyllExist")
+  public void testSampleIGSameAsJekyll() throws Exception {
+    File jekyll = SampleIGBuild.copy();
+    File liquid = SampleIGBuild.copy();
+    try {
+      SampleIGBuild.build(jekyll, 1);
+      SampleIGBuild.build(liquid, 1, pub -> pub.setLiquidSite(true));
+      SiteDiff diff = SiteDiff.compare(new File(jekyll, "output").getAbsolutePath(), new File(liquid, "output").getAbsolutePath());
+      Assertions.assertEquals(0, diff.count(DifferenceType.MISSING), diff.summary());
+      Assertions.assertEquals(0, diff.count(DifferenceType.EXTRA), diff.summary());
+      Map<String, String> expected = SampleIGBuild.contents(jekyll, "output");
+      Map<String, String> actual = SampleIGBuild.contents(liquid, "output");
+      for (Difference d : diff.getDifferences()) {
+        Assertions.assertEquals(expected.get(d.getPath()), actual.get(d.getPath()), d.getPath()+" differs at line "+d.getLine()+": "+d.getExpected()+" | "+d.getActual());
+      }
+    } finally {
+      SampleIGBuild.delete(jekyll, liquid);
+    }
+  }
+
+  private static boolean sampleAndJekyllExist() {
+    if (!SampleIGBuild.available()) {
+      return false;
+    }
+    try {
+      Process p = new ProcessBuilder(SystemUtils.IS_OS_WINDOWS ? new String[] { "cmd", "/C", "jekyll", "-v" } : new String[] { "jekyll", "-v" }).redirectErrorStream(true).start();
+      p.getInputStream().readAllBytes();
+      return p.waitFor() == 0;
+    } catch (IOException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void write(String path, String content) throws IOException {
+    File f = new File(source, path);
+    f.getParentFile().mkdirs();
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String read(String path) throws IOException {
+    return new String(Files.readAllBytes(new File(output, path).toPath()), StandardCharsets.UTF_8);
+  }
+}
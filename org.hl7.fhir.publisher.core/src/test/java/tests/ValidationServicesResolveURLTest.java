@@ -0,0 +1,214 @@
+package tests;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.ValidationServices;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.NamingSystem;
+import org.hl7.fhir.r5.model.NamingSystem.NamingSystemIdentifierType;
+import org.hl7.fhir.r5.model.NamingSystem.NamingSystemUniqueIdComponent;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.utils.BuildExtensions;
+import org.hl7.fhir.utilities.SIDUtilities;
+import org.hl7.fhir.utilities.Utilities;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that ValidationServices.resolveURL gives the same answers as the original
+ * implementation (a list of other urls, and a scan of the NamingSystems on every call),
+ * which is kept here as the reference
+ */
+public class ValidationServicesResolveURLTest {
+
+  private List<NamingSystem> namingSystems = new ArrayList<>();
+  private Set<String> known = new HashSet<>();
+  private AtomicInteger namingSystemFetches = new AtomicInteger();
+
+  private IWorkerContext makeContext() {
+    return (IWorkerContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { IWorkerContext.class }, (proxy, method, args) -> {
+      switch (method.getName()) {
+      case "fetchResourcesByType":
+        if (args[0] == NamingSystem.class) {
+          namingSystemFetches.incrementAndGet();
+          return new ArrayList<>(namingSystems);
+        }
+        return new ArrayList<>();
+      case "fetchResourceWithException":
+        String url = (String) args[1];
+        if (url.contains("broken")) {
+          throw new FHIRException("broken "+url);
+        }
+        return known.contains(url) ? new StructureDefinition().setUrl(url) : null;
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return "test context";
+      default:
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  private NamingSystem makeNamingSystem(NamingSystemIdentifierType type, String value) {
+    NamingSystem ns = new NamingSystem();
+    ns.addUniqueId().setType(type).setValue(value);
+    return ns;
+  }
+
+  private List<String> otherUrls() {
+    List<String> res = new ArrayList<>();
+    res.addAll(SIDUtilities.allSystemsList());
+    res.add("http://hl7.org/fhir/w5");
+    res.add("http://hl7.org/fhir/fivews");
+    res.add("http://hl7.org/fhir/workflow");
+    res.add("http://hl7.org/fhir/tools/StructureDefinition/resource-information");
+    res.add("http://hl7.org/fhir/ConsentPolicy/opt-out");
+    res.add("http://hl7.org/fhir/ConsentPolicy/opt-in");
+    return res;
+  }
+
+  // the implementation as it was before the urls were indexed
+  private boolean reference(IWorkerContext context, List<String> otherUrls, List<String> mappingUrls, String path, String url) {
+    String u = url;
+    String v = null;
+    if (url.contains("|")) {
+      u = url.substring(0, url.indexOf("|"));
+      v = url.substring(url.indexOf("|")+1);
+    }
+    if (otherUrls.contains(u) || otherUrls.contains(url)) {
+      return true;
+    }
+    if (SIDUtilities.isKnownSID(u)) {
+      return (v == null) || !SIDUtilities.isInvalidVersion(u, v);
+    }
+    if (u.startsWith("http://hl7.org/fhirpath/System.")) {
+      return (v == null || Utilities.existsInList(v, "2.0.0", "1.3.0", "1.2.0", "1.1.0", "1.0.0", "0.3.0", "0.2.0"));
+    }
+    if (path.contains("StructureDefinition.mapping") && (mappingUrls.contains(u) || mappingUrls.contains(url))) {
+      return true;
+    }
+    for (NamingSystem ns : context.fetchResourcesByType(NamingSystem.class)) {
+      for (NamingSystemUniqueIdComponent uid : ns.getUniqueId()) {
+        if (uid.getType() == NamingSystemIdentifierType.URI && uid.hasValue() && uid.getValue().equals(u)) {
+          return true;
+        }
+      }
+    }
+    if (u.startsWith("http://hl7.org/fhir")) {
+      if (Utilities.existsInList(u, BuildExtensions.allConsts())) {
+        return true;
+      }
+      try {
+        return context.fetchResourceWithException(Resource.class, url) != null;
+      } catch (FHIRException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Test
+  public void testSameAnswers() throws Exception {
+    for (int i = 0; i < 200; i++) {
+      namingSystems.add(makeNamingSystem(NamingSystemIdentifierType.URI, "http://hl7.org/fhir/ns/uri"+i));
+      namingSystems.add(makeNamingSystem(NamingSystemIdentifierType.OID, "http://hl7.org/fhir/ns/oid"+i));
+    }
+    for (int i = 0; i < 50; i++) {
+      known.add("http://hl7.org/fhir/StructureDefinition/known"+i);
+    }
+    IWorkerContext context = makeContext();
+    ValidationServices vs = new ValidationServices(context, null, null, new ArrayList<>(), false);
+    List<String> otherUrls = otherUrls();
+    List<String> mappingUrls = new ArrayList<>();
+    for (String s : Arrays.asList("http://example.org/ig", "http://example.org/ig/ValueSet/vs1", "http://hl7.org/fhir/us/core")) {
+      otherUrls.add(s);
+      vs.getOtherUrls().add(s);
+    }
+    for (String s : Arrays.asList("http://hl7.org/v3", "http://snomed.info/conceptdomain")) {
+      mappingUrls.add(s);
+      vs.getMappingUrls().add(s);
+    }
+
+    List<String> urls = new ArrayList<>();
+    urls.addAll(otherUrls);
+    urls.addAll(mappingUrls);
+    for (String s : SIDUtilities.allSystemsList()) {
+      urls.add(s+"|1.0.0");
+    }
+    urls.add("http://example.org/ig|0.1.0");
+    urls.add("http://hl7.org/fhir/us/core|3.1.1");
+    urls.add("http://loinc.org|2.74");
+    urls.add("http://snomed.info/sct|http://snomed.info/sct/731000124108");
+    urls.add("http://snomed.info/sct|nonsense");
+    urls.add("http://hl7.org/fhirpath/System.String");
+    urls.add("http://hl7.org/fhirpath/System.String|2.0.0");
+    urls.add("http://hl7.org/fhirpath/System.String|9.9.9");
+    urls.add("http://hl7.org/v3|1");
+    urls.addAll(Arrays.asList(BuildExtensions.allConsts()));
+    for (int i = 0; i < 220; i += 7) {
+      urls.add("http://hl7.org/fhir/ns/uri"+i);
+      urls.add("http://hl7.org/fhir/ns/uri"+i+"|1.0");
+      urls.add("http://hl7.org/fhir/ns/oid"+i);
+    }
+    for (int i = 0; i < 60; i += 3) {
+      urls.add("http://hl7.org/fhir/StructureDefinition/known"+i);
+      urls.add("http://hl7.org/fhir/StructureDefinition/known"+i+"|4.0.1");
+    }
+    urls.add("http://hl7.org/fhir/StructureDefinition/broken");
+    urls.add("http://example.org/fhir/StructureDefinition/other");
+    urls.add("urn:oid:1.2.3.4");
+    urls.add("urn:uuid:2b7c1e4a-1e0f-4d1c-9b7a-6f0f1a5d6b11");
+
+    for (String path : Arrays.asList("Patient.identifier.system", "StructureDefinition.mapping.uri")) {
+      for (String url : urls) {
+        Assertions.assertEquals(reference(context, otherUrls, mappingUrls, path, url), vs.resolveURL(null, null, path, url, null), path+": "+url);
+      }
+    }
+
+    // the NamingSystems were only scanned once by the ValidationServices (the rest are the reference implementation)
+    int referenceFetches = 0;
+    for (String path : Arrays.asList("Patient.identifier.system", "StructureDefinition.mapping.uri")) {
+      for (String url : urls) {
+        namingSystemFetches.set(0);
+        reference(context, otherUrls, mappingUrls, path, url);
+        referenceFetches = referenceFetches + namingSystemFetches.get();
+      }
+    }
+    namingSystemFetches.set(0);
+    for (String url : urls) {
+      vs.resolveURL(null, null, "Patient.identifier.system", url, null);
+    }
+    Assertions.assertEquals(0, namingSystemFetches.get());
+    Assertions.assertTrue(referenceFetches > 0);
+  }
+
+  @Test
+  public void testRefreshWhenResourcesLoaded() throws Exception {
+    IWorkerContext context = makeContext();
+    ValidationServices vs = new ValidationServices(context, null, null, new ArrayList<>(), false);
+    String url = "http://hl7.org/fhir/ns/late";
+    Assertions.assertFalse(vs.resolveURL(null, null, "Patient.identifier.system", url, null));
+
+    namingSystems.add(makeNamingSystem(NamingSystemIdentifierType.URI, url));
+    vs.resourcesLoaded();
+    Assertions.assertTrue(vs.resolveURL(null, null, "Patient.identifier.system", url, null));
+    Assertions.assertTrue(vs.hasNamingSystemId(NamingSystemIdentifierType.URI, url));
+    Assertions.assertFalse(vs.hasNamingSystemId(NamingSystemIdentifierType.OID, url));
+
+    // initOtherUrls starts a new build, so it also looks again
+    namingSystems.clear();
+    vs.initOtherUrls();
+    Assertions.assertFalse(vs.resolveURL(null, null, "Patient.identifier.system", url, null));
+  }
+}
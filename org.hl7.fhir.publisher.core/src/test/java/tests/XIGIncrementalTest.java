@@ -0,0 +1,195 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.xig.XIGHandler.PageContent;
+import org.hl7.fhir.igtools.publisher.xig.XIGInformation;
+import org.hl7.fhir.igtools.publisher.xig.XIGLoader;
+import org.hl7.fhir.igtools.publisher.xig.XIGManifest;
+import org.hl7.fhir.igtools.publisher.xig.XIGPackageScanner;
+import org.hl7.fhir.igtools.publisher.xig.XIGRegistryWriter;
+import org.hl7.fhir.igtools.publisher.xig.XIGRenderer;
+import org.hl7.fhir.igtools.publisher.xig.XIGStore;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.renderers.utils.RenderingContext;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Loads a synthetic local package cache a few times over, changing one package between runs,
+ * and checks what the XIGRenderer makes again: only the pages of the resources in the changed
+ * package, of the resources they use, and of the resources that use them, and only the index
+ * page sets of the realms those are in. Rendering the pages needs the core packages, so the
+ * renderer here writes each page as an empty file
+ */
+public class XIGIncrementalTest {
+
+  private static final String[] REALMS = { "all", "hl7", "ihe", "uv", "us" };
+
+  private static class Plan {
+    private Set<String> pages;
+    private Set<String> realms;
+    private List<String> removed;
+  }
+
+  /**
+   * Records the pages and page sets it's asked to make, and writes them as empty files
+   */
+  private static class RecordingRenderer extends XIGRenderer {
+    private String target;
+    private Set<String> pages = Collections.synchronizedSet(new HashSet<>());
+    private Set<String> realms = Collections.synchronizedSet(new HashSet<>());
+
+    private RecordingRenderer(XIGInformation info, String target) {
+      super(info, target, "test");
+      this.target = target;
+    }
+
+    @Override
+    protected RenderingContext newRenderingContext() {
+      return null;
+    }
+
+    @Override
+    protected void renderResource(CanonicalResource cr, RenderingContext lrc) throws IOException {
+      pages.add(cr.getUserString("filebase"));
+      TextFile.stringToFile("", new File(target, cr.getUserString("filebase")+".html"), false);
+    }
+
+    @Override
+    public PageContent genPageSet(String target, String realm, String realmT) throws IOException {
+      realms.add(realm);
+      TextFile.stringToFile("", new File(target, realm+"-index.html"), false);
+      return null;
+    }
+  }
+
+  @Test
+  public void testOnlyChangedPackagesAreRendered() throws Exception {
+    File root = Files.createTempDirectory("xig-incremental").toFile();
+    try {
+      File cache = new File(root, "cache");
+      File target = new File(root, "target");
+      target.mkdirs();
+      writePackage(cache, "hl7.fhir.uv.synth0", "first", "first", "http://example.org/fhir/synth2/CodeSystem/cs");
+      writePackage(cache, "fhir.synth1", "first", "first", null);
+      writePackage(cache, "example.synth2", "first", "first", null);
+
+      // the first run makes everything
+      Plan plan = run(cache, target);
+      Assertions.assertEquals(6, plan.pages.size());
+      Assertions.assertEquals(set(REALMS), plan.realms);
+      Assertions.assertTrue(plan.removed.isEmpty());
+      Assertions.assertTrue(new File(target, XIGManifest.FILENAME).exists());
+
+      // nothing has changed
+      plan = run(cache, target);
+      Assertions.assertEquals(set(), plan.pages);
+      Assertions.assertEquals(set(), plan.realms);
+
+      // the uv package's value set includes the code system in example.synth2, so its page
+      // shows it, and is made again when it changes. example.synth2 has no realm, so it's only in 'all'
+      writePackage(cache, "example.synth2", "first", "second", null);
+      plan = run(cache, target);
+      Assertions.assertEquals(set("valueset-example.synth2-vs", "codesystem-example.synth2-cs", "valueset-hl7.fhir.uv.synth0-vs"), plan.pages);
+      Assertions.assertEquals(set("all", "hl7", "uv"), plan.realms);
+
+      // and the page of the code system in example.synth2 lists the uv value set
+      writePackage(cache, "hl7.fhir.uv.synth0", "second", "first", "http://example.org/fhir/synth2/CodeSystem/cs");
+      plan = run(cache, target);
+      Assertions.assertEquals(set("valueset-hl7.fhir.uv.synth0-vs", "codesystem-hl7.fhir.uv.synth0-cs", "codesystem-example.synth2-cs"), plan.pages);
+      Assertions.assertEquals(set("all", "hl7", "uv"), plan.realms);
+
+      // a page that has gone missing is made again
+      new File(target, "codesystem-fhir.synth1-cs.html").delete();
+      plan = run(cache, target);
+      Assertions.assertEquals(set("codesystem-fhir.synth1-cs"), plan.pages);
+      Assertions.assertEquals(set(), plan.realms);
+
+      // the pages of a package that has gone are removed, and the uv value set's page no
+      // longer has the code system
+      FileUtils.deleteDirectory(new File(cache, "example.synth2#1.0.0"));
+      plan = run(cache, target);
+      Assertions.assertEquals(set("valueset-hl7.fhir.uv.synth0-vs"), plan.pages);
+      Assertions.assertEquals(Arrays.asList("codesystem-example.synth2-cs", "valueset-example.synth2-vs"), plan.removed);
+      Assertions.assertFalse(new File(target, "valueset-example.synth2-vs.html").exists());
+      Assertions.assertEquals(set("all", "hl7", "uv"), plan.realms);
+    } finally {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+
+  /**
+   * Loads the cache, and makes what has changed with the XIGRenderer, as XIGRenderer.produce does
+   */
+  private Plan run(File cache, File target) throws IOException {
+    XIGInformation info = new XIGInformation();
+    File storeFile = new File(cache.getParentFile(), "xig.store");
+    XIGStore store = new XIGStore(storeFile);
+    try {
+      JsonObject header = new JsonObject();
+      header.add("date", "test");
+      XIGRegistryWriter registry = new XIGRegistryWriter(Utilities.path(target.getAbsolutePath(), "registry.json"), header);
+      XIGPackageScanner scanner = new XIGPackageScanner(cache.getAbsolutePath(), 2);
+      scanner.getResourceTypes().add("ValueSet");
+      scanner.getResourceTypes().add("CodeSystem");
+      scanner.scan(new XIGLoader(info), store, registry);
+      registry.close();
+      store.loadInto(info);
+    } finally {
+      store.close();
+      storeFile.delete();
+    }
+    info.buildUsageMap();
+    info.buildIndex();
+
+    RecordingRenderer renderer = new RecordingRenderer(info, target.getAbsolutePath());
+    renderer.setThreads(2);
+    XIGManifest manifest = new XIGManifest(info, target.getAbsolutePath());
+    manifest.readPrevious();
+    renderer.renderChanged(manifest);
+    renderer.genPageSets(renderer.pageSets(), manifest);
+    manifest.save();
+
+    Plan plan = new Plan();
+    plan.pages = renderer.pages;
+    plan.realms = renderer.realms;
+    plan.removed = manifest.removedPages();
+    return plan;
+  }
+
+  /**
+   * A package with a value set and a code system. The value set includes the package's own
+   * code system, and the other system, if there is one
+   */
+  private void writePackage(File cache, String id, String vsText, String csText, String otherSystem) throws IOException {
+    File pf = new File(cache, id+"#1.0.0/package");
+    pf.mkdirs();
+    String canonical = "http://example.org/fhir/"+id.substring(id.lastIndexOf(".") + 1);
+    TextFile.stringToFile("{\"name\":\""+id+"\",\"version\":\"1.0.0\",\"fhirVersions\":[\"4.0.1\"],\"type\":\"fhir.ig\",\"canonical\":\""+canonical+"\","
+        + "\"url\":\""+canonical+"/1.0.0\",\"title\":\"Synthetic "+id+"\"}", new File(pf, "package.json"), false);
+    String include = "{\"system\":\""+canonical+"/CodeSystem/cs\"}";
+    if (otherSystem != null) {
+      include = include + ",{\"system\":\""+otherSystem+"\"}";
+    }
+    TextFile.stringToFile("{\"resourceType\":\"ValueSet\",\"id\":\"vs\",\"url\":\""+canonical+"/ValueSet/vs\",\"version\":\"1.0.0\",\"status\":\"active\","
+        + "\"description\":\"The "+vsText+" value set\",\"compose\":{\"include\":["+include+"]}}", new File(pf, "ValueSet-vs.json"), false);
+    TextFile.stringToFile("{\"resourceType\":\"CodeSystem\",\"id\":\"cs\",\"url\":\""+canonical+"/CodeSystem/cs\",\"version\":\"1.0.0\",\"status\":\"active\","
+        + "\"description\":\"The "+csText+" code system\",\"content\":\"complete\",\"concept\":[{\"code\":\"a\"},{\"code\":\"b\"}]}", new File(pf, "CodeSystem-cs.json"), false);
+  }
+
+  private Set<String> set(String... values) {
+    return new HashSet<>(Arrays.asList(values));
+  }
+}
@@ -0,0 +1,232 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.xig.XIGCapabilityStatementHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGCodeSystemHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGConceptMapHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGGenericHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGHandler.PageContent;
+import org.hl7.fhir.igtools.publisher.xig.XIGInformation;
+import org.hl7.fhir.igtools.publisher.xig.XIGLoader;
+import org.hl7.fhir.igtools.publisher.xig.XIGNamingSystemHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGOperationDefinitionHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGPackageScanner;
+import org.hl7.fhir.igtools.publisher.xig.XIGRegistryWriter;
+import org.hl7.fhir.igtools.publisher.xig.XIGSearchParameterHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGStore;
+import org.hl7.fhir.igtools.publisher.xig.XIGStructureDefinitionHandler;
+import org.hl7.fhir.igtools.publisher.xig.XIGValueSetHandler;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CapabilityStatement;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r5.model.Enumerations.CapabilityStatementKind;
+import org.hl7.fhir.r5.model.NamingSystem;
+import org.hl7.fhir.r5.model.NamingSystem.NamingSystemType;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The index page sets pick their resources from the XIGInformation index. This loads a
+ * synthetic local package cache spread over the authorities and realms, and makes the index
+ * pages for each realm twice: once from the index, and once the way they were made before
+ * there was an index, by going through all the resources and checking the realm and type of
+ * each one. The pages must be the same. The pages that need the core packages (profiles,
+ * extensions and usages) aren't made here
+ */
+public class XIGIndexTest {
+
+  private static final String[] REALMS = { "all", "hl7", "ihe", "uv", "us", "no", "ch" };
+
+  /**
+   * Answers select() either from the index, or by going through all the resources as the
+   * handlers used to
+   */
+  private static class ScanningInformation extends XIGInformation {
+    private boolean scan;
+    private RealmCheck check = new RealmCheck();
+
+    @Override
+    public List<CanonicalResource> select(String realm, String type, String kind) {
+      if (!scan) {
+        return super.select(realm, type, kind);
+      }
+      List<CanonicalResource> res = new ArrayList<>();
+      for (CanonicalResource cr : getResources().values()) {
+        if (check.meetsRealm(cr, realm) && cr.fhirType().equals(type) && (kind == null || kind.equals(kindOf(cr)))) {
+          res.add(cr);
+        }
+      }
+      return res;
+    }
+
+    private String kindOf(CanonicalResource cr) {
+      if (cr instanceof StructureDefinition && ((StructureDefinition) cr).hasKind()) {
+        return ((StructureDefinition) cr).getKind().toCode();
+      }
+      if (cr instanceof CodeSystem && ((CodeSystem) cr).hasContent()) {
+        return ((CodeSystem) cr).getContent().toCode();
+      }
+      if (cr instanceof CapabilityStatement && ((CapabilityStatement) cr).hasKind()) {
+        return ((CapabilityStatement) cr).getKind().toCode();
+      }
+      if (cr instanceof NamingSystem && ((NamingSystem) cr).hasKind()) {
+        return ((NamingSystem) cr).getKind().toCode();
+      }
+      return null;
+    }
+  }
+
+  private static class RealmCheck extends XIGHandler {
+    @Override
+    protected boolean meetsRealm(CanonicalResource cr, String realm) {
+      return super.meetsRealm(cr, realm);
+    }
+  }
+
+  @Test
+  public void testIndexedPagesMatchFullScan() throws Exception {
+    File root = Files.createTempDirectory("xig-index").toFile();
+    try {
+      File cache = new File(root, "cache");
+      writePackage(cache, "hl7.fhir.uv.synth0", null);
+      writePackage(cache, "fhir.synth1", "{\"coding\":[{\"system\":\"urn:iso:std:iso:3166\",\"code\":\"NO\"}]}");
+      writePackage(cache, "ihe.synth2", "{\"coding\":[{\"system\":\"http://unstats.un.org/unsd/methods/m49/m49.htm\",\"code\":\"001\"}]}");
+      writePackage(cache, "ch.fhir.synth3", null);
+      writePackage(cache, "example.synth4", "{\"coding\":[{\"system\":\"urn:iso:std:iso:3166\",\"code\":\"US\"}]}");
+
+      ScanningInformation info = load(cache);
+      Assertions.assertEquals(55, info.getResources().size());
+      for (String realm : REALMS) {
+        Map<String, String> indexed = pages(info, realm);
+        info.scan = true;
+        Map<String, String> scanned = pages(info, realm);
+        info.scan = false;
+        Assertions.assertEquals(scanned.keySet(), indexed.keySet(), realm);
+        for (String name : scanned.keySet()) {
+          Assertions.assertEquals(scanned.get(name), indexed.get(name), realm+": "+name);
+        }
+        Assertions.assertTrue(scanned.containsKey("valuesets-all"), realm);
+      }
+    } finally {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+
+  private ScanningInformation load(File cache) throws IOException {
+    ScanningInformation info = new ScanningInformation();
+    File storeFile = new File(cache.getParentFile(), "xig.store");
+    XIGStore store = new XIGStore(storeFile);
+    try {
+      JsonObject header = new JsonObject();
+      header.add("date", "test");
+      XIGRegistryWriter registry = new XIGRegistryWriter(Utilities.path(cache.getParentFile().getAbsolutePath(), "registry.json"), header);
+      XIGPackageScanner scanner = new XIGPackageScanner(cache.getAbsolutePath(), 2);
+      for (String type : new String[] { "ValueSet", "CodeSystem", "ConceptMap", "NamingSystem", "CapabilityStatement",
+          "OperationDefinition", "SearchParameter", "StructureDefinition", "Questionnaire" }) {
+        scanner.getResourceTypes().add(type);
+      }
+      scanner.scan(new XIGLoader(info), store, registry);
+      registry.close();
+      store.loadInto(info);
+    } finally {
+      store.close();
+      storeFile.delete();
+    }
+    info.buildUsageMap();
+    info.buildIndex();
+    return info;
+  }
+
+  /**
+   * The index pages for the realm that can be made without the core packages, in the order
+   * the XIGRenderer makes them
+   */
+  private Map<String, String> pages(XIGInformation info, String realm) throws IOException {
+    Map<String, String> res = new LinkedHashMap<>();
+    add(res, "logicals", new XIGStructureDefinitionHandler(info).makeLogicalsPage(realm));
+    XIGCodeSystemHandler csh = new XIGCodeSystemHandler(info);
+    for (CodeSystemContentMode mode : new CodeSystemContentMode[] { CodeSystemContentMode.COMPLETE, CodeSystemContentMode.EXAMPLE,
+        CodeSystemContentMode.FRAGMENT, CodeSystemContentMode.NOTPRESENT, CodeSystemContentMode.SUPPLEMENT }) {
+      add(res, "codeSystems-"+mode.toCode(), csh.makeCodeSystemPage(mode, "Code Systems", realm));
+    }
+    XIGValueSetHandler vsh = new XIGValueSetHandler(info);
+    add(res, "valuesets-all", vsh.makeValueSetsPage(null, "All ValueSets", realm));
+    for (String mode : new String[] { "example", "fhir", "internal", "mixed", "tho" }) {
+      add(res, "valuesets-"+mode, vsh.makeValueSetsPage(mode, "ValueSets", realm));
+    }
+    XIGConceptMapHandler cmh = new XIGConceptMapHandler(info);
+    add(res, "conceptmaps-all", cmh.makeConceptMapsPage(null, "All ConceptMaps", realm));
+    add(res, "conceptmaps-internal", cmh.makeConceptMapsPage("internal", "ConceptMaps", realm));
+    XIGOperationDefinitionHandler oph = new XIGOperationDefinitionHandler(info);
+    for (String r : Utilities.sorted(info.getOpr())) {
+      add(res, "operations-"+r, oph.makeOperationsPage(r, "Operations for "+r, realm));
+    }
+    XIGNamingSystemHandler nsh = new XIGNamingSystemHandler(info);
+    add(res, "namingsystems", nsh.makeKindPage(null, "All Naming Systems", realm));
+    add(res, "namingsystems-cs", nsh.makeKindPage(NamingSystemType.CODESYSTEM, "Code System Systems", realm));
+    add(res, "namingsystems-is", nsh.makeKindPage(NamingSystemType.IDENTIFIER, "Identifier Systems", realm));
+    XIGSearchParameterHandler sph = new XIGSearchParameterHandler(info);
+    for (String r : Utilities.sorted(info.getSpr())) {
+      add(res, "searchparams-"+r, sph.makeSearchParamsPage(r, "Search Params for "+r, realm));
+    }
+    XIGCapabilityStatementHandler csth = new XIGCapabilityStatementHandler(info);
+    for (CapabilityStatementKind kind : new CapabilityStatementKind[] { CapabilityStatementKind.INSTANCE, CapabilityStatementKind.CAPABILITY, CapabilityStatementKind.REQUIREMENTS }) {
+      add(res, "capabilitystatements-"+kind.toCode(), csth.makeCapabilityStatementPage(kind, "CapabilityStatements", realm));
+    }
+    add(res, "resources-q", new XIGGenericHandler(info).makeResourcesPage("Questionnaire", "Questionnaires", realm));
+    return res;
+  }
+
+  private void add(Map<String, String> pages, String name, PageContent page) {
+    pages.put(name, page == null ? null : page.getTitle()+"\r\n"+page.getContent());
+  }
+
+  /**
+   * A package with one of each kind of resource the pages list, two of them with the same
+   * name (as well as the ones in the other packages) so that the order the pages see them in
+   * matters. The jurisdiction, if there is one, goes on the value set and code systems
+   */
+  private void writePackage(File cache, String id, String jurisdiction) throws IOException {
+    File pf = new File(cache, id+"#1.0.0/package");
+    pf.mkdirs();
+    String canonical = "http://example.org/fhir/"+id.substring(id.lastIndexOf(".") + 1);
+    TextFile.stringToFile("{\"name\":\""+id+"\",\"version\":\"1.0.0\",\"fhirVersions\":[\"4.0.1\"],\"type\":\"fhir.ig\",\"canonical\":\""+canonical+"\","
+        + "\"url\":\""+canonical+"/1.0.0\",\"title\":\"Synthetic "+id+"\"}", new File(pf, "package.json"), false);
+    String jur = jurisdiction == null ? "" : "\"jurisdiction\":["+jurisdiction+"],";
+    resource(pf, "ValueSet", "vs", canonical, jur+"\"name\":\"Shared\",\"compose\":{\"include\":[{\"system\":\""+canonical+"/CodeSystem/cs\"},"
+        + "{\"system\":\"http://terminology.hl7.org/CodeSystem/v2-0001\"}]}");
+    resource(pf, "ValueSet", "vs2", canonical, "\"name\":\"Other\",\"compose\":{\"include\":[{\"system\":\"http://hl7.org/fhir/administrative-gender\"}]}");
+    resource(pf, "CodeSystem", "cs", canonical, jur+"\"name\":\"Shared\",\"content\":\"complete\",\"concept\":[{\"code\":\"a\"}]");
+    resource(pf, "CodeSystem", "cs2", canonical, jur+"\"name\":\"Codes\",\"content\":\"example\",\"concept\":[{\"code\":\"b\"}]");
+    resource(pf, "ConceptMap", "cm", canonical, "\"name\":\"Map\",\"group\":[{\"source\":\""+canonical+"/CodeSystem/cs\",\"target\":\""+canonical+"/CodeSystem/cs2\","
+        + "\"element\":[{\"code\":\"a\",\"target\":[{\"code\":\"b\",\"equivalence\":\"equivalent\"}]}]}]");
+    resource(pf, "NamingSystem", "ns", canonical, "\"name\":\"Naming\",\"kind\":\""+(id.contains("synth1") ? "identifier" : "codesystem")+"\",\"date\":\"2023-01-01\","
+        + "\"uniqueId\":[{\"type\":\"uri\",\"value\":\""+canonical+"/ns\"}]");
+    resource(pf, "CapabilityStatement", "cst", canonical, "\"name\":\"Capabilities\",\"kind\":\""+(id.contains("synth2") ? "requirements" : "instance")+"\","
+        + "\"date\":\"2023-01-01\",\"fhirVersion\":\"4.0.1\",\"format\":[\"json\"]");
+    resource(pf, "OperationDefinition", "op", canonical, "\"name\":\"Op\",\"kind\":\"operation\",\"code\":\"op\",\"resource\":[\""+(id.contains("synth3") ? "Observation" : "Patient")+"\"],"
+        + "\"system\":false,\"type\":true,\"instance\":false");
+    resource(pf, "SearchParameter", "sp", canonical, "\"name\":\"Search\",\"code\":\"sp\",\"base\":[\"Patient\"],\"type\":\"token\",\"expression\":\"Patient.id\"");
+    resource(pf, "StructureDefinition", "lm", canonical, "\"name\":\"Model\",\"kind\":\"logical\",\"abstract\":false,\"type\":\""+canonical+"/StructureDefinition/lm\"");
+    resource(pf, "Questionnaire", "q", canonical, "\"name\":\"Questions\"");
+  }
+
+  private void resource(File pf, String type, String id, String canonical, String content) throws IOException {
+    TextFile.stringToFile("{\"resourceType\":\""+type+"\",\"id\":\""+id+"\",\"url\":\""+canonical+"/"+type+"/"+id+"\",\"version\":\"1.0.0\",\"status\":\"active\","
+        + "\"description\":\"The "+type+" "+id+"\","+content+"}", new File(pf, type+"-"+id+".json"), false);
+  }
+}
@@ -0,0 +1,204 @@
+package tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.igtools.publisher.xig.XIGInformation;
+import org.hl7.fhir.igtools.publisher.xig.XIGLoader;
+import org.hl7.fhir.igtools.publisher.xig.XIGPackageScanner;
+import org.hl7.fhir.igtools.publisher.xig.XIGRegistryWriter;
+import org.hl7.fhir.igtools.publisher.xig.XIGStore;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Questionnaire;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Loads a synthetic local package cache the way the XIGGenerator does (XIGPackageScanner,
+ * XIGStore.loadInto, then the usage map and the index) and checks what that takes in the heap.
+ * The questionnaires in the cache are bigger in total than the heap the load is given, so
+ * the load only works if they stay in the store, and only their summaries are in memory
+ */
+public class XIGLoadingMemoryTest {
+
+  private static final int PACKAGES = 500;
+  private static final int RESOURCES_PER_PACKAGE = 4;
+  private static final int QUESTIONNAIRES_PER_PACKAGE = 2;
+  private static final int ITEM_TEXT_SIZE = 100000;
+  private static final int THREADS = 4;
+  private static final String HEAP_LIMIT = "64m";
+
+  private static class Loaded {
+    private XIGInformation info;
+    private XIGStore store;
+    private XIGRegistryWriter registry;
+    private File dir;
+  }
+
+  /**
+   * Runs the load in a JVM of its own, with the heap limited, and reports the peak heap
+   * use across it
+   */
+  public static class LoadMain {
+    public static void main(String[] args) throws Exception {
+      List<MemoryPoolMXBean> pools = new ArrayList<>();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+          pools.add(pool);
+        }
+      }
+      Loaded l = load(args[0]);
+      l.store.loadInto(l.info);
+      l.info.buildUsageMap();
+      l.info.buildIndex();
+      long peak = 0;
+      for (MemoryPoolMXBean pool : pools) {
+        peak = peak + pool.getPeakUsage().getUsed();
+      }
+      Questionnaire q = (Questionnaire) l.info.getResources().get("http://example.org/fhir/synthetic7/Questionnaire/q1");
+      System.out.println("resources="+l.info.getResources().size());
+      System.out.println("peak="+peak);
+      System.out.println("items="+q.getItem().size());
+      System.out.println("text="+((Questionnaire) l.info.getFullResource(q)).getItemFirstRep().getText().length());
+      l.store.close();
+    }
+  }
+
+  @Test
+  public void testPeakHeapIsBelowResourceSize() throws Exception {
+    File root = Files.createTempDirectory("xig-cache").toFile();
+    try {
+      String cache = makeCache(root, "cache", PACKAGES);
+      Map<String, String> res = runLoad(cache);
+      long questionnaires = (long) PACKAGES * QUESTIONNAIRES_PER_PACKAGE * ITEM_TEXT_SIZE;
+      long peak = Long.parseLong(res.get("peak"));
+      System.out.println("Peak heap loading "+PACKAGES+" packages ("+(questionnaires / 1024)+"KB of questionnaire content): "+(peak / 1024)+"KB");
+      Assertions.assertEquals(String.valueOf(PACKAGES * RESOURCES_PER_PACKAGE), res.get("resources"));
+      Assertions.assertTrue(peak < questionnaires, "peak heap "+peak+" bytes for "+questionnaires+" bytes of questionnaires");
+      // in memory as a summary, and read back in full from the store for the page
+      Assertions.assertEquals("0", res.get("items"));
+      Assertions.assertEquals(String.valueOf(ITEM_TEXT_SIZE), res.get("text"));
+    } finally {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+
+  @Test
+  public void testStoreAndRegistry() throws Exception {
+    File root = Files.createTempDirectory("xig-cache").toFile();
+    try {
+      String cache = makeCache(root, "cache", 20);
+      Loaded l = load(cache);
+
+      JsonObject registry = JsonParser.parseObject(new FileInputStream(Utilities.path(l.dir.getAbsolutePath(), "registry.json")));
+      Assertions.assertEquals("test", registry.asString("date"));
+      Assertions.assertEquals(20, registry.getJsonObject("packages").getProperties().size());
+      Assertions.assertEquals(20 * RESOURCES_PER_PACKAGE, registry.getJsonArray("canonicals").size());
+
+      // the latest version of each resource comes back, in url order, with the loader's user data
+      XIGInformation info = new XIGInformation();
+      List<XIGStore.Entry> latest = l.store.latest();
+      Assertions.assertEquals(20 * RESOURCES_PER_PACKAGE, latest.size());
+      for (int i = 1; i < latest.size(); i++) {
+        Assertions.assertTrue(latest.get(i - 1).getUrl().compareTo(latest.get(i).getUrl()) < 0);
+      }
+      l.store.loadInto(info);
+      CanonicalResource cr = info.getResources().get("http://example.org/fhir/synthetic7/ValueSet/vs0");
+      Assertions.assertNotNull(cr);
+      Assertions.assertEquals("example.synthetic7#1.0.0", cr.getUserString("pid"));
+      Assertions.assertEquals("The value set", cr.getDescription());
+      Assertions.assertNotNull(cr.getUserData("json"));
+      Assertions.assertSame(cr, info.getFullResource(cr));
+
+      Questionnaire q = (Questionnaire) info.getResources().get("http://example.org/fhir/synthetic7/Questionnaire/q1");
+      Assertions.assertEquals("Questionnaire q1", q.getTitle());
+      Assertions.assertTrue(q.getItem().isEmpty());
+      Questionnaire full = (Questionnaire) info.getFullResource(q);
+      Assertions.assertEquals(ITEM_TEXT_SIZE, full.getItemFirstRep().getText().length());
+      Assertions.assertEquals(q.getUserString("filebase"), full.getUserString("filebase"));
+      Assertions.assertSame(q.getUserData("json"), full.getUserData("json"));
+      close(l);
+    } finally {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+
+  private Map<String, String> runLoad(String cache) throws IOException, InterruptedException {
+    String java = Utilities.path(System.getProperty("java.home"), "bin", "java");
+    Process p = new ProcessBuilder(java, "-Xmx"+HEAP_LIMIT, "-cp", System.getProperty("java.class.path"), LoadMain.class.getName(), cache)
+        .redirectErrorStream(true).start();
+    String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    Assertions.assertEquals(0, p.waitFor(), output);
+    Map<String, String> res = new HashMap<>();
+    for (String line : output.split("\\r?\\n")) {
+      if (line.contains("=")) {
+        res.put(line.substring(0, line.indexOf("=")), line.substring(line.indexOf("=") + 1));
+      }
+    }
+    return res;
+  }
+
+  private static Loaded load(String cache) throws IOException {
+    Loaded res = new Loaded();
+    res.dir = new File(cache+"-out");
+    res.dir.mkdirs();
+    res.info = new XIGInformation();
+    res.store = new XIGStore(new File(cache+".store"));
+    JsonObject header = new JsonObject();
+    header.add("date", "test");
+    res.registry = new XIGRegistryWriter(Utilities.path(res.dir.getAbsolutePath(), "registry.json"), header);
+    XIGPackageScanner scanner = new XIGPackageScanner(cache, THREADS);
+    scanner.getResourceTypes().add("ValueSet");
+    scanner.getResourceTypes().add("CodeSystem");
+    scanner.getResourceTypes().add("Questionnaire");
+    scanner.scan(new XIGLoader(res.info), res.store, res.registry);
+    res.registry.close();
+    return res;
+  }
+
+  private void close(Loaded l) throws IOException {
+    l.store.close();
+  }
+
+  /**
+   * Packages with a value set, a code system, and two questionnaires with a long item text
+   */
+  private String makeCache(File root, String name, int count) throws IOException {
+    File dir = new File(root, name);
+    String text = "x".repeat(ITEM_TEXT_SIZE);
+    for (int i = 0; i < count; i++) {
+      String id = "example.synthetic"+i;
+      File pf = new File(dir, id+"#1.0.0/package");
+      pf.mkdirs();
+      String canonical = "http://example.org/fhir/synthetic"+i;
+      TextFile.stringToFile("{\"name\":\""+id+"\",\"version\":\"1.0.0\",\"fhirVersions\":[\"4.0.1\"],\"type\":\"fhir.ig\",\"canonical\":\""+canonical+"\","
+          + "\"url\":\""+canonical+"/1.0.0\",\"title\":\"Synthetic "+i+"\"}", new File(pf, "package.json"), false);
+      TextFile.stringToFile("{\"resourceType\":\"ValueSet\",\"id\":\"vs0\",\"url\":\""+canonical+"/ValueSet/vs0\",\"version\":\"1.0.0\",\"status\":\"active\","
+          + "\"description\":\"The value set\",\"compose\":{\"include\":[{\"system\":\"http://loinc.org\"}]}}", new File(pf, "ValueSet-vs0.json"), false);
+      TextFile.stringToFile("{\"resourceType\":\"CodeSystem\",\"id\":\"cs0\",\"url\":\""+canonical+"/CodeSystem/cs0\",\"version\":\"1.0.0\",\"status\":\"active\","
+          + "\"description\":\"The code system\",\"content\":\"complete\",\"concept\":[{\"code\":\"a\"},{\"code\":\"b\"}]}", new File(pf, "CodeSystem-cs0.json"), false);
+      for (int q = 1; q <= QUESTIONNAIRES_PER_PACKAGE; q++) {
+        TextFile.stringToFile("{\"resourceType\":\"Questionnaire\",\"id\":\"q"+q+"\",\"url\":\""+canonical+"/Questionnaire/q"+q+"\",\"version\":\"1.0.0\",\"status\":\"active\","
+            + "\"title\":\"Questionnaire q"+q+"\",\"description\":\"A questionnaire\",\"item\":[{\"linkId\":\"1\",\"type\":\"display\",\"text\":\""+text+"\"}]}",
+            new File(pf, "Questionnaire-q"+q+".json"), false);
+      }
+    }
+    return dir.getAbsolutePath();
+  }
+}